@@ -61,12 +61,17 @@ import org.afree.chart.plot.Plot;
 import org.afree.chart.plot.PlotOrientation;
 import org.afree.chart.plot.PlotRenderingInfo;
 import org.afree.chart.plot.Zoomable;
+import org.afree.graphics.PaintType;
+import org.afree.graphics.SolidColor;
 import org.afree.graphics.geom.Dimension;
 import org.afree.graphics.geom.RectShape;
 import org.afree.ui.RectangleInsets;
 
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.PointF;
 import android.os.Handler;
 import android.util.AttributeSet;
@@ -262,6 +267,27 @@ public class AFreeChartView extends View implements ChartChangeListener,
     private long mPrevTimeMillis = 0;
     private long mNowTimeMillis = System.currentTimeMillis();
 
+    /**
+     * Time taken to draw the chart the last time and the maximum (ms).
+     */
+    private long mLastDrawTime;
+    private long mMaxDrawTime;
+
+    /**
+     * Off-screen buffer holding the last rendering of the chart. It is only
+     * rendered again when mBufferDirty is set by a change to the chart or
+     * the size. While a gesture is in progress, the data area of the buffer
+     * is drawn with mGestureMatrix applied instead, and the chart is
+     * rendered again when the gesture ends.
+     */
+    private Bitmap mBuffer;
+    private Canvas mBufferCanvas;
+    private boolean mBufferDirty = true;
+    private boolean mGestureInProgress;
+    private final Matrix mGestureMatrix = new Matrix();
+    private long mRenderCount;
+    private long mCachedDrawCount;
+
     private boolean mFillSpaceX = true;
     private boolean mFillSpaceY = true;
 
@@ -285,6 +311,7 @@ public class AFreeChartView extends View implements ChartChangeListener,
             case MotionEvent.ACTION_DOWN:
             case MotionEvent.ACTION_POINTER_DOWN:
                 Log.i("TouchEvent", "ACTION_DOWN");
+                mGestureInProgress = true;
                 if (count == 2 && this.multiTouchStartInfo == null) {
                     setMultiTouchStartInfo(ev);
                 } else if (count == 1 && this.singleTouchStartInfo == null) {
@@ -331,6 +358,17 @@ public class AFreeChartView extends View implements ChartChangeListener,
                     }
                     mPrevTimeMillis = mNowTimeMillis;
                 }
+                if ((action & MotionEvent.ACTION_MASK)
+                        == MotionEvent.ACTION_UP) {
+                    // Inertial moves are still part of the gesture
+                    endGesture(!inertialMovedFlag);
+                }
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                this.multiTouchStartInfo = null;
+                this.singleTouchStartInfo = null;
+                inertialMovedFlag = false;
+                endGesture(true);
                 break;
             default:
                 break;
@@ -461,6 +499,9 @@ public class AFreeChartView extends View implements ChartChangeListener,
                 z.moveRangeAxes(vMovePercent, info, source);
             }
             // p.setNotify(savedNotify);
+            // The data moves the opposite way to the bounds on the screen
+            mGestureMatrix.postTranslate((float) -moveBoundX,
+                    (float) -moveBoundY);
 
             // repaint
             invalidate();
@@ -529,6 +570,40 @@ public class AFreeChartView extends View implements ChartChangeListener,
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         this.insets = new RectangleInsets(0, 0, 0, 0);
         this.size = new Dimension(w, h);
+        mBufferDirty = true;
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (mBuffer != null) {
+            mBuffer.recycle();
+            mBuffer = null;
+            mBufferCanvas = null;
+        }
+        mBufferDirty = true;
+    }
+
+    /**
+     * Ends a gesture. The chart is rendered again on the next draw if it
+     * changed during the gesture.
+     *
+     * @param done Whether the gesture is over. If false it continues until
+     *             the inertial move stops.
+     */
+    private void endGesture(boolean done) {
+        if (!done) {
+            // Make sure the inertial move gets processed
+            invalidate();
+            return;
+        }
+        if (mGestureInProgress) {
+            mGestureInProgress = false;
+            if (!mGestureMatrix.isIdentity()) {
+                mBufferDirty = true;
+            }
+            invalidate();
+        }
     }
 
     public RectangleInsets getInsets() {
@@ -593,12 +668,48 @@ public class AFreeChartView extends View implements ChartChangeListener,
             this.domainMovable = false;
             this.rangeMovable = false;
         }
-        // if (this.useBuffer) {
-        // this.refreshBuffer = true;
-        // }
+        mBufferDirty = true;
         repaint();
     }
 
+    /**
+     * Returns the time taken by the last draw of the chart.
+     *
+     * @return The time (ms).
+     */
+    public long getLastDrawTime() {
+        return mLastDrawTime;
+    }
+
+    /**
+     * Returns the longest time taken to draw the chart.
+     *
+     * @return The time (ms).
+     */
+    public long getMaxDrawTime() {
+        return mMaxDrawTime;
+    }
+
+    /**
+     * Returns the number of times the chart has been rendered into the
+     * buffer.
+     *
+     * @return The count.
+     */
+    public long getRenderCount() {
+        return mRenderCount;
+    }
+
+    /**
+     * Returns the number of times the buffer was drawn without rendering
+     * the chart.
+     *
+     * @return The count.
+     */
+    public long getCachedDrawCount() {
+        return mCachedDrawCount;
+    }
+
     /**
      * Returns the minimum drawing width for charts.
      * <p/>
@@ -776,7 +887,8 @@ public class AFreeChartView extends View implements ChartChangeListener,
      * Paints the component by drawing the chart to fill the entire component,
      * but allowing for the insets (which will be non-zero if a border has been
      * set for this component). To increase performance (at the expense of
-     * memory), an off-screen buffer image can be used.
+     * memory), the chart is rendered into an off-screen buffer, which is
+     * only rendered again when the chart or size has changed.
      *
      * @param canvas the graphics device for drawing on.
      */
@@ -815,73 +927,51 @@ public class AFreeChartView extends View implements ChartChangeListener,
 
         RectShape chartArea = new RectShape(0.0, 0.0, drawWidth, drawHeight);
 
-        // are we using the chart buffer?
-        // if (this.useBuffer) {
-        //
-        // // do we need to resize the buffer?
-        // if ((this.chartBuffer == null)
-        // || (this.chartBufferWidth != available.getWidth())
-        // || (this.chartBufferHeight != available.getHeight())) {
-        // this.chartBufferWidth = (int) available.getWidth();
-        // this.chartBufferHeight = (int) available.getHeight();
-        // GraphicsConfiguration gc = canvas.getDeviceConfiguration();
-        // this.chartBuffer = gc.createCompatibleImage(
-        // this.chartBufferWidth, this.chartBufferHeight,
-        // Transparency.TRANSLUCENT);
-        // this.refreshBuffer = true;
-        // }
-        //
-        // // do we need to redraw the buffer?
-        // if (this.refreshBuffer) {
-        //
-        // this.refreshBuffer = false; // clear the flag
-        //
-        // RectShape bufferArea = new RectShape(
-        // 0, 0, this.chartBufferWidth, this.chartBufferHeight);
-        //
-        // Graphics2D bufferG2 = (Graphics2D)
-        // this.chartBuffer.getGraphics();
-        // RectShape r = new RectShape(0, 0, this.chartBufferWidth,
-        // this.chartBufferHeight);
-        // bufferG2.setPaint(getBackground());
-        // bufferG2.fill(r);
-        // if (scale) {
-        // AffineTransform saved = bufferG2.getTransform();
-        // AffineTransform st = AffineTransform.getScaleInstance(
-        // this.scaleX, this.scaleY);
-        // bufferG2.transform(st);
-        // this.chart.draw(bufferG2, chartArea, this.anchor,
-        // this.info);
-        // bufferG2.setTransform(saved);
-        // }
-        // else {
-        // this.chart.draw(bufferG2, bufferArea, this.anchor,
-        // this.info);
-        // }
-        //
-        // }
-        //
-        // // zap the buffer onto the panel...
-        // canvas.drawImage(this.chartBuffer, insets.left, insets.top, this);
-        //
-        // }
-
-        // TODO:AffineTransform
-        // or redrawing the chart every time...
-        // else {
+        int bufferWidth = (int) Math.ceil(drawWidth);
+        int bufferHeight = (int) Math.ceil(drawHeight);
+        if (bufferWidth <= 0 || bufferHeight <= 0) {
+            return;
+        }
 
-        // AffineTransform saved = canvas.getTransform();
-        // canvas.translate(insets.left, insets.top);
-        // if (scale) {
-        // AffineTransform st = AffineTransform.getScaleInstance(
-        // this.scaleX, this.scaleY);
-        // canvas.transform(st);
-        // }
-        // this.chart.draw(canvas, chartArea, this.anchor, this.info);
-        // canvas.setTransform(saved);
+        // do we need to resize the buffer?
+        if (mBuffer == null || mBuffer.getWidth() != bufferWidth
+                || mBuffer.getHeight() != bufferHeight) {
+            if (mBuffer != null) {
+                mBuffer.recycle();
+            }
+            mBuffer = Bitmap.createBitmap(bufferWidth, bufferHeight,
+                    Bitmap.Config.ARGB_8888);
+            mBufferCanvas = new Canvas(mBuffer);
+            mBufferDirty = true;
+            // There is nothing valid to transform
+            mGestureInProgress = false;
+        }
 
-        // }
-        this.chart.draw(canvas, chartArea, this.anchor, this.info);
+        if (mGestureInProgress && !mGestureMatrix.isIdentity()) {
+            // Draw the cached chart with the data area transformed
+            drawTransformedBuffer(canvas, insets);
+            mCachedDrawCount++;
+        } else {
+            // do we need to redraw the buffer?
+            if (mBufferDirty) {
+                mBufferDirty = false;
+                mGestureMatrix.reset();
+                mBuffer.eraseColor(Color.TRANSPARENT);
+                long start = System.nanoTime();
+                this.chart.draw(mBufferCanvas, chartArea, this.anchor,
+                        this.info);
+                mLastDrawTime = (System.nanoTime() - start) / 1000000;
+                if (mLastDrawTime > mMaxDrawTime) {
+                    mMaxDrawTime = mLastDrawTime;
+                }
+                mRenderCount++;
+            } else {
+                mCachedDrawCount++;
+            }
+            // zap the buffer onto the view...
+            canvas.drawBitmap(mBuffer, (float) insets.getLeft(),
+                    (float) insets.getTop(), null);
+        }
 
         // Iterator iterator = this.overlays.iterator();
         // while (iterator.hasNext()) {
@@ -902,6 +992,32 @@ public class AFreeChartView extends View implements ChartChangeListener,
 
     }
 
+    /**
+     * Draws the buffer with the data area transformed by the gesture
+     * matrix. The axes and legend stay as they were at the start of the
+     * gesture.
+     *
+     * @param canvas The canvas.
+     * @param insets The insets.
+     */
+    private void drawTransformedBuffer(Canvas canvas,
+                                       RectangleInsets insets) {
+        float left = (float) insets.getLeft();
+        float top = (float) insets.getTop();
+        canvas.drawBitmap(mBuffer, left, top, null);
+        RectShape dataArea = this.info.getPlotInfo().getDataArea();
+        canvas.save();
+        canvas.translate(left, top);
+        canvas.clipRect(dataArea.getMinX(), dataArea.getMinY(),
+                dataArea.getMaxX(), dataArea.getMaxY());
+        PaintType background = this.chart.getPlot().getBackgroundPaintType();
+        canvas.drawColor(background instanceof SolidColor
+                ? ((SolidColor) background).getColor() : Color.BLACK);
+        canvas.concat(mGestureMatrix);
+        canvas.drawBitmap(mBuffer, 0, 0, null);
+        canvas.restore();
+    }
+
     public Dimension getSize() {
         return this.size;
     }
@@ -1022,11 +1138,19 @@ public class AFreeChartView extends View implements ChartChangeListener,
                     && this.mScale * scaleDistance > 0.1f) {
                 this.mScale *= scaleDistance;
                 Zoomable z = (Zoomable) plot;
-                if (angle < Math.PI / 4) {
+                boolean horizontal = angle < Math.PI / 4;
+                if (horizontal) {
                     z.zoomDomainAxes(scaleDistance, info, source, false);
                 } else {
                     z.zoomRangeAxes(scaleDistance, info, source, false);
                 }
+                // The domain is vertical for a horizontal plot
+                if (z.getOrientation() == PlotOrientation.HORIZONTAL) {
+                    horizontal = !horizontal;
+                }
+                float factor = 1 / scaleDistance;
+                mGestureMatrix.postScale(horizontal ? factor : 1,
+                        horizontal ? 1 : factor, source.x, source.y);
             }
         }
 
@@ -1058,6 +1182,7 @@ public class AFreeChartView extends View implements ChartChangeListener,
 
             if (accelX == 0 && accelY == 0) {
                 inertialMovedFlag = false;
+                endGesture(true);
             }
         }
     }
@@ -1160,7 +1285,7 @@ public class AFreeChartView extends View implements ChartChangeListener,
      * @param event details of the chart change event.
      */
     public void chartChanged(ChartChangeEvent event) {
-        // this.refreshBuffer = true;
+        mBufferDirty = true;
         Plot plot = this.chart.getPlot();
         if (plot instanceof Zoomable) {
             Zoomable z = (Zoomable) plot;
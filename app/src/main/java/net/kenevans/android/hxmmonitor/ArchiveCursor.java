@@ -0,0 +1,156 @@
+package net.kenevans.android.hxmmonitor;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+
+/**
+ * A Cursor over rows read from a session archive, with the same columns as
+ * the queries on the data table. The _id of a row is its index in the
+ * archive. The archive has the rows in the order of date and id, so the
+ * index increases in the same way as the id did, and keyset paging on the
+ * date and id works the same way as for the data table.
+ */
+public class ArchiveCursor extends AbstractCursor implements IConstants {
+    private static final int FIELD_ID = 0;
+    private static final int FIELD_DATE = 1;
+    private static final int FIELD_START_DATE = 2;
+    private static final int FIELD_HR = 3;
+    private static final int FIELD_RR = 4;
+    private static final int FIELD_ACT = 5;
+    private static final int FIELD_PA = 6;
+
+    private final String[] mColumns;
+    private final int[] mFields;
+    private final DataBatch mBatch;
+    private final long mFirstId;
+
+    /**
+     * Constructor.
+     *
+     * @param columns The columns, which must be from COL_ID, COL_DATE,
+     *                COL_START_DATE, COL_HR, COL_RR, COL_ACT, and COL_PA.
+     * @param batch   The rows, which belong to the cursor.
+     * @param firstId The index in the archive of the first row.
+     */
+    public ArchiveCursor(String[] columns, DataBatch batch, long firstId) {
+        mColumns = columns;
+        mBatch = batch;
+        mFirstId = firstId;
+        mFields = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            mFields[i] = getField(columns[i]);
+        }
+    }
+
+    private static int getField(String column) {
+        switch (column) {
+            case COL_ID:
+                return FIELD_ID;
+            case COL_DATE:
+                return FIELD_DATE;
+            case COL_START_DATE:
+                return FIELD_START_DATE;
+            case COL_HR:
+                return FIELD_HR;
+            case COL_RR:
+                return FIELD_RR;
+            case COL_ACT:
+                return FIELD_ACT;
+            case COL_PA:
+                return FIELD_PA;
+            default:
+                throw new IllegalArgumentException("Invalid column "
+                        + column);
+        }
+    }
+
+    @Override
+    public int getCount() {
+        return mBatch.size();
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumns;
+    }
+
+    @Override
+    public long getLong(int column) {
+        int i = getPosition();
+        switch (mFields[column]) {
+            case FIELD_ID:
+                return mFirstId + i;
+            case FIELD_DATE:
+                return mBatch.getDate(i);
+            case FIELD_START_DATE:
+                return mBatch.getStartDate(i);
+            case FIELD_HR:
+                return mBatch.getHr(i);
+            case FIELD_ACT:
+                return mBatch.getActivity(i);
+            case FIELD_PA:
+                return mBatch.getPa(i);
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public int getInt(int column) {
+        return (int) getLong(column);
+    }
+
+    @Override
+    public short getShort(int column) {
+        return (short) getLong(column);
+    }
+
+    @Override
+    public float getFloat(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public double getDouble(int column) {
+        return getLong(column);
+    }
+
+    @Override
+    public String getString(int column) {
+        if (isNull(column)) {
+            return null;
+        }
+        if (mFields[column] == FIELD_RR) {
+            int i = getPosition();
+            return RrCodec.format(mBatch.getRr(i), mBatch.getRrCount(i));
+        }
+        return Long.toString(getLong(column));
+    }
+
+    @Override
+    public byte[] getBlob(int column) {
+        if (mFields[column] != FIELD_RR) {
+            return super.getBlob(column);
+        }
+        int i = getPosition();
+        int count = mBatch.getRrCount(i);
+        return count == INVALID_INT ? null
+                : RrCodec.encode(mBatch.getRr(i), count);
+    }
+
+    @Override
+    public boolean isNull(int column) {
+        return mFields[column] == FIELD_RR
+                && mBatch.getRrCount(getPosition()) == INVALID_INT;
+    }
+
+    @Override
+    public int getType(int column) {
+        if (mFields[column] == FIELD_RR) {
+            return isNull(column) ? Cursor.FIELD_TYPE_NULL
+                    : Cursor.FIELD_TYPE_BLOB;
+        }
+        return Cursor.FIELD_TYPE_INTEGER;
+    }
+
+}
@@ -0,0 +1,537 @@
+package net.kenevans.android.hxmmonitor;
+
+import android.util.Log;
+
+import java.util.Locale;
+
+/**
+ * Write-behind queue for data rows. Rows are added to a bounded ring buffer
+ * by the caller, typically the Bluetooth callback thread, and a dedicated
+ * writer thread commits them to the database in one transaction every
+ * DATA_WRITER_BATCH_SIZE rows or DATA_WRITER_MAX_DELAY ms, whichever comes
+ * first. If the buffer is full the row is dropped and counted rather than
+ * blocking the caller. The HRV for each period is queued the same way in a
+ * small separate buffer and committed along with the rows. It is counted
+ * separately from the rows.
+ */
+public class DataWriter implements IConstants {
+    private static final String TAG = "HxMDataWriter";
+    /**
+     * Initial capacity of the RR array for each slot.
+     */
+    private static final int INITIAL_RR_CAPACITY = 9;
+    /**
+     * The maximum number of HRV periods that can be queued. There is only
+     * one each HRV_PERIOD.
+     */
+    private static final int HRV_CAPACITY = 16;
+
+    private final HxMMonitorDbAdapter mDbAdapter;
+    private final int mBatchSize;
+    private final long mMaxDelay;
+    private final Object mLock = new Object();
+    private Thread mThread;
+    private boolean mRunning;
+
+    // Ring buffer
+    private final int mCapacity;
+    private final long[] mDate;
+    private final long[] mStartDate;
+    private final int[] mHr;
+    private final int[][] mRr;
+    private final int[] mRrCount;
+    private final int[] mAct;
+    private final int[] mPa;
+    private int mHead;
+    private int mCount;
+    private long mOldestTime;
+
+    // HRV buffer, the values are the mean NN, SDNN, RMSSD, and pNN50
+    private final long[] mHrvStartDate = new long[HRV_CAPACITY];
+    private final long[] mHrvDate = new long[HRV_CAPACITY];
+    private final int[] mHrvBeatCount = new int[HRV_CAPACITY];
+    private final double[][] mHrvValues = new double[HRV_CAPACITY][4];
+    private int mHrvHead;
+    private int mHrvCount;
+
+    // Counters, guarded by mLock
+    private long mEnqueued;
+    private long mProcessed;
+    private long mFlushTarget;
+    private long mDropped;
+    private long mHrvEnqueued;
+    private long mHrvProcessed;
+    private long mHrvFlushTarget;
+    private long mHrvDropped;
+
+    // Statistics
+    private volatile long mCommits;
+    private volatile long mRowsCommitted;
+    private volatile long mErrors;
+    private volatile long mHrvCommitted;
+    private volatile long mHrvErrors;
+    private volatile long mLastCommitLatency;
+    private volatile long mMaxCommitLatency;
+    private volatile long mTotalCommitLatency;
+
+    /**
+     * Constructor using the default capacity, batch size, and delay.
+     *
+     * @param adapter The database adapter.
+     */
+    public DataWriter(HxMMonitorDbAdapter adapter) {
+        this(adapter, DATA_WRITER_CAPACITY, DATA_WRITER_BATCH_SIZE,
+                DATA_WRITER_MAX_DELAY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param adapter   The database adapter.
+     * @param capacity  The maximum number of rows that can be queued.
+     * @param batchSize The number of rows that triggers a commit.
+     * @param maxDelay  The maximum time a row waits before it is committed
+     *                  (ms).
+     */
+    public DataWriter(HxMMonitorDbAdapter adapter, int capacity,
+                      int batchSize, long maxDelay) {
+        mDbAdapter = adapter;
+        mCapacity = capacity;
+        mBatchSize = batchSize;
+        mMaxDelay = maxDelay;
+        mDate = new long[capacity];
+        mStartDate = new long[capacity];
+        mHr = new int[capacity];
+        mRr = new int[capacity][INITIAL_RR_CAPACITY];
+        mRrCount = new int[capacity];
+        mAct = new int[capacity];
+        mPa = new int[capacity];
+    }
+
+    /**
+     * Starts the writer thread.
+     */
+    public void start() {
+        synchronized (mLock) {
+            if (mRunning) {
+                return;
+            }
+            mRunning = true;
+            mThread = new Thread(this::runWriter, TAG);
+            mThread.start();
+        }
+    }
+
+    /**
+     * Commits everything that is queued and stops the writer thread. Rows
+     * added after this are dropped. If the rows are not committed within
+     * DATA_WRITER_FLUSH_TIMEOUT ms, the ones still queued are dropped. In
+     * any case this does not return until the writer thread has exited, so
+     * the database can be closed afterward.
+     */
+    public void stop() {
+        Thread thread;
+        synchronized (mLock) {
+            if (!mRunning) {
+                return;
+            }
+            mRunning = false;
+            thread = mThread;
+            mLock.notifyAll();
+        }
+        boolean interrupted = false;
+        try {
+            thread.join(DATA_WRITER_FLUSH_TIMEOUT);
+        } catch (InterruptedException ex) {
+            interrupted = true;
+        }
+        if (thread.isAlive()) {
+            // Drop what is queued, but let the commit in progress finish
+            synchronized (mLock) {
+                Log.w(TAG, "stop: Timed out, dropping " + mCount + " rows");
+                mDropped += mCount;
+                mHrvDropped += mHrvCount;
+                mCount = 0;
+                mHrvCount = 0;
+                mLock.notifyAll();
+            }
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        }
+        synchronized (mLock) {
+            mThread = null;
+            mLock.notifyAll();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Commits everything that is currently queued and waits for it to
+     * finish, up to DATA_WRITER_FLUSH_TIMEOUT ms.
+     *
+     * @return If everything was committed in time.
+     */
+    public boolean flush() {
+        long deadline = System.currentTimeMillis() + DATA_WRITER_FLUSH_TIMEOUT;
+        synchronized (mLock) {
+            long target = mEnqueued;
+            if (target > mFlushTarget) {
+                mFlushTarget = target;
+            }
+            long hrvTarget = mHrvEnqueued;
+            if (hrvTarget > mHrvFlushTarget) {
+                mHrvFlushTarget = hrvTarget;
+            }
+            mLock.notifyAll();
+            long wait;
+            while ((mProcessed < target || mHrvProcessed < hrvTarget)
+                    && mThread != null) {
+                wait = deadline - System.currentTimeMillis();
+                if (wait <= 0) {
+                    return false;
+                }
+                try {
+                    mLock.wait(wait);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+            }
+            return mProcessed >= target && mHrvProcessed >= hrvTarget;
+        }
+    }
+
+    /**
+     * Queues a row. Does not block.
+     *
+     * @param date      The date.
+     * @param startDate The start date.
+     * @param hr        The HR.
+     * @param rr        The RR values or null if invalid.
+     * @param rrCount   The number of RR values to use.
+     * @param activity  The activity.
+     * @param pa        The peak acceleration.
+     * @return False if the writer is not running or the queue is full.
+     */
+    public boolean add(long date, long startDate, int hr, int[] rr,
+                       int rrCount, int activity, int pa) {
+        synchronized (mLock) {
+            if (!mRunning) {
+                return false;
+            }
+            if (mCount == mCapacity) {
+                mDropped++;
+                return false;
+            }
+            int i = (mHead + mCount) % mCapacity;
+            mDate[i] = date;
+            mStartDate[i] = startDate;
+            mHr[i] = hr;
+            if (rr == null) {
+                mRrCount[i] = INVALID_INT;
+            } else {
+                if (mRr[i].length < rrCount) {
+                    mRr[i] = new int[rrCount];
+                }
+                System.arraycopy(rr, 0, mRr[i], 0, rrCount);
+                mRrCount[i] = rrCount;
+            }
+            mAct[i] = activity;
+            mPa[i] = pa;
+            if (mCount == 0) {
+                mOldestTime = System.currentTimeMillis();
+            }
+            mCount++;
+            mEnqueued++;
+            // Only wake the writer when it needs to start timing or commit
+            if (mCount == 1 || mCount == mBatchSize) {
+                mLock.notifyAll();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Queues the HRV for a period. Does not block.
+     *
+     * @param startDate The start date of the session.
+     * @param date      The start of the period.
+     * @param engine    The engine holding the beats of the period.
+     * @return False if the writer is not running or the queue is full.
+     */
+    public boolean addHrv(long startDate, long date, HrvEngine engine) {
+        synchronized (mLock) {
+            if (!mRunning) {
+                return false;
+            }
+            if (mHrvCount == HRV_CAPACITY) {
+                mHrvDropped++;
+                return false;
+            }
+            int i = (mHrvHead + mHrvCount) % HRV_CAPACITY;
+            mHrvStartDate[i] = startDate;
+            mHrvDate[i] = date;
+            mHrvBeatCount[i] = engine.getCount();
+            mHrvValues[i][0] = engine.getMeanRr();
+            mHrvValues[i][1] = engine.getSdnn();
+            mHrvValues[i][2] = engine.getRmssd();
+            mHrvValues[i][3] = engine.getPnn50();
+            if (mCount == 0 && mHrvCount == 0) {
+                mOldestTime = System.currentTimeMillis();
+                mLock.notifyAll();
+            }
+            mHrvCount++;
+            mHrvEnqueued++;
+            return true;
+        }
+    }
+
+    /**
+     * The writer thread. Waits until there is a reason to commit, moves the
+     * queued rows to a batch, and commits the batch outside the lock.
+     */
+    private void runWriter() {
+        DataBatch batch = new DataBatch(mBatchSize);
+        long[] hrvStartDate = new long[HRV_CAPACITY];
+        long[] hrvDate = new long[HRV_CAPACITY];
+        int[] hrvBeatCount = new int[HRV_CAPACITY];
+        double[][] hrvValues = new double[HRV_CAPACITY][4];
+        int nHrv;
+        int rrCount;
+        while (true) {
+            synchronized (mLock) {
+                try {
+                    while (!isCommitDue()) {
+                        if (!mRunning && mCount == 0 && mHrvCount == 0) {
+                            mLock.notifyAll();
+                            return;
+                        }
+                        if (mCount == 0 && mHrvCount == 0) {
+                            mLock.wait();
+                        } else {
+                            mLock.wait(Math.max(1, mOldestTime + mMaxDelay
+                                    - System.currentTimeMillis()));
+                        }
+                    }
+                } catch (InterruptedException ex) {
+                    // Finish what is queued
+                    mRunning = false;
+                }
+                batch.clear();
+                while (mCount > 0 && !batch.isFull()) {
+                    rrCount = mRrCount[mHead];
+                    batch.add(mDate[mHead], mStartDate[mHead], mHr[mHead],
+                            rrCount == INVALID_INT ? null : mRr[mHead],
+                            rrCount == INVALID_INT ? 0 : rrCount,
+                            mAct[mHead], mPa[mHead]);
+                    mHead = (mHead + 1) % mCapacity;
+                    mCount--;
+                }
+                nHrv = 0;
+                while (mHrvCount > 0) {
+                    hrvStartDate[nHrv] = mHrvStartDate[mHrvHead];
+                    hrvDate[nHrv] = mHrvDate[mHrvHead];
+                    hrvBeatCount[nHrv] = mHrvBeatCount[mHrvHead];
+                    System.arraycopy(mHrvValues[mHrvHead], 0,
+                            hrvValues[nHrv], 0, 4);
+                    mHrvHead = (mHrvHead + 1) % HRV_CAPACITY;
+                    mHrvCount--;
+                    nHrv++;
+                }
+                if (mCount > 0) {
+                    mOldestTime = System.currentTimeMillis();
+                }
+            }
+            commit(batch);
+            for (int i = 0; i < nHrv; i++) {
+                commitHrv(hrvStartDate[i], hrvDate[i], hrvBeatCount[i],
+                        hrvValues[i]);
+            }
+            synchronized (mLock) {
+                mProcessed += batch.size();
+                mHrvProcessed += nHrv;
+                mLock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Determines if the queued rows should be committed now. Must be called
+     * with mLock held.
+     *
+     * @return If a commit is due.
+     */
+    private boolean isCommitDue() {
+        if (mCount == 0 && mHrvCount == 0) {
+            return false;
+        }
+        return mCount >= mBatchSize || !mRunning
+                || mFlushTarget > mProcessed
+                || mHrvFlushTarget > mHrvProcessed
+                || System.currentTimeMillis() - mOldestTime >= mMaxDelay;
+    }
+
+    /**
+     * Writes the batch to the database in one transaction.
+     *
+     * @param batch The batch.
+     */
+    private void commit(DataBatch batch) {
+        int size = batch.size();
+        if (size == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        int nErrors;
+        try {
+            mDbAdapter.createDataBatch(batch);
+            nErrors = batch.getErrors();
+            if (nErrors > 0) {
+                Log.e(TAG, "Got " + nErrors + " errors committing " + size
+                        + " rows: " + batch.getLastError());
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, "Error committing " + size + " rows", ex);
+            nErrors = size;
+        }
+        long latency = (System.nanoTime() - start) / 1000000;
+        mLastCommitLatency = latency;
+        if (latency > mMaxCommitLatency) {
+            mMaxCommitLatency = latency;
+        }
+        mTotalCommitLatency += latency;
+        mCommits++;
+        mRowsCommitted += size - nErrors;
+        mErrors += nErrors;
+    }
+
+    /**
+     * Writes the HRV for a period to the database.
+     *
+     * @param startDate The start date of the session.
+     * @param date      The start of the period.
+     * @param beatCount The number of beats.
+     * @param values    The mean NN, SDNN, RMSSD, and pNN50.
+     */
+    private void commitHrv(long startDate, long date, int beatCount,
+                           double[] values) {
+        try {
+            if (mDbAdapter.createHrv(startDate, date, beatCount, values[0],
+                    values[1], values[2], values[3])) {
+                mHrvCommitted++;
+            } else {
+                Log.e(TAG, "Error committing HRV for " + date);
+                mHrvErrors++;
+            }
+        } catch (Exception ex) {
+            Log.e(TAG, "Error committing HRV for " + date, ex);
+            mHrvErrors++;
+        }
+    }
+
+    /**
+     * Gets the number of rows waiting to be committed.
+     *
+     * @return The queue depth.
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mCount;
+        }
+    }
+
+    /**
+     * Gets the number of rows dropped because the queue was full.
+     *
+     * @return The number dropped.
+     */
+    public long getDropped() {
+        synchronized (mLock) {
+            return mDropped;
+        }
+    }
+
+    /**
+     * Gets the number of HRV periods dropped because the queue was full.
+     *
+     * @return The number dropped.
+     */
+    public long getHrvDropped() {
+        synchronized (mLock) {
+            return mHrvDropped;
+        }
+    }
+
+    public long getHrvCommitted() {
+        return mHrvCommitted;
+    }
+
+    public long getHrvErrors() {
+        return mHrvErrors;
+    }
+
+    public long getCommits() {
+        return mCommits;
+    }
+
+    public long getRowsCommitted() {
+        return mRowsCommitted;
+    }
+
+    public long getErrors() {
+        return mErrors;
+    }
+
+    /**
+     * Gets the time taken by the last commit.
+     *
+     * @return The latency (ms).
+     */
+    public long getLastCommitLatency() {
+        return mLastCommitLatency;
+    }
+
+    /**
+     * Gets the longest time taken by a commit.
+     *
+     * @return The latency (ms).
+     */
+    public long getMaxCommitLatency() {
+        return mMaxCommitLatency;
+    }
+
+    /**
+     * Gets the average time taken by a commit.
+     *
+     * @return The latency (ms).
+     */
+    public double getMeanCommitLatency() {
+        long commits = mCommits;
+        return commits == 0 ? 0 : (double) mTotalCommitLatency / commits;
+    }
+
+    /**
+     * Gets a summary of the statistics.
+     *
+     * @return The summary.
+     */
+    public String getInfo() {
+        return "Write Queue Depth: " + getQueueDepth() + "\n"
+                + "Commits: " + mCommits + " (" + mRowsCommitted + " rows, "
+                + mErrors + " errors, " + getDropped() + " dropped)\n"
+                + "HRV Periods: " + mHrvCommitted + " (" + mHrvErrors
+                + " errors, " + getHrvDropped() + " dropped)\n"
+                + "Commit Latency: " + mLastCommitLatency + " ms last, "
+                + String.format(Locale.US, "%.1f",
+                getMeanCommitLatency())
+                + " ms mean, " + mMaxCommitLatency + " ms max\n";
+    }
+
+}
@@ -2,6 +2,7 @@ package net.kenevans.android.hxmmonitor;
 
 import android.Manifest;
 import android.app.AlertDialog;
+import android.app.ProgressDialog;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
@@ -15,9 +16,11 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.preference.PreferenceManager;
@@ -33,12 +36,16 @@ import android.widget.Toast;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
 import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 import java.util.UUID;
 
 /**
@@ -54,19 +61,40 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
     private TextView mRr;
     private TextView mAct;
     private TextView mPa;
+    private TextView mSdnn;
+    private TextView mRmssd;
+    private TextView mPnn50;
     private TextView mStatus;
     private String mDeviceName;
     private String mDeviceAddress;
     private HxMBleService mHxMBleService;
     private boolean mConnected = false;
     private HxMMonitorDbAdapter mDbAdapter;
+    /**
+     * The number of background threads using mDbAdapter and whether the
+     * activity has been destroyed, guarded by mWorkerLock. If it has, the
+     * last of them closes the adapter. They do not open their own, since
+     * the DataWriter's commits wait for their transactions on the same
+     * connection, where another connection would get SQLITE_BUSY.
+     */
+    private final Object mWorkerLock = new Object();
+    private int mNWorkers;
+    private boolean mDestroyed;
     private boolean mDoBat = true;
     private boolean mDoHr = true;
     private boolean mDoCustom = true;
+    private long mHrvWindow;
     private BluetoothGattCharacteristic mCharBat;
     private BluetoothGattCharacteristic mCharHr;
     private BluetoothGattCharacteristic mCharCustom;
     private CancelableCountDownTimer mTimer;
+    private final Handler mHandler = new Handler();
+    private LiveValueDisplay mLiveDisplay;
+    /**
+     * Receives the samples from the HxMBleService. Only the latest values
+     * are needed for display, so it coalesces.
+     */
+    private final SampleBus.Listener mSampleListener = this::displaySample;
 
     /**
      * Manages the service lifecycle.
@@ -120,8 +148,8 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
      * ACTION_GATT_CONNECTED: connected to a GATT server.<br>
      * ACTION_GATT_DISCONNECTED: disconnected from a GATT server.<br>
      * ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.<br>
-     * ACTION_DATA_AVAILABLE: received data from the device. This can be a
-     * result of read or notification operations.<br>
+     * <br>
+     * The data from the device comes on the SampleBus.
      */
     private final BroadcastReceiver mGattUpdateReceiver =
             new BroadcastReceiver() {
@@ -143,9 +171,6 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                             .equals(action)) {
                         Log.d(TAG, "onReceive: " + action);
                         onServicesDiscovered(mHxMBleService.getSupportedGattServices());
-                    } else if (HxMBleService.ACTION_DATA_AVAILABLE.equals(action)) {
-                        // Log.d(TAG, "onReceive: " + action);
-                        displayData(intent);
                     } else if (HxMBleService.ACTION_ERROR.equals(action)) {
                         // Log.d(TAG, "onReceive: " + action);
                         displayError(intent);
@@ -215,7 +240,21 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         mBat = findViewById(R.id.bat_value);
         mHr = findViewById(R.id.hr_value);
         mRr = findViewById(R.id.rr_value);
+        mAct = findViewById(R.id.act_value);
+        mPa = findViewById(R.id.pa_value);
+        mSdnn = findViewById(R.id.sdnn_value);
+        mRmssd = findViewById(R.id.rmssd_value);
+        mPnn50 = findViewById(R.id.pnn50_value);
         mStatus = findViewById(R.id.status_value);
+        mLiveDisplay = new LiveValueDisplay(0);
+        mLiveDisplay.setView(LiveValueDisplay.FIELD_HR, mHr);
+        mLiveDisplay.setView(LiveValueDisplay.FIELD_RR, mRr);
+        mLiveDisplay.setView(LiveValueDisplay.FIELD_BAT, mBat);
+        mLiveDisplay.setView(LiveValueDisplay.FIELD_ACT, mAct);
+        mLiveDisplay.setView(LiveValueDisplay.FIELD_PA, mPa);
+        mLiveDisplay.setView(LiveValueDisplay.FIELD_SDNN, mSdnn);
+        mLiveDisplay.setView(LiveValueDisplay.FIELD_RMSSD, mRmssd);
+        mLiveDisplay.setView(LiveValueDisplay.FIELD_PNN50, mPnn50);
         resetDataViews();
 
         Intent gattServiceIntent = new Intent(this, HxMBleService.class);
@@ -224,6 +263,7 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         // Open the database
         mDbAdapter = new HxMMonitorDbAdapter(this);
         mDbAdapter.open();
+        startBackfill();
     }
 
     @Override
@@ -238,6 +278,24 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         mDoHr = prefs.getBoolean(PREF_MONITOR_HR, true);
         mDoCustom = prefs.getBoolean(PREF_MONITOR_CUSTOM, true);
         mDoBat = prefs.getBoolean(PREF_READ_BATTERY, true);
+        long displayInterval = 0;
+        try {
+            displayInterval = Long.parseLong(prefs.getString(
+                    PREF_DISPLAY_INTERVAL, "0"));
+        } catch (Exception ex) {
+            // Use 0
+        }
+        mLiveDisplay.setMinInterval(displayInterval);
+        mHrvWindow = 1000 * Long.parseLong(HRV_DEFAULT_WINDOW);
+        try {
+            mHrvWindow = 1000 * Long.parseLong(prefs.getString(
+                    PREF_HRV_WINDOW, HRV_DEFAULT_WINDOW));
+        } catch (Exception ex) {
+            // Use the default
+        }
+        if (mHrvWindow <= 0) {
+            mHrvWindow = 1000 * Long.parseLong(HRV_DEFAULT_WINDOW);
+        }
         boolean manuallyDisconnected = prefs.getBoolean(
                 PREF_MANUALLY_DISCONNECTED, false);
         // DEBUG
@@ -245,6 +303,8 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                 + mDoBat);
         Log.d(TAG, "Starting registerReceiver");
         registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+        HxMBleService.getSampleBus().subscribe(mSampleListener, mHandler,
+                true);
         if (!manuallyDisconnected && mDeviceAddress != null
                 && mHxMBleService != null) {
             Log.d(TAG, "Starting mHxMBleService.connect");
@@ -261,23 +321,70 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         Log.d(TAG, this.getClass().getSimpleName() + ": onPause");
         super.onPause();
         unregisterReceiver(mGattUpdateReceiver);
+        HxMBleService.getSampleBus().unsubscribe(mSampleListener);
+        mLiveDisplay.stop();
     }
 
     @Override
     protected void onDestroy() {
         Log.d(TAG, this.getClass().getSimpleName() + ": onDestroy");
         super.onDestroy();
+        // Write any pending data before the database is closed
+        if (mHxMBleService != null) {
+            mHxMBleService.stopDatabase();
+        }
         unbindService(mServiceConnection);
         // Stop the service
         Intent intent = new Intent(this, HxMBleService.class);
         mHxMBleService.stopService(intent);
         mHxMBleService = null;
+        int nWorkers;
+        synchronized (mWorkerLock) {
+            mDestroyed = true;
+            nWorkers = mNWorkers;
+        }
         if (mDbAdapter != null) {
-            mDbAdapter.close();
+            if (nWorkers == 0) {
+                mDbAdapter.close();
+            } else {
+                Log.d(TAG, "Leaving the database open for " + nWorkers
+                        + " background threads");
+            }
             mDbAdapter = null;
         }
     }
 
+    /**
+     * Gets mDbAdapter for a background thread, which must call
+     * releaseDbAdapter when it is done with it.
+     *
+     * @return The adapter.
+     */
+    private HxMMonitorDbAdapter acquireDbAdapter() {
+        synchronized (mWorkerLock) {
+            mNWorkers++;
+            return mDbAdapter;
+        }
+    }
+
+    /**
+     * Called by a background thread when it is done with the adapter from
+     * acquireDbAdapter. Closes it if the activity has been destroyed and
+     * this is the last one.
+     *
+     * @param adapter The adapter.
+     */
+    private void releaseDbAdapter(HxMMonitorDbAdapter adapter) {
+        synchronized (mWorkerLock) {
+            mNWorkers--;
+            if (!mDestroyed || mNWorkers > 0) {
+                return;
+            }
+        }
+        Log.d(TAG, "Closing the database after the background threads");
+        adapter.close();
+    }
+
     @Override
     public void onBackPressed() {
         // This seems to be necessary with Android 12
@@ -297,6 +404,10 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
             menu.findItem(R.id.menu_connect).setVisible(true);
             menu.findItem(R.id.menu_disconnect).setVisible(false);
         }
+        if (mHxMBleService != null && mHxMBleService.isSimulating()) {
+            menu.findItem(R.id.menu_simulate).setTitle(
+                    R.string.menu_stop_simulating);
+        }
         return true;
     }
 
@@ -325,14 +436,23 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         } else if (item.getItemId() == R.id.menu_read_battery_level) {
             readBatteryLevel();
             return true;
+        } else if (item.getItemId() == R.id.menu_simulate) {
+            simulate();
+            return true;
         } else if (item.getItemId() == R.id.info) {
             info();
             return true;
         } else if (item.getItemId() == R.id.menu_save_database) {
-            saveDatabase();
+            saveDatabase(false);
+            return true;
+        } else if (item.getItemId() == R.id.menu_save_database_delta) {
+            saveDatabase(true);
             return true;
         } else if (item.getItemId() == R.id.menu_replace_database) {
-            checkReplaceDatabase();
+            checkReplaceDatabase(false);
+            return true;
+        } else if (item.getItemId() == R.id.menu_merge_database) {
+            checkReplaceDatabase(true);
             return true;
         } else if (item.getItemId() == R.id.choose_data_directory) {
             chooseDataDirectory();
@@ -466,6 +586,12 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
             info.append("Device Address: ").append(mDeviceAddress).append("\n");
             info.append("Connected: ").append(mConnected).append("\n");
             info.append("Battery: ").append(mBat.getText()).append("\n");
+            DataWriter writer = mHxMBleService == null ? null
+                    : mHxMBleService.getDataWriter();
+            if (writer != null) {
+                info.append(writer.getInfo());
+            }
+            info.append(mLiveDisplay.getInfo());
             SharedPreferences prefs = getPreferences(MODE_PRIVATE);
             if (Build.VERSION.SDK_INT >= 23
                     && ContextCompat.checkSelfPermission(this, Manifest
@@ -529,64 +655,49 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
     }
 
     /**
-     * Displays the data from an ACTION_DATA_AVAILABLE callback.
+     * Passes the data from a sample received on the SampleBus to the
+     * LiveValueDisplay, which updates the views on the next frame.
      *
-     * @param intent The intent.
+     * @param record The record for the sample.
      */
-    private void displayData(Intent intent) {
-        String uuidString;
-        UUID uuid;
-        String value;
-        try {
-            uuidString = intent.getStringExtra(EXTRA_UUID);
-            if (uuidString == null) {
-                mStatus.setText(R.string.null_uuid_msg);
-                return;
-            }
-            uuid = UUID.fromString(uuidString);
-            if (uuid.equals(UUID_HEART_RATE_MEASUREMENT)) {
-                value = intent.getStringExtra(EXTRA_HR);
-                if (value == null) {
-                    mHr.setText(R.string.not_available);
-                } else {
-                    mHr.setText(value);
-                }
-                value = intent.getStringExtra(EXTRA_RR);
-                if (value == null) {
-                    mRr.setText(R.string.not_available);
-                } else {
-                    mRr.setText(value);
-                }
-            } else if (uuid.equals(UUID_BATTERY_LEVEL)) {
-                value = intent.getStringExtra(EXTRA_BAT);
-                if (value == null) {
-                    mBat.setText(R.string.not_available);
-                } else {
-                    mBat.setText(value);
-                }
-            } else if (uuid.equals(UUID_CUSTOM_MEASUREMENT)) {
-                value = intent.getStringExtra(EXTRA_ACT);
-                if (value == null) {
-                    mAct.setText(R.string.not_available);
-                } else {
-                    mAct.setText(value);
-                }
-                value = intent.getStringExtra(EXTRA_PA);
-                if (value == null) {
-                    mPa.setText(R.string.not_available);
-                } else {
-                    mPa.setText(value);
-                }
-            }
-        } catch (Exception ex) {
-            Log.d(TAG, "Error displaying data", ex);
-            mStatus.setText(this.getString(R.string.exception_msg_format,
-                    ex.getMessage()));
-            // Don't use Utils here as there may be many
-            // Utils.excMsg(this, "Error displaying message", ex);
+    private void displaySample(SampleRecord record) {
+        switch (record.getType()) {
+            case SampleRecord.TYPE_HR:
+                mLiveDisplay.setValue(LiveValueDisplay.FIELD_HR,
+                        record.getHr());
+                mLiveDisplay.setRr(record.getRr(), record.getRrCount());
+                break;
+            case SampleRecord.TYPE_BATTERY:
+                mLiveDisplay.setValue(LiveValueDisplay.FIELD_BAT,
+                        record.getBattery());
+                break;
+            case SampleRecord.TYPE_CUSTOM:
+                mLiveDisplay.setValue(LiveValueDisplay.FIELD_ACT,
+                        record.getActivity());
+                mLiveDisplay.setValue(LiveValueDisplay.FIELD_PA,
+                        record.getPa());
+                break;
+            case SampleRecord.TYPE_HRV:
+                mLiveDisplay.setValue(LiveValueDisplay.FIELD_SDNN,
+                        round(record.getSdnn()));
+                mLiveDisplay.setValue(LiveValueDisplay.FIELD_RMSSD,
+                        round(record.getRmssd()));
+                mLiveDisplay.setValue(LiveValueDisplay.FIELD_PNN50,
+                        round(record.getPnn50()));
+                break;
         }
     }
 
+    /**
+     * Rounds an HRV value for display.
+     *
+     * @param value The value.
+     * @return The rounded value or INVALID_INT if it is NaN.
+     */
+    private static int round(double value) {
+        return Double.isNaN(value) ? INVALID_INT : (int) Math.round(value);
+    }
+
     /**
      * Sets the PREF_MANUALLY_DISCONNECTED preference in PreferenceManager
      * .getDefaultSharedPreferences.
@@ -655,6 +766,7 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                 + " mDoHr=" + mDoHr + " mDoCustom=" + mDoCustom);
         Log.d(TAG, "  mCharBat=" + mCharBat + " mCharHr=" + mCharHr
                 + " mCharCustom=" + mCharCustom);
+        mHxMBleService.setHrvWindow(mHrvWindow);
         boolean res = mHxMBleService.startSession(mCharBat, mCharHr,
                 mCharCustom, mDoBat, mDoHr, mDoCustom);
         String msg = "Doing";
@@ -671,72 +783,238 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         return res;
     }
 
+    /**
+     * Starts a session with simulated data in real time, for testing
+     * without a device, or stops it if one is running.
+     */
+    private void simulate() {
+        if (mHxMBleService == null) {
+            Utils.errMsg(this, "The service is not available");
+            return;
+        }
+        if (mHxMBleService.isSimulating()) {
+            mHxMBleService.stopSession();
+            resetDataViews();
+        } else {
+            if (mConnected) {
+                Utils.errMsg(this, "Disconnect from the device first");
+                return;
+            }
+            mHxMBleService.setHrvWindow(mHrvWindow);
+            mHxMBleService.startSimulation(
+                    new HxMSimulator(System.currentTimeMillis()), 1);
+            mStatus.setText(R.string.simulating);
+        }
+        invalidateOptionsMenu();
+    }
+
     /**
      * Resets the data view to show default values
      */
     public void resetDataViews() {
-        mBat.setText(R.string.not_available);
-        mHr.setText(R.string.not_available);
-        mRr.setText(R.string.not_available);
+        mLiveDisplay.reset(R.string.not_available);
         mStatus.setText("");
     }
 
-    private void saveDatabase() {
-        SharedPreferences prefs = getPreferences(MODE_PRIVATE);
+    /**
+     * Saves a consistent copy of the database to the data directory. The
+     * copy is made by the database adapter into a temporary file in app
+     * storage on a background thread, so recording can continue, and then
+     * copied to the data directory. A delta has only the sessions with data
+     * since the last successful save, and can be restored with Merge
+     * Database after the full save.
+     *
+     * @param delta Whether to only save the sessions since the last save.
+     */
+    private void saveDatabase(final boolean delta) {
+        final SharedPreferences prefs = getPreferences(MODE_PRIVATE);
         String treeUriStr = prefs.getString(PREF_TREE_URI, null);
         if (treeUriStr == null) {
             Utils.errMsg(this, "There is no data directory set");
             return;
         }
+        final long since = prefs.getLong(PREF_LAST_BACKUP, Long.MIN_VALUE);
+        final Uri treeUri;
+        final Uri docTreeUri;
+        final Uri docUri;
         try {
             String format = "yyyy-MM-dd-HHmmss";
             SimpleDateFormat df = new SimpleDateFormat(format, Locale.US);
             Date now = new Date();
-            String fileName = String.format(saveDatabaseTemplate,
+            String fileName = String.format(delta ?
+                    saveDatabaseDeltaTemplate : saveDatabaseTemplate,
                     df.format(now));
-            Uri treeUri = Uri.parse(treeUriStr);
+            treeUri = Uri.parse(treeUriStr);
             String treeDocumentId =
                     DocumentsContract.getTreeDocumentId(treeUri);
-            Uri docTreeUri =
-                    DocumentsContract.buildDocumentUriUsingTree(treeUri,
-                            treeDocumentId);
+            docTreeUri = DocumentsContract.buildDocumentUriUsingTree(treeUri,
+                    treeDocumentId);
             ContentResolver resolver = this.getContentResolver();
-            Uri docUri = DocumentsContract.createDocument(resolver, docTreeUri,
+            docUri = DocumentsContract.createDocument(resolver, docTreeUri,
                     "application/vnd.sqlite3", fileName);
             if (docUri == null) {
                 Utils.errMsg(this, "Could not create document Uri");
                 return;
             }
-            ParcelFileDescriptor pfd = getContentResolver().
-                    openFileDescriptor(docUri, "rw");
-            File src = new File(getExternalFilesDir(null), DB_NAME);
-            Log.d(TAG, "saveDatabase: docUri=" + docUri);
-            try (FileChannel in =
-                         new FileInputStream(src).getChannel();
-                 FileChannel out =
-                         new FileOutputStream(pfd.getFileDescriptor()).getChannel()) {
-                out.transferFrom(in, 0, in.size());
-            } catch (Exception ex) {
-                String msg = "Error copying source database from "
-                        + docUri.getLastPathSegment() + " to "
-                        + src.getPath();
-                Log.e(TAG, msg, ex);
-                Utils.excMsg(this, msg, ex);
-            }
-            Utils.infoMsg(this, "Wrote " + docUri.getLastPathSegment());
         } catch (Exception ex) {
             String msg = "Error saving to SD card";
             Utils.excMsg(this, msg, ex);
             Log.e(TAG, msg, ex);
+            return;
+        }
+        Log.d(TAG, "saveDatabase: docUri=" + docUri + " delta=" + delta);
+        final HxMMonitorDbAdapter adapter = acquireDbAdapter();
+        final File temp = new File(getExternalFilesDir(null),
+                DB_BACKUP_TEMP_NAME);
+        final String name = docUri.getLastPathSegment();
+        final ProgressDialog dialog = new ProgressDialog(this);
+        dialog.setMessage(getString(R.string.saving_database_progress_text));
+        dialog.setIndeterminate(true);
+        dialog.setCancelable(false);
+        dialog.show();
+        new Thread(() -> {
+            String msg;
+            Exception exception = null;
+            // The rows written after this are in the next delta
+            long date = System.currentTimeMillis();
+            try {
+                int nSessions = -1;
+                int nArchives = 0;
+                if (delta) {
+                    nSessions = adapter.backupSessions(temp, since);
+                } else {
+                    adapter.backupDatabase(temp);
+                }
+                copyToDocument(temp, docUri);
+                if (!delta) {
+                    // The archived sessions are not in the database
+                    nArchives = saveArchives(adapter.getArchiveDir(),
+                            treeUri, docTreeUri);
+                }
+                prefs.edit().putLong(PREF_LAST_BACKUP, date).apply();
+                msg = "Wrote " + name;
+                if (nSessions >= 0) {
+                    msg += " with " + nSessions + " sessions";
+                }
+                if (nArchives > 0) {
+                    msg += " and " + nArchives + " session archives";
+                }
+            } catch (Exception ex) {
+                msg = "Error saving the database to " + name;
+                Log.e(TAG, msg, ex);
+                exception = ex;
+            }
+            SQLiteDatabase.deleteDatabase(temp);
+            releaseDbAdapter(adapter);
+            final String finalMsg = msg;
+            final Exception finalException = exception;
+            runOnUiThread(() -> {
+                dialog.dismiss();
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                if (finalException != null) {
+                    Utils.excMsg(DeviceMonitorActivity.this, finalMsg,
+                            finalException);
+                } else {
+                    Utils.infoMsg(DeviceMonitorActivity.this, finalMsg);
+                }
+            });
+        }, "HxMBackup").start();
+    }
+
+    /**
+     * Copies a file to a document.
+     *
+     * @param file   The file.
+     * @param docUri The Uri of the document.
+     * @throws IOException If the copy failed.
+     */
+    private void copyToDocument(File file, Uri docUri) throws IOException {
+        try (ParcelFileDescriptor pfd = getContentResolver().
+                openFileDescriptor(docUri, "w");
+             FileChannel in = new FileInputStream(file).getChannel();
+             FileChannel out = new FileOutputStream(
+                     pfd.getFileDescriptor()).getChannel()) {
+            long size = in.size();
+            long pos = 0;
+            while (pos < size) {
+                pos += out.transferFrom(in, pos, size - pos);
+            }
+        }
+    }
+
+    /**
+     * Copies a document to a file.
+     *
+     * @param docUri The Uri of the document.
+     * @param file   The file.
+     * @throws IOException If the copy failed.
+     */
+    private void copyFromDocument(Uri docUri, File file) throws IOException {
+        try (ParcelFileDescriptor pfd = getContentResolver().
+                openFileDescriptor(docUri, "r");
+             FileChannel in = new FileInputStream(
+                     pfd.getFileDescriptor()).getChannel();
+             FileChannel out = new FileOutputStream(file).getChannel()) {
+            long size = in.size();
+            long pos = 0;
+            while (pos < size) {
+                pos += out.transferFrom(in, pos, size - pos);
+            }
+        }
+    }
+
+    /**
+     * Copies the session archives that are not already there to the data
+     * directory. They do not change once written, so one with the same name
+     * is the same.
+     *
+     * @param dir        The archive directory.
+     * @param treeUri    The tree Uri of the data directory.
+     * @param docTreeUri The document Uri of the data directory.
+     * @return The number of archives copied.
+     * @throws IOException If an archive could not be copied.
+     */
+    private int saveArchives(File dir, Uri treeUri, Uri docTreeUri)
+            throws IOException {
+        File[] files = dir.listFiles((d, name) ->
+                name.endsWith(ARCHIVE_EXTENSION));
+        if (files == null || files.length == 0) {
+            return 0;
+        }
+        Set<String> names = new HashSet<>();
+        for (UriUtils.UriData child : UriUtils.getChildren(this, treeUri,
+                ARCHIVE_EXTENSION)) {
+            names.add(child.displayName);
+        }
+        int nArchives = 0;
+        Uri docUri;
+        for (File file : files) {
+            if (names.contains(file.getName())) {
+                continue;
+            }
+            docUri = DocumentsContract.createDocument(getContentResolver(),
+                    docTreeUri, ARCHIVE_MIME_TYPE, file.getName());
+            if (docUri == null) {
+                throw new IOException("Could not create document for "
+                        + file.getName());
+            }
+            copyToDocument(file, docUri);
+            nArchives++;
         }
+        return nArchives;
     }
 
     /**
      * Does the preliminary checking for restoring the database, prompts if
      * it is OK to delete the current one, and call restoreDatabase to actually
-     * do the replace.
+     * do the replace. When merging, it calls mergeDatabase instead, without
+     * prompting, since nothing is deleted.
+     *
+     * @param merge Whether to merge rather than replace.
      */
-    private void checkReplaceDatabase() {
+    private void checkReplaceDatabase(final boolean merge) {
         Log.d(TAG, "checkReplaceDatabase");
         // Find the .db files in the data directory
         SharedPreferences prefs = getPreferences(MODE_PRIVATE);
@@ -771,7 +1049,8 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
             items[i] = displayName;
         }
         AlertDialog.Builder builder = new AlertDialog.Builder(this);
-        builder.setTitle(getText(R.string.select_replace_database));
+        builder.setTitle(getText(merge ? R.string.select_merge_database
+                : R.string.select_replace_database));
         builder.setSingleChoiceItems(items, 0,
                 (dialog, item) -> {
                     dialog.dismiss();
@@ -780,6 +1059,10 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                                 "Invalid item");
                         return;
                     }
+                    if (merge) {
+                        mergeDatabase(children.get(item).uri);
+                        return;
+                    }
                     // Confirm the user wants to delete all the current data
                     new AlertDialog.Builder(DeviceMonitorActivity.this)
                             .setIcon(android.R.drawable.ic_dialog_alert)
@@ -801,25 +1084,154 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
     }
 
     /**
-     * Replaces the database without prompting.
+     * Replaces the database without prompting. The session archives saved
+     * with it in the data directory are copied next to the copy of it,
+     * where the database adapter looks for the ones it needs, and deleted
+     * afterward.
      *
      * @param uri The Uri.
      */
     private void replaceDatabase(Uri uri) {
-        Log.d(TAG, "replaceDatabase: uri=" + uri.getLastPathSegment());
+        File dest = copySourceDatabase(uri);
+        if (dest == null) {
+            return;
+        }
+        List<File> archives = new ArrayList<>();
+        try {
+            copySourceArchives(dest.getParentFile(), archives);
+            // Replace (Use null for default alias)
+            mDbAdapter.replaceDatabase(dest.getPath(), null);
+            startBackfill();
+            Utils.infoMsg(this,
+                    "Restored database from " + uri.getLastPathSegment());
+        } catch (Exception ex) {
+            String msg = "Error replacing data from " + dest.getPath();
+            Log.e(TAG, msg, ex);
+            Utils.excMsg(this, msg, ex);
+        } finally {
+            for (File file : archives) {
+                if (!file.delete()) {
+                    Log.d(TAG, "Could not delete " + file.getPath());
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies the session archives in the data directory, where Save
+     * Database puts them, that are not already in the archive directory to
+     * the given directory.
+     *
+     * @param dir    The directory.
+     * @param copies The list to add the copies to, including a partial one
+     *               if the copy fails, so they can be deleted.
+     * @throws IOException If an archive could not be copied.
+     */
+    private void copySourceArchives(File dir, List<File> copies)
+            throws IOException {
+        SharedPreferences prefs = getPreferences(MODE_PRIVATE);
+        String treeUriStr = prefs.getString(PREF_TREE_URI, null);
+        if (treeUriStr == null) {
+            return;
+        }
+        File archiveDir = mDbAdapter.getArchiveDir();
+        File file;
+        for (UriUtils.UriData child : UriUtils.getChildren(this,
+                Uri.parse(treeUriStr), ARCHIVE_EXTENSION)) {
+            if (child.displayName == null
+                    || new File(archiveDir, child.displayName).isFile()) {
+                continue;
+            }
+            file = new File(dir, child.displayName);
+            copies.add(file);
+            copyFromDocument(child.uri, file);
+        }
+        Log.d(TAG, "copySourceArchives: copied " + copies.size()
+                + " session archives");
+    }
+
+    /**
+     * Merges the sessions in the database that are not already present,
+     * without prompting. The merge runs on a background thread with a
+     * progress dialog, and the copy of the source database is deleted
+     * afterward.
+     *
+     * @param uri The Uri.
+     */
+    private void mergeDatabase(Uri uri) {
+        final File dest = copySourceDatabase(uri);
+        if (dest == null) {
+            return;
+        }
+        final HxMMonitorDbAdapter adapter = acquireDbAdapter();
+        final String name = uri.getLastPathSegment();
+        final ProgressDialog dialog = new ProgressDialog(this);
+        dialog.setMessage(getString(R.string.merging_database_progress_text));
+        dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+        dialog.setIndeterminate(true);
+        dialog.setCancelable(false);
+        dialog.show();
+        new Thread(() -> {
+            String msg;
+            Exception exception = null;
+            try {
+                int nSessions = adapter.mergeDatabase(dest.getPath(),
+                        (done, total) -> runOnUiThread(() -> {
+                            dialog.setIndeterminate(false);
+                            dialog.setMax(total);
+                            dialog.setProgress(done);
+                        }));
+                msg = "Merged " + nSessions + " new sessions from " + name;
+            } catch (Exception ex) {
+                msg = "Error merging data from " + name;
+                Log.e(TAG, msg, ex);
+                exception = ex;
+            }
+            if (!dest.delete()) {
+                Log.d(TAG, "Could not delete " + dest.getPath());
+            }
+            releaseDbAdapter(adapter);
+            final String finalMsg = msg;
+            final Exception finalException = exception;
+            runOnUiThread(() -> {
+                dialog.dismiss();
+                if (isFinishing() || isDestroyed()) {
+                    return;
+                }
+                if (finalException != null) {
+                    Utils.excMsg(DeviceMonitorActivity.this, finalMsg,
+                            finalException);
+                } else {
+                    Utils.infoMsg(DeviceMonitorActivity.this, finalMsg);
+                    startBackfill();
+                }
+            });
+        }, "HxMMerge").start();
+    }
+
+    /**
+     * Copies a database from the data directory to app storage, so it can
+     * be attached.
+     *
+     * @param uri The Uri.
+     * @return The copy or null if it could not be made, in which case an
+     * error message has been shown.
+     */
+    private File copySourceDatabase(Uri uri) {
         if (uri == null) {
             Log.d(TAG, this.getClass().getSimpleName()
-                    + "replaceDatabase: Source database is null");
+                    + "copySourceDatabase: Source database is null");
             Utils.errMsg(this, "Source database is null");
-            return;
+            return null;
         }
+        Log.d(TAG, "copySourceDatabase: uri=" + uri.getLastPathSegment());
         String lastSeg = uri.getLastPathSegment();
         if (!UriUtils.exists(this, uri)) {
             String msg = "Source database does not exist " + lastSeg;
             Log.d(TAG, this.getClass().getSimpleName()
-                    + "replaceDatabase: " + msg);
+                    + "copySourceDatabase: " + msg);
             Utils.errMsg(this, msg);
-            return;
+            return null;
         }
         // Copy the data base to app storage
         File dest = null;
@@ -840,22 +1252,48 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
                         + dest.getPath();
                 Log.e(TAG, msg, ex);
                 Utils.excMsg(this, msg, ex);
+                return null;
             }
         } catch (Exception ex) {
             String msg = "Error getting source database" + uri;
             Log.e(TAG, msg, ex);
             Utils.excMsg(this, msg, ex);
+            return null;
+        }
+        return dest;
+    }
+
+    /**
+     * Computes any missing rollups and HRV in the database on a background
+     * thread, then archives the sessions older than the PREF_ARCHIVE_AGE
+     * preference, if it is set. It stops when the database is closed.
+     */
+    private void startBackfill() {
+        final HxMMonitorDbAdapter adapter = mDbAdapter;
+        if (adapter == null) {
+            return;
         }
+        SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(this);
+        long days = 0;
         try {
-            // Replace (Use null for default alias)
-            mDbAdapter.replaceDatabase(dest.getPath(), null);
-            Utils.infoMsg(this,
-                    "Restored database from " + uri.getLastPathSegment());
+            days = Long.parseLong(prefs.getString(PREF_ARCHIVE_AGE,
+                    ARCHIVE_DEFAULT_AGE));
         } catch (Exception ex) {
-            String msg = "Error replacing data from " + dest.getPath();
-            Log.e(TAG, msg, ex);
-            Utils.excMsg(this, msg, ex);
+            // Use 0
         }
+        final long archiveAge = days * 86400000L;
+        new Thread(() -> {
+            try {
+                adapter.backfill();
+                if (archiveAge > 0) {
+                    adapter.archiveSessions(new Date().getTime()
+                            - archiveAge);
+                }
+            } catch (Exception ex) {
+                Log.e(TAG, "Error backfilling", ex);
+            }
+        }, "HxMBackfill").start();
     }
 
     /**
@@ -946,7 +1384,6 @@ public class DeviceMonitorActivity extends AppCompatActivity implements IConstan
         intentFilter.addAction(HxMBleService.ACTION_GATT_CONNECTED);
         intentFilter.addAction(HxMBleService.ACTION_GATT_DISCONNECTED);
         intentFilter.addAction(HxMBleService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(HxMBleService.ACTION_DATA_AVAILABLE);
         return intentFilter;
     }
 
@@ -42,6 +42,7 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
+import java.util.UUID;
 
 /**
  * Service for managing connection and data communication with a GATT server
@@ -54,14 +55,42 @@ public class HxMBleService extends Service implements IConstants {
     private BluetoothAdapter mBluetoothAdapter;
     private String mBluetoothDeviceAddress;
     private BluetoothGatt mBluetoothGatt;
-    private HxMMonitorDbAdapter mDbAdapter;
+    private DataWriter mDataWriter;
     private int mConnectionState = BluetoothProfile.STATE_DISCONNECTED;
     private long mLastHrDate;
     private int mLastBat = INVALID_INT;
     private int mLastHr = INVALID_INT;
-    private String mLastRr = INVALID_STRING;
+    /**
+     * The R-R values of the last Heart Rate Measurement, which are written
+     * again with the custom measurements. The array is reused, and the
+     * count is INVALID_INT if there were none.
+     */
+    private int[] mLastRr = new int[0];
+    private int mLastRrCount = INVALID_INT;
     private int mLastAct = INVALID_INT;
     private int mLastPa = INVALID_INT;
+    /**
+     * Reused for decoding every Heart Rate Measurement.
+     */
+    private final HeartRateSample mHrSample = new HeartRateSample();
+    /**
+     * Reused for publishing every sample. The bus copies it.
+     */
+    private final SampleRecord mRecord = new SampleRecord();
+    /**
+     * Computes the HRV for the current session. The live values are
+     * published and the values for each period are written to the database.
+     * It is fed on the GATT or simulator thread and finished on the UI
+     * thread, so it and the field are guarded by mHrvLock.
+     */
+    private HrvRecorder mHrvRecorder;
+    private final Object mHrvLock = new Object();
+    private long mHrvWindow = 1000 * Long.parseLong(HRV_DEFAULT_WINDOW);
+    /**
+     * The bus for publishing samples. It is static so activities that are
+     * not bound to the service can subscribe.
+     */
+    private static final SampleBus sSampleBus = new SampleBus();
 
     private BluetoothGattCharacteristic mCharBat;
     private BluetoothGattCharacteristic mCharHr;
@@ -71,6 +100,10 @@ public class HxMBleService extends Service implements IConstants {
     private boolean mDoCustom = true;
     private boolean mSessionInProgress = false;
     private long mSessionStartTime;
+    /**
+     * Runs the HxMSimulator when simulating, otherwise null.
+     */
+    private Thread mSimulatorThread;
 
     private Queue<BluetoothGattDescriptor> descriptorWriteQueue =
             new LinkedList<>();
@@ -85,8 +118,6 @@ public class HxMBleService extends Service implements IConstants {
             + ".ACTION_GATT_DISCONNECTED";
     public final static String ACTION_GATT_SERVICES_DISCOVERED = PACKAGE_NAME
             + ".ACTION_GATT_SERVICES_DISCOVERED";
-    public final static String ACTION_DATA_AVAILABLE = PACKAGE_NAME
-            + ".ACTION_DATA_AVAILABLE";
     public final static String ACTION_ERROR = PACKAGE_NAME + ".ACTION_ERROR";
 
     /**
@@ -153,7 +184,7 @@ public class HxMBleService extends Service implements IConstants {
                                                  BluetoothGattCharacteristic characteristic, int status) {
                     characteristicReadQueue.remove();
                     if (status == BluetoothGatt.GATT_SUCCESS) {
-                        broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                        onCharacteristicData(characteristic);
                     } else {
                         Log.w(TAG, "onCharacteristicRead received: " + status);
                     }
@@ -165,7 +196,7 @@ public class HxMBleService extends Service implements IConstants {
                 @Override
                 public void onCharacteristicChanged(BluetoothGatt gatt,
                                                     BluetoothGattCharacteristic characteristic) {
-                    broadcastUpdate(ACTION_DATA_AVAILABLE, characteristic);
+                    onCharacteristicData(characteristic);
                 }
 
                 @Override
@@ -249,6 +280,8 @@ public class HxMBleService extends Service implements IConstants {
     @Override
     public void onDestroy() {
         Log.d(TAG, "onDestroy");
+        stopSimulation();
+        stopDatabase();
         // Cancel the notification
         NotificationManagerCompat notificationManager =
                 NotificationManagerCompat
@@ -273,84 +306,137 @@ public class HxMBleService extends Service implements IConstants {
         sendBroadcast(intent);
     }
 
-    private void broadcastUpdate(final String action,
-                                 final BluetoothGattCharacteristic characteristic) {
-        Date now = new Date();
-        long date = now.getTime();
-        // // DEBUG
-        // Set this to "" to not get the date in the return value
-        // String dateStr = " @ " + millisecTimeFormater.format(now);
-        String dateStr = "";
-        final Intent intent = new Intent(action);
-        intent.putExtra(EXTRA_UUID, characteristic.getUuid().toString());
-        intent.putExtra(EXTRA_DATE, date);
+    /**
+     * Handles data from a characteristic read or notification.
+     *
+     * @param characteristic The characteristic.
+     */
+    private void onCharacteristicData(
+            final BluetoothGattCharacteristic characteristic) {
+        onCharacteristicData(characteristic.getUuid(),
+                characteristic.getValue(), new Date().getTime());
+    }
 
-        if (UUID_HEART_RATE_MEASUREMENT.equals(characteristic.getUuid())) {
-            HeartRateValues values = new HeartRateValues(characteristic, date);
-            mLastHr = values.getHr();
-            mLastRr = values.getRr();
+    /**
+     * Handles the value of a characteristic, from the device or the
+     * HxMSimulator. The values are written to the database and published on
+     * the SampleBus.
+     *
+     * @param uuid  The UUID of the characteristic.
+     * @param value The value.
+     * @param date  The date it was received.
+     */
+    private void onCharacteristicData(UUID uuid, byte[] value, long date) {
+        if (UUID_HEART_RATE_MEASUREMENT.equals(uuid)) {
+            HeartRateDecoder.decode(value, date, mHrSample);
+            mLastHr = mHrSample.getHr();
             mLastHrDate = date;
+            // The sample's array is overwritten by the next decode, so the
+            // DataWriter, the record, and the HRV copy what they keep
+            int[] rr = mHrSample.isRrPresent() ? mHrSample.getRr() : null;
+            int rrCount = mHrSample.getRrCount();
+            setLastRr(rr, rrCount);
             // // DEBUG
             // Log.d(TAG, String.format("Received heart rate measurement: %d",
             // mLastHr));
-            if (mDbAdapter != null && (mCharCustom == null || !mDoCustom)) {
-                mDbAdapter.createData(mLastHrDate, mSessionStartTime, mLastHr,
-                        mLastRr, INVALID_INT, INVALID_INT);
+            if (mDataWriter != null && !isCustomEnabled()) {
+                mDataWriter.add(mLastHrDate, mSessionStartTime, mLastHr,
+                        rr, rrCount, INVALID_INT, INVALID_INT);
+            }
+            mRecord.setHr(date, mLastHr, rr, rrCount);
+            sSampleBus.publish(mRecord);
+            boolean hasHrv = false;
+            synchronized (mHrvLock) {
+                if (mHrvRecorder != null) {
+                    mHrvRecorder.add(date, rr, rrCount);
+                    HrvEngine hrv = mHrvRecorder.getLiveEngine();
+                    mRecord.setHrv(date, hrv.getCount(), hrv.getSdnn(),
+                            hrv.getRmssd(), hrv.getPnn50());
+                    hasHrv = true;
+                }
+            }
+            if (hasHrv) {
+                sSampleBus.publish(mRecord);
             }
-            intent.putExtra(EXTRA_HR, values.getHr() + dateStr);
-            intent.putExtra(EXTRA_RR, values.getRr() + dateStr);
-            intent.putExtra(EXTRA_DATA, values.getInfo());
-        } else if (UUID_CUSTOM_MEASUREMENT.equals(characteristic.getUuid())) {
-            HxMCustomValues values = new HxMCustomValues(characteristic, date);
+        } else if (UUID_CUSTOM_MEASUREMENT.equals(uuid)) {
+            HxMCustomValues values = new HxMCustomValues(value, date);
             mLastAct = values.getActivity();
             mLastPa = values.getPa();
             // // DEBUG
             // Log.d(TAG, String.format("Received custom measurement: %d %d",
             // mLastAct, mLastPa));
-            if (mDbAdapter != null) {
-                if (mCharHr == null || !mDoHr) {
-                    mDbAdapter.createData(date, mSessionStartTime, INVALID_INT,
-                            INVALID_STRING, mLastAct, mLastPa);
+            if (mDataWriter != null) {
+                if (!isHrEnabled()) {
+                    mDataWriter.add(date, mSessionStartTime, INVALID_INT,
+                            null, 0, mLastAct, mLastPa);
                 } else {
-                    mDbAdapter.createData(mLastHrDate, mSessionStartTime,
-                            mLastHr, mLastRr, mLastAct, mLastPa);
+                    boolean hasRr = mLastRrCount != INVALID_INT;
+                    mDataWriter.add(mLastHrDate, mSessionStartTime,
+                            mLastHr, hasRr ? mLastRr : null,
+                            hasRr ? mLastRrCount : 0, mLastAct, mLastPa);
                 }
             }
-            intent.putExtra(EXTRA_ACT, values.getActivity() + dateStr);
-            intent.putExtra(EXTRA_PA, values.getPa() + dateStr);
-            intent.putExtra(EXTRA_DATA, dateStr + values.getInfo());
-        } else if (UUID_BATTERY_LEVEL.equals(characteristic.getUuid())) {
-            mLastBat = characteristic.getIntValue(
-                    BluetoothGattCharacteristic.FORMAT_UINT8, 0);
+            mRecord.setCustom(date, mLastAct, mLastPa);
+            sSampleBus.publish(mRecord);
+        } else if (UUID_BATTERY_LEVEL.equals(uuid)) {
+            mLastBat = value != null && value.length > 0 ? value[0] & 0xFF
+                    : INVALID_INT;
             Log.d(TAG, String.format("Received battery level: %d", mLastBat));
-            intent.putExtra(EXTRA_BAT, mLastBat + dateStr);
-            intent.putExtra(EXTRA_DATA, "Battery Level: " + mLastBat);
+            mRecord.setBattery(date, mLastBat);
+            sSampleBus.publish(mRecord);
         } else {
-            // For all other profiles, writes the data formatted in HEX.
-            final byte[] data = characteristic.getValue();
-            if (data != null && data.length > 0) {
-                final StringBuilder stringBuilder = new StringBuilder(
-                        data.length);
-                for (byte byteChar : data) {
-                    stringBuilder.append(String.format("%02X ", byteChar));
-                }
-                intent.putExtra(
-                        EXTRA_DATA,
-                        new StringBuilder().append(BleNamesResolver
-                                .resolveCharacteristicName(characteristic
-                                        .getUuid().toString()))
-                                .append("\n").append(new String(data))
-                                .append("\n").append(stringBuilder).toString());
-            } else {
-                intent.putExtra(
-                        EXTRA_DATA,
-                        BleNamesResolver
-                                .resolveCharacteristicName(characteristic
-                                        .getUuid().toString())
-                                + "\n" + ((data == null) ? "null" : "No data"));
-            }
+            // Nothing uses other characteristics
+            Log.d(TAG, "Received data for "
+                    + BleNamesResolver.resolveCharacteristicName(
+                    uuid.toString()));
         }
-        sendBroadcast(intent);
+    }
+
+    /**
+     * Copies the R-R values of a Heart Rate Measurement into mLastRr,
+     * growing it only if they do not fit.
+     *
+     * @param rr    The values or null if there were none.
+     * @param count The number of values.
+     */
+    private void setLastRr(int[] rr, int count) {
+        if (rr == null) {
+            mLastRrCount = INVALID_INT;
+            return;
+        }
+        if (mLastRr.length < count) {
+            mLastRr = new int[count];
+        }
+        System.arraycopy(rr, 0, mLastRr, 0, count);
+        mLastRrCount = count;
+    }
+
+    /**
+     * Gets whether Heart Rate Measurements are expected.
+     *
+     * @return Whether they are.
+     */
+    private boolean isHrEnabled() {
+        return mDoHr && (mCharHr != null || mSimulatorThread != null);
+    }
+
+    /**
+     * Gets whether custom measurements are expected.
+     *
+     * @return Whether they are.
+     */
+    private boolean isCustomEnabled() {
+        return mDoCustom && (mCharCustom != null || mSimulatorThread != null);
+    }
+
+    /**
+     * Gets the SampleBus on which the data received from the device is
+     * published.
+     *
+     * @return The SampleBus.
+     */
+    public static SampleBus getSampleBus() {
+        return sSampleBus;
     }
 
     public class LocalBinder extends Binder {
@@ -400,23 +486,92 @@ public class HxMBleService extends Service implements IConstants {
     }
 
     /**
-     * Starts writing to the database with the given adapter.
+     * Starts writing to the database with the given adapter. The writing is
+     * done on a separate thread by a DataWriter.
      *
      * @param adapter The adapter.
      * @return If started.
      */
     public boolean startDatabase(HxMMonitorDbAdapter adapter) {
         Log.d(TAG, "startDatabase");
-        mDbAdapter = adapter;
-        return mDbAdapter != null;
+        if (mDataWriter != null) {
+            mDataWriter.stop();
+            mDataWriter = null;
+        }
+        if (adapter == null) {
+            return false;
+        }
+        mDataWriter = new DataWriter(adapter);
+        mDataWriter.start();
+        return true;
     }
 
     /**
-     * Stops writing to the the database.
+     * Stops writing to the the database after writing any pending data. The
+     * writer thread has exited when this returns, so the database can be
+     * closed.
      */
     public void stopDatabase() {
         Log.d(TAG, "stopDatabase");
-        mDbAdapter = null;
+        if (mDataWriter != null) {
+            DataWriter writer = mDataWriter;
+            mDataWriter = null;
+            writer.stop();
+        }
+    }
+
+    /**
+     * Sets the length of the window for the live HRV. Used for the next
+     * session.
+     *
+     * @param window The length (ms).
+     */
+    public void setHrvWindow(long window) {
+        mHrvWindow = window;
+    }
+
+    /**
+     * Writes the HRV for a period to the database.
+     *
+     * @param start  The start of the period.
+     * @param engine The engine holding the beats of the period.
+     */
+    private void writeHrv(long start, HrvEngine engine) {
+        DataWriter writer = mDataWriter;
+        if (writer != null) {
+            writer.addHrv(mSessionStartTime, start, engine);
+        }
+    }
+
+    /**
+     * Starts the HRV for a new session, which must have been set up.
+     */
+    private void startHrv() {
+        synchronized (mHrvLock) {
+            mHrvRecorder = new HrvRecorder(mHrvWindow, this::writeHrv);
+        }
+    }
+
+    /**
+     * Ends the HRV for the current session, writing the last period. No
+     * more values are added to it after this.
+     */
+    private void finishHrv() {
+        synchronized (mHrvLock) {
+            if (mHrvRecorder != null) {
+                mHrvRecorder.finish();
+                mHrvRecorder = null;
+            }
+        }
+    }
+
+    /**
+     * Gets the DataWriter, which has statistics on the database writing.
+     *
+     * @return The DataWriter or null if not writing to the database.
+     */
+    public DataWriter getDataWriter() {
+        return mDataWriter;
     }
 
     /**
@@ -673,7 +828,10 @@ public class HxMBleService extends Service implements IConstants {
         // Log.d(TAG, "  mDoBat=" + mDoBat + " mDoHr=" + mDoHr + " mDoCustom="
         // + mDoCustom);
         boolean res = true;
+        stopSimulation();
+        finishHrv();
         mSessionStartTime = new Date().getTime();
+        startHrv();
 
         // // DEBUG Check permissions
         // checkPermissions(charBat, charHr, charCustom);
@@ -700,7 +858,7 @@ public class HxMBleService extends Service implements IConstants {
         mCharCustom = charCustom;
         mLastBat = INVALID_INT;
         mLastHr = INVALID_INT;
-        mLastRr = INVALID_STRING;
+        mLastRrCount = INVALID_INT;
         mLastHrDate = new Date().getTime();
         mLastAct = INVALID_INT;
         mLastPa = INVALID_INT;
@@ -737,11 +895,77 @@ public class HxMBleService extends Service implements IConstants {
         return res;
     }
 
+    /**
+     * Starts a session with data from an HxMSimulator instead of the device,
+     * for testing without one. The notifications are handled by the same
+     * code as those from the device, on a background thread, until the
+     * session is stopped.
+     *
+     * @param simulator The simulator.
+     * @param speed     The speed relative to real time.
+     * @return If successful.
+     */
+    public boolean startSimulation(final HxMSimulator simulator,
+                                   final double speed) {
+        Log.d(TAG, "startSimulation: speed=" + speed);
+        stopSession();
+        mDoBat = false;
+        mDoHr = true;
+        mDoCustom = simulator.isCustom();
+        mSessionStartTime = new Date().getTime();
+        startHrv();
+        mLastBat = INVALID_INT;
+        mLastHr = INVALID_INT;
+        mLastRrCount = INVALID_INT;
+        mLastHrDate = mSessionStartTime;
+        mLastAct = INVALID_INT;
+        mLastPa = INVALID_INT;
+        final long start = mSessionStartTime;
+        mSimulatorThread = new Thread(() -> simulator.run(start, 0, speed,
+                this::onCharacteristicData), "HxMSimulator");
+        mSimulatorThread.start();
+        mSessionInProgress = true;
+        return true;
+    }
+
+    /**
+     * Returns if the data is coming from an HxMSimulator.
+     *
+     * @return If simulating.
+     */
+    public boolean isSimulating() {
+        return mSimulatorThread != null;
+    }
+
+    /**
+     * Stops the HxMSimulator, if it is running, and waits for it to finish
+     * the notification it is handling.
+     */
+    private void stopSimulation() {
+        Thread thread = mSimulatorThread;
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        try {
+            thread.join(1000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        mSimulatorThread = null;
+    }
+
     /**
      * Stops a session.
      */
     public void stopSession() {
         Log.d(TAG, "stopSession");
+        stopSimulation();
+        // Write any pending data for this session
+        finishHrv();
+        if (mDataWriter != null) {
+            mDataWriter.flush();
+        }
         // Clear any queues
         while (descriptorWriteQueue.size() > 0) {
             descriptorWriteQueue.remove();
@@ -760,7 +984,7 @@ public class HxMBleService extends Service implements IConstants {
         mCharHr = null;
         mCharCustom = null;
         mLastHr = -1;
-        mLastRr = null;
+        mLastRrCount = INVALID_INT;
         mSessionInProgress = false;
     }
 
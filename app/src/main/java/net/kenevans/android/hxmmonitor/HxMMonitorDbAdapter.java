@@ -3,12 +3,25 @@ package net.kenevans.android.hxmmonitor;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Simple database access helper class, modified from the Notes example
@@ -18,17 +31,248 @@ public class HxMMonitorDbAdapter implements IConstants {
     private DatabaseHelper mDbHelper;
     private SQLiteDatabase mDb;
     private final Context mCtx;
+    /**
+     * Cached statement for createDataBatch, guarded by itself.
+     */
+    private final Object mInsertLock = new Object();
+    private SQLiteStatement mInsertStatement;
+    /**
+     * Reusable packed RR arrays for createDataBatch, indexed by the number
+     * of values. Guarded by mInsertLock.
+     */
+    private byte[][] mRrBytes = new byte[16][];
+    /**
+     * Cached statements and accumulator for keeping the sessions table up
+     * to date. Guarded by mInsertLock.
+     */
+    private SQLiteStatement mSessionInsertStatement;
+    private SQLiteStatement mSessionUpdateStatement;
+    private final SessionStats mSessionStats = new SessionStats();
+    /**
+     * Cached statements and accumulators for keeping the rollups table up
+     * to date, one accumulator for each of the ROLLUP_RESOLUTIONS. Guarded
+     * by mInsertLock.
+     */
+    private SQLiteStatement mRollupInsertStatement;
+    private SQLiteStatement mRollupUpdateStatement;
+    private final RollupStats[] mRollupStats =
+            new RollupStats[ROLLUP_RESOLUTIONS.length];
+    /**
+     * Cached statement for createHrv, guarded by mInsertLock.
+     */
+    private SQLiteStatement mHrvInsertStatement;
+    /**
+     * Held while the backfill is working on a session, so close can wait
+     * for it to stop.
+     */
+    private final Object mBackfillLock = new Object();
+    private volatile boolean mClosing;
+    /**
+     * The session archives that are open for reading, least recently used
+     * first. Guarded by itself, and each reader is guarded by itself.
+     */
+    private final LinkedHashMap<Long, SessionArchiveReader> mArchiveReaders =
+            new LinkedHashMap<Long, SessionArchiveReader>(16, .75f, true) {
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Long, SessionArchiveReader> eldest) {
+                    if (size() <= ARCHIVE_OPEN_MAX) {
+                        return false;
+                    }
+                    closeArchiveReader(eldest.getValue());
+                    return true;
+                }
+            };
 
     /**
-     * Database creation SQL statement
+     * Database creation SQL statement. The RR values are stored as packed
+     * little-endian uint16 values (see RrCodec) and are null if invalid.
      */
     private static final String DB_CREATE_DATA_TABLE = "create table "
             + DB_DATA_TABLE + " (_id integer primary key autoincrement, "
             + COL_DATE + " integer not null, " + COL_START_DATE
             + " integer not null, " + COL_HR + " integer not null, " + COL_RR
-            + " text not null, " + COL_ACT + " integer not null," + COL_PA
+            + " blob, " + COL_ACT + " integer not null," + COL_PA
+            + " integer not null);";
+
+    /**
+     * Index for queries on the start date, which are sorted by date.
+     */
+    private static final String DB_CREATE_START_DATE_INDEX = "CREATE INDEX "
+            + "IF NOT EXISTS " + DB_START_DATE_INDEX + " ON " + DB_DATA_TABLE
+            + " (" + COL_START_DATE + ", " + COL_DATE + ");";
+
+    /**
+     * Index for queries on a range of dates.
+     */
+    private static final String DB_CREATE_DATE_INDEX = "CREATE INDEX "
+            + "IF NOT EXISTS " + DB_DATE_INDEX + " ON " + DB_DATA_TABLE
+            + " (" + COL_DATE + ");";
+
+    /**
+     * Sessions table creation SQL statement. There is one row for each start
+     * date in the data table. The HR statistics only include valid HR
+     * values (HR &gt;= 0).
+     */
+    private static final String DB_CREATE_SESSIONS_TABLE = "create table "
+            + DB_SESSIONS_TABLE + " (" + COL_START_DATE
+            + " integer primary key, " + COL_END_DATE + " integer not null, "
+            + COL_SAMPLE_COUNT + " integer not null, " + COL_HR_MIN
+            + " integer, " + COL_HR_MAX + " integer, " + COL_HR_SUM
+            + " integer not null, " + COL_HR_COUNT + " integer not null);";
+
+    /**
+     * SQL statement for computing the sessions table rows from the data
+     * table. Needs a GROUP BY clause to be added.
+     */
+    private static final String DB_COMPUTE_SESSIONS = "INSERT OR REPLACE INTO "
+            + DB_SESSIONS_TABLE + " (" + COL_START_DATE + ", " + COL_END_DATE
+            + ", " + COL_SAMPLE_COUNT + ", " + COL_HR_MIN + ", " + COL_HR_MAX
+            + ", " + COL_HR_SUM + ", " + COL_HR_COUNT + ") SELECT "
+            + COL_START_DATE + ", MAX(" + COL_DATE + "), COUNT(*), MIN(CASE"
+            + " WHEN " + COL_HR + " >= 0 THEN " + COL_HR + " END), MAX(CASE"
+            + " WHEN " + COL_HR + " >= 0 THEN " + COL_HR + " END), IFNULL(SUM("
+            + "CASE WHEN " + COL_HR + " >= 0 THEN " + COL_HR + " END), 0), "
+            + "COUNT(CASE WHEN " + COL_HR + " >= 0 THEN 1 END) FROM "
+            + DB_DATA_TABLE;
+
+    /**
+     * SQL statement for making sure there is a sessions table row for a
+     * start date.
+     */
+    private static final String DB_INSERT_SESSION = "INSERT OR IGNORE INTO "
+            + DB_SESSIONS_TABLE + " (" + COL_START_DATE + ", " + COL_END_DATE
+            + ", " + COL_SAMPLE_COUNT + ", " + COL_HR_SUM + ", "
+            + COL_HR_COUNT + ") VALUES (?, ?, 0, 0, 0)";
+
+    /**
+     * SQL statement for adding the statistics for new rows to a sessions
+     * table row. The HR minimum and maximum are bound as null if there were
+     * no valid HR values.
+     */
+    private static final String DB_UPDATE_SESSION = "UPDATE "
+            + DB_SESSIONS_TABLE + " SET " + COL_END_DATE + " = MAX("
+            + COL_END_DATE + ", ?1), " + COL_SAMPLE_COUNT + " = "
+            + COL_SAMPLE_COUNT + " + ?2, " + COL_HR_MIN + " = MIN(IFNULL("
+            + COL_HR_MIN + ", ?3), IFNULL(?3, " + COL_HR_MIN + ")), "
+            + COL_HR_MAX + " = MAX(IFNULL(" + COL_HR_MAX + ", ?4), IFNULL(?4, "
+            + COL_HR_MAX + ")), " + COL_HR_SUM + " = " + COL_HR_SUM
+            + " + ?5, " + COL_HR_COUNT + " = " + COL_HR_COUNT + " + ?6 WHERE "
+            + COL_START_DATE + " = ?7";
+
+    /**
+     * Rollups table creation SQL statement. There is one row for each
+     * bucket of each resolution that has data. The statistics only include
+     * valid values (&gt;= 0).
+     */
+    private static final String DB_CREATE_ROLLUPS_TABLE = "create table "
+            + DB_ROLLUPS_TABLE + " (" + COL_RESOLUTION + " integer not null, "
+            + COL_DATE + " integer not null, " + COL_HR_MIN + " integer, "
+            + COL_HR_MAX + " integer, " + COL_HR_SUM + " integer not null, "
+            + COL_HR_COUNT + " integer not null, " + COL_ACT_MIN
+            + " integer, " + COL_ACT_MAX + " integer, " + COL_ACT_SUM
+            + " integer not null, " + COL_ACT_COUNT + " integer not null, "
+            + COL_PA_MIN + " integer, " + COL_PA_MAX + " integer, "
+            + COL_PA_SUM + " integer not null, " + COL_PA_COUNT
+            + " integer not null, PRIMARY KEY (" + COL_RESOLUTION + ", "
+            + COL_DATE + ")) WITHOUT ROWID;";
+
+    /**
+     * Rollup backfill table creation SQL statement.
+     */
+    private static final String DB_CREATE_ROLLUP_BACKFILL_TABLE = "create "
+            + "table " + DB_ROLLUP_BACKFILL_TABLE + " (" + COL_START_DATE
+            + " integer primary key);";
+
+    /**
+     * SQL statement for queueing all the sessions for the backfill.
+     */
+    private static final String DB_QUEUE_ROLLUP_BACKFILL = "INSERT OR "
+            + "IGNORE INTO " + DB_ROLLUP_BACKFILL_TABLE + " SELECT "
+            + COL_START_DATE + " FROM " + DB_SESSIONS_TABLE;
+
+    /**
+     * HRV table creation SQL statement. There is one row for each
+     * HRV_PERIOD of each session that has beats.
+     */
+    private static final String DB_CREATE_HRV_TABLE = "create table "
+            + DB_HRV_TABLE + " (" + COL_START_DATE + " integer not null, "
+            + COL_DATE + " integer not null, " + COL_BEAT_COUNT
+            + " integer not null, " + COL_MEAN_NN + " real, " + COL_SDNN
+            + " real, " + COL_RMSSD + " real, " + COL_PNN50 + " real, "
+            + "PRIMARY KEY (" + COL_START_DATE + ", " + COL_DATE
+            + ")) WITHOUT ROWID;";
+
+    /**
+     * SQL statement for inserting or replacing an HRV table row.
+     */
+    private static final String DB_INSERT_HRV = "INSERT OR REPLACE INTO "
+            + DB_HRV_TABLE + " (" + COL_START_DATE + ", " + COL_DATE + ", "
+            + COL_BEAT_COUNT + ", " + COL_MEAN_NN + ", " + COL_SDNN + ", "
+            + COL_RMSSD + ", " + COL_PNN50 + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * Archives table creation SQL statement. There is one row for each
+     * session whose data is in a session archive in the archive directory
+     * instead of the data table. Its sessions, rollups, and HRV table rows
+     * are kept.
+     */
+    private static final String DB_CREATE_ARCHIVES_TABLE = "create table "
+            + DB_ARCHIVES_TABLE + " (" + COL_START_DATE
+            + " integer primary key, " + COL_FILE_NAME + " text not null, "
+            + COL_SAMPLE_COUNT + " integer not null, " + COL_FILE_SIZE
             + " integer not null);";
 
+    /**
+     * The columns of the rollups table after the resolution and date.
+     */
+    private static final String ROLLUP_STATS_COLUMNS = COL_HR_MIN + ", "
+            + COL_HR_MAX + ", " + COL_HR_SUM + ", " + COL_HR_COUNT + ", "
+            + COL_ACT_MIN + ", " + COL_ACT_MAX + ", " + COL_ACT_SUM + ", "
+            + COL_ACT_COUNT + ", " + COL_PA_MIN + ", " + COL_PA_MAX + ", "
+            + COL_PA_SUM + ", " + COL_PA_COUNT;
+
+    /**
+     * SQL statement for making sure there is a rollups table row for a
+     * resolution and bucket.
+     */
+    private static final String DB_INSERT_ROLLUP = "INSERT OR IGNORE INTO "
+            + DB_ROLLUPS_TABLE + " (" + COL_RESOLUTION + ", " + COL_DATE
+            + ", " + COL_HR_SUM + ", " + COL_HR_COUNT + ", " + COL_ACT_SUM
+            + ", " + COL_ACT_COUNT + ", " + COL_PA_SUM + ", " + COL_PA_COUNT
+            + ") VALUES (?, ?, 0, 0, 0, 0, 0, 0)";
+
+    /**
+     * SQL statement for adding the statistics for new rows to a rollups
+     * table row. As for the sessions table, the minimum and maximum are
+     * bound as null if there were no valid values.
+     */
+    private static final String DB_UPDATE_ROLLUP = "UPDATE "
+            + DB_ROLLUPS_TABLE + " SET "
+            + updateStatsSql(COL_HR_MIN, COL_HR_MAX, COL_HR_SUM,
+            COL_HR_COUNT, 1) + ", "
+            + updateStatsSql(COL_ACT_MIN, COL_ACT_MAX, COL_ACT_SUM,
+            COL_ACT_COUNT, 5) + ", "
+            + updateStatsSql(COL_PA_MIN, COL_PA_MAX, COL_PA_SUM,
+            COL_PA_COUNT, 9) + " WHERE " + COL_RESOLUTION + " = ?13 AND "
+            + COL_DATE + " = ?14";
+
+    /**
+     * SQL statement for inserting a row with the RR values packed.
+     */
+    private static final String DB_INSERT_DATA = "INSERT INTO "
+            + DB_DATA_TABLE + " (" + COL_ID + ", " + COL_DATE + ", "
+            + COL_START_DATE + ", " + COL_HR + ", " + COL_RR + ", " + COL_ACT
+            + ", " + COL_PA + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * SQL statement for inserting a row with a new row id.
+     */
+    private static final String DB_INSERT_NEW_DATA = "INSERT INTO "
+            + DB_DATA_TABLE + " (" + COL_DATE + ", " + COL_START_DATE + ", "
+            + COL_HR + ", " + COL_RR + ", " + COL_ACT + ", " + COL_PA
+            + ") VALUES (?, ?, ?, ?, ?, ?)";
+
     /**
      * Constructor - takes the context to allow the database to be
      * opened/created
@@ -77,348 +321,2375 @@ public class HxMMonitorDbAdapter implements IConstants {
     }
 
     public void close() {
+        // Wait for the backfill to finish the session it is working on
+        mClosing = true;
+        synchronized (mBackfillLock) {
+            Log.d(TAG, "Closing database");
+        }
+        synchronized (mInsertLock) {
+            if (mInsertStatement != null) {
+                mInsertStatement.close();
+                mInsertStatement = null;
+            }
+            if (mSessionInsertStatement != null) {
+                mSessionInsertStatement.close();
+                mSessionInsertStatement = null;
+            }
+            if (mSessionUpdateStatement != null) {
+                mSessionUpdateStatement.close();
+                mSessionUpdateStatement = null;
+            }
+            if (mRollupInsertStatement != null) {
+                mRollupInsertStatement.close();
+                mRollupInsertStatement = null;
+            }
+            if (mRollupUpdateStatement != null) {
+                mRollupUpdateStatement.close();
+                mRollupUpdateStatement = null;
+            }
+            if (mHrvInsertStatement != null) {
+                mHrvInsertStatement.close();
+                mHrvInsertStatement = null;
+            }
+        }
+        closeArchiveReaders();
         mDbHelper.close();
     }
 
     /**
-     * Create new data using the parameters provided. If the data is
-     * successfully created return the new rowId for that entry, otherwise
-     * return a -1 to indicate failure.
+     * Inserts all the rows in the batch in one transaction using a
+     * precompiled statement and updates the sessions and rollups tables.
+     * The number of rows inserted and the number of errors are also stored
+     * in the batch.
+     * If called inside a transaction, it becomes part of that transaction.
      *
-     * @param date      The date.
-     * @param startDate The start date.
-     * @param hr        The HR.
-     * @param rr        The RR.
-     * @param activity  The Activity.
-     * @param pa        The peak acceleration.
-     * @return The rowId or -1 on failure.
+     * @param batch The batch.
+     * @return The number of rows inserted.
      */
-    public long createData(long date, long startDate, int hr, String rr,
-                           int activity, int pa) {
+    public int createDataBatch(DataBatch batch) {
+        int size = batch.size();
         if (mDb == null) {
-            Utils.errMsg(mCtx, "Failed to create data. Database is null.");
-            return -1;
+            batch.setResults(0, size, "Database is null");
+            return 0;
         }
-        ContentValues values = new ContentValues();
-        values.put(COL_DATE, date);
-        values.put(COL_START_DATE, startDate);
-        values.put(COL_HR, hr);
-        values.put(COL_RR, rr);
-        values.put(COL_ACT, activity);
-        values.put(COL_PA, pa);
-
-        return mDb.insert(DB_DATA_TABLE, null, values);
+        int nInserted = 0;
+        int nErrors = 0;
+        String lastError = null;
+        synchronized (mInsertLock) {
+            if (mInsertStatement == null) {
+                mInsertStatement = mDb.compileStatement(DB_INSERT_NEW_DATA);
+            }
+            SQLiteStatement statement = mInsertStatement;
+            SessionStats stats = mSessionStats;
+            stats.reset(INVALID_DATE);
+            RollupStats[] rollups = getRollupStats();
+            for (RollupStats rollup : rollups) {
+                rollup.reset(INVALID_DATE);
+            }
+            long date;
+            long startDate;
+            int rrCount;
+            byte[] rrBytes;
+            mDb.beginTransaction();
+            try {
+                for (int i = 0; i < size; i++) {
+                    date = batch.getDate(i);
+                    startDate = batch.getStartDate(i);
+                    statement.bindLong(1, date);
+                    statement.bindLong(2, startDate);
+                    statement.bindLong(3, batch.getHr(i));
+                    rrCount = batch.getRrCount(i);
+                    if (rrCount == INVALID_INT) {
+                        statement.bindNull(4);
+                    } else {
+                        rrBytes = getRrBytes(rrCount);
+                        RrCodec.encode(batch.getRr(i), rrCount, rrBytes);
+                        statement.bindBlob(4, rrBytes);
+                    }
+                    statement.bindLong(5, batch.getActivity(i));
+                    statement.bindLong(6, batch.getPa(i));
+                    try {
+                        if (statement.executeInsert() < 0) {
+                            nErrors++;
+                            continue;
+                        }
+                        nInserted++;
+                    } catch (SQLException ex) {
+                        nErrors++;
+                        lastError = ex.getMessage();
+                        continue;
+                    }
+                    // Rows are normally in runs with the same start date
+                    if (startDate != stats.startDate) {
+                        updateSession(stats);
+                        stats.reset(startDate);
+                    }
+                    stats.add(date, batch.getHr(i));
+                    for (RollupStats rollup : rollups) {
+                        if (!rollup.contains(date)) {
+                            updateRollup(rollup);
+                            rollup.reset(date);
+                        }
+                        rollup.add(batch.getHr(i), batch.getActivity(i),
+                                batch.getPa(i));
+                    }
+                }
+                updateSession(stats);
+                for (RollupStats rollup : rollups) {
+                    updateRollup(rollup);
+                }
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+                statement.clearBindings();
+            }
+        }
+        batch.setResults(nInserted, nErrors, lastError);
+        return nInserted;
     }
 
     /**
-     * Delete all the data and recreate the table.
+     * Adds the accumulated statistics to the sessions table row for their
+     * start date, creating the row if necessary. Does nothing if nothing
+     * has been accumulated. Must be called with mInsertLock held.
+     *
+     * @param stats The statistics.
      */
-    public void recreateDataTable() {
-        mDb.execSQL("DROP TABLE IF EXISTS " + DB_DATA_TABLE);
-        mDb.execSQL(DB_CREATE_DATA_TABLE);
+    private void updateSession(SessionStats stats) {
+        if (stats.count == 0) {
+            return;
+        }
+        if (mSessionInsertStatement == null) {
+            mSessionInsertStatement = mDb.compileStatement(DB_INSERT_SESSION);
+            mSessionUpdateStatement = mDb.compileStatement(DB_UPDATE_SESSION);
+        }
+        SQLiteStatement statement = mSessionInsertStatement;
+        statement.bindLong(1, stats.startDate);
+        statement.bindLong(2, stats.endDate);
+        statement.executeInsert();
+        statement = mSessionUpdateStatement;
+        statement.bindLong(1, stats.endDate);
+        statement.bindLong(2, stats.count);
+        if (stats.hrCount == 0) {
+            statement.bindNull(3);
+            statement.bindNull(4);
+        } else {
+            statement.bindLong(3, stats.hrMin);
+            statement.bindLong(4, stats.hrMax);
+        }
+        statement.bindLong(5, stats.hrSum);
+        statement.bindLong(6, stats.hrCount);
+        statement.bindLong(7, stats.startDate);
+        statement.executeUpdateDelete();
+        stats.count = 0;
     }
 
     /**
-     * Return a Cursor over the list of all items in the database.
+     * Recomputes the sessions table row for a start date from the data
+     * table. The row is removed if there is no data for the start date.
      *
-     * @return Cursor over items.
+     * @param db        The database.
+     * @param startDate The start date.
      */
-    public Cursor fetchAllData(String filter) {
-        if (mDb == null) {
-            return null;
-        }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_ID, COL_DATE,
-                        COL_START_DATE, COL_HR, COL_RR, COL_ACT, COL_PA},
-				filter,
-                null, null, null, SORT_ASCENDING);
+    private static void rebuildSession(SQLiteDatabase db, long startDate) {
+        db.execSQL("DELETE FROM " + DB_SESSIONS_TABLE + " WHERE "
+                + COL_START_DATE + "=" + startDate);
+        db.execSQL(DB_COMPUTE_SESSIONS + " WHERE " + COL_START_DATE + "="
+                + startDate + " GROUP BY " + COL_START_DATE);
     }
 
     /**
-     * Delete the data with the given rowId.
+     * Recomputes the whole sessions table from the data table.
      *
-     * @param rowId id of data to delete
-     * @return true if deleted, false otherwise.
+     * @param db The database.
      */
-    public boolean deleteData(long rowId) {
-        return mDb.delete(DB_DATA_TABLE, COL_ID + "=" + rowId, null) > 0;
+    private static void rebuildSessions(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM " + DB_SESSIONS_TABLE);
+        db.execSQL(DB_COMPUTE_SESSIONS + " GROUP BY " + COL_START_DATE);
     }
 
     /**
-     * Return a Cursor positioned at the data that matches the given rowId
-     *
-     * @param rowId id of entry to retrieve.
-     * @return Cursor positioned to matching entry, if found.
-     * @throws SQLException if entry could not be found/retrieved.
+     * Recomputes the whole sessions table from the data table, as for a
+     * database that was modified outside this class. The rows for archived
+     * sessions are kept. All the sessions are queued for the backfill.
      */
-    public Cursor fetchData(long rowId) throws SQLException {
-        Cursor mCursor = mDb.query(true, DB_DATA_TABLE, new String[]{COL_ID,
-                COL_DATE, COL_START_DATE, COL_HR, COL_RR}, COL_ID + "="
-                + rowId, null, null, null, null, null);
-        if (mCursor != null) {
-            mCursor.moveToFirst();
+    public void rebuildSessions() {
+        mDb.beginTransaction();
+        try {
+            mDb.execSQL("DELETE FROM " + DB_SESSIONS_TABLE + " WHERE "
+                    + COL_START_DATE + " NOT IN (SELECT " + COL_START_DATE
+                    + " FROM " + DB_ARCHIVES_TABLE + ")");
+            mDb.execSQL(DB_COMPUTE_SESSIONS + " GROUP BY " + COL_START_DATE);
+            mDb.execSQL(DB_QUEUE_ROLLUP_BACKFILL + " WHERE " + COL_START_DATE
+                    + " NOT IN (SELECT " + COL_START_DATE + " FROM "
+                    + DB_ARCHIVES_TABLE + ")");
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
         }
-        return mCursor;
     }
 
     /**
-     * Update the data using the details provided. The data to be updated is
-     * specified using the rowId, and it is altered to use the values passed
-     * in.
+     * Gets the rollup accumulators, creating them if necessary. Must be
+     * called with mInsertLock held.
      *
-     * @param rowId     The row id.
-     * @param date      The date.
-     * @param startDate The start date.
-     * @param hr        The HR.
-     * @param rr        The RR.
-     * @param activity  The activity.
-     * @param pa        The peak acceleration.
-     * @return Whether successful.
+     * @return The accumulators, one for each of the ROLLUP_RESOLUTIONS.
      */
-    public boolean updateData(long rowId, long date, long startDate, int hr,
-                              String rr, int activity, int pa) {
-        ContentValues values = new ContentValues();
-        values.put(COL_DATE, date);
-        values.put(COL_START_DATE, startDate);
-        values.put(COL_HR, hr);
-        values.put(COL_RR, rr);
-        values.put(COL_ACT, activity);
-        values.put(COL_PA, pa);
-
-        return mDb.update(DB_DATA_TABLE, values, COL_ID + "=" + rowId, null) > 0;
+    private RollupStats[] getRollupStats() {
+        if (mRollupStats[0] == null) {
+            for (int i = 0; i < mRollupStats.length; i++) {
+                mRollupStats[i] = new RollupStats(ROLLUP_RESOLUTIONS[i]);
+            }
+        }
+        return mRollupStats;
     }
 
     /**
-     * Return a Cursor over the list of start and ending times, sorted in
-     * reverse order.
+     * Adds the accumulated statistics to the rollups table row for their
+     * resolution and bucket, creating the row if necessary. Does nothing if
+     * nothing has been accumulated. Must be called with mInsertLock held.
      *
-     * @return Cursor over items.
+     * @param stats The statistics.
      */
-    public Cursor fetchAllSessionStartEndData() {
-        if (mDb == null) {
-            return null;
+    private void updateRollup(RollupStats stats) {
+        if (stats.count == 0) {
+            return;
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_START_DATE,
-                        COL_END_DATE}, null, null, COL_START_DATE, null,
-                SORT_DESCENDING);
+        if (mRollupInsertStatement == null) {
+            mRollupInsertStatement = mDb.compileStatement(DB_INSERT_ROLLUP);
+            mRollupUpdateStatement = mDb.compileStatement(DB_UPDATE_ROLLUP);
+        }
+        updateRollup(stats, mRollupInsertStatement, mRollupUpdateStatement);
     }
 
-    // /////////////////////////////////////////////////////////////////////////
-    // Get data for start date only (ForStartDate) ////////////////////////////
-    // /////////////////////////////////////////////////////////////////////////
-
     /**
-     * Deletes all data in the database for the interval corresponding to the
-     * given the start date.
+     * Adds the accumulated statistics to the rollups table row for their
+     * resolution and bucket using the given statements. Does nothing if
+     * nothing has been accumulated.
      *
-     * @param start The start date.
-     * @return Whether successful.
+     * @param stats           The statistics.
+     * @param insertStatement The compiled DB_INSERT_ROLLUP.
+     * @param updateStatement The compiled DB_UPDATE_ROLLUP.
      */
-    public boolean deleteAllDataForStartDate(long start) {
-        return mDb.delete(DB_DATA_TABLE,
-                COL_START_DATE + "=" + start, null) > 0;
+    private static void updateRollup(RollupStats stats,
+                                     SQLiteStatement insertStatement,
+                                     SQLiteStatement updateStatement) {
+        if (stats.count == 0) {
+            return;
+        }
+        SQLiteStatement statement = insertStatement;
+        statement.bindLong(1, stats.resolution);
+        statement.bindLong(2, stats.bucket);
+        statement.executeInsert();
+        statement = updateStatement;
+        for (int i = 0; i < RollupStats.N_VALUES; i++) {
+            if (stats.counts[i] == 0) {
+                statement.bindNull(4 * i + 1);
+                statement.bindNull(4 * i + 2);
+            } else {
+                statement.bindLong(4 * i + 1, stats.mins[i]);
+                statement.bindLong(4 * i + 2, stats.maxs[i]);
+            }
+            statement.bindLong(4 * i + 3, stats.sums[i]);
+            statement.bindLong(4 * i + 4, stats.counts[i]);
+        }
+        statement.bindLong(13, stats.resolution);
+        statement.bindLong(14, stats.bucket);
+        statement.executeUpdateDelete();
+        stats.count = 0;
     }
 
     /**
-     * Return a Cursor over the HR items in the database having the given the
-     * start date.
+     * Recomputes the rollups table rows for all the buckets that contain
+     * dates in the given range, from the data table and from the archives
+     * of the archived sessions that overlap the range, which are not in the
+     * data table. Must be called in a transaction.
      *
-     * @param date The start date.
-     * @return Cursor over items.
+     * @param start The start of the range.
+     * @param end   The end of the range (inclusive).
+     * @throws SQLException If an archive could not be read.
      */
-    public Cursor fetchAllHrDateDataForStartDate(long date) {
-        if (mDb == null) {
-            return null;
+    private void rebuildRollups(long start, long end) {
+        int nResolutions = ROLLUP_RESOLUTIONS.length;
+        long[] lowers = new long[nResolutions];
+        long[] uppers = new long[nResolutions];
+        long lower = Long.MAX_VALUE, upper = Long.MIN_VALUE;
+        long resolution;
+        for (int i = 0; i < nResolutions; i++) {
+            resolution = ROLLUP_RESOLUTIONS[i];
+            lowers[i] = start - start % resolution;
+            uppers[i] = end - end % resolution + resolution;
+            lower = Math.min(lower, lowers[i]);
+            upper = Math.max(upper, uppers[i]);
+            rebuildRollups(mDb, resolution, lowers[i], uppers[i]);
+        }
+        try (Cursor cursor = mDb.rawQuery("SELECT a." + COL_START_DATE
+                + ", a." + COL_FILE_NAME + " FROM " + DB_ARCHIVES_TABLE
+                + " AS a JOIN " + DB_SESSIONS_TABLE + " AS s ON s."
+                + COL_START_DATE + "=a." + COL_START_DATE + " WHERE a."
+                + COL_START_DATE + "<" + upper + " AND s." + COL_END_DATE
+                + ">=" + lower, null)) {
+            if (cursor.getCount() == 0) {
+                return;
+            }
+            try (SQLiteStatement insertStatement =
+                         mDb.compileStatement(DB_INSERT_ROLLUP);
+                 SQLiteStatement updateStatement =
+                         mDb.compileStatement(DB_UPDATE_ROLLUP)) {
+                while (cursor.moveToNext()) {
+                    addArchiveRollups(cursor.getLong(0), cursor.getString(1),
+                            lowers, uppers, insertStatement,
+                            updateStatement);
+                }
+            }
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_HR},
-                COL_START_DATE + "=" + date, null, null, null,
-                SORT_ASCENDING);
     }
 
     /**
-     * Return a Cursor over the HR, RR, Activity, and PA items in the database
-     * having the given the start date
+     * Adds the rows of a session archive to the rollups table rows for the
+     * buckets in the given ranges. Does not use the statements held for
+     * createDataBatch, since that would need mInsertLock, which must not be
+     * taken inside a transaction.
      *
-     * @param date The date.
-     * @return Cursor over items.
+     * @param startDate       The start date.
+     * @param fileName        The name of the archive file.
+     * @param lowers          The start of the range for each of the
+     *                        ROLLUP_RESOLUTIONS.
+     * @param uppers          The end of the range for each of the
+     *                        ROLLUP_RESOLUTIONS (exclusive).
+     * @param insertStatement The compiled DB_INSERT_ROLLUP.
+     * @param updateStatement The compiled DB_UPDATE_ROLLUP.
+     * @throws SQLException If the archive could not be read.
      */
-    public Cursor fetchAllHrRrActPaDateDataForStartDate(long date) {
-        if (mDb == null) {
-            return null;
+    private void addArchiveRollups(long startDate, String fileName,
+                                   long[] lowers, long[] uppers,
+                                   SQLiteStatement insertStatement,
+                                   SQLiteStatement updateStatement) {
+        RollupStats[] rollups = new RollupStats[ROLLUP_RESOLUTIONS.length];
+        for (int i = 0; i < rollups.length; i++) {
+            rollups[i] = new RollupStats(ROLLUP_RESOLUTIONS[i]);
+            rollups[i].reset(INVALID_DATE);
+        }
+        DataBatch batch = new DataBatch(EXPORT_PAGE_SIZE);
+        long date;
+        int row = 0;
+        boolean more = true;
+        try {
+            SessionArchiveReader reader = getArchiveReader(startDate,
+                    fileName);
+            while (more) {
+                batch.clear();
+                synchronized (reader) {
+                    reader.seek(row);
+                    more = reader.read(batch);
+                }
+                row += batch.size();
+                for (int j = 0; j < batch.size(); j++) {
+                    date = batch.getDate(j);
+                    for (int i = 0; i < rollups.length; i++) {
+                        if (date < lowers[i] || date >= uppers[i]) {
+                            continue;
+                        }
+                        if (!rollups[i].contains(date)) {
+                            updateRollup(rollups[i], insertStatement,
+                                    updateStatement);
+                            rollups[i].reset(date);
+                        }
+                        rollups[i].add(batch.getHr(j),
+                                batch.getActivity(j), batch.getPa(j));
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            throw new SQLException("Error reading the archive " + fileName,
+                    ex);
+        }
+        for (RollupStats rollup : rollups) {
+            updateRollup(rollup, insertStatement, updateStatement);
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_HR,
-                        COL_RR, COL_ACT, COL_PA},
-                COL_START_DATE + "=" + date, null, null, null,
-                SORT_ASCENDING);
     }
 
-    // /////////////////////////////////////////////////////////////////////////
-    // Get data for start date through end date (ForDate) /////////////////////
-    // /////////////////////////////////////////////////////////////////////////
+    /**
+     * Recomputes the rollups table rows of one resolution for the buckets
+     * in the given range from the data table.
+     *
+     * @param db         The database.
+     * @param resolution The resolution.
+     * @param lower      The start of the first bucket.
+     * @param upper      The end of the last bucket (exclusive).
+     */
+    private static void rebuildRollups(SQLiteDatabase db, long resolution,
+                                       long lower, long upper) {
+        db.execSQL("DELETE FROM " + DB_ROLLUPS_TABLE + " WHERE "
+                + COL_RESOLUTION + "=" + resolution + " AND " + COL_DATE
+                + ">=" + lower + " AND " + COL_DATE + "<" + upper);
+        db.execSQL("INSERT INTO " + DB_ROLLUPS_TABLE + " ("
+                + COL_RESOLUTION + ", " + COL_DATE + ", "
+                + ROLLUP_STATS_COLUMNS + ") SELECT " + resolution + ", "
+                + COL_DATE + " - " + COL_DATE + " % " + resolution
+                + " AS bucket, " + computeStatsSql(COL_HR) + ", "
+                + computeStatsSql(COL_ACT) + ", " + computeStatsSql(COL_PA)
+                + " FROM " + DB_DATA_TABLE + " WHERE " + COL_DATE + ">="
+                + lower + " AND " + COL_DATE + "<" + upper
+                + " GROUP BY bucket");
+    }
 
     /**
-     * Return a Cursor over the HR items in the database for a given start and
-     * end times.
+     * Gets the range of dates of the data for a start date. Used to find
+     * the rollups that need to be recomputed when the data is changed.
      *
-     * @param start The start time.
-     * @param end   The end time.
-     * @return Cursor over items.
+     * @param startDate The start date.
+     * @return The start and end dates of the session or null if there is
+     * no such session.
      */
-    public Cursor fetchAllHrDateDataForDates(long start, long end) {
-        if (mDb == null) {
-            return null;
+    private long[] getSessionRange(long startDate) {
+        try (Cursor cursor = mDb.query(DB_DATA_TABLE, new String[]{
+                        "MIN(" + COL_DATE + ")", "MAX(" + COL_DATE + ")"},
+                COL_START_DATE + "=" + startDate, null, null, null, null)) {
+            if (!cursor.moveToFirst() || cursor.isNull(0)) {
+                return null;
+            }
+            return new long[]{cursor.getLong(0), cursor.getLong(1)};
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_HR},
-                COL_DATE + ">=" + start + " AND " + COL_DATE
-                        + "<=" + end, null, null, null,
-                SORT_ASCENDING);
     }
 
     /**
-     * Return a Cursor over the HR and RR items in the database for a given
-     * start and end times.
+     * Computes the rollups and the HRV for the sessions that are queued in
+     * the backfill table, one session per transaction, oldest first. Stops
+     * if the adapter is being closed. The rollups for new data are
+     * maintained as it is inserted, and the HRV is written by the service as
+     * it is received, so this is only needed for data that existed before
+     * or that was copied in or edited. Intended to be run on a background
+     * thread.
      *
-     * @param start The start time.
-     * @param end   The end time.
-     * @return Cursor over items.
+     * @return The number of sessions processed.
      */
-    public Cursor fetchAllHrRrDateDataForDates(long start, long end) {
-        if (mDb == null) {
-            return null;
+    public int backfill() {
+        int nSessions = 0;
+        long startDate;
+        long[] range;
+        boolean archived;
+        while (true) {
+            synchronized (mBackfillLock) {
+                if (mClosing || mDb == null) {
+                    break;
+                }
+                try (Cursor cursor = mDb.query(DB_ROLLUP_BACKFILL_TABLE,
+                        new String[]{COL_START_DATE}, null, null, null, null,
+                        COL_START_DATE + " ASC", "1")) {
+                    if (!cursor.moveToFirst()) {
+                        break;
+                    }
+                    startDate = cursor.getLong(0);
+                }
+                mDb.beginTransaction();
+                try {
+                    // The data of an archived session is not in the data
+                    // table, but its HRV was computed before it was archived
+                    archived = getArchiveFileName(startDate) != null;
+                    range = archived ? getArchivedSessionRange(startDate)
+                            : getSessionRange(startDate);
+                    if (range != null) {
+                        rebuildRollups(range[0], range[1]);
+                    }
+                    if (!archived) {
+                        rebuildHrv(startDate);
+                    }
+                    mDb.delete(DB_ROLLUP_BACKFILL_TABLE, COL_START_DATE + "="
+                            + startDate, null);
+                    mDb.setTransactionSuccessful();
+                } finally {
+                    mDb.endTransaction();
+                }
+                nSessions++;
+            }
         }
-        return mDb.query(DB_DATA_TABLE,
-                new String[]{COL_DATE, COL_HR, COL_RR}, COL_DATE + ">="
-                        + start + " AND " + COL_DATE + "<="
-                        + end, null, null, null, SORT_ASCENDING);
+        if (nSessions > 0) {
+            Log.d(TAG, "Backfilled " + nSessions + " sessions");
+        }
+        return nSessions;
     }
 
     /**
-     * Return a Cursor over the Activity and PA items in the database for a
-     * given start and end times.
+     * Inserts or replaces the HRV table row for a period.
+     * If called inside a transaction, it becomes part of that transaction.
      *
-     * @param start The start time.
-     * @param end   The end time.
-     * @return Cursor over items.
+     * @param startDate The start date of the session.
+     * @param date      The start of the period.
+     * @param beatCount The number of beats.
+     * @param meanNn    The mean NN (ms).
+     * @param sdnn      The SDNN (ms).
+     * @param rmssd     The RMSSD (ms).
+     * @param pnn50     The pNN50 (%).
+     * @return Whether successful.
      */
-    public Cursor fetchAllActPaDateDataForDates(long start, long end) {
+    public boolean createHrv(long startDate, long date, int beatCount,
+                             double meanNn, double sdnn, double rmssd,
+                             double pnn50) {
         if (mDb == null) {
-            return null;
+            return false;
+        }
+        synchronized (mInsertLock) {
+            if (mHrvInsertStatement == null) {
+                mHrvInsertStatement = mDb.compileStatement(DB_INSERT_HRV);
+            }
+            return insertHrv(mHrvInsertStatement, startDate, date, beatCount,
+                    meanNn, sdnn, rmssd, pnn50);
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_ACT,
-                        COL_PA}, COL_DATE + ">=" + start + " AND "
-                        + COL_DATE + "<=" + end, null, null, null,
-                SORT_ASCENDING);
     }
 
     /**
-     * Return a Cursor over the HR, RR, Activity, and PA items in the database
-     * for a given start and end times.
+     * Executes a DB_INSERT_HRV statement for a period. The statistics are
+     * bound as null if they are NaN.
      *
-     * @param start The start time.
-     * @param end   The end time.
-     * @return Cursor over items.
+     * @return Whether successful.
+     * @see #createHrv(long, long, int, double, double, double, double)
      */
-    public Cursor fetchAllHrRrActPaDateDataForDates(long start, long end) {
-        if (mDb == null) {
-            return null;
+    private static boolean insertHrv(SQLiteStatement statement,
+                                     long startDate, long date,
+                                     int beatCount, double meanNn,
+                                     double sdnn, double rmssd,
+                                     double pnn50) {
+        statement.bindLong(1, startDate);
+        statement.bindLong(2, date);
+        statement.bindLong(3, beatCount);
+        bindDouble(statement, 4, meanNn);
+        bindDouble(statement, 5, sdnn);
+        bindDouble(statement, 6, rmssd);
+        bindDouble(statement, 7, pnn50);
+        try {
+            return statement.executeInsert() >= 0;
+        } finally {
+            statement.clearBindings();
+        }
+    }
+
+    /**
+     * Recomputes the HRV table rows for a session from the data table. The
+     * rows are read in date order a page at a time, and a row with the same
+     * date as the previous one is skipped, since it repeats the last Heart
+     * Rate Measurement when the custom values arrive. Should be called
+     * inside a transaction. Uses its own statement rather than the cached
+     * one, since mInsertLock must not be taken inside a transaction.
+     *
+     * @param startDate The start date.
+     * @return The number of periods.
+     */
+    private int rebuildHrv(final long startDate) {
+        mDb.delete(DB_HRV_TABLE, COL_START_DATE + "=" + startDate, null);
+        final int[] nPeriods = {0};
+        final SQLiteStatement statement = mDb.compileStatement(DB_INSERT_HRV);
+        HrvRecorder recorder = new HrvRecorder(0, (start, engine) -> {
+            if (insertHrv(statement, startDate, start, engine.getCount(),
+                    engine.getMeanRr(), engine.getSdnn(), engine.getRmssd(),
+                    engine.getPnn50())) {
+                nPeriods[0]++;
+            }
+        });
+        long lastDate = Long.MIN_VALUE;
+        long lastId = 0;
+        long date;
+        int count;
+        int[] rr;
+        try {
+            while (true) {
+                count = 0;
+                try (Cursor cursor = fetchHrRrActPaDatePageForStartDate(
+                        startDate, lastDate, lastId, PLOT_PAGE_SIZE)) {
+                    int indexId = cursor.getColumnIndex(COL_ID);
+                    int indexDate = cursor.getColumnIndex(COL_DATE);
+                    int indexRr = cursor.getColumnIndex(COL_RR);
+                    while (cursor.moveToNext()) {
+                        count++;
+                        date = cursor.getLong(indexDate);
+                        lastId = cursor.getLong(indexId);
+                        if (date == lastDate) {
+                            continue;
+                        }
+                        lastDate = date;
+                        rr = getRr(cursor, indexRr);
+                        recorder.add(date, rr, rr == null ? 0 : rr.length);
+                    }
+                }
+                if (count < PLOT_PAGE_SIZE) {
+                    break;
+                }
+            }
+            recorder.finish();
+        } finally {
+            statement.close();
+        }
+        return nPeriods[0];
+    }
+
+    /**
+     * Return a Cursor over the HRV table rows for a session, with the start
+     * of the period, the number of beats, and the mean NN, SDNN, RMSSD, and
+     * pNN50.
+     *
+     * @param startDate The start date.
+     * @return Cursor over items.
+     */
+    public Cursor fetchHrvForStartDate(long startDate) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_HRV_TABLE, new String[]{COL_DATE,
+                        COL_BEAT_COUNT, COL_MEAN_NN, COL_SDNN, COL_RMSSD,
+                        COL_PNN50}, COL_START_DATE + "=" + startDate, null,
+                null, null, SORT_ASCENDING);
+    }
+
+    /**
+     * Binds a double or null if it is NaN.
+     *
+     * @param statement The statement.
+     * @param index     The index of the parameter.
+     * @param value     The value.
+     */
+    private static void bindDouble(SQLiteStatement statement, int index,
+                                   double value) {
+        if (Double.isNaN(value)) {
+            statement.bindNull(index);
+        } else {
+            statement.bindDouble(index, value);
+        }
+    }
+
+    /**
+     * Gets the coarsest rollup resolution that still gives at least the
+     * given number of points between the start and end.
+     *
+     * @param start  The start time.
+     * @param end    The end time.
+     * @param points The number of points needed, typically the width in
+     *               pixels.
+     * @return The resolution or 0 if none is fine enough and the data
+     * table should be used.
+     */
+    public static long getRollupResolution(long start, long end,
+                                           int points) {
+        long resolution;
+        for (int i = ROLLUP_RESOLUTIONS.length - 1; i >= 0; i--) {
+            resolution = ROLLUP_RESOLUTIONS[i];
+            if ((end - start) / resolution >= points) {
+                return resolution;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Return a Cursor over the rollups for the given resolution for the
+     * buckets containing the given start and end times. The columns are the
+     * bucket start date and the minimum, maximum, mean, and count of the
+     * valid HR, activity, and peak acceleration values.
+     *
+     * @param resolution The resolution, one of the ROLLUP_RESOLUTIONS.
+     * @param start      The start time.
+     * @param end        The end time.
+     * @return Cursor over items.
+     * @see #getRollupResolution(long, long, int)
+     */
+    public Cursor fetchRollupsForDates(long resolution, long start,
+                                       long end) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_ROLLUPS_TABLE, new String[]{COL_DATE,
+                        COL_HR_MIN, COL_HR_MAX, meanSql(COL_HR_SUM,
+                        COL_HR_COUNT, COL_HR_MEAN), COL_HR_COUNT,
+                        COL_ACT_MIN, COL_ACT_MAX, meanSql(COL_ACT_SUM,
+                        COL_ACT_COUNT, COL_ACT_MEAN), COL_ACT_COUNT,
+                        COL_PA_MIN, COL_PA_MAX, meanSql(COL_PA_SUM,
+                        COL_PA_COUNT, COL_PA_MEAN), COL_PA_COUNT},
+                COL_RESOLUTION + "=" + resolution + " AND " + COL_DATE + ">="
+                        + (start - start % resolution) + " AND " + COL_DATE
+                        + "<=" + end, null, null, null, SORT_ASCENDING);
+    }
+
+    /**
+     * Gets the SQL for the minimum, maximum, sum, and count of the valid
+     * values of a data table column.
+     *
+     * @param col The column.
+     * @return The SQL.
+     */
+    private static String computeStatsSql(String col) {
+        String valid = "CASE WHEN " + col + " >= 0 THEN " + col + " END";
+        return "MIN(" + valid + "), MAX(" + valid + "), IFNULL(SUM(" + valid
+                + "), 0), COUNT(" + valid + ")";
+    }
+
+    /**
+     * Gets the SQL for the SET clauses that add bound statistics to the
+     * rollups table columns for one value.
+     *
+     * @param min   The minimum column.
+     * @param max   The maximum column.
+     * @param sum   The sum column.
+     * @param count The count column.
+     * @param index The index of the first of the four parameters.
+     * @return The SQL.
+     */
+    private static String updateStatsSql(String min, String max, String sum,
+                                         String count, int index) {
+        String pMin = "?" + index;
+        String pMax = "?" + (index + 1);
+        return min + " = MIN(IFNULL(" + min + ", " + pMin + "), IFNULL("
+                + pMin + ", " + min + ")), " + max + " = MAX(IFNULL(" + max
+                + ", " + pMax + "), IFNULL(" + pMax + ", " + max + ")), "
+                + sum + " = " + sum + " + ?" + (index + 2) + ", " + count
+                + " = " + count + " + ?" + (index + 3);
+    }
+
+    private static String meanSql(String sum, String count, String as) {
+        return "CASE WHEN " + count + " > 0 THEN CAST(" + sum + " AS REAL) / "
+                + count + " END AS " + as;
+    }
+
+    /**
+     * Gets the date and start date for the row with the given id.
+     *
+     * @param rowId The row id.
+     * @return The date and start date or null if there is no such row.
+     */
+    private long[] getDatesForRow(long rowId) {
+        try (Cursor cursor = mDb.query(DB_DATA_TABLE,
+                new String[]{COL_DATE, COL_START_DATE}, COL_ID + "=" + rowId,
+                null, null, null, null)) {
+            return cursor.moveToFirst()
+                    ? new long[]{cursor.getLong(0), cursor.getLong(1)}
+                    : null;
+        }
+    }
+
+    /**
+     * Queues a session for the backfill, so its HRV is recomputed after its
+     * data has been changed.
+     *
+     * @param startDate The start date.
+     */
+    private void queueBackfill(long startDate) {
+        mDb.execSQL("INSERT OR IGNORE INTO " + DB_ROLLUP_BACKFILL_TABLE
+                + " VALUES (" + startDate + ")");
+    }
+
+    /**
+     * Gets a reusable array for packing the given number of RR values. Must
+     * be called with mInsertLock held.
+     *
+     * @param count The number of values.
+     * @return The array.
+     */
+    private byte[] getRrBytes(int count) {
+        if (count >= mRrBytes.length) {
+            byte[][] newRrBytes = new byte[2 * count][];
+            System.arraycopy(mRrBytes, 0, newRrBytes, 0, mRrBytes.length);
+            mRrBytes = newRrBytes;
+        }
+        byte[] bytes = mRrBytes[count];
+        if (bytes == null) {
+            bytes = new byte[2 * count];
+            mRrBytes[count] = bytes;
+        }
+        return bytes;
+    }
+
+    /**
+     * Delete all the data and recreate the table. The archived sessions are
+     * kept, since their data is not in the data table and could not be
+     * restored with it. Their archives and their sessions and HRV table
+     * rows stay, and they are queued for the backfill to recompute their
+     * rollups.
+     */
+    public void recreateDataTable() {
+        String notArchived = COL_START_DATE + " NOT IN (SELECT "
+                + COL_START_DATE + " FROM " + DB_ARCHIVES_TABLE + ")";
+        mDb.beginTransaction();
+        try {
+            mDb.execSQL("DROP TABLE IF EXISTS " + DB_DATA_TABLE);
+            mDb.execSQL(DB_CREATE_DATA_TABLE);
+            createIndexes(mDb);
+            mDb.execSQL("DROP TABLE IF EXISTS " + DB_ROLLUPS_TABLE);
+            mDb.execSQL(DB_CREATE_ROLLUPS_TABLE);
+            mDb.delete(DB_SESSIONS_TABLE, notArchived, null);
+            mDb.delete(DB_HRV_TABLE, notArchived, null);
+            mDb.delete(DB_ROLLUP_BACKFILL_TABLE, null, null);
+            // The sessions left are the archived ones
+            mDb.execSQL(DB_QUEUE_ROLLUP_BACKFILL);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+    }
+
+    /**
+     * Creates the indexes on the data table if they do not exist.
+     *
+     * @param db The database.
+     */
+    private static void createIndexes(SQLiteDatabase db) {
+        db.execSQL(DB_CREATE_START_DATE_INDEX);
+        db.execSQL(DB_CREATE_DATE_INDEX);
+    }
+
+    /**
+     * Return a Cursor over the list of all items in the database.
+     *
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllData(String filter) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_DATA_TABLE, new String[]{COL_ID, COL_DATE,
+                        COL_START_DATE, COL_HR, COL_RR, COL_ACT, COL_PA},
+				filter,
+                null, null, null, SORT_ASCENDING);
+    }
+
+    /**
+     * Return a Cursor over one page of all the items in the database. The
+     * pages are ordered by date and id. Pass the date and id of the last
+     * row of the previous page to get the next one.
+     *
+     * @param afterDate The date of the last row of the previous page or
+     *                  Long.MIN_VALUE for the first page.
+     * @param afterId   The id of the last row of the previous page.
+     * @param limit     The maximum number of rows.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllDataPage(long afterDate, long afterId, int limit) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_DATA_TABLE, new String[]{COL_ID, COL_DATE,
+                        COL_START_DATE, COL_HR, COL_RR, COL_ACT, COL_PA},
+                COL_DATE + ">" + afterDate + " OR (" + COL_DATE + "="
+                        + afterDate + " AND " + COL_ID + ">" + afterId + ")",
+                null, null, null, SORT_ASCENDING + ", " + COL_ID + " ASC",
+                Integer.toString(limit));
+    }
+
+    /**
+     * Delete the data with the given rowId.
+     *
+     * @param rowId id of data to delete
+     * @return true if deleted, false otherwise.
+     */
+    public boolean deleteData(long rowId) {
+        boolean res;
+        mDb.beginTransaction();
+        try {
+            long[] dates = getDatesForRow(rowId);
+            res = mDb.delete(DB_DATA_TABLE, COL_ID + "=" + rowId, null) > 0;
+            if (res && dates != null) {
+                rebuildSession(mDb, dates[1]);
+                rebuildRollups(dates[0], dates[0]);
+                queueBackfill(dates[1]);
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return res;
+    }
+
+    /**
+     * Return a Cursor positioned at the data that matches the given rowId
+     *
+     * @param rowId id of entry to retrieve.
+     * @return Cursor positioned to matching entry, if found.
+     * @throws SQLException if entry could not be found/retrieved.
+     */
+    public Cursor fetchData(long rowId) throws SQLException {
+        Cursor mCursor = mDb.query(true, DB_DATA_TABLE, new String[]{COL_ID,
+                COL_DATE, COL_START_DATE, COL_HR, COL_RR}, COL_ID + "="
+                + rowId, null, null, null, null, null);
+        if (mCursor != null) {
+            mCursor.moveToFirst();
+        }
+        return mCursor;
+    }
+
+    /**
+     * Update the data using the details provided. The data to be updated is
+     * specified using the rowId, and it is altered to use the values passed
+     * in.
+     *
+     * @param rowId     The row id.
+     * @param date      The date.
+     * @param startDate The start date.
+     * @param hr        The HR.
+     * @param rr        The RR values or null if invalid.
+     * @param activity  The activity.
+     * @param pa        The peak acceleration.
+     * @return Whether successful.
+     */
+    public boolean updateData(long rowId, long date, long startDate, int hr,
+                              int[] rr, int activity, int pa) {
+        ContentValues values = new ContentValues();
+        values.put(COL_DATE, date);
+        values.put(COL_START_DATE, startDate);
+        values.put(COL_HR, hr);
+        values.put(COL_RR, RrCodec.encode(rr));
+        values.put(COL_ACT, activity);
+        values.put(COL_PA, pa);
+
+        boolean res;
+        mDb.beginTransaction();
+        try {
+            long[] oldDates = getDatesForRow(rowId);
+            res = mDb.update(DB_DATA_TABLE, values, COL_ID + "=" + rowId,
+                    null) > 0;
+            if (res) {
+                rebuildSession(mDb, startDate);
+                rebuildRollups(date, date);
+                queueBackfill(startDate);
+                if (oldDates != null && oldDates[1] != startDate) {
+                    rebuildSession(mDb, oldDates[1]);
+                    queueBackfill(oldDates[1]);
+                }
+                if (oldDates != null && oldDates[0] != date) {
+                    rebuildRollups(oldDates[0], oldDates[0]);
+                }
+            }
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        return res;
+    }
+
+    /**
+     * Gets the decoded RR values from the RR column of a Cursor returned by
+     * one of the fetch methods.
+     *
+     * @param cursor The cursor, positioned at the row.
+     * @param index  The index of the RR column.
+     * @return The RR values or null if they are invalid.
+     */
+    public static int[] getRr(Cursor cursor, int index) {
+        if (index < 0 || cursor.isNull(index)) {
+            return null;
+        }
+        return RrCodec.decode(cursor.getBlob(index));
+    }
+
+    /**
+     * Return a Cursor over the sessions table, with the start and end times,
+     * sample count, and HR statistics, sorted by start time in reverse
+     * order.
+     *
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllSessionStartEndData() {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_SESSIONS_TABLE, new String[]{COL_START_DATE,
+                        COL_END_DATE, COL_SAMPLE_COUNT, COL_HR_MIN, COL_HR_MAX,
+                        COL_HR_SUM, COL_HR_COUNT}, null, null, null, null,
+                COL_START_DATE + " DESC");
+    }
+
+    /**
+     * Gets the end date of a session from the sessions table.
+     *
+     * @param startDate The start date.
+     * @return The end date or INVALID_DATE if there is no such session.
+     */
+    public long getSessionEndDate(long startDate) {
+        if (mDb == null) {
+            return INVALID_DATE;
+        }
+        try (Cursor cursor = mDb.query(DB_SESSIONS_TABLE,
+                new String[]{COL_END_DATE}, COL_START_DATE + "="
+                        + startDate, null, null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getLong(0) : INVALID_DATE;
+        }
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Get data for start date only (ForStartDate) ////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Deletes all data in the database for the interval corresponding to the
+     * given the start date.
+     *
+     * @param start The start date.
+     * @return Whether successful.
+     */
+    public boolean deleteAllDataForStartDate(long start) {
+        boolean res;
+        String archive;
+        mDb.beginTransaction();
+        try {
+            archive = getArchiveFileName(start);
+            res = deleteSessionRows(start, archive);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
+        }
+        if (archive != null) {
+            deleteArchiveFile(start, archive);
+        }
+        return res;
+    }
+
+    /**
+     * Deletes the rows for a start date from all the tables and recomputes
+     * the rollups for its range. Must be called in a transaction. The
+     * archive file, if any, is not deleted, so it is still there if the
+     * transaction is rolled back.
+     *
+     * @param start   The start date.
+     * @param archive The archive file name for the start date or null if it
+     *                is not archived.
+     * @return Whether there was anything to delete.
+     */
+    private boolean deleteSessionRows(long start, String archive) {
+        long[] range = getSessionRange(start);
+        if (archive != null) {
+            // The data is not in the data table, use the sessions table
+            range = getArchivedSessionRange(start);
+            mDb.delete(DB_ARCHIVES_TABLE, COL_START_DATE + "=" + start,
+                    null);
+        }
+        boolean res = mDb.delete(DB_DATA_TABLE,
+                COL_START_DATE + "=" + start, null) > 0 || archive != null;
+        mDb.delete(DB_SESSIONS_TABLE, COL_START_DATE + "=" + start, null);
+        mDb.delete(DB_HRV_TABLE, COL_START_DATE + "=" + start, null);
+        if (range != null) {
+            rebuildRollups(range[0], range[1]);
+        }
+        return res;
+    }
+
+    /**
+     * Closes the reader for an archive and deletes the file. Call after the
+     * transaction that removed it from the archives table has committed.
+     *
+     * @param start   The start date.
+     * @param archive The archive file name.
+     */
+    private void deleteArchiveFile(long start, String archive) {
+        synchronized (mArchiveReaders) {
+            closeArchiveReader(mArchiveReaders.remove(start));
+        }
+        File file = new File(getArchiveDir(), archive);
+        if (!file.delete()) {
+            Log.d(TAG, "Could not delete " + file.getPath());
+        }
+    }
+
+    /**
+     * Return a Cursor over the HR items in the database having the given the
+     * start date.
+     *
+     * @param date The start date.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrDateDataForStartDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        String archive = getArchiveFileName(date);
+        if (archive != null) {
+            return fetchArchivePage(date, archive, new String[]{COL_DATE,
+                    COL_HR}, Long.MIN_VALUE, 0, Integer.MAX_VALUE);
+        }
+        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_HR},
+                COL_START_DATE + "=" + date, null, null, null,
+                SORT_ASCENDING);
+    }
+
+    /**
+     * Return a Cursor over the HR, RR, Activity, and PA items in the database
+     * having the given the start date
+     *
+     * @param date The date.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrRrActPaDateDataForStartDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        String archive = getArchiveFileName(date);
+        if (archive != null) {
+            return fetchArchivePage(date, archive, new String[]{COL_DATE,
+                            COL_HR, COL_RR, COL_ACT, COL_PA}, Long.MIN_VALUE,
+                    0, Integer.MAX_VALUE);
         }
         return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_HR,
                         COL_RR, COL_ACT, COL_PA},
+                COL_START_DATE + "=" + date, null, null, null,
+                SORT_ASCENDING);
+    }
+
+    /**
+     * Return a Cursor over one page of the HR items in the database having
+     * the given the start date. The pages are ordered by date and id. Pass
+     * the date and id of the last row of the previous page to get the next
+     * one.
+     *
+     * @param date      The start date.
+     * @param afterDate The date of the last row of the previous page or
+     *                  Long.MIN_VALUE for the first page.
+     * @param afterId   The id of the last row of the previous page.
+     * @param limit     The maximum number of rows.
+     * @return Cursor over items.
+     */
+    public Cursor fetchHrDatePageForStartDate(long date, long afterDate,
+                                              long afterId, int limit) {
+        if (mDb == null) {
+            return null;
+        }
+        String archive = getArchiveFileName(date);
+        if (archive != null) {
+            return fetchArchivePage(date, archive, new String[]{COL_ID,
+                    COL_DATE, COL_HR}, afterDate, afterId, limit);
+        }
+        return mDb.query(DB_DATA_TABLE, new String[]{COL_ID, COL_DATE,
+                        COL_HR},
+                COL_START_DATE + "=" + date + " AND (" + COL_DATE + ">"
+                        + afterDate + " OR (" + COL_DATE + "=" + afterDate
+                        + " AND " + COL_ID + ">" + afterId + "))", null, null,
+                null, SORT_ASCENDING + ", " + COL_ID + " ASC",
+                Integer.toString(limit));
+    }
+
+    /**
+     * Return a Cursor over one page of the HR, RR, Activity, and PA items in
+     * the database having the given the start date. The pages are ordered
+     * by date and id. Pass the date and id of the last row of the previous
+     * page to get the next one.
+     *
+     * @param date      The start date.
+     * @param afterDate The date of the last row of the previous page or
+     *                  Long.MIN_VALUE for the first page.
+     * @param afterId   The id of the last row of the previous page.
+     * @param limit     The maximum number of rows.
+     * @return Cursor over items.
+     */
+    public Cursor fetchHrRrActPaDatePageForStartDate(long date,
+                                                     long afterDate,
+                                                     long afterId,
+                                                     int limit) {
+        if (mDb == null) {
+            return null;
+        }
+        String archive = getArchiveFileName(date);
+        if (archive != null) {
+            return fetchArchivePage(date, archive, new String[]{COL_ID,
+                            COL_DATE, COL_HR, COL_RR, COL_ACT, COL_PA},
+                    afterDate, afterId, limit);
+        }
+        return fetchHrRrActPaDatePage(COL_START_DATE + "=" + date,
+                afterDate, afterId, limit);
+    }
+
+    /**
+     * Return a Cursor over one page of all the items in the database having
+     * the given start date, with all the columns, whether the session is
+     * archived or not. The pages are ordered by date and id. Pass the date
+     * and id of the last row of the previous page to get the next one.
+     *
+     * @param date      The start date.
+     * @param afterDate The date of the last row of the previous page or
+     *                  Long.MIN_VALUE for the first page.
+     * @param afterId   The id of the last row of the previous page.
+     * @param limit     The maximum number of rows.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllDataPageForStartDate(long date, long afterDate,
+                                               long afterId, int limit) {
+        if (mDb == null) {
+            return null;
+        }
+        String[] columns = {COL_ID, COL_DATE, COL_START_DATE, COL_HR, COL_RR,
+                COL_ACT, COL_PA};
+        String archive = getArchiveFileName(date);
+        if (archive != null) {
+            return fetchArchivePage(date, archive, columns, afterDate,
+                    afterId, limit);
+        }
+        return mDb.query(DB_DATA_TABLE, columns,
+                COL_START_DATE + "=" + date + " AND (" + COL_DATE + ">"
+                        + afterDate + " OR (" + COL_DATE + "=" + afterDate
+                        + " AND " + COL_ID + ">" + afterId + "))", null, null,
+                null, SORT_ASCENDING + ", " + COL_ID + " ASC",
+                Integer.toString(limit));
+    }
+
+    /**
+     * Return a Cursor over one page of the items in the database that
+     * satisfy the given condition and come after the given date and id in
+     * date order.
+     *
+     * @param where     The condition.
+     * @param afterDate The date of the last row of the previous page.
+     * @param afterId   The id of the last row of the previous page.
+     * @param limit     The maximum number of rows.
+     * @return Cursor over items.
+     */
+    private Cursor fetchHrRrActPaDatePage(String where, long afterDate,
+                                          long afterId, int limit) {
+        if (mDb == null) {
+            return null;
+        }
+        // Keyset paging, the indexes are ordered by date and then rowid
+        return mDb.query(DB_DATA_TABLE, new String[]{COL_ID, COL_DATE,
+                        COL_HR, COL_RR, COL_ACT, COL_PA},
+                where + " AND (" + COL_DATE + ">" + afterDate + " OR ("
+                        + COL_DATE + "=" + afterDate + " AND " + COL_ID + ">"
+                        + afterId + "))", null, null, null,
+                SORT_ASCENDING + ", " + COL_ID + " ASC",
+                Integer.toString(limit));
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Get data for start date through end date (ForDate) /////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Return a Cursor over the HR items in the database for a given start and
+     * end times.
+     *
+     * @param start The start time.
+     * @param end   The end time.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrDateDataForDates(long start, long end) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_HR},
                 COL_DATE + ">=" + start + " AND " + COL_DATE
                         + "<=" + end, null, null, null,
                 SORT_ASCENDING);
     }
 
-    ///////////////////////////////////////////////////////////////////////////
-    // Get data for start date and later (StartingAtDate) /////////////////////
-    ///////////////////////////////////////////////////////////////////////////
+    /**
+     * Return a Cursor over the HR and RR items in the database for a given
+     * start and end times.
+     *
+     * @param start The start time.
+     * @param end   The end time.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrRrDateDataForDates(long start, long end) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_DATA_TABLE,
+                new String[]{COL_DATE, COL_HR, COL_RR}, COL_DATE + ">="
+                        + start + " AND " + COL_DATE + "<="
+                        + end, null, null, null, SORT_ASCENDING);
+    }
+
+    /**
+     * Return a Cursor over the Activity and PA items in the database for a
+     * given start and end times.
+     *
+     * @param start The start time.
+     * @param end   The end time.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllActPaDateDataForDates(long start, long end) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_ACT,
+                        COL_PA}, COL_DATE + ">=" + start + " AND "
+                        + COL_DATE + "<=" + end, null, null, null,
+                SORT_ASCENDING);
+    }
+
+    /**
+     * Return a Cursor over the HR, RR, Activity, and PA items in the database
+     * for a given start and end times.
+     *
+     * @param start The start time.
+     * @param end   The end time.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrRrActPaDateDataForDates(long start, long end) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_HR,
+                        COL_RR, COL_ACT, COL_PA},
+                COL_DATE + ">=" + start + " AND " + COL_DATE
+                        + "<=" + end, null, null, null,
+                SORT_ASCENDING);
+    }
+
+    ///////////////////////////////////////////////////////////////////////////
+    // Get data for start date and later (StartingAtDate) /////////////////////
+    ///////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Return a Cursor over the list of all items in the database for a given
+     * time and later.
+     *
+     * @param date The time.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllDataStartingAtDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_DATA_TABLE, new String[]{COL_ID, COL_DATE,
+                        COL_START_DATE, COL_HR, COL_RR},
+                COL_DATE + ">=" + date, null, null, null,
+                SORT_ASCENDING);
+    }
+
+    /**
+     * Return a Cursor over the HR and RR items in the database for a given time
+     * and later.
+     *
+     * @param date The time.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrRrDateDataStartingAtDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb
+                .query(DB_DATA_TABLE,
+                        new String[]{COL_DATE, COL_HR, COL_RR}, COL_DATE
+                                + ">=" + date, null, null, null,
+                        SORT_ASCENDING);
+    }
+
+    /**
+     * Return a Cursor over the Activity and PA items in the database for a
+     * given time and later.
+     *
+     * @param date The date.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllActPaDateDataStartingAtDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_ACT,
+                        COL_PA}, COL_DATE + ">=" + date, null, null,
+                null, SORT_ASCENDING);
+    }
+
+    /**
+     * Return a Cursor over the HR, RR, Activity, and PA items in the database
+     * for a given time and later.
+     *
+     * @param date The dtae.
+     * @return Cursor over items.
+     */
+    public Cursor fetchAllHrRrActPaDateDataStartingAtDate(long date) {
+        if (mDb == null) {
+            return null;
+        }
+        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_HR,
+                        COL_RR, COL_ACT, COL_PA},
+                COL_DATE + ">=" + date, null, null, null,
+                SORT_ASCENDING);
+    }
+
+    /**
+     * Return a Cursor over one page of the HR, RR, Activity, and PA items in
+     * the database for a given time and later. The pages are ordered by
+     * date and id. Pass the date and id of the last row of the previous
+     * page to get the next one.
+     *
+     * @param date      The date.
+     * @param afterDate The date of the last row of the previous page or
+     *                  Long.MIN_VALUE for the first page.
+     * @param afterId   The id of the last row of the previous page.
+     * @param limit     The maximum number of rows.
+     * @return Cursor over items.
+     */
+    public Cursor fetchHrRrActPaDatePageStartingAtDate(long date,
+                                                       long afterDate,
+                                                       long afterId,
+                                                       int limit) {
+        return fetchHrRrActPaDatePage(COL_DATE + ">=" + date, afterDate,
+                afterId, limit);
+    }
+
+    /**
+     * Clears the working database, attaches the new one, copies all data,
+     * detaches the old one. The HRV rows are copied if the new one has
+     * them. The rollups are computed later by backfill, which also
+     * recomputes the HRV of the sessions in the data table.<br>
+     * <br>
+     * If the new one has an archives table, its archived sessions replace
+     * the current ones. Their archive files must be in the archive
+     * directory or in the directory of the new one, from which they are
+     * copied, and if any are not, nothing is changed. Then the archives
+     * that are no longer used are deleted. If it has no archives table, the
+     * current archived sessions are kept, as for recreateDataTable.
+     *
+     * @param newFileName Path to the new database.
+     * @param alias       Name for the new database or null to use "SourceDb"
+     * @throws SQLException If an archive of the new one could not be found
+     *                      or copied, or the copy failed.
+     */
+    public void replaceDatabase(String newFileName, String alias) {
+        if (alias == null) alias = "TEMP_DB";
+        // Attach the new database
+        mDb.execSQL("ATTACH DATABASE '" + newFileName
+                + "' AS " + alias);
+        boolean hasArchives;
+        try {
+            hasArchives = hasTable(alias, DB_ARCHIVES_TABLE);
+            if (hasArchives) {
+                // Before anything is changed
+                restoreArchiveFiles(alias,
+                        new File(newFileName).getParentFile());
+            }
+            // Clear the working database
+            recreateDataTable();
+            if (hasArchives) {
+                replaceArchives(alias);
+            }
+            // The archived sessions are not copied from the data table
+            String notArchived = COL_START_DATE + " NOT IN (SELECT "
+                    + COL_START_DATE + " FROM main." + DB_ARCHIVES_TABLE
+                    + ")";
+            // Copy the data, converting text RR values if it is an old
+            // version
+            long version = DatabaseUtils.longForQuery(mDb,
+                    "PRAGMA " + alias + ".user_version", null);
+            if (version < 2) {
+                mDb.beginTransaction();
+                try {
+                    copyTextRrData(mDb, alias + "." + DB_DATA_TABLE,
+                            notArchived, true);
+                    mDb.setTransactionSuccessful();
+                } finally {
+                    mDb.endTransaction();
+                }
+            } else {
+                mDb.execSQL("INSERT INTO " + DB_DATA_TABLE + " SELECT * FROM "
+                        + alias + "." + DB_DATA_TABLE + " WHERE "
+                        + notArchived);
+            }
+            // The HRV of the archived sessions comes from where they did
+            if (hasTable(alias, DB_HRV_TABLE)) {
+                mDb.execSQL(copyHrvSql(alias,
+                        hasArchives ? null : notArchived));
+            }
+            rebuildSessions();
+        } finally {
+            // Detach the new database
+            mDb.execSQL("DETACH DATABASE " + alias);
+        }
+        if (hasArchives) {
+            deleteUnusedArchiveFiles();
+        }
+    }
+
+    /**
+     * Makes sure there is a file in the archive directory for each of the
+     * archived sessions of an attached database. The ones that are not
+     * there are copied from the given directory. Does not change the
+     * database.
+     *
+     * @param alias     The alias of the attached database.
+     * @param sourceDir The directory to look in for the missing ones.
+     * @throws SQLException If one could not be found or copied.
+     */
+    private void restoreArchiveFiles(String alias, File sourceDir) {
+        File dir = getArchiveDir();
+        try (Cursor cursor = mDb.rawQuery("SELECT " + COL_FILE_NAME
+                + " FROM " + alias + "." + DB_ARCHIVES_TABLE, null)) {
+            String fileName;
+            File file, source;
+            while (cursor.moveToNext()) {
+                fileName = cursor.getString(0);
+                file = new File(dir, fileName);
+                if (file.isFile()) {
+                    continue;
+                }
+                source = new File(sourceDir, fileName);
+                if (!source.isFile()) {
+                    throw new SQLException("The archive " + fileName
+                            + " of an archived session in the new database"
+                            + " was not found in " + dir.getPath() + " or "
+                            + sourceDir.getPath()
+                            + ", so the session would be lost");
+                }
+                if (!dir.exists() && !dir.mkdirs()) {
+                    throw new SQLException("Could not create "
+                            + dir.getPath());
+                }
+                copyArchiveFile(source, file);
+            }
+        }
+    }
+
+    /**
+     * Copies a session archive, through a temporary file, so there is never
+     * a partial archive with its name.
+     *
+     * @param source The archive.
+     * @param file   The file to copy it to.
+     * @throws SQLException If it could not be copied.
+     */
+    private static void copyArchiveFile(File source, File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (FileChannel in = new FileInputStream(source).getChannel();
+                 FileChannel out = new FileOutputStream(temp).getChannel()) {
+                long size = in.size();
+                long position = 0;
+                while (position < size) {
+                    position += in.transferTo(position, size - position,
+                            out);
+                }
+                out.force(true);
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not rename " + temp.getPath());
+            }
+        } catch (IOException ex) {
+            if (temp.exists() && !temp.delete()) {
+                Log.d(TAG, "Could not delete " + temp.getPath());
+            }
+            throw new SQLException("Error copying the archive "
+                    + source.getPath(), ex);
+        }
+    }
 
     /**
-     * Return a Cursor over the list of all items in the database for a given
-     * time and later.
+     * Replaces the archived sessions with those of an attached database.
+     * Its archives table rows and the sessions table rows for them are
+     * copied, and they are queued for the backfill to recompute their
+     * rollups. Their HRV rows are copied with the others. All the other
+     * sessions, HRV, and backfill table rows are deleted.
      *
-     * @param date The time.
-     * @return Cursor over items.
+     * @param alias The alias of the attached database.
      */
-    public Cursor fetchAllDataStartingAtDate(long date) {
-        if (mDb == null) {
-            return null;
+    private void replaceArchives(String alias) {
+        String archiveColumns = COL_START_DATE + ", " + COL_FILE_NAME + ", "
+                + COL_SAMPLE_COUNT + ", " + COL_FILE_SIZE;
+        String sessionColumns = COL_START_DATE + ", " + COL_END_DATE + ", "
+                + COL_SAMPLE_COUNT + ", " + COL_HR_MIN + ", " + COL_HR_MAX
+                + ", " + COL_HR_SUM + ", " + COL_HR_COUNT;
+        mDb.beginTransaction();
+        try {
+            mDb.delete(DB_ARCHIVES_TABLE, null, null);
+            mDb.delete(DB_SESSIONS_TABLE, null, null);
+            mDb.delete(DB_HRV_TABLE, null, null);
+            mDb.delete(DB_ROLLUP_BACKFILL_TABLE, null, null);
+            mDb.execSQL("INSERT INTO main." + DB_ARCHIVES_TABLE + " ("
+                    + archiveColumns + ") SELECT " + archiveColumns
+                    + " FROM " + alias + "." + DB_ARCHIVES_TABLE);
+            mDb.execSQL("INSERT INTO main." + DB_SESSIONS_TABLE + " ("
+                    + sessionColumns + ") SELECT " + sessionColumns
+                    + " FROM " + alias + "." + DB_SESSIONS_TABLE + " WHERE "
+                    + COL_START_DATE + " IN (SELECT " + COL_START_DATE
+                    + " FROM main." + DB_ARCHIVES_TABLE + ")");
+            mDb.execSQL(DB_QUEUE_ROLLUP_BACKFILL);
+            mDb.setTransactionSuccessful();
+        } finally {
+            mDb.endTransaction();
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_ID, COL_DATE,
-                        COL_START_DATE, COL_HR, COL_RR},
-                COL_DATE + ">=" + date, null, null, null,
-                SORT_ASCENDING);
     }
 
     /**
-     * Return a Cursor over the HR and RR items in the database for a given time
-     * and later.
+     * Deletes the archives in the archive directory that are not in the
+     * archives table. Files that are being written have another extension
+     * and are not deleted.
+     */
+    private void deleteUnusedArchiveFiles() {
+        closeArchiveReaders();
+        Set<String> used = new HashSet<>();
+        try (Cursor cursor = mDb.query(DB_ARCHIVES_TABLE,
+                new String[]{COL_FILE_NAME}, null, null, null, null,
+                null)) {
+            while (cursor.moveToNext()) {
+                used.add(cursor.getString(0));
+            }
+        }
+        File[] files = getArchiveDir().listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.getName().endsWith(ARCHIVE_EXTENSION)
+                    && !used.contains(file.getName())
+                    && !file.delete()) {
+                Log.d(TAG, "Could not delete " + file.getPath());
+            }
+        }
+    }
+
+    // /////////////////////////////////////////////////////////////////////////
+    // Session archives ///////////////////////////////////////////////////////
+    // /////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Gets the directory holding the archives of the sessions that have
+     * been moved out of the data table.
      *
-     * @param date The time.
-     * @return Cursor over items.
+     * @return The directory.
      */
-    public Cursor fetchAllHrRrDateDataStartingAtDate(long date) {
-        if (mDb == null) {
-            return null;
+    public File getArchiveDir() {
+        return new File(mCtx.getExternalFilesDir(null), ARCHIVE_DIR);
+    }
+
+    /**
+     * Gets the start dates of the archived sessions.
+     *
+     * @return The start dates in increasing order.
+     */
+    public long[] getArchivedStartDates() {
+        try (Cursor cursor = mDb.query(DB_ARCHIVES_TABLE,
+                new String[]{COL_START_DATE}, null, null, null, null,
+                COL_START_DATE + " ASC")) {
+            long[] startDates = new long[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext()) {
+                startDates[i++] = cursor.getLong(0);
+            }
+            return startDates;
         }
-        return mDb
-                .query(DB_DATA_TABLE,
-                        new String[]{COL_DATE, COL_HR, COL_RR}, COL_DATE
-                                + ">=" + date, null, null, null,
-                        SORT_ASCENDING);
     }
 
     /**
-     * Return a Cursor over the Activity and PA items in the database for a
-     * given time and later.
+     * Moves the data of the sessions that ended before the given date out
+     * of the data table into session archives in the archive directory,
+     * oldest first. Each archive is written, synced, and read back before
+     * the session is recorded in the archives table and its rows are
+     * deleted, in one transaction. The sessions, rollups, and HRV table
+     * rows are kept, and the fetch methods for a start date read the
+     * archive instead of the data table, so the move does not show. A
+     * session waiting for the backfill is left until the backfill has been
+     * done. Stops if the adapter is being closed. Intended to be run on a
+     * background thread.
      *
-     * @param date The date.
-     * @return Cursor over items.
+     * @param before The date.
+     * @return The number of sessions archived.
+     * @throws IOException If an archive could not be written.
      */
-    public Cursor fetchAllActPaDateDataStartingAtDate(long date) {
+    public int archiveSessions(long before) throws IOException {
         if (mDb == null) {
-            return null;
+            return 0;
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_ACT,
-                        COL_PA}, COL_DATE + ">=" + date, null, null,
-                null, SORT_ASCENDING);
+        File dir = getArchiveDir();
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir.getPath());
+        }
+        long[] startDates;
+        try (Cursor cursor = mDb.query(DB_SESSIONS_TABLE,
+                new String[]{COL_START_DATE}, COL_END_DATE + "<" + before
+                        + " AND " + COL_START_DATE + " NOT IN (SELECT "
+                        + COL_START_DATE + " FROM " + DB_ARCHIVES_TABLE
+                        + ") AND " + COL_START_DATE + " NOT IN (SELECT "
+                        + COL_START_DATE + " FROM " + DB_ROLLUP_BACKFILL_TABLE
+                        + ")", null, null, null, COL_START_DATE + " ASC")) {
+            startDates = new long[cursor.getCount()];
+            int i = 0;
+            while (cursor.moveToNext()) {
+                startDates[i++] = cursor.getLong(0);
+            }
+        }
+        int nSessions = 0;
+        for (long startDate : startDates) {
+            synchronized (mBackfillLock) {
+                if (mClosing) {
+                    break;
+                }
+                if (archiveSession(startDate, dir)) {
+                    nSessions++;
+                }
+            }
+        }
+        if (nSessions > 0) {
+            Log.d(TAG, "Archived " + nSessions + " sessions");
+        }
+        return nSessions;
     }
 
     /**
-     * Return a Cursor over the HR, RR, Activity, and PA items in the database
-     * for a given time and later.
+     * Moves the data of a session into a session archive.
      *
-     * @param date The dtae.
+     * @param startDate The start date.
+     * @param dir       The archive directory.
+     * @return Whether it was archived. It is not if it has no data or if
+     * rows were added while it was being written.
+     * @throws IOException If the archive could not be written.
+     */
+    private boolean archiveSession(long startDate, File dir)
+            throws IOException {
+        String fileName = startDate + ARCHIVE_EXTENSION;
+        File file = new File(dir, fileName);
+        File temp = new File(dir, fileName + ".tmp");
+        int nRows;
+        try (SessionArchiveWriter out = new SessionArchiveWriter(
+                new FileOutputStream(temp).getChannel(), startDate)) {
+            long afterDate = Long.MIN_VALUE;
+            long afterId = 0;
+            int count;
+            int[] rr;
+            do {
+                count = 0;
+                try (Cursor cursor = fetchHrRrActPaDatePage(COL_START_DATE
+                        + "=" + startDate, afterDate, afterId,
+                        EXPORT_PAGE_SIZE)) {
+                    int indexId = cursor.getColumnIndex(COL_ID);
+                    int indexDate = cursor.getColumnIndex(COL_DATE);
+                    int indexHr = cursor.getColumnIndex(COL_HR);
+                    int indexRr = cursor.getColumnIndex(COL_RR);
+                    int indexAct = cursor.getColumnIndex(COL_ACT);
+                    int indexPa = cursor.getColumnIndex(COL_PA);
+                    while (cursor.moveToNext()) {
+                        count++;
+                        afterId = cursor.getLong(indexId);
+                        afterDate = cursor.getLong(indexDate);
+                        rr = getRr(cursor, indexRr);
+                        out.add(afterDate, cursor.getInt(indexHr), rr,
+                                rr == null ? 0 : rr.length,
+                                cursor.getInt(indexAct),
+                                cursor.getInt(indexPa));
+                    }
+                }
+            } while (count == EXPORT_PAGE_SIZE);
+            nRows = out.getRowCount();
+        }
+        // Make sure it is on disk and reads back before deleting the data
+        try (FileChannel channel =
+                     new RandomAccessFile(temp, "rw").getChannel()) {
+            channel.force(true);
+            SessionArchiveReader reader = new SessionArchiveReader(channel);
+            if (nRows == 0 || reader.getRowCount() != nRows
+                    || !reader.verify()) {
+                nRows = 0;
+            }
+        }
+        if (nRows == 0 || !temp.renameTo(file)) {
+            if (!temp.delete()) {
+                Log.d(TAG, "Could not delete " + temp.getPath());
+            }
+            if (nRows != 0) {
+                throw new IOException("Could not rename " + temp.getPath());
+            }
+            return false;
+        }
+        boolean archived = false;
+        mDb.beginTransaction();
+        try {
+            if (DatabaseUtils.queryNumEntries(mDb, DB_DATA_TABLE,
+                    COL_START_DATE + "=" + startDate) == nRows) {
+                ContentValues values = new ContentValues();
+                values.put(COL_START_DATE, startDate);
+                values.put(COL_FILE_NAME, fileName);
+                values.put(COL_SAMPLE_COUNT, nRows);
+                values.put(COL_FILE_SIZE, file.length());
+                mDb.insertOrThrow(DB_ARCHIVES_TABLE, null, values);
+                mDb.delete(DB_DATA_TABLE, COL_START_DATE + "=" + startDate,
+                        null);
+                mDb.setTransactionSuccessful();
+                archived = true;
+            }
+        } finally {
+            mDb.endTransaction();
+            if (!archived && !file.delete()) {
+                Log.d(TAG, "Could not delete " + file.getPath());
+            }
+        }
+        return archived;
+    }
+
+    /**
+     * Gets the name of the archive file for a session.
+     *
+     * @param startDate The start date.
+     * @return The name or null if the session is not archived.
+     */
+    private String getArchiveFileName(long startDate) {
+        try (Cursor cursor = mDb.query(DB_ARCHIVES_TABLE,
+                new String[]{COL_FILE_NAME}, COL_START_DATE + "="
+                        + startDate, null, null, null, null)) {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        }
+    }
+
+    /**
+     * Gets the range of dates of an archived session from the sessions
+     * table.
+     *
+     * @param startDate The start date.
+     * @return The start and end dates or null if there is no such session.
+     */
+    private long[] getArchivedSessionRange(long startDate) {
+        try (Cursor cursor = mDb.query(DB_SESSIONS_TABLE,
+                new String[]{COL_END_DATE}, COL_START_DATE + "="
+                        + startDate, null, null, null, null)) {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            return new long[]{startDate, cursor.getLong(0)};
+        }
+    }
+
+    /**
+     * Return a Cursor over one page of the rows of an archived session, in
+     * the same way as the queries on the data table. The readers are kept
+     * open and positioned after the last page, so reading the pages in order
+     * only decodes each row once.
+     *
+     * @param startDate The start date.
+     * @param fileName  The name of the archive file.
+     * @param columns   The columns.
+     * @param afterDate The date of the last row of the previous page or
+     *                  Long.MIN_VALUE for the first page.
+     * @param afterId   The id of the last row of the previous page, or
+     *                  Long.MAX_VALUE to start after afterDate.
+     * @param limit     The maximum number of rows.
      * @return Cursor over items.
+     * @throws SQLException If the archive could not be read.
      */
-    public Cursor fetchAllHrRrActPaDateDataStartingAtDate(long date) {
-        if (mDb == null) {
-            return null;
+    private Cursor fetchArchivePage(long startDate, String fileName,
+                                    String[] columns, long afterDate,
+                                    long afterId, int limit) {
+        try {
+            SessionArchiveReader reader = getArchiveReader(startDate,
+                    fileName);
+            DataBatch batch;
+            int first;
+            synchronized (reader) {
+                int nRows = reader.getRowCount();
+                // The id is the index of the row, so one past the last row
+                // means any row after the date, as in the data table
+                if (afterDate == Long.MIN_VALUE) {
+                    reader.seek(0);
+                } else if (afterId >= nRows) {
+                    reader.seekAfterDate(afterDate);
+                } else {
+                    reader.seek((int) Math.max(0, afterId + 1));
+                }
+                first = reader.getRow();
+                batch = new DataBatch(Math.min(limit, nRows - first));
+                reader.read(batch);
+            }
+            return new ArchiveCursor(columns, batch, first);
+        } catch (IOException ex) {
+            throw new SQLException("Error reading the archive " + fileName,
+                    ex);
         }
-        return mDb.query(DB_DATA_TABLE, new String[]{COL_DATE, COL_HR,
-                        COL_RR, COL_ACT, COL_PA},
-                COL_DATE + ">=" + date, null, null, null,
-                SORT_ASCENDING);
     }
 
     /**
-     * Clears the working database, attaches the new one, copies all data,
-     * detaches the old one.
+     * Gets an open reader for a session archive.
      *
-     * @param newFileName Path to the new database.
-     * @param alias       Name for the new database or null to use "SourceDb"
+     * @param startDate The start date.
+     * @param fileName  The name of the archive file.
+     * @return The reader.
+     * @throws IOException If the archive could not be opened.
      */
-    public void replaceDatabase(String newFileName, String alias) {
-        if (alias == null) alias = "TEMP_DB";
-        // Clear the working database
-        recreateDataTable();
-        // Attach the new database
-        mDb.execSQL("ATTACH DATABASE '" + newFileName
-                + "' AS " + alias);
-        // Copy the data
-        mDb.execSQL("INSERT INTO " + DB_DATA_TABLE + " SELECT * FROM "
-                + alias + "." + DB_DATA_TABLE);
-        // Detach the new database
-        mDb.execSQL("DETACH DATABASE " + alias);
+    private SessionArchiveReader getArchiveReader(long startDate,
+                                                  String fileName)
+            throws IOException {
+        synchronized (mArchiveReaders) {
+            SessionArchiveReader reader = mArchiveReaders.get(startDate);
+            if (reader == null) {
+                FileChannel channel = new RandomAccessFile(
+                        new File(getArchiveDir(), fileName), "r")
+                        .getChannel();
+                try {
+                    reader = new SessionArchiveReader(channel);
+                } catch (IOException ex) {
+                    channel.close();
+                    throw ex;
+                }
+                mArchiveReaders.put(startDate, reader);
+            }
+            return reader;
+        }
+    }
+
+    /**
+     * Closes all the open session archives.
+     */
+    private void closeArchiveReaders() {
+        synchronized (mArchiveReaders) {
+            for (SessionArchiveReader reader : mArchiveReaders.values()) {
+                closeArchiveReader(reader);
+            }
+            mArchiveReaders.clear();
+        }
+    }
+
+    /**
+     * Closes a session archive. A reader that is still being used keeps
+     * working, since the mapping stays valid after the channel is closed.
+     *
+     * @param reader The reader, may be null.
+     */
+    private static void closeArchiveReader(SessionArchiveReader reader) {
+        if (reader == null) {
+            return;
+        }
+        try {
+            reader.close();
+        } catch (IOException ex) {
+            Log.d(TAG, "Error closing session archive", ex);
+        }
+    }
+
+    /**
+     * Receives the progress of mergeDatabase.
+     */
+    public interface MergeListener {
+        /**
+         * Called after each session has been copied.
+         *
+         * @param done  The number of sessions copied so far.
+         * @param total The number of sessions to copy.
+         */
+        void onProgress(int done, int total);
+    }
+
+    /**
+     * Copies the sessions in another database whose start dates are not
+     * already in this one, leaving the existing data alone. A session that
+     * is here but has more rows there, as when a backup was taken while it
+     * was being recorded and an incremental backup has the rest, is
+     * replaced. The other database is attached and checked with PRAGMA
+     * integrity_check first, and nothing is copied if that fails. Each
+     * session is copied in its own transaction with new row ids, along
+     * with its HRV rows if the other database has them. Its sessions table
+     * row is computed, and it is queued for the backfill to compute the
+     * rollups and HRV.<br>
+     * <br>
+     * The archived sessions of the other database are not copied, since
+     * their data is in archive files rather than its data table. They are
+     * counted in the log. Use Replace Database to restore them.
+     *
+     * @param newFileName Path to the other database.
+     * @param listener    The listener for the progress or null.
+     * @return The number of sessions copied.
+     * @throws SQLException If the other database is not valid or the copy
+     *                      failed. The sessions copied before the failure
+     *                      are kept.
+     */
+    public int mergeDatabase(String newFileName, MergeListener listener) {
+        String alias = "MERGE_DB";
+        mDb.execSQL("ATTACH DATABASE " + DatabaseUtils.sqlEscapeString(
+                newFileName) + " AS " + alias);
+        try {
+            String check = DatabaseUtils.stringForQuery(mDb,
+                    "PRAGMA " + alias + ".integrity_check(1)", null);
+            if (!"ok".equalsIgnoreCase(check)) {
+                throw new SQLException("Integrity check failed for "
+                        + newFileName + ": " + check);
+            }
+            if (!hasTable(alias, DB_DATA_TABLE)) {
+                throw new SQLException("There is no " + DB_DATA_TABLE
+                        + " table in " + newFileName);
+            }
+            long version = DatabaseUtils.longForQuery(mDb,
+                    "PRAGMA " + alias + ".user_version", null);
+            boolean hasHrv = hasTable(alias, DB_HRV_TABLE);
+            String source = alias + "." + DB_DATA_TABLE;
+            if (hasTable(alias, DB_ARCHIVES_TABLE)) {
+                long nArchived = DatabaseUtils.longForQuery(mDb,
+                        "SELECT COUNT(*) FROM " + alias + "."
+                                + DB_ARCHIVES_TABLE + " WHERE "
+                                + COL_START_DATE + " NOT IN (SELECT "
+                                + COL_START_DATE + " FROM main."
+                                + DB_SESSIONS_TABLE + ")", null);
+                Log.d(TAG, "mergeDatabase: skipped " + nArchived
+                        + " archived sessions of " + newFileName
+                        + " that are not here");
+            }
+            // Find the sessions that are not here or have fewer rows here
+            long[] startDates;
+            boolean[] replace;
+            try (Cursor cursor = mDb.rawQuery("SELECT s." + COL_START_DATE
+                    + ", m." + COL_START_DATE + " FROM (SELECT "
+                    + COL_START_DATE + ", COUNT(*) AS n FROM " + source
+                    + " GROUP BY " + COL_START_DATE + ") AS s LEFT JOIN main."
+                    + DB_SESSIONS_TABLE + " AS m ON m." + COL_START_DATE
+                    + "=s." + COL_START_DATE + " WHERE m." + COL_START_DATE
+                    + " IS NULL OR m." + COL_SAMPLE_COUNT + "<s.n ORDER BY s."
+                    + COL_START_DATE, null)) {
+                startDates = new long[cursor.getCount()];
+                replace = new boolean[startDates.length];
+                int i = 0;
+                while (cursor.moveToNext()) {
+                    replace[i] = !cursor.isNull(1);
+                    startDates[i++] = cursor.getLong(0);
+                }
+            }
+            String where, archive;
+            for (int i = 0; i < startDates.length; i++) {
+                where = COL_START_DATE + "=" + startDates[i];
+                archive = null;
+                mDb.beginTransaction();
+                try {
+                    if (replace[i]) {
+                        archive = getArchiveFileName(startDates[i]);
+                        deleteSessionRows(startDates[i], archive);
+                    }
+                    if (version < 2) {
+                        copyTextRrData(mDb, source, where, false);
+                    } else {
+                        mDb.execSQL("INSERT INTO main." + DB_DATA_TABLE
+                                + " (" + COL_DATE + ", " + COL_START_DATE
+                                + ", " + COL_HR + ", " + COL_RR + ", "
+                                + COL_ACT + ", " + COL_PA + ") SELECT "
+                                + COL_DATE + ", " + COL_START_DATE + ", "
+                                + COL_HR + ", " + COL_RR + ", " + COL_ACT
+                                + ", " + COL_PA + " FROM " + source
+                                + " WHERE " + where + " ORDER BY "
+                                + COL_DATE + ", " + COL_ID);
+                    }
+                    if (hasHrv) {
+                        mDb.execSQL(copyHrvSql(alias, where));
+                    }
+                    mDb.execSQL(DB_COMPUTE_SESSIONS + " WHERE " + where
+                            + " GROUP BY " + COL_START_DATE);
+                    queueBackfill(startDates[i]);
+                    mDb.setTransactionSuccessful();
+                } finally {
+                    mDb.endTransaction();
+                }
+                // Only now that the replacement has been committed
+                if (archive != null) {
+                    deleteArchiveFile(startDates[i], archive);
+                }
+                if (listener != null) {
+                    listener.onProgress(i + 1, startDates.length);
+                }
+            }
+            return startDates.length;
+        } finally {
+            mDb.execSQL("DETACH DATABASE " + alias);
+        }
+    }
+
+    /**
+     * Determines if an attached database has a table.
+     *
+     * @param alias The alias of the attached database.
+     * @param table The name of the table.
+     * @return If it has the table.
+     */
+    private boolean hasTable(String alias, String table) {
+        return DatabaseUtils.longForQuery(mDb, "SELECT COUNT(*) FROM "
+                + alias + ".sqlite_master WHERE type='table' AND name='"
+                + table + "'", null) > 0;
+    }
+
+    /**
+     * Gets the SQL to copy the HRV rows from an attached database.
+     *
+     * @param alias The alias of the attached database.
+     * @param where The condition on the rows or null for all of them.
+     * @return The SQL.
+     */
+    private static String copyHrvSql(String alias, String where) {
+        String columns = COL_START_DATE + ", " + COL_DATE + ", "
+                + COL_BEAT_COUNT + ", " + COL_MEAN_NN + ", " + COL_SDNN
+                + ", " + COL_RMSSD + ", " + COL_PNN50;
+        return "INSERT OR REPLACE INTO main." + DB_HRV_TABLE + " (" + columns
+                + ") SELECT " + columns + " FROM " + alias + "."
+                + DB_HRV_TABLE + (where == null ? "" : " WHERE " + where);
+    }
+
+    /**
+     * Writes a consistent copy of the whole database to a file. VACUUM INTO
+     * is used if SQLite has it (3.27, Android 11), and otherwise the tables
+     * are copied into the attached file in one transaction. Either way the
+     * copy is of a single point in time and is compact. The DataWriter's
+     * commits wait until it is done, while it keeps queueing the new rows,
+     * so recording is not interrupted.
+     *
+     * @param dest The file, which is replaced.
+     * @throws SQLException If the copy failed.
+     */
+    public void backupDatabase(File dest) {
+        deleteBackupFile(dest);
+        try {
+            mDb.execSQL("VACUUM INTO "
+                    + DatabaseUtils.sqlEscapeString(dest.getPath()));
+            return;
+        } catch (SQLException ex) {
+            Log.d(TAG, "VACUUM INTO is not available, copying the tables: "
+                    + ex.getMessage());
+            deleteBackupFile(dest);
+        }
+        copyTables(dest, Long.MIN_VALUE);
+    }
+
+    /**
+     * Writes a consistent copy of the sessions that have data at or after
+     * the given date to a file, as an incremental backup. It is a database
+     * with the same tables as this one, but only the data, sessions, and
+     * HRV rows for those sessions, so it can be restored with
+     * mergeDatabase. A session is copied whole, so one that was being
+     * recorded at the last backup is copied again with the rest of its
+     * data.
+     *
+     * @param dest  The file, which is replaced.
+     * @param since The date, typically the time of the last backup.
+     * @return The number of sessions copied.
+     * @throws SQLException If the copy failed.
+     */
+    public int backupSessions(File dest, long since) {
+        deleteBackupFile(dest);
+        return copyTables(dest, since);
+    }
+
+    /**
+     * Copies the tables to a new database file in one transaction, so the
+     * copy is consistent. The tables and indexes are created from their SQL
+     * in sqlite_master, the indexes after the rows have been copied.
+     *
+     * @param dest  The file, which should not exist.
+     * @param since Long.MIN_VALUE to copy everything, otherwise only the
+     *              data, sessions, and HRV rows of the sessions that have
+     *              data at or after this date are copied.
+     * @return The number of sessions copied.
+     */
+    private int copyTables(File dest, long since) {
+        String alias = "BACKUP_DB";
+        boolean all = since == Long.MIN_VALUE;
+        String where = " WHERE " + COL_START_DATE + " IN (SELECT "
+                + COL_START_DATE + " FROM main." + DB_SESSIONS_TABLE
+                + (all ? "" : " WHERE " + COL_END_DATE + ">=" + since) + ")";
+        mDb.execSQL("ATTACH DATABASE " + DatabaseUtils.sqlEscapeString(
+                dest.getPath()) + " AS " + alias);
+        try {
+            int nSessions;
+            mDb.beginTransaction();
+            try {
+                List<String> tables = new ArrayList<>();
+                List<String> tableSql = new ArrayList<>();
+                List<String> indexSql = new ArrayList<>();
+                try (Cursor cursor = mDb.rawQuery("SELECT type, name, sql "
+                        + "FROM main.sqlite_master WHERE sql IS NOT NULL AND "
+                        + "name NOT LIKE 'sqlite_%'", null)) {
+                    while (cursor.moveToNext()) {
+                        if ("table".equals(cursor.getString(0))) {
+                            tables.add(cursor.getString(1));
+                            tableSql.add(cursor.getString(2));
+                        } else {
+                            indexSql.add(cursor.getString(2));
+                        }
+                    }
+                }
+                for (String sql : tableSql) {
+                    mDb.execSQL(qualifyCreate(sql, alias));
+                }
+                for (String table : tables) {
+                    if (all) {
+                        mDb.execSQL("INSERT INTO " + alias + "." + table
+                                + " SELECT * FROM main." + table);
+                    } else if (table.equals(DB_DATA_TABLE)
+                            || table.equals(DB_SESSIONS_TABLE)
+                            || table.equals(DB_HRV_TABLE)) {
+                        mDb.execSQL("INSERT INTO " + alias + "." + table
+                                + " SELECT * FROM main." + table + where);
+                    }
+                }
+                for (String sql : indexSql) {
+                    mDb.execSQL(qualifyCreate(sql, alias));
+                }
+                mDb.execSQL("PRAGMA " + alias + ".user_version = "
+                        + DB_VERSION);
+                nSessions = (int) DatabaseUtils.longForQuery(mDb,
+                        "SELECT COUNT(*) FROM " + alias + "."
+                                + DB_SESSIONS_TABLE, null);
+                mDb.setTransactionSuccessful();
+            } finally {
+                mDb.endTransaction();
+            }
+            return nSessions;
+        } finally {
+            mDb.execSQL("DETACH DATABASE " + alias);
+        }
+    }
+
+    /**
+     * Makes a CREATE TABLE or CREATE INDEX statement from sqlite_master
+     * create the table or index in the given database.
+     *
+     * @param sql   The statement.
+     * @param alias The name of the attached database.
+     * @return The qualified statement.
+     */
+    private static String qualifyCreate(String sql, String alias) {
+        return sql.replaceFirst("(?i)^(\\s*CREATE\\s+(?:UNIQUE\\s+)?"
+                + "(?:TABLE|INDEX)\\s+(?:IF\\s+NOT\\s+EXISTS\\s+)?)",
+                "$1" + alias + ".");
+    }
+
+    /**
+     * Deletes a backup file and its journal if they exist.
+     *
+     * @param file The file.
+     */
+    private static void deleteBackupFile(File file) {
+        SQLiteDatabase.deleteDatabase(file);
+    }
+
+    /**
+     * Copies the rows from a data table in the version 1 format, where
+     * the RR values are space-separated text, to the data table, converting
+     * the RR values to the packed format. Should be called inside a
+     * transaction.
+     *
+     * @param db      The database.
+     * @param source  The name of the source table.
+     * @param where   The WHERE clause for the rows to copy or null for all.
+     * @param keepIds Whether to keep the row ids or to give the rows new
+     *                ones.
+     * @return The number of rows copied.
+     */
+    private static int copyTextRrData(SQLiteDatabase db, String source,
+                                      String where, boolean keepIds) {
+        int nRows = 0;
+        SQLiteStatement statement = db.compileStatement(keepIds ?
+                DB_INSERT_DATA : DB_INSERT_NEW_DATA);
+        int offset = keepIds ? 1 : 0;
+        try (Cursor cursor = db.rawQuery("SELECT " + COL_ID + ", "
+                + COL_DATE + ", " + COL_START_DATE + ", " + COL_HR + ", "
+                + COL_RR + ", " + COL_ACT + ", " + COL_PA + " FROM "
+                + source + (where == null ? "" : " WHERE " + where)
+                + " ORDER BY " + COL_DATE + ", " + COL_ID, null)) {
+            byte[] rr;
+            while (cursor.moveToNext()) {
+                statement.clearBindings();
+                if (keepIds) {
+                    statement.bindLong(1, cursor.getLong(0));
+                }
+                statement.bindLong(offset + 1, cursor.getLong(1));
+                statement.bindLong(offset + 2, cursor.getLong(2));
+                statement.bindLong(offset + 3, cursor.getLong(3));
+                rr = cursor.isNull(4) ? null
+                        : RrCodec.encode(RrCodec.parse(cursor.getString(4)));
+                if (rr == null) {
+                    statement.bindNull(offset + 4);
+                } else {
+                    statement.bindBlob(offset + 4, rr);
+                }
+                statement.bindLong(offset + 5, cursor.getLong(5));
+                statement.bindLong(offset + 6, cursor.getLong(6));
+                statement.executeInsert();
+                nRows++;
+            }
+        } finally {
+            statement.close();
+        }
+        return nRows;
+    }
+
+    /**
+     * Accumulates the sessions table statistics for a run of rows with the
+     * same start date.
+     */
+    private static class SessionStats {
+        private long startDate;
+        private long endDate;
+        private int count;
+        private int hrMin;
+        private int hrMax;
+        private long hrSum;
+        private int hrCount;
+
+        private void reset(long startDate) {
+            this.startDate = startDate;
+            endDate = INVALID_DATE;
+            count = 0;
+            hrSum = 0;
+            hrCount = 0;
+        }
+
+        private void add(long date, int hr) {
+            if (date > endDate) {
+                endDate = date;
+            }
+            count++;
+            if (hr >= 0) {
+                if (hrCount == 0 || hr < hrMin) {
+                    hrMin = hr;
+                }
+                if (hrCount == 0 || hr > hrMax) {
+                    hrMax = hr;
+                }
+                hrSum += hr;
+                hrCount++;
+            }
+        }
+    }
+
+    /**
+     * Accumulates the rollups table statistics for the rows in one bucket of
+     * one resolution.
+     */
+    private static class RollupStats {
+        /**
+         * The number of values, HR, activity, and peak acceleration.
+         */
+        private static final int N_VALUES = 3;
+        private final long resolution;
+        private long bucket;
+        private int count;
+        private final int[] mins = new int[N_VALUES];
+        private final int[] maxs = new int[N_VALUES];
+        private final long[] sums = new long[N_VALUES];
+        private final int[] counts = new int[N_VALUES];
+
+        private RollupStats(long resolution) {
+            this.resolution = resolution;
+        }
+
+        /**
+         * Resets to the bucket containing the given date.
+         *
+         * @param date The date.
+         */
+        private void reset(long date) {
+            bucket = date - date % resolution;
+            count = 0;
+            for (int i = 0; i < N_VALUES; i++) {
+                sums[i] = 0;
+                counts[i] = 0;
+            }
+        }
+
+        private boolean contains(long date) {
+            return date >= bucket && date - bucket < resolution;
+        }
+
+        private void add(int hr, int activity, int pa) {
+            count++;
+            add(0, hr);
+            add(1, activity);
+            add(2, pa);
+        }
+
+        private void add(int i, int value) {
+            if (value < 0) {
+                return;
+            }
+            if (counts[i] == 0 || value < mins[i]) {
+                mins[i] = value;
+            }
+            if (counts[i] == 0 || value > maxs[i]) {
+                maxs[i] = value;
+            }
+            sums[i] += value;
+            counts[i]++;
+        }
     }
 
     /**
@@ -433,16 +2704,58 @@ public class HxMMonitorDbAdapter implements IConstants {
         @Override
         public void onCreate(SQLiteDatabase db) {
             db.execSQL(DB_CREATE_DATA_TABLE);
+            createIndexes(db);
+            db.execSQL(DB_CREATE_SESSIONS_TABLE);
+            db.execSQL(DB_CREATE_ROLLUPS_TABLE);
+            db.execSQL(DB_CREATE_ROLLUP_BACKFILL_TABLE);
+            db.execSQL(DB_CREATE_HRV_TABLE);
+            db.execSQL(DB_CREATE_ARCHIVES_TABLE);
         }
 
         @Override
         public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-            // TODO Re-do this so nothing is lost if there is a need to change
-            // the version
+            // This is called inside a transaction
             Log.w(TAG, "Upgrading database from version " + oldVersion + " to "
-                    + newVersion + ", which will destroy all old data");
-            db.execSQL("DROP TABLE IF EXISTS " + DB_DATA_TABLE);
-            onCreate(db);
+                    + newVersion);
+            if (oldVersion < 2) {
+                // Convert the RR values from text to packed
+                String oldTable = DB_DATA_TABLE + "_v1";
+                db.execSQL("ALTER TABLE " + DB_DATA_TABLE + " RENAME TO "
+                        + oldTable);
+                db.execSQL(DB_CREATE_DATA_TABLE);
+                int nRows = copyTextRrData(db, oldTable, null, true);
+                db.execSQL("DROP TABLE " + oldTable);
+                Log.d(TAG, "Converted RR values for " + nRows + " rows");
+            }
+            if (oldVersion < 3) {
+                // Add the indexes
+                createIndexes(db);
+                Log.d(TAG, "Created indexes");
+            }
+            if (oldVersion < 4) {
+                // Add the sessions table
+                db.execSQL(DB_CREATE_SESSIONS_TABLE);
+                rebuildSessions(db);
+                Log.d(TAG, "Created sessions table");
+            }
+            if (oldVersion < 5) {
+                // Add the rollups, they are filled in by backfill
+                db.execSQL(DB_CREATE_ROLLUPS_TABLE);
+                db.execSQL(DB_CREATE_ROLLUP_BACKFILL_TABLE);
+                db.execSQL(DB_QUEUE_ROLLUP_BACKFILL);
+                Log.d(TAG, "Created rollups tables");
+            }
+            if (oldVersion < 6) {
+                // Add the HRV table, it is filled in by backfill
+                db.execSQL(DB_CREATE_HRV_TABLE);
+                db.execSQL(DB_QUEUE_ROLLUP_BACKFILL);
+                Log.d(TAG, "Created HRV table");
+            }
+            if (oldVersion < 7) {
+                // Add the archives table
+                db.execSQL(DB_CREATE_ARCHIVES_TABLE);
+                Log.d(TAG, "Created archives table");
+            }
         }
     }
 
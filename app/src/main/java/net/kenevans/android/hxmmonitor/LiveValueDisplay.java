@@ -0,0 +1,235 @@
+package net.kenevans.android.hxmmonitor;
+
+import android.view.Choreographer;
+import android.widget.TextView;
+
+/**
+ * Displays the live values in a set of TextViews. Only the latest value for
+ * each field is kept, and the views are updated at most once per frame, or
+ * once per given interval, from a Choreographer callback. A view is not
+ * updated if the value it shows has not changed. Must be used on the UI
+ * thread.
+ */
+public class LiveValueDisplay implements Choreographer.FrameCallback,
+        IConstants {
+    public static final int FIELD_HR = 0;
+    public static final int FIELD_RR = 1;
+    public static final int FIELD_BAT = 2;
+    public static final int FIELD_ACT = 3;
+    public static final int FIELD_PA = 4;
+    public static final int FIELD_SDNN = 5;
+    public static final int FIELD_RMSSD = 6;
+    public static final int FIELD_PNN50 = 7;
+    public static final int N_FIELDS = 8;
+    /**
+     * Value for a field that is not showing a value.
+     */
+    private static final int NOT_SHOWN = Integer.MIN_VALUE;
+
+    private final Choreographer mChoreographer = Choreographer.getInstance();
+    private final TextView[] mViews = new TextView[N_FIELDS];
+    private final int[] mValues = new int[N_FIELDS];
+    private final int[] mShown = new int[N_FIELDS];
+    private final boolean[] mDirty = new boolean[N_FIELDS];
+    // The RR values, the value for FIELD_RR is the count
+    private int[] mRr = new int[9];
+    private int[] mShownRr = new int[9];
+    private long mMinInterval;
+    private long mLastRenderTime;
+    private boolean mScheduled;
+    private long mFrames;
+    private long mApplied;
+    private long mSkipped;
+
+    /**
+     * Constructor.
+     *
+     * @param minInterval The minimum time between updates (ms). 0 means
+     *                    once per frame.
+     */
+    public LiveValueDisplay(long minInterval) {
+        mMinInterval = minInterval;
+        for (int i = 0; i < N_FIELDS; i++) {
+            mShown[i] = NOT_SHOWN;
+        }
+    }
+
+    /**
+     * Sets the view for a field.
+     *
+     * @param field The field.
+     * @param view  The view.
+     */
+    public void setView(int field, TextView view) {
+        mViews[field] = view;
+    }
+
+    /**
+     * Sets the minimum time between updates.
+     *
+     * @param minInterval The interval (ms). 0 means once per frame.
+     */
+    public void setMinInterval(long minInterval) {
+        mMinInterval = minInterval;
+    }
+
+    /**
+     * Sets the latest value for a field other than FIELD_RR.
+     *
+     * @param field The field.
+     * @param value The value.
+     */
+    public void setValue(int field, int value) {
+        mValues[field] = value;
+        mDirty[field] = true;
+        schedule();
+    }
+
+    /**
+     * Sets the latest R-R values.
+     *
+     * @param rr    The values or null if invalid.
+     * @param count The number of values to use.
+     */
+    public void setRr(int[] rr, int count) {
+        if (rr == null) {
+            count = INVALID_INT;
+        } else {
+            if (mRr.length < count) {
+                mRr = new int[count];
+            }
+            System.arraycopy(rr, 0, mRr, 0, count);
+        }
+        mValues[FIELD_RR] = count;
+        mDirty[FIELD_RR] = true;
+        schedule();
+    }
+
+    /**
+     * Shows the given text in all the views and discards any pending
+     * values.
+     *
+     * @param resId The resource id for the text.
+     */
+    public void reset(int resId) {
+        for (int i = 0; i < N_FIELDS; i++) {
+            mDirty[i] = false;
+            mShown[i] = NOT_SHOWN;
+            if (mViews[i] != null) {
+                mViews[i].setText(resId);
+            }
+        }
+    }
+
+    /**
+     * Stops any pending update. Values set later will schedule a new one.
+     */
+    public void stop() {
+        if (mScheduled) {
+            mChoreographer.removeFrameCallback(this);
+            mScheduled = false;
+        }
+    }
+
+    private void schedule() {
+        if (!mScheduled) {
+            mScheduled = true;
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mScheduled = false;
+        long now = frameTimeNanos / 1000000;
+        long wait = mLastRenderTime + mMinInterval - now;
+        if (wait > 0) {
+            mScheduled = true;
+            mChoreographer.postFrameCallbackDelayed(this, wait);
+            return;
+        }
+        mLastRenderTime = now;
+        mFrames++;
+        for (int i = 0; i < N_FIELDS; i++) {
+            if (!mDirty[i]) {
+                continue;
+            }
+            mDirty[i] = false;
+            if (isShown(i)) {
+                mSkipped++;
+                continue;
+            }
+            if (mViews[i] != null) {
+                mViews[i].setText(getText(i));
+            }
+            mShown[i] = mValues[i];
+            if (i == FIELD_RR && mValues[i] > 0) {
+                if (mShownRr.length < mValues[i]) {
+                    mShownRr = new int[mRr.length];
+                }
+                System.arraycopy(mRr, 0, mShownRr, 0, mValues[i]);
+            }
+            mApplied++;
+        }
+    }
+
+    /**
+     * Determines if the view for a field is already showing the latest
+     * value.
+     *
+     * @param field The field.
+     * @return If it is.
+     */
+    private boolean isShown(int field) {
+        int value = mValues[field];
+        if (value != mShown[field]) {
+            return false;
+        }
+        if (field == FIELD_RR) {
+            for (int i = 0; i < value; i++) {
+                if (mRr[i] != mShownRr[i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private String getText(int field) {
+        if (field == FIELD_RR) {
+            int count = mValues[FIELD_RR];
+            return RrCodec.format(count == INVALID_INT ? null : mRr, count);
+        }
+        return String.valueOf(mValues[field]);
+    }
+
+    /**
+     * Gets the number of view updates applied.
+     *
+     * @return The number applied.
+     */
+    public long getApplied() {
+        return mApplied;
+    }
+
+    /**
+     * Gets the number of view updates skipped because the value shown had
+     * not changed.
+     *
+     * @return The number skipped.
+     */
+    public long getSkipped() {
+        return mSkipped;
+    }
+
+    /**
+     * Gets a summary of the statistics.
+     *
+     * @return The summary.
+     */
+    public String getInfo() {
+        return "Display Updates: " + mApplied + " applied, " + mSkipped
+                + " skipped in " + mFrames + " frames\n";
+    }
+
+}
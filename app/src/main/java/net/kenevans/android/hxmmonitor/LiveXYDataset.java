@@ -0,0 +1,374 @@
+package net.kenevans.android.hxmmonitor;
+
+import android.view.Choreographer;
+
+import org.afree.data.DomainInfo;
+import org.afree.data.DomainOrder;
+import org.afree.data.Range;
+import org.afree.data.RangeInfo;
+import org.afree.data.general.DatasetChangeEvent;
+import org.afree.data.xy.AbstractXYDataset;
+
+/**
+ * A single series XYDataset for live plotting. The values are kept in a
+ * fixed-capacity circular buffer of times and values sorted by time. Values
+ * older than the maximum age relative to the latest one are removed, as for
+ * TimeSeries.setMaximumItemAge, and the oldest are also removed if the
+ * buffer is full. The minimum and maximum are cached, and listeners are
+ * notified at most once per frame from a Choreographer callback. Adding
+ * values does not allocate. Must be used on the UI thread.
+ */
+public class LiveXYDataset extends AbstractXYDataset implements DomainInfo,
+        RangeInfo, Choreographer.FrameCallback, IConstants {
+    private static final long serialVersionUID = 1L;
+
+    private final Comparable<?> mKey;
+    private final long mMaximumItemAge;
+    private final long[] mTimes;
+    private final float[] mValues;
+    // Index in the arrays of the first item
+    private int mHead;
+    private int mSize;
+    // Cached range of the valid values, recomputed if mRangeValid is false
+    private boolean mRangeValid = true;
+    private float mMin = Float.NaN;
+    private float mMax = Float.NaN;
+    // The last bounds returned, reused if they have not changed
+    private transient Range mDomainBounds;
+    private transient Range mRangeBounds;
+    private boolean mNotify = true;
+    private boolean mChanged;
+    private boolean mScheduled;
+    private long mDropped;
+    private transient DatasetChangeEvent mChangeEvent;
+
+    /**
+     * Constructor.
+     *
+     * @param key            The series key.
+     * @param maximumItemAge The maximum age of an item relative to the
+     *                       latest one (ms).
+     * @param capacity       The maximum number of items.
+     */
+    public LiveXYDataset(Comparable<?> key, long maximumItemAge,
+                         int capacity) {
+        mKey = key;
+        mMaximumItemAge = maximumItemAge;
+        mTimes = new long[capacity];
+        mValues = new float[capacity];
+    }
+
+    @Override
+    public int getSeriesCount() {
+        return 1;
+    }
+
+    @Override
+    public Comparable getSeriesKey(int series) {
+        return mKey;
+    }
+
+    @Override
+    public DomainOrder getDomainOrder() {
+        return DomainOrder.ASCENDING;
+    }
+
+    @Override
+    public int getItemCount(int series) {
+        return mSize;
+    }
+
+    @Override
+    public Number getX(int series, int item) {
+        return getXValue(series, item);
+    }
+
+    @Override
+    public double getXValue(int series, int item) {
+        return mTimes[index(item)];
+    }
+
+    @Override
+    public Number getY(int series, int item) {
+        return getYValue(series, item);
+    }
+
+    @Override
+    public double getYValue(int series, int item) {
+        return mValues[index(item)];
+    }
+
+    /**
+     * Gets the time of an item.
+     *
+     * @param item The item.
+     * @return The time.
+     */
+    public long getTime(int item) {
+        return mTimes[index(item)];
+    }
+
+    /**
+     * Gets the number of items that were dropped because the buffer was
+     * full before they were old enough to be removed.
+     *
+     * @return The number dropped.
+     */
+    public long getDropped() {
+        return mDropped;
+    }
+
+    /**
+     * Adds a value or replaces the value if there is already one at the
+     * given time.
+     *
+     * @param time  The time.
+     * @param value The value. NaN means invalid.
+     */
+    public void addOrUpdate(long time, double value) {
+        float val = (float) value;
+        int capacity = mTimes.length;
+        if (mSize == 0 || time > mTimes[index(mSize - 1)]) {
+            if (mSize == capacity) {
+                removeFirst();
+                mDropped++;
+            }
+            set(mSize++, time, val);
+        } else {
+            int item = search(time);
+            if (item >= 0) {
+                // Replace
+                int i = index(item);
+                float old = mValues[i];
+                mValues[i] = val;
+                if (old == mMin || old == mMax) {
+                    mRangeValid = false;
+                }
+                include(val);
+            } else {
+                item = -item - 1;
+                if (mSize == capacity) {
+                    if (item == 0) {
+                        // Older than everything in a full buffer
+                        mDropped++;
+                        return;
+                    }
+                    removeFirst();
+                    mDropped++;
+                    item--;
+                }
+                // Shift the later items up, there are normally few of them
+                int to, from;
+                for (int j = mSize; j > item; j--) {
+                    to = index(j);
+                    from = index(j - 1);
+                    mTimes[to] = mTimes[from];
+                    mValues[to] = mValues[from];
+                }
+                mSize++;
+                set(item, time, val);
+            }
+        }
+        // Remove the aged items
+        long latest = mTimes[index(mSize - 1)];
+        while (mSize > 0 && latest - mTimes[mHead] > mMaximumItemAge) {
+            removeFirst();
+        }
+        changed();
+    }
+
+    /**
+     * Removes all the items.
+     */
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+        mMin = mMax = Float.NaN;
+        mRangeValid = true;
+        changed();
+    }
+
+    /**
+     * Sets whether listeners are notified of changes. Turning it on
+     * schedules a notification if there have been changes.
+     *
+     * @param notify Whether to notify.
+     */
+    public void setNotify(boolean notify) {
+        mNotify = notify;
+        if (notify && mChanged) {
+            schedule();
+        }
+    }
+
+    /**
+     * Cancels any pending notification. Changes made later will schedule a
+     * new one.
+     */
+    public void stop() {
+        if (mScheduled) {
+            Choreographer.getInstance().removeFrameCallback(this);
+            mScheduled = false;
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        mScheduled = false;
+        if (!mChanged || !mNotify) {
+            return;
+        }
+        mChanged = false;
+        if (mChangeEvent == null) {
+            mChangeEvent = new DatasetChangeEvent(this, this);
+        }
+        notifyListeners(mChangeEvent);
+    }
+
+    @Override
+    public double getDomainLowerBound(boolean includeInterval) {
+        return mSize == 0 ? Double.NaN : mTimes[mHead];
+    }
+
+    @Override
+    public double getDomainUpperBound(boolean includeInterval) {
+        return mSize == 0 ? Double.NaN : mTimes[index(mSize - 1)];
+    }
+
+    @Override
+    public Range getDomainBounds(boolean includeInterval) {
+        if (mSize == 0) {
+            return null;
+        }
+        double lower = getDomainLowerBound(includeInterval);
+        double upper = getDomainUpperBound(includeInterval);
+        if (mDomainBounds == null || mDomainBounds.getLowerBound() != lower
+                || mDomainBounds.getUpperBound() != upper) {
+            mDomainBounds = new Range(lower, upper);
+        }
+        return mDomainBounds;
+    }
+
+    @Override
+    public double getRangeLowerBound(boolean includeInterval) {
+        updateRange();
+        return mMin;
+    }
+
+    @Override
+    public double getRangeUpperBound(boolean includeInterval) {
+        updateRange();
+        return mMax;
+    }
+
+    @Override
+    public Range getRangeBounds(boolean includeInterval) {
+        updateRange();
+        if (Float.isNaN(mMin)) {
+            return null;
+        }
+        if (mRangeBounds == null || mRangeBounds.getLowerBound() != mMin
+                || mRangeBounds.getUpperBound() != mMax) {
+            mRangeBounds = new Range(mMin, mMax);
+        }
+        return mRangeBounds;
+    }
+
+    /**
+     * Gets the index in the arrays for an item.
+     *
+     * @param item The item.
+     * @return The index.
+     */
+    private int index(int item) {
+        int i = mHead + item;
+        return i < mTimes.length ? i : i - mTimes.length;
+    }
+
+    /**
+     * Searches for the item with the given time.
+     *
+     * @param time The time.
+     * @return The item if found, otherwise (-(insertion point) - 1).
+     */
+    private int search(long time) {
+        int lo = 0;
+        int hi = mSize - 1;
+        int mid;
+        long midTime;
+        while (lo <= hi) {
+            mid = (lo + hi) >>> 1;
+            midTime = mTimes[index(mid)];
+            if (midTime < time) {
+                lo = mid + 1;
+            } else if (midTime > time) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private void set(int item, long time, float value) {
+        int i = index(item);
+        mTimes[i] = time;
+        mValues[i] = value;
+        include(value);
+    }
+
+    private void removeFirst() {
+        float value = mValues[mHead];
+        if (value == mMin || value == mMax) {
+            mRangeValid = false;
+        }
+        mHead = index(1);
+        mSize--;
+    }
+
+    /**
+     * Extends the cached range to include a value if it is valid.
+     *
+     * @param value The value.
+     */
+    private void include(float value) {
+        if (!mRangeValid || Float.isNaN(value)) {
+            return;
+        }
+        if (Float.isNaN(mMin) || value < mMin) {
+            mMin = value;
+        }
+        if (Float.isNaN(mMax) || value > mMax) {
+            mMax = value;
+        }
+    }
+
+    /**
+     * Recomputes the cached range if it is not valid.
+     */
+    private void updateRange() {
+        if (mRangeValid) {
+            return;
+        }
+        mMin = mMax = Float.NaN;
+        mRangeValid = true;
+        for (int item = 0; item < mSize; item++) {
+            include(mValues[index(item)]);
+        }
+    }
+
+    private void changed() {
+        mChanged = true;
+        if (mNotify) {
+            schedule();
+        }
+    }
+
+    private void schedule() {
+        if (!mScheduled) {
+            mScheduled = true;
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+    }
+
+}
@@ -1,16 +1,16 @@
 package net.kenevans.android.hxmmonitor;
 
 import android.app.Activity;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.graphics.Color;
 import android.graphics.Point;
 import android.graphics.Typeface;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.ParcelFileDescriptor;
 import android.preference.PreferenceManager;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AppCompatActivity;
@@ -25,24 +25,29 @@ import org.afree.chart.axis.AxisLocation;
 import org.afree.chart.axis.DateAxis;
 import org.afree.chart.axis.NumberAxis;
 import org.afree.chart.axis.NumberTickUnit;
+import org.afree.chart.axis.ValueAxis;
 import org.afree.chart.plot.XYPlot;
 import org.afree.chart.renderer.xy.StandardXYItemRenderer;
 import org.afree.chart.renderer.xy.XYItemRenderer;
 import org.afree.chart.renderer.xy.XYLineAndShapeRenderer;
 import org.afree.chart.title.LegendTitle;
 import org.afree.chart.title.TextTitle;
-import org.afree.data.time.FixedMillisecond;
-import org.afree.data.time.TimeSeries;
-import org.afree.data.time.TimeSeriesCollection;
+import org.afree.data.xy.XYDataset;
 import org.afree.graphics.SolidColor;
 import org.afree.graphics.geom.Dimension;
 import org.afree.graphics.geom.Font;
 import org.afree.graphics.geom.RectShape;
 import org.afree.ui.RectangleInsets;
 
+import java.io.FileNotFoundException;
+import java.nio.channels.FileChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author evans
@@ -51,66 +56,55 @@ public class PlotActivity extends AppCompatActivity implements IConstants {
     private static final String TAG = "HxMPlot";
     private AFreeChartView mView;
     private AFreeChart mChart;
-    private TimeSeriesCollection mHrDataset;
-    private TimeSeriesCollection mRrDataset;
-    private TimeSeriesCollection mActDataset;
-    private TimeSeriesCollection mPaDataset;
-    private TimeSeries mHrSeries;
-    private TimeSeries mRrSeries;
-    private TimeSeries mActSeries;
-    private TimeSeries mPaSeries;
+    private XYDataset mHrDataset;
+    private XYDataset mRrDataset;
+    private XYDataset mActDataset;
+    private XYDataset mPaDataset;
+    private PlotSeries mHrSeries;
+    private PlotSeries mRrSeries;
+    private PlotSeries mActSeries;
+    private PlotSeries mPaSeries;
     private boolean mPlotHr = true;
     private boolean mPlotRr = true;
     private boolean mPlotAct = true;
     private boolean mPlotPa = true;
+    private boolean mPlotDecimate = true;
     private int mPlotInterval = PLOT_MAXIMUM_AGE;
     private HxMMonitorDbAdapter mDbAdapter;
     private long mPlotStartTime = INVALID_DATE;
     private long mPlotSessionStart = INVALID_DATE;
+    private long mPlotSessionEnd = INVALID_DATE;
     private boolean mIsSession = false;
-    private long mLastRrUpdateTime = INVALID_DATE;
-    private long mLastRrTime = INVALID_DATE;
-
+    // The range and rollup resolution of what is loaded in the series. The
+    // resolution is 0 if the rows of the data table are loaded.
+    private long mLoadStart = INVALID_DATE;
+    private long mLoadEnd = INVALID_DATE;
+    private long mLoadResolution;
+    // The session archive to plot instead of the database, if any
+    private Uri mArchiveUri;
     /**
-     * Handles various events fired by the Service.
-     * <p/>
-     * <br>
-     * <br>
-     * ACTION_GATT_CONNECTED: connected to a GATT server.<br>
-     * ACTION_GATT_DISCONNECTED: disconnected from a GATT server.<br>
-     * ACTION_GATT_SERVICES_DISCOVERED: discovered GATT services.<br>
-     * ACTION_DATA_AVAILABLE: received data from the device. This can be a
-     * result of read or notification operations.<br>
+     * RR timing for the samples received from the HxMBleService.
      */
-    private final BroadcastReceiver mGattUpdateReceiver = new
-            BroadcastReceiver() {
-                @Override
-                public void onReceive(Context context, Intent intent) {
-                    final String action = intent.getAction();
-                    if (HxMBleService.ACTION_DATA_AVAILABLE.equals(action)) {
-                        // Log.d(TAG, "onReceive: " + action);
-                        updateChart(intent);
-                    } else if (HxMBleService.ACTION_ERROR.equals(action)) {
-                        Log.d(TAG, "onReceive: " + action);
-                        displayError(intent);
-                    }
-                }
-            };
+    private final RrTimeline mLiveRrTimeline = new RrTimeline();
+    // Buffer for the beat times, used on the UI thread
+    private long[] mRrTimes = new long[16];
+    private final ExecutorService mExecutor =
+            Executors.newSingleThreadExecutor();
+    private DatasetLoader mLoader;
 
+    private final Handler mHandler = new Handler();
     /**
-     * Make an IntentFilter for the actions in which we are interested.
-     *
-     * @return The intent filter.
+     * Receives the samples from the HxMBleService. Every sample is needed
+     * for the plot, so it does not coalesce.
      */
-    private static IntentFilter makeGattUpdateIntentFilter() {
-        final IntentFilter intentFilter = new IntentFilter();
-        // intentFilter.addAction(HxMBleService.ACTION_GATT_CONNECTED);
-        // intentFilter.addAction(HxMBleService.ACTION_GATT_DISCONNECTED);
-        // intentFilter
-        // .addAction(HxMBleService.ACTION_GATT_SERVICES_DISCOVERED);
-        intentFilter.addAction(HxMBleService.ACTION_DATA_AVAILABLE);
-        return intentFilter;
-    }
+    private final SampleBus.Listener mSampleListener = this::updateChart;
+    private boolean mDecimating;
+    private boolean mDecimatePosted;
+    private final Runnable mDecimateRunnable = () -> {
+        mDecimatePosted = false;
+        checkResolution();
+        decimate();
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -131,9 +125,14 @@ public class PlotActivity extends AppCompatActivity implements IConstants {
             if (mIsSession) {
                 mPlotSessionStart = extras.getLong(
                         PLOT_SESSION_START_TIME_CODE, INVALID_DATE);
+                String archive = extras.getString(PLOT_ARCHIVE_URI_CODE);
+                if (archive != null) {
+                    mArchiveUri = Uri.parse(archive);
+                }
             }
         }
-        if (mIsSession && (mPlotSessionStart == INVALID_DATE)) {
+        if (mIsSession && mArchiveUri == null
+                && (mPlotSessionStart == INVALID_DATE)) {
             Utils.errMsg(this, "Plotting a session but got invalid "
                     + "values for the start time");
             return;
@@ -169,6 +168,7 @@ public class PlotActivity extends AppCompatActivity implements IConstants {
         mPlotRr = prefs.getBoolean(PREF_PLOT_RR, true);
         mPlotAct = prefs.getBoolean(PREF_PLOT_ACT, true);
         mPlotPa = prefs.getBoolean(PREF_PLOT_PA, true);
+        mPlotDecimate = prefs.getBoolean(PREF_PLOT_DECIMATE, true);
         String stringVal = prefs.getString(PREF_PLOT_INTERVAL, null);
         if (stringVal == null) {
             mPlotInterval = PLOT_MAXIMUM_AGE;
@@ -184,6 +184,8 @@ public class PlotActivity extends AppCompatActivity implements IConstants {
             if (mChart == null) {
                 mChart = createChart();
                 mView.setChart(mChart);
+                ((XYPlot) mChart.getPlot()).getDomainAxis()
+                        .addChangeListener(event -> postDecimate());
             }
         } else {
             Log.d(TAG, getClass().getSimpleName() + ".onResume: mView is null");
@@ -192,8 +194,9 @@ public class PlotActivity extends AppCompatActivity implements IConstants {
         // If mIsSession is true it uses mPlotSessionStart, set in onCreate
         // If mIsSession is false it uses mPlotStartTime, set here
         if (!mIsSession) {
-            Log.d(TAG, "onResume: Starting registerReceiver");
-            registerReceiver(mGattUpdateReceiver, makeGattUpdateIntentFilter());
+            Log.d(TAG, "onResume: Subscribing to the sample bus");
+            HxMBleService.getSampleBus().subscribe(mSampleListener, mHandler,
+                    false);
             mPlotStartTime = new Date().getTime() - mPlotInterval;
         }
         // Create the datasets and fill them
@@ -205,14 +208,18 @@ public class PlotActivity extends AppCompatActivity implements IConstants {
         Log.d(TAG, this.getClass().getSimpleName() + ": onPause");
         super.onPause();
         if (!mIsSession) {
-            unregisterReceiver(mGattUpdateReceiver);
+            HxMBleService.getSampleBus().unsubscribe(mSampleListener);
         }
+        cancelLoad();
+        stopDatasets();
     }
 
     @Override
     protected void onDestroy() {
         Log.d(TAG, this.getClass().getSimpleName() + ": onDestroy");
         super.onDestroy();
+        cancelLoad();
+        mExecutor.shutdown();
         if (mDbAdapter != null) {
             mDbAdapter.close();
             mDbAdapter = null;
@@ -257,35 +264,115 @@ public class PlotActivity extends AppCompatActivity implements IConstants {
     }
 
     /**
-     * Displays the error from an ACTION_ERROR callback.
-     *
-     * @param intent The intent.
+     * Refreshes the plot by getting new data.
      */
-    private void displayError(Intent intent) {
-        String msg = null;
-        try {
-            msg = intent.getStringExtra(EXTRA_MSG);
-            if (msg == null) {
-                Utils.errMsg(this, "Received null error message");
-                return;
+    private void refresh() {
+        long start;
+        long end;
+        if (mIsSession) {
+            if (mArchiveUri == null && mDbAdapter != null) {
+                mPlotSessionEnd =
+                        mDbAdapter.getSessionEndDate(mPlotSessionStart);
             }
-            Utils.errMsg(this, msg);
-        } catch (Exception ex) {
-            Log.d(TAG, "Error displaying error", ex);
-            Utils.excMsg(this, msg, ex);
+            start = mPlotSessionStart;
+            end = mPlotSessionEnd;
+        } else {
+            start = mPlotStartTime;
+            end = new Date().getTime();
         }
+        // Load everything after the start, including what is added to a
+        // session in progress
+        reload(start, Long.MAX_VALUE, getLoadResolution(start, end));
     }
 
     /**
-     * Refreshes the plot by getting new data.
+     * Replaces the series with new ones and fills them in the background.
+     *
+     * @param start      The start of the range to load.
+     * @param end        The end of the range to load.
+     * @param resolution The rollup resolution or 0 to use the data table.
      */
-    private void refresh() {
-        // The logic for whether it is a session or not is in these methods
+    private void reload(long start, long end, long resolution) {
+        cancelLoad();
         createDatasets();
         ((XYPlot) mChart.getPlot()).setDataset(1, mHrDataset);
         ((XYPlot) mChart.getPlot()).setDataset(2, mRrDataset);
         ((XYPlot) mChart.getPlot()).setDataset(3, mActDataset);
         ((XYPlot) mChart.getPlot()).setDataset(4, mPaDataset);
+        // The series are filled in the background
+        startLoad(start, end, resolution);
+    }
+
+    /**
+     * Gets the rollup resolution to use to plot the given range from the
+     * database, which is the coarsest one that still gives a point per
+     * pixel. The rollups have no RR values, so they are only used if RR is
+     * not plotted.
+     *
+     * @param start The start of the range.
+     * @param end   The end of the range.
+     * @return The resolution or 0 to use the data table.
+     */
+    private long getLoadResolution(long start, long end) {
+        if (mPlotRr || mArchiveUri != null || start == INVALID_DATE
+                || end == INVALID_DATE) {
+            return 0;
+        }
+        return HxMMonitorDbAdapter.getRollupResolution(start, end,
+                getPlotWidth());
+    }
+
+    /**
+     * Gets the width of the plot in pixels, using the width of the display
+     * if the view has not been laid out yet.
+     *
+     * @return The width.
+     */
+    private int getPlotWidth() {
+        int width = mView != null ? mView.getWidth() : 0;
+        if (width <= 0) {
+            Point displaySize = new Point();
+            getWindowManager().getDefaultDisplay().getSize(displaySize);
+            width = displaySize.x;
+        }
+        return Math.max(width, PLOT_MIN_BUCKETS);
+    }
+
+    /**
+     * Reloads a session plot from the database if the visible range needs
+     * a finer resolution than what is loaded or goes outside what is
+     * loaded. The visible range is extended by its width on each side, so
+     * panning does not reload every time. Returning to the automatic range
+     * loads the whole session again.
+     */
+    private void checkResolution() {
+        if (!mIsSession || mArchiveUri != null || mChart == null
+                || mDbAdapter == null || mPlotSessionEnd == INVALID_DATE
+                || mLoadStart == INVALID_DATE) {
+            return;
+        }
+        ValueAxis axis = ((XYPlot) mChart.getPlot()).getDomainAxis();
+        if (axis.isAutoRange()) {
+            if (mLoadStart > mPlotSessionStart
+                    || mLoadEnd < mPlotSessionEnd) {
+                refresh();
+            }
+            return;
+        }
+        long lower = Math.max(mPlotSessionStart,
+                (long) axis.getLowerBound());
+        long upper = Math.min(mPlotSessionEnd, (long) axis.getUpperBound());
+        if (upper <= lower) {
+            return;
+        }
+        long resolution = getLoadResolution(lower, upper);
+        if (resolution >= mLoadResolution && lower >= mLoadStart
+                && upper <= mLoadEnd) {
+            return;
+        }
+        long width = upper - lower;
+        reload(Math.max(mPlotSessionStart, lower - width),
+                Math.min(mPlotSessionEnd, upper + width), resolution);
     }
 
     /**
@@ -324,78 +411,51 @@ public class PlotActivity extends AppCompatActivity implements IConstants {
         display.getSize(displaySize);
         info += "displayWidth=" + displaySize.x + " displayHeight="
                 + displaySize.y + "\n";
+        info += "lastDrawTime=" + mView.getLastDrawTime()
+                + " ms maxDrawTime=" + mView.getMaxDrawTime() + " ms\n";
+        info += "renders=" + mView.getRenderCount() + " cachedDraws="
+                + mView.getCachedDrawCount() + "\n";
+        info += "Loaded: " + (mLoadResolution == 0 ? "rows"
+                : mLoadResolution / 1000 + " s rollups") + "\n";
+        PlotSeries[] seriesList = {mHrSeries, mRrSeries, mActSeries,
+                mPaSeries};
+        for (PlotSeries series : seriesList) {
+            if (series != null) {
+                info += series.getName() + ": "
+                        + series.getShownItemCount() + " of "
+                        + series.getItemCount() + " points"
+                        + (series.isDecimated() ? " (decimated)" : "")
+                        + "\n";
+            }
+        }
 
         return info;
     }
 
     /**
-     * Parses the RR String and adds items to the series at the appropriate
-     * times.
+     * Adds the RR values to the series at the times of the beats given by the
+     * timeline. Must be called on the UI thread.
      *
      * @param series     The series to use.
+     * @param timeline   The timeline for the series.
      * @param updateTime The time of this update.
-     * @param strValue   The RR String from the database.
-     * @return If the operation was successful.
+     * @param rr         The RR values or null if invalid.
+     * @param count      The number of RR values to use.
      */
-    private boolean addRrValues(TimeSeries series, long updateTime,
-                                String strValue) {
-        if (series == null || strValue == null) {
-            return false;
-        }
-        if (strValue.length() == 0) {
-            // Do nothing
-            return true;
-        }
-        if (strValue.equals(INVALID_STRING)) {
-            mLastRrUpdateTime = updateTime;
-            mLastRrTime = updateTime - INITIAL_RR_START_TIME;
-            series.addOrUpdate(new FixedMillisecond(updateTime), Double.NaN);
-            return true;
-        }
-        String[] tokens;
-        tokens = strValue.trim().split("\\s+");
-        int nTokens = tokens.length;
-        if (nTokens == 0) {
-            return false;
-        }
-        long[] times = new long[nTokens];
-        double[] values = new double[nTokens];
-        long lastRrTime = mLastRrTime;
-        double val;
-        for (int i = 0; i < nTokens; i++) {
-            try {
-                val = Double.parseDouble(tokens[i]);
-            } catch (NumberFormatException ex) {
-                return false;
-            }
-            lastRrTime += val;
-            times[i] = lastRrTime;
-            values[i] = val / 1.024;
-        }
-        // Make first rr time be >= mLastRrUpdateTime
-        long deltaTime;
-        long firstTime = times[0];
-        if (firstTime < mLastRrUpdateTime) {
-            deltaTime = mLastRrUpdateTime - firstTime;
-            for (int i = 0; i < nTokens; i++) {
-                times[i] += deltaTime;
-            }
+    private void addRrValues(PlotSeries series, RrTimeline timeline,
+                             long updateTime, int[] rr, int count) {
+        if (rr == null) {
+            timeline.restart(updateTime);
+            series.addOrUpdate(updateTime, Double.NaN);
+            return;
         }
-        // Make all times be <= updateTime. Overrides previous if necessary.
-        long lastTime = times[nTokens - 1];
-        if (times[nTokens - 1] > updateTime) {
-            deltaTime = lastTime - updateTime;
-            for (int i = 0; i < nTokens; i++) {
-                times[i] -= deltaTime;
-            }
+        if (count > mRrTimes.length) {
+            mRrTimes = new long[count];
         }
-        // Add to the series
-        for (int i = 0; i < nTokens; i++) {
-            series.addOrUpdate(new FixedMillisecond(times[i]), values[i]);
+        int nTimes = timeline.add(updateTime, rr, count, mRrTimes, 0);
+        for (int i = 0; i < nTimes; i++) {
+            series.addOrUpdate(mRrTimes[i], RrTimeline.toMs(rr[i]));
         }
-        mLastRrUpdateTime = updateTime;
-        mLastRrTime = times[nTokens - 1];
-        return true;
     }
 
     /**
@@ -578,226 +638,482 @@ public class PlotActivity extends AppCompatActivity implements IConstants {
     }
 
     /**
-     * Updates the chart when data is received from the HxMBleService.
+     * Updates the chart when a sample is received from the HxMBleService.
      *
-     * @param intent The intent.
+     * @param record The record for the sample.
      */
-    private void updateChart(Intent intent) {
-        Log.d(TAG, "updateChart");
-        String strValue;
-        double value;
-
-        long date = intent.getLongExtra(EXTRA_DATE, INVALID_DATE);
+    private void updateChart(SampleRecord record) {
+        long date = record.getDate();
         if (date == INVALID_DATE) {
             return;
         }
-        if (mPlotHr && mHrSeries != null) {
-            strValue = intent.getStringExtra(EXTRA_HR);
-            if (strValue != null && strValue.length() > 0) {
-                try {
-                    value = Double.parseDouble(strValue);
-                } catch (NumberFormatException ex) {
-                    value = Double.NaN;
+        int value;
+        switch (record.getType()) {
+            case SampleRecord.TYPE_HR:
+                if (mPlotHr && mHrSeries != null) {
+                    value = record.getHr();
+                    mHrSeries.addOrUpdate(date,
+                            value == INVALID_INT ? Double.NaN : value);
                 }
-                if (value == INVALID_INT) {
-                    value = Double.NaN;
+                if (mPlotRr && mRrSeries != null) {
+                    addRrValues(mRrSeries, mLiveRrTimeline, date,
+                            record.getRr(), record.getRrCount());
                 }
-                mHrSeries.addOrUpdate(new FixedMillisecond(date), value);
-            }
+                break;
+            case SampleRecord.TYPE_CUSTOM:
+                if (mPlotAct && mActSeries != null) {
+                    value = record.getActivity();
+                    mActSeries.addOrUpdate(date,
+                            value == INVALID_INT ? Double.NaN : value / 100.);
+                }
+                if (mPlotPa && mPaSeries != null) {
+                    value = record.getPa();
+                    mPaSeries.addOrUpdate(date,
+                            value == INVALID_INT ? Double.NaN : value / 100.);
+                }
+                break;
         }
-        if (mPlotRr && mRrSeries != null) {
+    }
 
-            if (mLastRrUpdateTime == INVALID_DATE) {
-                mLastRrUpdateTime = date;
-                mLastRrTime = date;
-            }
-            strValue = intent.getStringExtra(EXTRA_RR);
-            if (strValue != null && strValue.length() > 0) {
-                // boolean res = addRrValues(mRrSeries, date, strValue);
-                // Don't check for errors here to avoid error storms
-                addRrValues(mRrSeries, date, strValue);
+    /**
+     * Creates the data sets and empty series. The series are filled by
+     * startLoad.
+     */
+    private void createDatasets() {
+        Log.d(TAG, "Creating datasets");
+        stopDatasets();
+        mHrSeries = mPlotHr ? createSeries("HR") : null;
+        mRrSeries = mPlotRr ? createSeries("RR") : null;
+        mActSeries = mPlotAct ? createSeries("ACT") : null;
+        mPaSeries = mPlotPa ? createSeries("PA") : null;
+        mLiveRrTimeline.reset();
+        mHrDataset = mPlotHr ? mHrSeries.getDataset() : null;
+        mRrDataset = mPlotRr ? mRrSeries.getDataset() : null;
+        mActDataset = mPlotAct ? mActSeries.getDataset() : null;
+        mPaDataset = mPlotPa ? mPaSeries.getDataset() : null;
+    }
+
+    /**
+     * Creates an empty series. Sessions use a TimeSeries, decimated if
+     * requested since only sessions can be long enough to need it. Live
+     * plots use a circular buffer holding the plot interval.
+     *
+     * @param name The name of the series.
+     * @return The series.
+     */
+    private PlotSeries createSeries(String name) {
+        if (mIsSession) {
+            return new PlotSeries(name, mPlotDecimate);
+        }
+        return new PlotSeries(name, mPlotInterval,
+                mPlotInterval / PLOT_LIVE_MIN_SPACING + 1);
+    }
+
+    /**
+     * Cancels any pending notifications from the current series.
+     */
+    private void stopDatasets() {
+        PlotSeries[] seriesList = {mHrSeries, mRrSeries, mActSeries,
+                mPaSeries};
+        for (PlotSeries series : seriesList) {
+            if (series != null) {
+                series.stop();
             }
         }
-        if (mPlotAct && mActSeries != null) {
-            strValue = intent.getStringExtra(EXTRA_ACT);
-            if (strValue != null && strValue.length() > 0) {
-                try {
-                    value = Double.parseDouble(strValue);
-                } catch (NumberFormatException ex) {
-                    value = Double.NaN;
+    }
+
+    /**
+     * Starts loading the data from the database into the current series in
+     * the background, cancelling any load in progress.
+     *
+     * @param start      The start of the range to load.
+     * @param end        The end of the range to load.
+     * @param resolution The rollup resolution or 0 to use the data table.
+     */
+    private void startLoad(long start, long end, long resolution) {
+        cancelLoad();
+        if (mDbAdapter == null) {
+            return;
+        }
+        mLoadStart = start;
+        mLoadEnd = end;
+        mLoadResolution = resolution;
+        mLoader = new DatasetLoader(start, end, resolution);
+        mExecutor.execute(mLoader);
+    }
+
+    /**
+     * Cancels the load in progress, if any. Pages that have already been
+     * added stay in the series.
+     */
+    private void cancelLoad() {
+        if (mLoader != null) {
+            mLoader.cancel();
+            mLoader = null;
+        }
+    }
+
+    /**
+     * Schedules a call to decimate. Used when the domain axis changes, which
+     * can happen many times during a zoom.
+     */
+    private void postDecimate() {
+        if (!mDecimating && !mDecimatePosted) {
+            mDecimatePosted = true;
+            mHandler.post(mDecimateRunnable);
+        }
+    }
+
+    /**
+     * Recomputes the decimated series for the visible domain, or for all the
+     * data if the domain axis is auto ranging. Does nothing if the series
+     * are not decimated.
+     */
+    private void decimate() {
+        if (mDecimating || mChart == null || mView == null) {
+            return;
+        }
+        PlotSeries[] seriesList = {mHrSeries, mRrSeries, mActSeries,
+                mPaSeries};
+        ValueAxis axis = ((XYPlot) mChart.getPlot()).getDomainAxis();
+        double lower = Double.NaN;
+        double upper = Double.NaN;
+        if (axis.isAutoRange()) {
+            long time;
+            for (PlotSeries series : seriesList) {
+                if (series == null || !series.isDecimated()) {
+                    continue;
+                }
+                time = series.getFirstTime();
+                if (time != INVALID_DATE && !(time >= lower)) {
+                    lower = time;
                 }
-                if (value == INVALID_INT) {
-                    value = Double.NaN;
+                time = series.getLastTime();
+                if (time != INVALID_DATE && !(time <= upper)) {
+                    upper = time;
                 }
-                mActSeries
-                        .addOrUpdate(new FixedMillisecond(date), value / 100.);
             }
+        } else {
+            lower = axis.getLowerBound();
+            upper = axis.getUpperBound();
         }
-        if (mPlotPa && mPaSeries != null) {
-            strValue = intent.getStringExtra(EXTRA_PA);
-            if (strValue != null && strValue.length() > 0) {
-                try {
-                    value = Double.parseDouble(strValue);
-                } catch (NumberFormatException ex) {
-                    value = Double.NaN;
-                }
-                if (value == INVALID_INT) {
-                    value = Double.NaN;
+        if (Double.isNaN(lower) || Double.isNaN(upper)) {
+            return;
+        }
+        int buckets = getPlotWidth();
+        mDecimating = true;
+        try {
+            for (PlotSeries series : seriesList) {
+                if (series != null) {
+                    series.decimate(lower, upper, buckets);
                 }
-                mPaSeries.addOrUpdate(new FixedMillisecond(date), value / 100.);
             }
+        } finally {
+            mDecimating = false;
         }
     }
 
     /**
-     * Creates the data sets and series.
+     * Loads the data for the plot from the database, or from a session
+     * archive, a page at a time on the executor thread and adds each page
+     * to the series on the UI thread, so the plot fills in progressively.
+     * Two page buffers are used, so the next page is read while the
+     * previous one is being added. From the database either the rows of the
+     * data table or the rollups for a resolution are loaded. For the
+     * rollups each bucket gives two points, the minimum at the start of the
+     * bucket and the maximum half way through it.
      */
-    private void createDatasets() {
-        Log.d(TAG, "Creating datasets");
-        if (mPlotHr) {
-            mHrSeries = new TimeSeries("HR");
-            if (!mIsSession) {
-                mHrSeries.setMaximumItemAge(mPlotInterval);
-            }
-        } else {
-            mHrSeries = null;
+    private class DatasetLoader implements Runnable {
+        private final ArrayBlockingQueue<DataBatch> mFree =
+                new ArrayBlockingQueue<>(2);
+        private final boolean mSession = mIsSession;
+        private final Uri mArchive = mArchiveUri;
+        private final long mStart = mIsSession ? mPlotSessionStart
+                : mPlotStartTime;
+        private final PlotSeries mHr = mPlotHr ? mHrSeries : null;
+        private final PlotSeries mRr = mPlotRr ? mRrSeries : null;
+        private final PlotSeries mAct = mPlotAct ? mActSeries : null;
+        private final PlotSeries mPa = mPlotPa ? mPaSeries : null;
+        private final RrTimeline mRrTimeline = new RrTimeline();
+        private final long mStartTime = System.currentTimeMillis();
+        // The range to load
+        private final long mFrom;
+        private final long mTo;
+        private final long mResolution;
+        private volatile boolean mCancelled;
+        // Used on the UI thread
+        private int mNRows;
+        private int mNPages;
+
+        /**
+         * Constructor.
+         *
+         * @param from       The start of the range to load.
+         * @param to         The end of the range to load.
+         * @param resolution The rollup resolution or 0 to use the data
+         *                   table.
+         */
+        private DatasetLoader(long from, long to, long resolution) {
+            mFrom = from;
+            mTo = to;
+            mResolution = resolution;
+            mFree.add(new DataBatch(PLOT_PAGE_SIZE));
+            mFree.add(new DataBatch(PLOT_PAGE_SIZE));
         }
-        if (mPlotRr) {
-            mRrSeries = new TimeSeries("RR");
-            if (!mIsSession) {
-                mRrSeries.setMaximumItemAge(mPlotInterval);
-            }
-        } else {
-            mRrSeries = null;
+
+        private void cancel() {
+            mCancelled = true;
         }
-        if (mPlotAct) {
-            mActSeries = new TimeSeries("ACT");
-            if (!mIsSession) {
-                mActSeries.setMaximumItemAge(mPlotInterval);
+
+        @Override
+        public void run() {
+            try {
+                if (mArchive != null) {
+                    loadArchive();
+                } else if (mResolution > 0) {
+                    loadRollups();
+                } else {
+                    loadDatabase();
+                }
+            } catch (InterruptedException ex) {
+                // Cancelled
+            } catch (final Exception ex) {
+                if (!mCancelled) {
+                    runOnUiThread(() -> {
+                        if (!mCancelled) {
+                            Utils.excMsg(PlotActivity.this,
+                                    "Error creating datasets", ex);
+                        }
+                    });
+                }
             }
-        } else {
-            mActSeries = null;
         }
-        if (mPlotPa) {
-            mPaSeries = new TimeSeries("PA");
-            if (!mIsSession) {
-                mPaSeries.setMaximumItemAge(mPlotInterval);
+
+        /**
+         * Waits for a free page buffer.
+         *
+         * @return The cleared buffer or null if cancelled.
+         * @throws InterruptedException If interrupted.
+         */
+        private DataBatch nextFree() throws InterruptedException {
+            DataBatch batch = null;
+            while (batch == null) {
+                if (mCancelled) {
+                    return null;
+                }
+                batch = mFree.poll(100, TimeUnit.MILLISECONDS);
             }
-        } else {
-            mPaSeries = null;
+            batch.clear();
+            return batch;
         }
-        if (!mIsSession) {
-            try {
-                mHrSeries.setMaximumItemAge(mPlotInterval);
-                mRrSeries.setMaximumItemAge(mPlotInterval);
-            } catch (Exception ex) {
-                Utils.excMsg(this, "createDatasets: Error setting maximum age" +
-                        ".", ex);
+
+        /**
+         * Reads the pages from the database.
+         *
+         * @throws Exception If the data could not be read.
+         */
+        private void loadDatabase() throws Exception {
+            // Only part of a session may be wanted, so start after the
+            // last row before it
+            long afterDate = mFrom - 1;
+            long afterId = Long.MAX_VALUE;
+            DataBatch batch;
+            boolean last = false;
+            while (!last) {
+                batch = nextFree();
+                if (batch == null) {
+                    return;
+                }
+                try (Cursor cursor = mSession
+                        ? mDbAdapter.fetchHrRrActPaDatePageForStartDate(
+                        mStart, afterDate, afterId, PLOT_PAGE_SIZE)
+                        : mDbAdapter.fetchHrRrActPaDatePageStartingAtDate(
+                        mStart, afterDate, afterId, PLOT_PAGE_SIZE)) {
+                    if (cursor == null) {
+                        return;
+                    }
+                    int indexId = cursor.getColumnIndex(COL_ID);
+                    int indexDate = cursor.getColumnIndex(COL_DATE);
+                    int indexHr = cursor.getColumnIndex(COL_HR);
+                    int indexRr = mRr != null
+                            ? cursor.getColumnIndex(COL_RR) : -1;
+                    int indexAct = cursor.getColumnIndex(COL_ACT);
+                    int indexPa = cursor.getColumnIndex(COL_PA);
+                    int[] rr;
+                    int nRows = 0;
+                    while (cursor.moveToNext()) {
+                        nRows++;
+                        afterId = cursor.getLong(indexId);
+                        afterDate = cursor.getLong(indexDate);
+                        if (afterDate > mTo) {
+                            nRows = 0;
+                            break;
+                        }
+                        rr = HxMMonitorDbAdapter.getRr(cursor, indexRr);
+                        batch.add(afterDate, mStart,
+                                cursor.getInt(indexHr), rr,
+                                rr == null ? 0 : rr.length,
+                                cursor.getInt(indexAct),
+                                cursor.getInt(indexPa));
+                    }
+                    last = nRows < PLOT_PAGE_SIZE;
+                }
+                final DataBatch page = batch;
+                final boolean done = last;
+                runOnUiThread(() -> addPage(page, done));
             }
         }
-        mLastRrTime = INVALID_DATE;
-        mLastRrUpdateTime = INVALID_DATE;
-        Cursor cursor = null;
-        int nHrItems = 0, nRrItems = 0, nActItems = 0, nPaItems = 0;
-        int nErrors = 0;
-        boolean res;
-        try {
-            if (mDbAdapter != null) {
-                if (mIsSession) {
-                    cursor = mDbAdapter
-                            .fetchAllHrRrActPaDateDataForStartDate
-                                    (mPlotSessionStart);
-                } else {
-                    cursor = mDbAdapter
-                            .fetchAllHrRrActPaDateDataStartingAtDate
-                                    (mPlotStartTime);
+
+        /**
+         * Reads the rollups from the database, a page at a time.
+         *
+         * @throws Exception If the rollups could not be read.
+         */
+        private void loadRollups() throws Exception {
+            DataBatch batch = nextFree();
+            if (batch == null) {
+                return;
+            }
+            try (Cursor cursor = mDbAdapter.fetchRollupsForDates(
+                    mResolution, mFrom, mTo)) {
+                if (cursor == null) {
+                    return;
                 }
                 int indexDate = cursor.getColumnIndex(COL_DATE);
-                int indexHr = mPlotHr ? cursor.getColumnIndex(COL_HR) : -1;
-                int indexRr = mPlotRr ? cursor.getColumnIndex(COL_RR) : -1;
-                int indexAct = mPlotAct ? cursor.getColumnIndex(COL_ACT) : -1;
-                int indexPa = mPlotPa ? cursor.getColumnIndex(COL_PA) : -1;
-
-                // Loop over items
-                cursor.moveToFirst();
+                int indexHrMin = cursor.getColumnIndex(COL_HR_MIN);
+                int indexHrMax = cursor.getColumnIndex(COL_HR_MAX);
+                int indexActMin = cursor.getColumnIndex(COL_ACT_MIN);
+                int indexActMax = cursor.getColumnIndex(COL_ACT_MAX);
+                int indexPaMin = cursor.getColumnIndex(COL_PA_MIN);
+                int indexPaMax = cursor.getColumnIndex(COL_PA_MAX);
                 long date;
-                double hr, act, pa;
-                String rrString;
-                while (!cursor.isAfterLast()) {
-                    date = cursor.getLong(indexDate);
-                    if (indexHr > -1) {
-                        hr = cursor.getInt(indexHr);
-                        if (hr == INVALID_INT) {
-                            hr = Double.NaN;
-                        }
-                        mHrSeries.addOrUpdate(new FixedMillisecond(date), hr);
-                        nHrItems++;
-                    }
-                    if (indexRr > -1) {
-                        rrString = cursor.getString(indexRr);
-                        if (nRrItems == 0) {
-                            mLastRrUpdateTime = date;
-                            mLastRrTime = date - INITIAL_RR_START_TIME;
+                while (cursor.moveToNext()) {
+                    if (batch.size() + 2 > batch.capacity()) {
+                        final DataBatch page = batch;
+                        runOnUiThread(() -> addPage(page, false));
+                        batch = nextFree();
+                        if (batch == null) {
+                            return;
                         }
-                        res = addRrValues(mRrSeries, date, rrString);
-                        nRrItems++;
-                        if (!res) {
-                            nErrors++;
-                        }
-                    }
-                    if (indexAct > -1) {
-                        act = cursor.getInt(indexAct);
-                        if (act == INVALID_INT) {
-                            act = Double.NaN;
-                        }
-                        mActSeries.addOrUpdate(new FixedMillisecond(date),
-                                act / 100.);
-                        nActItems++;
                     }
-                    if (indexPa > -1) {
-                        pa = cursor.getInt(indexPa);
-                        if (pa == INVALID_INT) {
-                            pa = Double.NaN;
-                        }
-                        mPaSeries.addOrUpdate(new FixedMillisecond(date),
-                                pa / 100.);
-                        nPaItems++;
-                    }
-                    cursor.moveToNext();
+                    date = cursor.getLong(indexDate);
+                    batch.add(date, mStart, getInt(cursor, indexHrMin),
+                            null, 0, getInt(cursor, indexActMin),
+                            getInt(cursor, indexPaMin));
+                    batch.add(date + mResolution / 2, mStart,
+                            getInt(cursor, indexHrMax), null, 0,
+                            getInt(cursor, indexActMax),
+                            getInt(cursor, indexPaMax));
                 }
             }
-        } catch (Exception ex) {
-            Utils.excMsg(this, "Error creating datasets", ex);
-        } finally {
-            try {
-                if (cursor != null) cursor.close();
-            } catch (Exception ex) {
-                // Do nothing
-            }
-        }
-        if (nErrors > 0) {
-            Utils.errMsg(this, nErrors + " creating RR dataset");
+            final DataBatch page = batch;
+            runOnUiThread(() -> addPage(page, true));
         }
-        if (mPlotHr) {
-            Log.d(TAG, "HR dataset created with " + nHrItems + " items");
-            mHrDataset = new TimeSeriesCollection();
-            mHrDataset.addSeries(mHrSeries);
+
+        /**
+         * Gets an int from the cursor.
+         *
+         * @param cursor The cursor.
+         * @param index  The column index.
+         * @return The value or INVALID_INT if it is null.
+         */
+        private int getInt(Cursor cursor, int index) {
+            return cursor.isNull(index) ? INVALID_INT : cursor.getInt(index);
         }
-        if (mPlotRr) {
-            Log.d(TAG, "RR dataset created with " + nRrItems
-                    + " items nErrors=" + nErrors);
-            mRrDataset = new TimeSeriesCollection();
-            mRrDataset.addSeries(mRrSeries);
+
+        /**
+         * Reads the pages from the session archive, which is memory mapped
+         * rather than imported into the database.
+         *
+         * @throws Exception If the archive could not be read.
+         */
+        private void loadArchive() throws Exception {
+            ParcelFileDescriptor pfd = getContentResolver()
+                    .openFileDescriptor(mArchive, "r");
+            if (pfd == null) {
+                throw new FileNotFoundException("Could not open "
+                        + mArchive.getLastPathSegment());
+            }
+            try (FileChannel channel =
+                         new ParcelFileDescriptor.AutoCloseInputStream(pfd)
+                                 .getChannel();
+                 SessionArchiveReader reader =
+                         new SessionArchiveReader(channel)) {
+                DataBatch batch;
+                boolean more = true;
+                while (more) {
+                    batch = nextFree();
+                    if (batch == null) {
+                        return;
+                    }
+                    more = reader.read(batch);
+                    final DataBatch page = batch;
+                    final boolean done = !more;
+                    runOnUiThread(() -> addPage(page, done));
+                }
+            }
         }
-        if (mPlotAct) {
-            Log.d(TAG, "ACT dataset created with " + nActItems + " items");
-            mActDataset = new TimeSeriesCollection();
-            mActDataset.addSeries(mActSeries);
+
+        /**
+         * Adds a page to the series. Called on the UI thread.
+         *
+         * @param page The page.
+         * @param done Whether this is the last page.
+         */
+        private void addPage(DataBatch page, boolean done) {
+            if (mCancelled) {
+                return;
+            }
+            setNotify(false);
+            int size = page.size();
+            long date;
+            int value;
+            for (int i = 0; i < size; i++) {
+                date = page.getDate(i);
+                if (mHr != null) {
+                    value = page.getHr(i);
+                    mHr.addOrUpdate(date,
+                            value == INVALID_INT ? Double.NaN : value);
+                }
+                if (mRr != null) {
+                    addRrValues(mRr, mRrTimeline, date,
+                            page.getRrCount(i) == INVALID_INT ? null
+                                    : page.getRr(i), page.getRrCount(i));
+                }
+                if (mAct != null) {
+                    value = page.getActivity(i);
+                    mAct.addOrUpdate(date,
+                            value == INVALID_INT ? Double.NaN : value / 100.);
+                }
+                if (mPa != null) {
+                    value = page.getPa(i);
+                    mPa.addOrUpdate(date,
+                            value == INVALID_INT ? Double.NaN : value / 100.);
+                }
+                mNRows++;
+            }
+            // Turning notification back on redraws the plot once per page
+            setNotify(true);
+            decimate();
+            mNPages++;
+            mFree.offer(page);
+            if (done) {
+                Log.d(TAG, "Datasets created with " + mNRows + " rows in "
+                        + mNPages + " pages in "
+                        + (System.currentTimeMillis() - mStartTime)
+                        + " ms RR scale=" + mRrTimeline.getScale()
+                        + " RR gaps=" + mRrTimeline.getGaps());
+                if (mLoader == this) {
+                    mLoader = null;
+                }
+            }
         }
-        if (mPlotPa) {
-            Log.d(TAG, "PA dataset created with " + nPaItems + " items");
-            mPaDataset = new TimeSeriesCollection();
-            mPaDataset.addSeries(mPaSeries);
+
+        private void setNotify(boolean notify) {
+            if (mHr != null) mHr.setNotify(notify);
+            if (mRr != null) mRr.setNotify(notify);
+            if (mAct != null) mAct.setNotify(notify);
+            if (mPa != null) mPa.setNotify(notify);
         }
     }
 
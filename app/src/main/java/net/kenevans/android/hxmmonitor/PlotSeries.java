@@ -0,0 +1,219 @@
+package net.kenevans.android.hxmmonitor;
+
+import org.afree.data.time.FixedMillisecond;
+import org.afree.data.time.TimeSeries;
+import org.afree.data.time.TimeSeriesCollection;
+import org.afree.data.xy.XYDataset;
+
+/**
+ * Wraps the dataset for one plotted quantity. For a live plot the values go
+ * into a LiveXYDataset. Otherwise they go into a TimeSeries. If decimation
+ * is off the values go straight into the TimeSeries. If it is on, they are
+ * kept at full resolution in a Decimator, and the TimeSeries only holds
+ * the minimum and maximum of each pixel-wide bucket in the visible range,
+ * which is recomputed by calling decimate when the range changes. Invalid
+ * values (NaN) are kept, so gaps in the data still show.
+ */
+public class PlotSeries implements IConstants {
+    private final String mName;
+    private final XYDataset mDataset;
+    // Exactly one of these is set
+    private final TimeSeries mSeries;
+    private final LiveXYDataset mLive;
+    // The full resolution data, if decimating
+    private final Decimator mDecimator;
+    private final Decimator.Sink mSink;
+    // The parameters of the last decimation
+    private double mLastLower = Double.NaN;
+    private double mLastUpper = Double.NaN;
+    private int mLastBuckets;
+    private int mLastSize = -1;
+
+    /**
+     * Constructor.
+     *
+     * @param name     The name of the series.
+     * @param decimate Whether to decimate.
+     */
+    public PlotSeries(String name, boolean decimate) {
+        mName = name;
+        mSeries = new TimeSeries(name);
+        mDataset = new TimeSeriesCollection(mSeries);
+        mLive = null;
+        if (decimate) {
+            mDecimator = new Decimator();
+            mSink = (time, value) -> mSeries.add(new FixedMillisecond(time),
+                    value, false);
+        } else {
+            mDecimator = null;
+            mSink = null;
+        }
+    }
+
+    /**
+     * Constructor for a live plot. Values older than the maximum age
+     * relative to the latest one are removed.
+     *
+     * @param name           The name of the series.
+     * @param maximumItemAge The maximum age (ms).
+     * @param capacity       The maximum number of values.
+     */
+    public PlotSeries(String name, long maximumItemAge, int capacity) {
+        mName = name;
+        mSeries = null;
+        mLive = new LiveXYDataset(name, maximumItemAge, capacity);
+        mDataset = mLive;
+        mDecimator = null;
+        mSink = null;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Gets the dataset to be used in the plot.
+     *
+     * @return The dataset.
+     */
+    public XYDataset getDataset() {
+        return mDataset;
+    }
+
+    public boolean isDecimated() {
+        return mDecimator != null;
+    }
+
+    /**
+     * Gets the number of values in the series at full resolution.
+     *
+     * @return The number of values.
+     */
+    public int getItemCount() {
+        if (mLive != null) {
+            return mLive.getItemCount(0);
+        }
+        return mDecimator != null ? mDecimator.size()
+                : mSeries.getItemCount();
+    }
+
+    /**
+     * Gets the number of values currently in the dataset.
+     *
+     * @return The number of values.
+     */
+    public int getShownItemCount() {
+        return mDataset.getItemCount(0);
+    }
+
+    /**
+     * Gets the earliest time.
+     *
+     * @return The time or INVALID_DATE if there are no values.
+     */
+    public long getFirstTime() {
+        if (mLive != null) {
+            return mLive.getItemCount(0) == 0 ? INVALID_DATE
+                    : mLive.getTime(0);
+        }
+        if (mDecimator != null) {
+            return mDecimator.size() == 0 ? INVALID_DATE
+                    : mDecimator.getTime(0);
+        }
+        return mSeries.getItemCount() == 0 ? INVALID_DATE
+                : mSeries.getTimePeriod(0).getFirstMillisecond();
+    }
+
+    /**
+     * Gets the latest time.
+     *
+     * @return The time or INVALID_DATE if there are no values.
+     */
+    public long getLastTime() {
+        if (mLive != null) {
+            int count = mLive.getItemCount(0);
+            return count == 0 ? INVALID_DATE : mLive.getTime(count - 1);
+        }
+        if (mDecimator != null) {
+            int size = mDecimator.size();
+            return size == 0 ? INVALID_DATE : mDecimator.getTime(size - 1);
+        }
+        int count = mSeries.getItemCount();
+        return count == 0 ? INVALID_DATE
+                : mSeries.getTimePeriod(count - 1).getFirstMillisecond();
+    }
+
+    /**
+     * Sets whether the dataset notifies its listeners of changes. Only used
+     * if not decimating, since the TimeSeries only changes in decimate
+     * otherwise.
+     *
+     * @param notify Whether to notify. Turning it on sends a notification.
+     */
+    public void setNotify(boolean notify) {
+        if (mLive != null) {
+            mLive.setNotify(notify);
+        } else if (mDecimator == null) {
+            mSeries.setNotify(notify);
+        }
+    }
+
+    /**
+     * Adds a value or replaces the value if there is already one at the
+     * given time.
+     *
+     * @param time  The time.
+     * @param value The value.
+     */
+    public void addOrUpdate(long time, double value) {
+        if (mLive != null) {
+            mLive.addOrUpdate(time, value);
+        } else if (mDecimator != null) {
+            mDecimator.addOrUpdate(time, value);
+        } else {
+            mSeries.addOrUpdate(new FixedMillisecond(time), value);
+        }
+    }
+
+    /**
+     * Cancels any pending notification for a live plot.
+     */
+    public void stop() {
+        if (mLive != null) {
+            mLive.stop();
+        }
+    }
+
+    /**
+     * Fills the TimeSeries with the values picked by the Decimator for the
+     * given number of buckets between lower and upper. Does nothing if not
+     * decimating or if nothing has changed since the last call.
+     *
+     * @param lower   The start of the visible range.
+     * @param upper   The end of the visible range.
+     * @param buckets The number of buckets, typically the width in pixels.
+     * @return If the TimeSeries was changed.
+     */
+    public boolean decimate(double lower, double upper, int buckets) {
+        if (mDecimator == null) {
+            return false;
+        }
+        int size = mDecimator.size();
+        if (lower == mLastLower && upper == mLastUpper
+                && buckets == mLastBuckets && size == mLastSize) {
+            return false;
+        }
+        mLastLower = lower;
+        mLastUpper = upper;
+        mLastBuckets = buckets;
+        mLastSize = size;
+
+        mSeries.setNotify(false);
+        mSeries.clear();
+        mDecimator.decimate(lower, upper, buckets, mSink);
+        // This notifies the listeners
+        mSeries.setNotify(true);
+        return true;
+    }
+
+}
@@ -0,0 +1,237 @@
+package net.kenevans.android.hxmmonitor;
+
+import android.os.Handler;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-process publish/subscribe bus for samples from the HxMBleService. Each
+ * subscriber is called on the thread of its own Handler with pooled
+ * SampleRecords, so nothing is marshalled or formatted as text.<br>
+ * <br>
+ * A subscriber that coalesces only gets the latest record of each type that
+ * arrived since its last callback, which is enough for displaying current
+ * values. Otherwise it gets every record, up to SAMPLE_BUS_MAX_QUEUE
+ * pending, after which the oldest are dropped.
+ */
+public class SampleBus implements IConstants {
+    private static final String TAG = "HxMSampleBus";
+
+    /**
+     * Interface for receiving samples.
+     */
+    public interface Listener {
+        /**
+         * Called for each sample on the thread of the Handler used to
+         * subscribe. The record is reused after this returns.
+         *
+         * @param record The record.
+         */
+        void onSample(SampleRecord record);
+    }
+
+    private final CopyOnWriteArrayList<Subscriber> mSubscribers =
+            new CopyOnWriteArrayList<>();
+    private final Object mPoolLock = new Object();
+    private final SampleRecord[] mPool =
+            new SampleRecord[SAMPLE_BUS_POOL_SIZE];
+    private int mPoolSize;
+
+    /**
+     * Adds a subscriber. Does nothing if the listener is already subscribed.
+     *
+     * @param listener The listener.
+     * @param handler  The Handler for the thread the listener is called on.
+     * @param coalesce Whether to only deliver the latest record of each
+     *                 type.
+     */
+    public void subscribe(Listener listener, Handler handler,
+                          boolean coalesce) {
+        if (findSubscriber(listener) != null) {
+            return;
+        }
+        mSubscribers.add(new Subscriber(listener, handler, coalesce));
+    }
+
+    /**
+     * Removes a subscriber. Pending records are discarded and the listener
+     * is not called again.
+     *
+     * @param listener The listener.
+     */
+    public void unsubscribe(Listener listener) {
+        Subscriber subscriber = findSubscriber(listener);
+        if (subscriber == null) {
+            return;
+        }
+        mSubscribers.remove(subscriber);
+        subscriber.cancel();
+    }
+
+    /**
+     * Publishes a record to all the subscribers. The record is copied, so
+     * the caller may reuse it.
+     *
+     * @param record The record.
+     */
+    public void publish(SampleRecord record) {
+        for (Subscriber subscriber : mSubscribers) {
+            subscriber.enqueue(record);
+        }
+    }
+
+    /**
+     * Gets whether there are any subscribers.
+     *
+     * @return If there are subscribers.
+     */
+    public boolean hasSubscribers() {
+        return !mSubscribers.isEmpty();
+    }
+
+    private Subscriber findSubscriber(Listener listener) {
+        for (Subscriber subscriber : mSubscribers) {
+            if (subscriber.mListener == listener) {
+                return subscriber;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets a record from the pool or creates a new one.
+     *
+     * @return The record.
+     */
+    private SampleRecord obtain() {
+        synchronized (mPoolLock) {
+            if (mPoolSize > 0) {
+                SampleRecord record = mPool[--mPoolSize];
+                mPool[mPoolSize] = null;
+                return record;
+            }
+        }
+        return new SampleRecord();
+    }
+
+    /**
+     * Returns a record to the pool if there is room.
+     *
+     * @param record The record.
+     */
+    private void recycle(SampleRecord record) {
+        synchronized (mPoolLock) {
+            if (mPoolSize < mPool.length) {
+                mPool[mPoolSize++] = record;
+            }
+        }
+    }
+
+    /**
+     * Holds the pending records for one listener and delivers them on its
+     * Handler.
+     */
+    private class Subscriber implements Runnable {
+        private final Listener mListener;
+        private final Handler mHandler;
+        private final boolean mCoalesce;
+        // Guarded by this
+        private final ArrayDeque<SampleRecord> mQueue;
+        private final SampleRecord[] mLatest;
+        private boolean mPosted;
+        private boolean mCancelled;
+        private long mDropped;
+
+        private Subscriber(Listener listener, Handler handler,
+                           boolean coalesce) {
+            mListener = listener;
+            mHandler = handler;
+            mCoalesce = coalesce;
+            mQueue = coalesce ? null : new ArrayDeque<SampleRecord>();
+            mLatest = coalesce ? new SampleRecord[SampleRecord.N_TYPES] : null;
+        }
+
+        private void enqueue(SampleRecord record) {
+            boolean post;
+            SampleRecord dropped = null;
+            synchronized (this) {
+                if (mCancelled) {
+                    return;
+                }
+                if (mCoalesce) {
+                    int type = record.getType();
+                    if (mLatest[type] == null) {
+                        mLatest[type] = obtain();
+                    }
+                    mLatest[type].copyFrom(record);
+                } else {
+                    if (mQueue.size() >= SAMPLE_BUS_MAX_QUEUE) {
+                        dropped = mQueue.poll();
+                        if (mDropped++ == 0) {
+                            Log.w(TAG, "Subscriber is not keeping up, "
+                                    + "dropping samples");
+                        }
+                    }
+                    SampleRecord copy = obtain();
+                    copy.copyFrom(record);
+                    mQueue.add(copy);
+                }
+                post = !mPosted;
+                mPosted = true;
+            }
+            if (dropped != null) {
+                recycle(dropped);
+            }
+            if (post) {
+                mHandler.post(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            SampleRecord record;
+            while (true) {
+                synchronized (this) {
+                    if (mCancelled) {
+                        return;
+                    }
+                    record = null;
+                    if (mCoalesce) {
+                        for (int type = 0; type < SampleRecord.N_TYPES;
+                             type++) {
+                            if (mLatest[type] != null) {
+                                record = mLatest[type];
+                                mLatest[type] = null;
+                                break;
+                            }
+                        }
+                    } else {
+                        record = mQueue.poll();
+                    }
+                    if (record == null) {
+                        mPosted = false;
+                        return;
+                    }
+                }
+                try {
+                    mListener.onSample(record);
+                } finally {
+                    recycle(record);
+                }
+            }
+        }
+
+        private void cancel() {
+            mHandler.removeCallbacks(this);
+            synchronized (this) {
+                mCancelled = true;
+                if (mQueue != null) {
+                    mQueue.clear();
+                }
+            }
+        }
+    }
+
+}
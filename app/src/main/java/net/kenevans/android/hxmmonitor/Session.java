@@ -6,6 +6,10 @@ public class Session implements IConstants {
     private String name;
     private long startDate;
     private long endDate;
+    private int sampleCount;
+    private int hrMin = INVALID_INT;
+    private int hrMax = INVALID_INT;
+    private double hrMean = Double.NaN;
     private boolean checked = false;
     private CheckBox checkBox;
 
@@ -39,6 +43,54 @@ public class Session implements IConstants {
         this.endDate = endDate;
     }
 
+    public int getSampleCount() {
+        return sampleCount;
+    }
+
+    public void setSampleCount(int sampleCount) {
+        this.sampleCount = sampleCount;
+    }
+
+    /**
+     * Gets the minimum HR.
+     *
+     * @return The minimum HR or INVALID_INT if there are no valid values.
+     */
+    public int getHrMin() {
+        return hrMin;
+    }
+
+    /**
+     * Gets the maximum HR.
+     *
+     * @return The maximum HR or INVALID_INT if there are no valid values.
+     */
+    public int getHrMax() {
+        return hrMax;
+    }
+
+    /**
+     * Gets the mean HR.
+     *
+     * @return The mean HR or NaN if there are no valid values.
+     */
+    public double getHrMean() {
+        return hrMean;
+    }
+
+    /**
+     * Sets the HR statistics.
+     *
+     * @param hrMin  The minimum HR.
+     * @param hrMax  The maximum HR.
+     * @param hrMean The mean HR.
+     */
+    public void setHrStats(int hrMin, int hrMax, double hrMean) {
+        this.hrMin = hrMin;
+        this.hrMax = hrMax;
+        this.hrMean = hrMean;
+    }
+
     public long getDuration() {
         return endDate - startDate;
     }
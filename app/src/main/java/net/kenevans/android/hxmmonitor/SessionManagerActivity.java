@@ -5,16 +5,21 @@ import android.app.AlertDialog;
 import android.app.ProgressDialog;
 import android.content.ContentResolver;
 import android.content.Context;
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.content.pm.PackageInfo;
+import android.content.res.AssetFileDescriptor;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
+import android.preference.PreferenceManager;
 import android.provider.DocumentsContract;
+import android.support.v4.app.Fragment;
+import android.support.v4.app.FragmentManager;
 import android.support.v7.app.ActionBar;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
@@ -28,22 +33,35 @@ import android.widget.CheckBox;
 import android.widget.ListView;
 import android.widget.TextView;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
-import java.io.InputStreamReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.WritableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class SessionManagerActivity extends AppCompatActivity implements IConstants {
+    private static final int EXPORT_CSV = 0;
+    private static final int EXPORT_COMBINED = 1;
+    private static final int EXPORT_GPX = 2;
+    private static final int EXPORT_TCX = 3;
+    private static final int EXPORT_ARCHIVE = 4;
+    private static final String EXPORT_FRAGMENT_TAG = "ExportFragment";
+
     private SessionListAdapter mSessionListAdapter;
     private HxMMonitorDbAdapter mDbAdapter;
     private RestoreTask mRestoreTask;
+    private ExportFragment mExportFragment;
     private ListView mListView;
 
     @Override
@@ -63,6 +81,16 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
 
         mDbAdapter = new HxMMonitorDbAdapter(this);
         mDbAdapter.open();
+
+        // The export, if any, is kept when the activity is recreated
+        FragmentManager fm = getSupportFragmentManager();
+        mExportFragment = (ExportFragment) fm.findFragmentByTag(
+                EXPORT_FRAGMENT_TAG);
+        if (mExportFragment == null) {
+            mExportFragment = new ExportFragment();
+            fm.beginTransaction().add(mExportFragment, EXPORT_FRAGMENT_TAG)
+                    .commit();
+        }
     }
 
     @Override
@@ -118,6 +146,15 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
         } else if (item.getItemId() == R.id.menu_save_gpx) {
             saveSessionsAsGpx();
             return true;
+        } else if (item.getItemId() == R.id.menu_save_tcx) {
+            saveSessionsAsTcx();
+            return true;
+        } else if (item.getItemId() == R.id.menu_save_archive) {
+            saveSessionsAsArchive();
+            return true;
+        } else if (item.getItemId() == R.id.menu_plot_archive) {
+            checkPlotArchive();
+            return true;
         } else if (item.getItemId() == R.id.menu_refresh) {
             refresh();
             return true;
@@ -163,6 +200,61 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
         startActivity(intent);
     }
 
+    /**
+     * Prompts for a session archive in the data directory and calls the
+     * plot activity for it.
+     */
+    private void checkPlotArchive() {
+        Uri treeUri = getTreeUri();
+        if (treeUri == null) {
+            return;
+        }
+        final List<UriUtils.UriData> children =
+                UriUtils.getChildren(this, treeUri, ARCHIVE_EXTENSION);
+        final int len = children.size();
+        if (len == 0) {
+            Utils.errMsg(this, "There are no " + ARCHIVE_EXTENSION
+                    + " files in the data directory");
+            return;
+        }
+        // Sort them by date with newest first
+        Collections.sort(children,
+                (data1, data2) -> Long.compare(data2.modifiedTime,
+                        data1.modifiedTime));
+
+        // Prompt for the file to use
+        final CharSequence[] items = new CharSequence[len];
+        String displayName;
+        UriUtils.UriData uriData;
+        for (int i = 0; i < len; i++) {
+            uriData = children.get(i);
+            displayName = uriData.displayName;
+            if (displayName == null) {
+                displayName = uriData.uri.getLastPathSegment();
+            }
+            items[i] = displayName;
+        }
+        AlertDialog.Builder builder = new AlertDialog.Builder(this);
+        builder.setTitle(getText(R.string.select_plot_archive));
+        builder.setSingleChoiceItems(items, 0,
+                (dialog, item) -> {
+                    dialog.dismiss();
+                    if (item < 0 || item >= len) {
+                        Utils.errMsg(SessionManagerActivity.this,
+                                "Invalid item");
+                        return;
+                    }
+                    Intent intent = new Intent(SessionManagerActivity.this,
+                            PlotActivity.class);
+                    intent.putExtra(PLOT_SESSION_CODE, true);
+                    intent.putExtra(PLOT_ARCHIVE_URI_CODE,
+                            children.get(item).uri.toString());
+                    startActivity(intent);
+                });
+        AlertDialog alert = builder.create();
+        alert.show();
+    }
+
     /**
      * Merges the selected sessions.
      */
@@ -187,65 +279,12 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
             Utils.errMsg(this, "There are no sessions to save");
             return;
         }
-        // Get the saved tree Uri
-        SharedPreferences prefs = getSharedPreferences(MAIN_ACTIVITY,
-                MODE_PRIVATE);
-        String treeUriStr = prefs.getString(PREF_TREE_URI, null);
-        if (treeUriStr == null) {
-            Utils.errMsg(this, "There is no data directory set");
+        Uri treeUri = getTreeUri();
+        if (treeUri == null) {
             return;
         }
-        // Get a docTree Uri
-        Uri treeUri = Uri.parse(treeUriStr);
-        String treeDocumentId = DocumentsContract.getTreeDocumentId(treeUri);
-        int nErrors = 0;
-        int nWriteErrors;
-        String errMsg = "Error saving sessions:\n";
-        String fileNames = "Saved to:\n";
-        String fileName;
-        long startDate;
-        for (Session session : checkedSessions) {
-            try {
-                startDate = session.getStartDate();
-                fileName = session.getName() + ".csv";
-                Uri docTreeUri =
-                        DocumentsContract.buildDocumentUriUsingTree(treeUri,
-                                treeDocumentId);
-                // Get a docUri and ParcelFileDescriptor
-                ContentResolver resolver = this.getContentResolver();
-                ParcelFileDescriptor pfd;
-                // Create the document
-                Uri docUri = DocumentsContract.createDocument(resolver,
-                        docTreeUri,
-                        "text/csv", fileName);
-                pfd = getContentResolver().
-                        openFileDescriptor(docUri, "w");
-                try (FileWriter writer =
-                             new FileWriter(pfd.getFileDescriptor());
-                     BufferedWriter out = new BufferedWriter(writer)) {
-                    // Write the session data
-                    nWriteErrors = writeSessionDataToCvsFile(startDate, out);
-                    if (nWriteErrors > 0) {
-                        nErrors += nWriteErrors;
-                        errMsg += "  " + session.getName();
-                    }
-                    fileNames += "  " + docUri.getLastPathSegment() + "\n";
-                }
-            } catch (Exception ex) {
-                nErrors++;
-                errMsg += "  " + session.getName();
-            }
-        }
-        String msg = "";
-        if (nErrors > 0) {
-            msg += errMsg;
-        }
-        msg += fileNames;
-        if (nErrors > 0) {
-            Utils.errMsg(this, msg);
-        } else {
-            Utils.infoMsg(this, msg);
-        }
+        startExport(new ExportTask(this, EXPORT_CSV, checkedSessions,
+                treeUri, null, 0));
     }
 
     /**
@@ -258,165 +297,66 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
             Utils.errMsg(this, "There are no sessions to combine and save");
             return;
         }
-        // Get the saved tree Uri
-        SharedPreferences prefs = getSharedPreferences(MAIN_ACTIVITY,
-                MODE_PRIVATE);
-        String treeUriStr = prefs.getString(PREF_TREE_URI, null);
-        if (treeUriStr == null) {
-            Utils.errMsg(this, "There is no data directory set");
+        Uri treeUri = getTreeUri();
+        if (treeUri == null) {
             return;
         }
-        // Get a docTree Uri
-        Uri treeUri = Uri.parse(treeUriStr);
-        String treeDocumentId = DocumentsContract.getTreeDocumentId(treeUri);
         // Need to sort in order of increasing startTime
         Collections.sort(checkedSessions, (lhs, rhs) ->
                 Long.compare(lhs.getStartDate(), rhs.getStartDate()));
-        int nErrors = 0;
-        int nWriteErrors;
-        String errMsg = "Error saving combined sessions:\n";
-        String fileNames = "Saved to:\n";
-        // Use the name of the first session
-        String fileName = checkedSessions.get(0).getName() + "-Combined.csv";
-        long startDate;
-        try {
-            Uri docTreeUri =
-                    DocumentsContract.buildDocumentUriUsingTree(treeUri,
-                            treeDocumentId);
-            // Get a docUri and ParcelFileDescriptor
-            ContentResolver resolver = this.getContentResolver();
-            ParcelFileDescriptor pfd;
-            // Create the document
-            Uri docUri = DocumentsContract.createDocument(resolver,
-                    docTreeUri,
-                    "text/csv", fileName);
-            pfd = getContentResolver().
-                    openFileDescriptor(docUri, "w");
-            // Do the writing with a BufferedWriter or other
-            try (FileWriter writer =
-                         new FileWriter(pfd.getFileDescriptor());
-                 BufferedWriter out = new BufferedWriter(writer)) {
-                boolean first = true;
-                for (Session session : checkedSessions) {
-                    startDate = session.getStartDate();
-                    // Write a blank line to separate sessions
-                    if (first) {
-                        first = false;
-                    } else {
-                        out.write("\n");
-                    }
-                    // Write the session data
-                    nWriteErrors = writeSessionDataToCvsFile(startDate, out);
-                    if (nWriteErrors > 0) {
-                        nErrors += nWriteErrors;
-                        errMsg += "  " + session.getName();
-                    }
-                }
-                fileNames += "  " + docUri.getLastPathSegment() + "\n";
-            } catch (Exception ex) {
-                nErrors++;
-                errMsg += "  " + "Writing combined file";
-            }
-        } catch (Exception ex) {
-            Utils.excMsg(this, "Error saving combined sessions", ex);
-        }
-        String msg = "";
-        if (nErrors > 0) {
-            msg += errMsg;
-        }
-        msg += fileNames;
-        if (nErrors > 0) {
-            Utils.errMsg(this, msg);
-        } else {
-            Utils.infoMsg(this, msg);
-        }
+        startExport(new ExportTask(this, EXPORT_COMBINED, checkedSessions,
+                treeUri, null, 0));
     }
 
     /**
-     * Writes the session data for the given startDate to the given
-     * BufferedWriter.
-     *
-     * @param startDate The startDate.
-     * @param out       The BufferedWRiter.
-     * @return The number of errors.
+     * Saves the selected sessions as GPX files.
      */
-    private int writeSessionDataToCvsFile(long startDate, BufferedWriter out) {
-        int nErrors = 0;
-        try (Cursor cursor =
-                     mDbAdapter.fetchAllHrRrActPaDateDataForStartDate(startDate)) {
-            int indexDate = cursor.getColumnIndex(COL_DATE);
-            int indexHr = cursor.getColumnIndex(COL_HR);
-            int indexRr = cursor.getColumnIndex(COL_RR);
-            int indexAct = cursor.getColumnIndex(COL_ACT);
-            int indexPa = cursor.getColumnIndex(COL_PA);
-            // Loop over items
-            cursor.moveToFirst();
-            String dateStr, hrStr, rrStr, actStr, paStr, line;
-            long dateNum;
-            while (!cursor.isAfterLast()) {
-                dateStr = INVALID_STRING;
-                if (indexDate > -1) {
-                    dateNum = cursor.getLong(indexDate);
-                    dateStr = sessionSaveFormatter.format(new Date(dateNum));
-                }
-                hrStr = INVALID_STRING;
-                if (indexHr > -1) {
-                    hrStr = cursor.getString(indexHr);
-                }
-                rrStr = INVALID_STRING;
-                if (indexRr > -1) {
-                    rrStr = cursor.getString(indexRr);
-                }
-                actStr = INVALID_STRING;
-                if (indexAct > -1) {
-                    actStr = cursor.getString(indexAct);
-                }
-                paStr = INVALID_STRING;
-                if (indexPa > -1) {
-                    paStr = cursor.getString(indexPa);
-                }
-                line = dateStr + SAVE_SESSION_DELIM + hrStr
-                        + SAVE_SESSION_DELIM + rrStr + SAVE_SESSION_DELIM
-                        + actStr + SAVE_SESSION_DELIM + paStr + "\n";
-                out.write(line);
-                cursor.moveToNext();
-            }
-        } catch (Exception ex) {
-            nErrors++;
+    public void saveSessionsAsGpx() {
+        saveSessionsAsTrack(EXPORT_GPX);
+    }
+
+    /**
+     * Saves the selected sessions as TCX files.
+     */
+    public void saveSessionsAsTcx() {
+        saveSessionsAsTrack(EXPORT_TCX);
+    }
+
+    /**
+     * Saves the selected sessions as session archives.
+     */
+    public void saveSessionsAsArchive() {
+        ArrayList<Session> checkedSessions = mSessionListAdapter
+                .getCheckedSessions();
+        if (checkedSessions.size() == 0) {
+            Utils.errMsg(this, "There are no sessions to save");
+            return;
+        }
+        Uri treeUri = getTreeUri();
+        if (treeUri == null) {
+            return;
         }
-        return nErrors;
+        startExport(new ExportTask(this, EXPORT_ARCHIVE, checkedSessions,
+                treeUri, null, 0));
     }
 
     /**
-     * Saves the selected sessions as GPX files.
+     * Saves the selected sessions as GPX or TCX files.
+     *
+     * @param type EXPORT_GPX or EXPORT_TCX.
      */
-    public void saveSessionsAsGpx() {
+    private void saveSessionsAsTrack(int type) {
         ArrayList<Session> checkedSessions = mSessionListAdapter
                 .getCheckedSessions();
         if (checkedSessions.size() == 0) {
             Utils.errMsg(this, "There are no sessions to save");
             return;
         }
-        // Get the saved tree Uri
-        SharedPreferences prefs = getSharedPreferences(MAIN_ACTIVITY,
-                MODE_PRIVATE);
-        String treeUriStr = prefs.getString(PREF_TREE_URI, null);
-        if (treeUriStr == null) {
-            Utils.errMsg(this, "There is no data directory set");
+        Uri treeUri = getTreeUri();
+        if (treeUri == null) {
             return;
         }
-        // Get a docTree Uri
-        Uri treeUri = Uri.parse(treeUriStr);
-        String treeDocumentId = DocumentsContract.getTreeDocumentId(treeUri);
-        int nErrors = 0;
-        String errMsg = "Error saving sessions:\n";
-        String fileNames = "Saved to:\n";
-        String fileName;
-        long startDate;
         String name;
-        SimpleDateFormat formatter = new SimpleDateFormat(
-                "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-        formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
         try {
             PackageManager pm = getPackageManager();
             PackageInfo po = pm.getPackageInfo(this.getPackageName(), 0);
@@ -424,73 +364,59 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
         } catch (Exception ex) {
             name = "HxM Monitor";
         }
-        for (Session session : checkedSessions) {
-            try {
-                startDate = session.getStartDate();
-                fileName = session.getName() + ".gpx";
-                Uri docTreeUri =
-                        DocumentsContract.buildDocumentUriUsingTree(treeUri,
-                                treeDocumentId);
-                // Get a docUri and ParcelFileDescriptor
-                ContentResolver resolver = this.getContentResolver();
-                ParcelFileDescriptor pfd;
-                // Create the document
-                Uri docUri = DocumentsContract.createDocument(resolver,
-                        docTreeUri,
-                        "application/gpx+xml", fileName);
-                pfd = getContentResolver().
-                        openFileDescriptor(docUri, "w");
-                // Do the writing with a BufferedWriter or other
-                try (FileWriter writer =
-                             new FileWriter(pfd.getFileDescriptor());
-                     BufferedWriter out = new BufferedWriter(writer);
-                     Cursor cursor =
-                             mDbAdapter.fetchAllHrDateDataForStartDate(startDate)) {
-                    // Write the beginning lines
-                    out.write(String.format(GPXUtils.GPX_FILE_START_LINES, name,
-                            formatter.format(new Date())));
-                    int indexDate = cursor.getColumnIndex(COL_DATE);
-                    int indexHr = cursor.getColumnIndex(COL_HR);
-                    // Loop over items
-                    cursor.moveToFirst();
-                    String hrStr, line;
-                    long dateNum = INVALID_DATE;
-                    while (!cursor.isAfterLast()) {
-                        if (indexDate > -1) {
-                            dateNum = cursor.getLong(indexDate);
-                        }
-                        hrStr = INVALID_STRING;
-                        if (indexHr > -1) {
-                            hrStr = cursor.getString(indexHr);
-                        }
-                        if (hrStr.equals(INVALID_STRING)) {
-                            continue;
-                        }
-                        line = String.format(GPXUtils.GPX_FILE_TRACK_LINES,
-                                formatter.format(new Date(dateNum)), hrStr);
-                        out.write(line);
-                        cursor.moveToNext();
-                    }
-                    out.write(GPXUtils.GPX_FILE_END_LINES);
-                    fileNames += "  " + docUri.getLastPathSegment() + "\n";
-                }
-            } catch (Exception ex) {
-                nErrors++;
-                errMsg += "  " + session.getName();
-            }
+        SharedPreferences prefs = PreferenceManager
+                .getDefaultSharedPreferences(this);
+        long interval = 0;
+        try {
+            interval = 1000 * Long.parseLong(prefs.getString(
+                    PREF_TRACK_INTERVAL, EXPORT_DEFAULT_TRACK_INTERVAL));
+        } catch (Exception ex) {
+            // Use 0
         }
-        String msg = "";
-        if (nErrors > 0) {
-            msg += errMsg;
+        startExport(new ExportTask(this, type, checkedSessions, treeUri,
+                name, Math.max(0, interval)));
+    }
+
+    /**
+     * Gets the saved tree Uri for the data directory.
+     *
+     * @return The Uri or null if there is none, in which case an error
+     * message has been shown.
+     */
+    private Uri getTreeUri() {
+        SharedPreferences prefs = getSharedPreferences(MAIN_ACTIVITY,
+                MODE_PRIVATE);
+        String treeUriStr = prefs.getString(PREF_TREE_URI, null);
+        if (treeUriStr == null) {
+            Utils.errMsg(this, "There is no data directory set");
+            return null;
         }
-        msg += fileNames;
-        if (nErrors > 0) {
-            Utils.errMsg(this, msg);
-        } else {
-            Utils.infoMsg(this, msg);
+        return Uri.parse(treeUriStr);
+    }
+
+    /**
+     * Starts an export unless one is already running.
+     *
+     * @param task The task for the export.
+     */
+    private void startExport(ExportTask task) {
+        if (!mExportFragment.start(task)) {
+            Utils.errMsg(this, "An export is already in progress");
         }
     }
 
+    /**
+     * Opens a CsvWriter on the channel for a ParcelFileDescriptor. Closing
+     * the CsvWriter closes the ParcelFileDescriptor.
+     *
+     * @param pfd The ParcelFileDescriptor.
+     * @return The CsvWriter.
+     */
+    private static CsvWriter openCsvWriter(ParcelFileDescriptor pfd) {
+        return new CsvWriter(new ParcelFileDescriptor.AutoCloseOutputStream(
+                pfd).getChannel());
+    }
+
     /**
      * Prompts to discards the selected sessions. The method doDiscard will do
      * the actual discarding, if the user confirms.
@@ -569,80 +495,31 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                     "text/csv", fileName);
             pfd = getContentResolver().
                     openFileDescriptor(docUri, "w");
-            try (FileWriter writer =
-                         new FileWriter(pfd.getFileDescriptor());
-                 BufferedWriter out = new BufferedWriter(writer);
-                 Cursor cursor = mDbAdapter.fetchAllData(null)) {
-                int indexDate = cursor.getColumnIndex(COL_DATE);
-                int indexStartDate = cursor.getColumnIndex(COL_START_DATE);
-                int indexHr = cursor.getColumnIndex(COL_HR);
-                int indexRr = cursor.getColumnIndex(COL_RR);
-                int indexAct = cursor.getColumnIndex(COL_ACT);
-                int indexPa = cursor.getColumnIndex(COL_PA);
-                // Loop over items
-                cursor.moveToFirst();
-                String rr, info;
-                long dateNum, startDateNum;
-                int hr, act, pa;
-                while (!cursor.isAfterLast()) {
-                    dateNum = startDateNum = INVALID_DATE;
-                    hr = act = pa = INVALID_INT;
-                    rr = " ";
-                    if (indexDate > -1) {
-                        try {
-                            dateNum = cursor.getLong(indexDate);
-                        } catch (Exception ex) {
-                            // Do nothing
-                        }
-                    }
-                    if (indexStartDate > -1) {
-                        try {
-                            startDateNum = cursor.getLong(indexStartDate);
-                        } catch (Exception ex) {
-                            // Do nothing
-                        }
-                    }
-                    if (indexHr > -1) {
-                        try {
-                            hr = cursor.getInt(indexHr);
-                        } catch (Exception ex) {
-                            // Do nothing
-                        }
-                    }
-                    if (indexRr > -1) {
-                        try {
-                            rr = cursor.getString(indexRr);
-                        } catch (Exception ex) {
-                            // Do nothing
-                        }
-                        // Need to do this, or it isn't recognized as a token
-                        if (rr.length() == 0) {
-                            rr = " ";
-                        }
-                    }
-                    if (indexAct > -1) {
-                        try {
-                            act = cursor.getInt(indexAct);
-                        } catch (Exception ex) {
-                            // Do nothing
+            try (CsvWriter out = openCsvWriter(pfd)) {
+                // The last date and id
+                long[] last = new long[2];
+                int count;
+                // The archived sessions are not in the data table
+                for (long startDate : mDbAdapter.getArchivedStartDates()) {
+                    last[0] = Long.MIN_VALUE;
+                    last[1] = 0;
+                    do {
+                        try (Cursor cursor =
+                                     mDbAdapter.fetchAllDataPageForStartDate(
+                                             startDate, last[0], last[1],
+                                             EXPORT_PAGE_SIZE)) {
+                            count = appendDataRows(out, cursor, last);
                         }
-                    }
-                    if (indexPa > -1) {
-                        try {
-                            pa = cursor.getInt(indexPa);
-                        } catch (Exception ex) {
-                            // Do nothing
-                        }
-                    }
-                    info = String.format(Locale.US, "%d%s%d%s%d%s%s%s%d%s%d%s" +
-                                    "\n",
-                            dateNum, SAVE_DATABASE_DELIM, startDateNum,
-                            SAVE_DATABASE_DELIM, hr, SAVE_DATABASE_DELIM, rr,
-                            SAVE_DATABASE_DELIM, act, SAVE_DATABASE_DELIM, pa,
-                            SAVE_DATABASE_DELIM);
-                    out.write(info);
-                    cursor.moveToNext();
+                    } while (count == EXPORT_PAGE_SIZE);
                 }
+                last[0] = Long.MIN_VALUE;
+                last[1] = 0;
+                do {
+                    try (Cursor cursor = mDbAdapter.fetchAllDataPage(
+                            last[0], last[1], EXPORT_PAGE_SIZE)) {
+                        count = appendDataRows(out, cursor, last);
+                    }
+                } while (count == EXPORT_PAGE_SIZE);
                 Utils.infoMsg(this, "Wrote " + docUri.getLastPathSegment());
             }
         } catch (Exception ex) {
@@ -650,6 +527,54 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
         }
     }
 
+    /**
+     * Writes the rows of a page of the data table in the database CSV
+     * format.
+     *
+     * @param out    The CsvWriter.
+     * @param cursor The cursor, with all the columns of the data table.
+     * @param last   Set to the date and id of the last row.
+     * @return The number of rows.
+     * @throws IOException If they could not be written.
+     */
+    private int appendDataRows(CsvWriter out, Cursor cursor, long[] last)
+            throws IOException {
+        int indexId = cursor.getColumnIndex(COL_ID);
+        int indexDate = cursor.getColumnIndex(COL_DATE);
+        int indexStartDate = cursor.getColumnIndex(COL_START_DATE);
+        int indexHr = cursor.getColumnIndex(COL_HR);
+        int indexRr = cursor.getColumnIndex(COL_RR);
+        int indexAct = cursor.getColumnIndex(COL_ACT);
+        int indexPa = cursor.getColumnIndex(COL_PA);
+        int count = 0;
+        byte[] rr;
+        // Loop over items
+        while (cursor.moveToNext()) {
+            count++;
+            last[1] = cursor.getLong(indexId);
+            last[0] = cursor.getLong(indexDate);
+            out.append(last[0]).append(SAVE_DATABASE_DELIM)
+                    .append(cursor.getLong(indexStartDate))
+                    .append(SAVE_DATABASE_DELIM)
+                    .append(cursor.getLong(indexHr))
+                    .append(SAVE_DATABASE_DELIM);
+            rr = cursor.getBlob(indexRr);
+            if (rr != null && rr.length < 2) {
+                // Need to do this, or it isn't recognized as a token
+                out.append(' ');
+            } else {
+                out.appendRr(rr);
+            }
+            out.append(SAVE_DATABASE_DELIM)
+                    .append(cursor.getLong(indexAct))
+                    .append(SAVE_DATABASE_DELIM)
+                    .append(cursor.getLong(indexPa))
+                    .append(SAVE_DATABASE_DELIM)
+                    .append('\n');
+        }
+        return count;
+    }
+
     /**
      * Does the preliminary checking for restoring data, prompts if it is OK to
      * delete the current data, and call restoreData to actually do the delete
@@ -803,23 +728,40 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
     }
 
     /**
-     * Class to handle getting the bitmap from the web using a progress
-     * bar that can be cancelled.<br>
-     * <br>
-     * Call with <b>Bitmap bitmap = new MyUpdateTask().execute(String)<b>
+     * Class to restore the database from a CSV file in the background,
+     * showing the progress in a dialog. It is a two-stage pipeline. This
+     * thread reads and parses the file into DataBatches with a
+     * DataCsvReader, and a writer thread inserts each batch in one
+     * transaction, so parsing the next batch overlaps writing the last one.
+     * The progress is the bytes read out of the length of the file, if it
+     * is known.
      */
-    private class RestoreTask extends AsyncTask<Void, Void, Boolean> {
+    private class RestoreTask extends AsyncTask<Void, Integer, Boolean> {
         private ProgressDialog dialog;
         private Context mCtx;
         private Uri mUri;
         private int mErrors;
         private int mLineNumber;
         private String mExceptionMsg;
+        private long mLength = AssetFileDescriptor.UNKNOWN_LENGTH;
+        // Batches that are free and batches that are ready to write
+        private final ArrayBlockingQueue<DataBatch> mFree =
+                new ArrayBlockingQueue<>(RESTORE_PIPELINE_DEPTH);
+        private final ArrayBlockingQueue<DataBatch> mFull =
+                new ArrayBlockingQueue<>(RESTORE_PIPELINE_DEPTH + 1);
+        // Put in mFull after the last batch
+        private final DataBatch mEnd = new DataBatch(0);
+        // Set by the writer thread
+        private int mWriteErrors;
+        private volatile Exception mWriteException;
 
         private RestoreTask(Context context, Uri uri) {
             super();
             this.mCtx = context;
             this.mUri = uri;
+            for (int i = 0; i < RESTORE_PIPELINE_DEPTH; i++) {
+                mFree.add(new DataBatch(RESTORE_BATCH_SIZE));
+            }
         }
 
         @Override
@@ -827,6 +769,9 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
             dialog = new ProgressDialog(SessionManagerActivity.this);
             dialog.setMessage(getString(R.string
                     .restoring_database_progress_text));
+            dialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            dialog.setMax(100);
+            dialog.setProgressNumberFormat(null);
             dialog.setCancelable(false);
             dialog.setIndeterminate(true);
             dialog.show();
@@ -835,99 +780,125 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
         @Override
         protected Boolean doInBackground(Void... dummy) {
             Thread.currentThread().setPriority(Thread.MAX_PRIORITY);
-            try {
+            Thread writer = null;
+            try (AssetFileDescriptor afd = mCtx.getContentResolver()
+                    .openAssetFileDescriptor(mUri, "r")) {
+                if (afd == null) {
+                    throw new IOException("Could not open "
+                            + mUri.getLastPathSegment());
+                }
+                mLength = afd.getLength();
                 // Delete all the data and recreate the table
                 mDbAdapter.recreateDataTable();
-                try (InputStreamReader inputStreamReader =
-                             new InputStreamReader(
-                                     mCtx.getContentResolver().openInputStream(mUri));
-                     BufferedReader in =
-                             new BufferedReader(inputStreamReader)) {
+                writer = new Thread(this::writeBatches, "HxMRestoreWriter");
+                writer.setPriority(Thread.MAX_PRIORITY);
+                writer.start();
+                try (DataCsvReader in =
+                             new DataCsvReader(afd.createInputStream())) {
+                    // The archived sessions are kept by recreateDataTable,
+                    // so their rows, which the save writes, are not added
+                    // again
+                    in.setSkippedStartDates(
+                            mDbAdapter.getArchivedStartDates());
                     // Read the file and get the data to restore
-                    String rr;
-                    long dateNum, startDateNum;
-                    int hr, act, pa;
-                    String[] tokens;
-                    String line;
-                    while ((line = in.readLine()) != null) {
-                        dateNum = startDateNum = INVALID_DATE;
-                        mLineNumber++;
-                        tokens = line.trim().split(SAVE_DATABASE_DELIM);
-                        // Skip blank lines
-                        if (line.trim().length() == 0) {
-                            continue;
-                        }
-                        // Skip lines starting with #
-                        if (tokens[0].trim().startsWith("#")) {
-                            continue;
-                        }
-                        hr = pa = act = 0;
-                        if (tokens.length < 4) {
-                            // Utils.errMsg(this, "Found " + tokens.length
-                            // + " tokens for line " + lineNum
-                            // + "\nShould be 5 or more tokens");
-                            mErrors++;
-                            Log.d(TAG, "tokens.length=" + tokens.length
-                                    + " @ line " + mLineNumber);
-                            Log.d(TAG, line);
-                            continue;
+                    DataBatch batch;
+                    boolean more = true;
+                    int percent = -1;
+                    while (more && mWriteException == null) {
+                        batch = mFree.take();
+                        batch.clear();
+                        more = in.read(batch);
+                        mLineNumber = in.getLineNumber();
+                        if (batch.size() > 0) {
+                            mFull.put(batch);
+                        } else {
+                            mFree.put(batch);
                         }
-                        try {
-                            dateNum = Long.parseLong(tokens[0]);
-                        } catch (Exception ex) {
-                            Log.d(TAG, "Long.parseLong failed for dateNum @ " +
-                                    "line "
-                                    + mLineNumber);
-                        }
-                        try {
-                            startDateNum = Long.parseLong(tokens[1]);
-                        } catch (Exception ex) {
-                            Log.d(TAG,
-                                    "Long.parseLong failed for startDateNum @" +
-                                            " line "
-                                            + mLineNumber);
-                        }
-                        try {
-                            hr = Integer.parseInt(tokens[2]);
-                        } catch (Exception ex) {
-                            Log.d(TAG, "Integer.parseInt failed for hr @ line "
-                                    + mLineNumber);
-                        }
-                        rr = tokens[3].trim();
-                        if (tokens.length >= 5) {
-                            try {
-                                act = Integer.parseInt(tokens[4]);
-                            } catch (Exception ex) {
-                                Log.d(TAG,
-                                        "Integer.parseInt failed for act @ " +
-                                                "line "
-                                                + mLineNumber);
-                            }
-                        }
-                        if (tokens.length >= 6) {
-                            try {
-                                pa = Integer.parseInt(tokens[5]);
-                            } catch (Exception ex) {
-                                Log.d(TAG, "Integer.parseInt failed for pa @ " +
-                                        "line "
-                                        + mLineNumber);
-                            }
-                        }
-                        // Write the row
-                        long id = mDbAdapter.createData(dateNum, startDateNum,
-                                hr, rr, act, pa);
-                        if (id < 0) {
-                            mErrors++;
+                        if (mLength > 0 && percent !=
+                                (int) (100 * in.getBytesRead() / mLength)) {
+                            percent = (int) (100 * in.getBytesRead()
+                                    / mLength);
+                            publishProgress(percent);
                         }
                     }
+                    mErrors += in.getErrors();
+                    if (in.getSkipped() > 0) {
+                        Log.d(TAG, "Skipped " + in.getSkipped()
+                                + " lines for archived sessions");
+                    }
+                    if (in.getErrors() > 0) {
+                        Log.d(TAG, "Skipped " + in.getErrors()
+                                + " invalid lines, last: "
+                                + in.getLastError());
+                    }
                 }
             } catch (Exception ex) {
                 mExceptionMsg = "Got Exception restoring at line "
                         + mLineNumber + "\n" + ex.getMessage();
+            } finally {
+                if (writer != null) {
+                    // Let the writer finish what has been read
+                    try {
+                        mFull.put(mEnd);
+                        writer.join();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+            mErrors += mWriteErrors;
+            if (mWriteException != null && mExceptionMsg == null) {
+                mExceptionMsg = "Got Exception writing the database\n"
+                        + mWriteException.getMessage();
             }
             return true;
         }
 
+        /**
+         * Writes the batches as they are read until the end, returning each
+         * to mFree. Runs on the writer thread. After an exception the
+         * batches are only returned, so the reader is not blocked.
+         */
+        private void writeBatches() {
+            DataBatch batch;
+            try {
+                while ((batch = mFull.take()) != mEnd) {
+                    if (mWriteException == null) {
+                        try {
+                            writeBatch(batch);
+                        } catch (Exception ex) {
+                            mWriteException = ex;
+                        }
+                    }
+                    mFree.put(batch);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /**
+         * Writes the batch to the database.
+         *
+         * @param batch The batch.
+         */
+        private void writeBatch(DataBatch batch) {
+            mDbAdapter.createDataBatch(batch);
+            if (batch.getErrors() > 0) {
+                mWriteErrors += batch.getErrors();
+                Log.d(TAG, "Got " + batch.getErrors()
+                        + " errors writing rows: " + batch.getLastError());
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            if (dialog != null) {
+                dialog.setIndeterminate(false);
+                dialog.setProgress(values[0]);
+            }
+        }
+
         @Override
         protected void onPostExecute(Boolean result) {
             Log.d(TAG, this.getClass().getSimpleName()
@@ -937,7 +908,8 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
             }
             mRestoreTask = null;
             String info;
-            if (mErrors == 0) {
+            // An exception reading or writing may not have counted errors
+            if (mErrors == 0 && mExceptionMsg == null) {
                 info = "Restored " + mLineNumber + " lines from "
                         + mUri.getLastPathSegment();
             } else {
@@ -952,6 +924,638 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
         }
     }
 
+    /**
+     * Retained fragment that holds the ExportTask, so an export goes on
+     * when the activity is recreated, as when the device is rotated. The
+     * progress dialog is shown while the activity is started. The export is
+     * cancelled, without waiting for it, when the activity is finished.
+     */
+    public static class ExportFragment extends Fragment {
+        private ExportTask mTask;
+
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            setRetainInstance(true);
+        }
+
+        @Override
+        public void onStart() {
+            super.onStart();
+            if (mTask != null) {
+                mTask.showDialog(getActivity());
+            }
+        }
+
+        @Override
+        public void onStop() {
+            super.onStop();
+            if (mTask != null) {
+                mTask.dismissDialog();
+            }
+        }
+
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            // The task closes its database when the workers have stopped
+            if (mTask != null) {
+                mTask.stop();
+                mTask = null;
+            }
+        }
+
+        /**
+         * Starts an export unless one is already running.
+         *
+         * @param task The task for the export.
+         * @return Whether it was started.
+         */
+        private boolean start(ExportTask task) {
+            if (mTask != null) {
+                return false;
+            }
+            mTask = task;
+            task.mFragment = this;
+            task.execute();
+            if (isAdded()) {
+                task.showDialog(getActivity());
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Class to export sessions in the background. The sessions are written
+     * by a pool of up to EXPORT_MAX_THREADS worker threads, each with its
+     * own cursor and formatter. For a combined file they are written
+     * through an OrderedSink, so the file has them in the given order. It
+     * uses its own HxMMonitorDbAdapter, which is closed after the workers
+     * have stopped, and is held by an ExportFragment, so it does not depend
+     * on the activity. The progress is shown in a dialog that allows
+     * cancelling. Files that were not finished when it is cancelled are
+     * deleted.
+     */
+    private static class ExportTask extends AsyncTask<Void, Integer,
+            String> {
+        private final Context mCtx;
+        private ExportFragment mFragment;
+        private ProgressDialog mDialog;
+        private HxMMonitorDbAdapter mDbAdapter;
+        private final int mType;
+        private final List<Session> mSessions;
+        private final Uri mTreeUri;
+        private final String mCreator;
+        private final long mTrackInterval;
+        private ExecutorService mExecutor;
+        private volatile OrderedSink mSink;
+        private final AtomicInteger mDone = new AtomicInteger();
+        // The name of the file written for each session or null if it was
+        // not finished
+        private final String[] mFileNames;
+        private final boolean[] mFailed;
+        private final Uri[] mDocUris;
+
+        /**
+         * Constructor.
+         *
+         * @param context       The context. Only the application context
+         *                      is kept.
+         * @param type          The type of export, EXPORT_CSV,
+         *                      EXPORT_COMBINED, EXPORT_GPX, EXPORT_TCX, or
+         *                      EXPORT_ARCHIVE.
+         * @param sessions      The sessions.
+         * @param treeUri       The tree Uri for the data directory.
+         * @param creator       The creator for GPX and TCX files.
+         * @param trackInterval The minimum time between points in GPX and
+         *                      TCX files (ms).
+         */
+        private ExportTask(Context context, int type, List<Session> sessions,
+                           Uri treeUri, String creator, long trackInterval) {
+            super();
+            mCtx = context.getApplicationContext();
+            mType = type;
+            mSessions = sessions;
+            mTreeUri = treeUri;
+            mCreator = creator;
+            mTrackInterval = trackInterval;
+            int n = sessions.size();
+            mFileNames = new String[n];
+            mFailed = new boolean[n];
+            mDocUris = new Uri[mType == EXPORT_COMBINED ? 1 : n];
+        }
+
+        @Override
+        protected void onPreExecute() {
+            int nThreads = Math.min(EXPORT_MAX_THREADS,
+                    Runtime.getRuntime().availableProcessors());
+            nThreads = Math.max(1, Math.min(nThreads, mSessions.size()));
+            mExecutor = Executors.newFixedThreadPool(nThreads);
+        }
+
+        @Override
+        protected String doInBackground(Void... dummy) {
+            mDbAdapter = new HxMMonitorDbAdapter(mCtx);
+            mDbAdapter.open();
+            try {
+                if (mType == EXPORT_COMBINED) {
+                    exportCombined();
+                } else {
+                    exportSessions();
+                }
+            } catch (Exception ex) {
+                if (!isCancelled()) {
+                    Log.e(TAG, "Error exporting sessions", ex);
+                    Arrays.fill(mFailed, true);
+                }
+            } finally {
+                mExecutor.shutdown();
+                awaitWorkers();
+            }
+            if (isCancelled()) {
+                deleteUnfinished();
+            }
+            mDbAdapter.close();
+            return getResultMessage();
+        }
+
+        /**
+         * Waits for the workers to stop, which they do at the next page if
+         * the export has been cancelled.
+         */
+        private void awaitWorkers() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    if (mExecutor.awaitTermination(EXPORT_STOP_TIMEOUT,
+                            TimeUnit.MILLISECONDS)) {
+                        break;
+                    }
+                    Log.d(TAG, "Waiting for the export workers to stop");
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        protected void onProgressUpdate(Integer... values) {
+            if (mDialog != null) {
+                mDialog.setProgress(values[0]);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(String result) {
+            Activity activity = finished();
+            if (activity == null) {
+                return;
+            }
+            boolean failed = false;
+            for (boolean f : mFailed) {
+                failed |= f;
+            }
+            if (failed) {
+                Utils.errMsg(activity, result);
+            } else {
+                Utils.infoMsg(activity, result);
+            }
+        }
+
+        @Override
+        protected void onCancelled(String result) {
+            Activity activity = finished();
+            if (activity != null) {
+                Utils.infoMsg(activity, "Export cancelled\n" + result);
+            }
+        }
+
+        /**
+         * Shows the progress dialog.
+         *
+         * @param activity The activity to show it in.
+         */
+        private void showDialog(Activity activity) {
+            dismissDialog();
+            mDialog = new ProgressDialog(activity);
+            mDialog.setMessage(activity.getString(
+                    R.string.exporting_progress_text));
+            mDialog.setProgressStyle(ProgressDialog.STYLE_HORIZONTAL);
+            mDialog.setMax(mSessions.size());
+            mDialog.setProgress(mDone.get());
+            mDialog.setCancelable(false);
+            mDialog.setButton(DialogInterface.BUTTON_NEGATIVE,
+                    activity.getString(R.string.cancel),
+                    (dialog, which) -> stop());
+            mDialog.show();
+        }
+
+        /**
+         * Dismisses the progress dialog, if it is showing.
+         */
+        private void dismissDialog() {
+            if (mDialog != null) {
+                mDialog.dismiss();
+                mDialog = null;
+            }
+        }
+
+        /**
+         * Cancels the export. The workers stop at the next page.
+         */
+        private void stop() {
+            cancel(false);
+            OrderedSink sink = mSink;
+            if (sink != null) {
+                sink.cancel();
+            }
+        }
+
+        /**
+         * Dismisses the dialog and clears the task.
+         *
+         * @return The activity to show a message in or null if there is
+         * none.
+         */
+        private Activity finished() {
+            dismissDialog();
+            if (mFragment.mTask != this) {
+                return null;
+            }
+            mFragment.mTask = null;
+            Activity activity = mFragment.getActivity();
+            if (activity == null || activity.isFinishing()
+                    || activity.isDestroyed()) {
+                return null;
+            }
+            return activity;
+        }
+
+        /**
+         * Exports each session to its own file, several at a time.
+         *
+         * @throws Exception If the workers could not be waited for.
+         */
+        private void exportSessions() throws Exception {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < mSessions.size(); i++) {
+                final int index = i;
+                futures.add(mExecutor.submit(() -> exportSession(index)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+
+        /**
+         * Exports a session to its own file. Runs on a worker thread.
+         *
+         * @param index The index of the session.
+         */
+        private void exportSession(int index) {
+            if (isCancelled()) {
+                return;
+            }
+            Session session = mSessions.get(index);
+            try {
+                String mimeType, fileName;
+                if (mType == EXPORT_GPX) {
+                    mimeType = "application/gpx+xml";
+                    fileName = session.getName() + ".gpx";
+                } else if (mType == EXPORT_TCX) {
+                    mimeType = "application/vnd.garmin.tcx+xml";
+                    fileName = session.getName() + ".tcx";
+                } else if (mType == EXPORT_ARCHIVE) {
+                    mimeType = ARCHIVE_MIME_TYPE;
+                    fileName = session.getName() + ARCHIVE_EXTENSION;
+                } else {
+                    mimeType = "text/csv";
+                    fileName = session.getName() + ".csv";
+                }
+                Uri docUri = createDocument(mimeType, fileName);
+                mDocUris[index] = docUri;
+                ParcelFileDescriptor pfd = mCtx.getContentResolver().
+                        openFileDescriptor(docUri, "w");
+                if (mType == EXPORT_GPX || mType == EXPORT_TCX) {
+                    writeSessionDataToTrackFile(session, pfd);
+                } else if (mType == EXPORT_ARCHIVE) {
+                    writeSessionDataToArchiveFile(session.getStartDate(),
+                            pfd);
+                } else {
+                    try (CsvWriter out = openCsvWriter(pfd)) {
+                        writeSessionDataToCvsFile(session.getStartDate(),
+                                out);
+                    }
+                }
+                mFileNames[index] = docUri.getLastPathSegment();
+            } catch (Exception ex) {
+                if (!isCancelled()) {
+                    Log.e(TAG, "Error exporting " + session.getName(), ex);
+                    mFailed[index] = true;
+                }
+            }
+            publishProgress(mDone.incrementAndGet());
+        }
+
+        /**
+         * Exports the sessions to one file. The sessions are formatted
+         * several at a time, and the OrderedSink writes them in order with a
+         * blank line between them.
+         *
+         * @throws Exception If the file could not be created or written.
+         */
+        private void exportCombined() throws Exception {
+            // Use the name of the first session
+            String fileName = mSessions.get(0).getName() + "-Combined.csv";
+            Uri docUri = createDocument("text/csv", fileName);
+            mDocUris[0] = docUri;
+            ParcelFileDescriptor pfd = mCtx.getContentResolver().
+                    openFileDescriptor(docUri, "w");
+            try (WritableByteChannel channel =
+                         new ParcelFileDescriptor.AutoCloseOutputStream(pfd)
+                                 .getChannel()) {
+                OrderedSink sink = new OrderedSink(channel, mSessions.size(),
+                        EXPORT_MAX_PENDING);
+                mSink = sink;
+                if (isCancelled()) {
+                    sink.cancel();
+                }
+                List<Future<?>> futures = new ArrayList<>();
+                for (int i = 0; i < mSessions.size(); i++) {
+                    final int index = i;
+                    futures.add(mExecutor.submit(() ->
+                            exportCombinedPart(sink, index)));
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                if (sink.isComplete()) {
+                    mFileNames[0] = docUri.getLastPathSegment();
+                }
+            }
+        }
+
+        /**
+         * Writes a session to its part of a combined file. Runs on a worker
+         * thread.
+         *
+         * @param sink  The OrderedSink.
+         * @param index The index of the session.
+         */
+        private void exportCombinedPart(OrderedSink sink, int index) {
+            Session session = mSessions.get(index);
+            // The part must be closed even if cancelled
+            try (CsvWriter out = new CsvWriter(sink.getPart(index))) {
+                if (!isCancelled()) {
+                    // Write a blank line to separate sessions
+                    if (index > 0) {
+                        out.append('\n');
+                    }
+                    writeSessionDataToCvsFile(session.getStartDate(), out);
+                }
+            } catch (Exception ex) {
+                if (!isCancelled()) {
+                    Log.e(TAG, "Error exporting " + session.getName(), ex);
+                    mFailed[index] = true;
+                }
+            }
+            publishProgress(mDone.incrementAndGet());
+        }
+
+        /**
+         * Creates a document in the data directory.
+         *
+         * @param mimeType The MIME type.
+         * @param fileName The file name.
+         * @return The Uri of the document.
+         * @throws Exception If it could not be created.
+         */
+        private Uri createDocument(String mimeType, String fileName)
+                throws Exception {
+            String treeDocumentId =
+                    DocumentsContract.getTreeDocumentId(mTreeUri);
+            Uri docTreeUri =
+                    DocumentsContract.buildDocumentUriUsingTree(mTreeUri,
+                            treeDocumentId);
+            Uri docUri = DocumentsContract.createDocument(
+                    mCtx.getContentResolver(), docTreeUri, mimeType,
+                    fileName);
+            if (docUri == null) {
+                throw new IOException("Could not create " + fileName);
+            }
+            return docUri;
+        }
+
+        /**
+         * Deletes the documents that were created but not finished.
+         */
+        private void deleteUnfinished() {
+            for (int i = 0; i < mDocUris.length; i++) {
+                if (mDocUris[i] == null || mFileNames[i] != null) {
+                    continue;
+                }
+                try {
+                    DocumentsContract.deleteDocument(
+                            mCtx.getContentResolver(), mDocUris[i]);
+                } catch (Exception ex) {
+                    Log.e(TAG, "Error deleting " + mDocUris[i], ex);
+                }
+            }
+        }
+
+        /**
+         * Gets the message listing the files saved and the sessions that
+         * failed.
+         *
+         * @return The message.
+         */
+        private String getResultMessage() {
+            StringBuilder errMsg = new StringBuilder();
+            for (int i = 0; i < mFailed.length; i++) {
+                if (mFailed[i]) {
+                    errMsg.append("  ").append(mSessions.get(i).getName())
+                            .append("\n");
+                }
+            }
+            StringBuilder fileNames = new StringBuilder();
+            for (String fileName : mFileNames) {
+                if (fileName != null) {
+                    fileNames.append("  ").append(fileName).append("\n");
+                }
+            }
+            String msg = "";
+            if (errMsg.length() > 0) {
+                msg += (mType == EXPORT_COMBINED ?
+                        "Error saving combined sessions:\n" :
+                        "Error saving sessions:\n") + errMsg;
+            }
+            msg += "Saved to:\n" + fileNames;
+            return msg;
+        }
+
+        /**
+         * Throws an exception if the export has been cancelled.
+         *
+         * @throws InterruptedIOException If it has been cancelled.
+         */
+        private void checkCancelled() throws InterruptedIOException {
+            if (isCancelled()) {
+                throw new InterruptedIOException("Cancelled");
+            }
+        }
+
+        /**
+         * Writes the session data for the given startDate to the given
+         * CsvWriter. The rows are read a page at a time. The last value is
+         * the times of the beats, as ms after the start date, from the same
+         * RrTimeline reconstruction as the plots.
+         *
+         * @param startDate The startDate.
+         * @param out       The CsvWriter.
+         * @throws IOException If it could not be written or was cancelled.
+         */
+        private void writeSessionDataToCvsFile(long startDate, CsvWriter out)
+                throws IOException {
+            RrTimeline timeline = new RrTimeline();
+            long afterDate = Long.MIN_VALUE;
+            long afterId = 0;
+            int count;
+            byte[] rr;
+            do {
+                checkCancelled();
+                count = 0;
+                try (Cursor cursor =
+                             mDbAdapter.fetchHrRrActPaDatePageForStartDate(
+                                     startDate, afterDate, afterId,
+                                     EXPORT_PAGE_SIZE)) {
+                    int indexId = cursor.getColumnIndex(COL_ID);
+                    int indexDate = cursor.getColumnIndex(COL_DATE);
+                    int indexHr = cursor.getColumnIndex(COL_HR);
+                    int indexRr = cursor.getColumnIndex(COL_RR);
+                    int indexAct = cursor.getColumnIndex(COL_ACT);
+                    int indexPa = cursor.getColumnIndex(COL_PA);
+                    // Loop over items
+                    while (cursor.moveToNext()) {
+                        count++;
+                        afterId = cursor.getLong(indexId);
+                        afterDate = cursor.getLong(indexDate);
+                        rr = cursor.getBlob(indexRr);
+                        out.appendDate(afterDate).append(SAVE_SESSION_DELIM)
+                                .append(cursor.getLong(indexHr))
+                                .append(SAVE_SESSION_DELIM)
+                                .appendRr(rr)
+                                .append(SAVE_SESSION_DELIM)
+                                .append(cursor.getLong(indexAct))
+                                .append(SAVE_SESSION_DELIM)
+                                .append(cursor.getLong(indexPa))
+                                .append(SAVE_SESSION_DELIM)
+                                .appendBeatTimes(timeline, afterDate, rr,
+                                        startDate)
+                                .append('\n');
+                    }
+                }
+            } while (count == EXPORT_PAGE_SIZE);
+        }
+
+        /**
+         * Writes the session data for the given startDate as a session
+         * archive. The rows are read a page at a time. Closing the writer
+         * closes the ParcelFileDescriptor.
+         *
+         * @param startDate The startDate.
+         * @param pfd       The ParcelFileDescriptor.
+         * @throws IOException If it could not be written or was cancelled.
+         */
+        private void writeSessionDataToArchiveFile(long startDate,
+                                                   ParcelFileDescriptor pfd)
+                throws IOException {
+            try (SessionArchiveWriter out = new SessionArchiveWriter(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(pfd)
+                            .getChannel(), startDate)) {
+                long afterDate = Long.MIN_VALUE;
+                long afterId = 0;
+                int count;
+                do {
+                    checkCancelled();
+                    count = 0;
+                    try (Cursor cursor =
+                                 mDbAdapter.fetchHrRrActPaDatePageForStartDate(
+                                         startDate, afterDate, afterId,
+                                         EXPORT_PAGE_SIZE)) {
+                        int indexId = cursor.getColumnIndex(COL_ID);
+                        int indexDate = cursor.getColumnIndex(COL_DATE);
+                        int indexHr = cursor.getColumnIndex(COL_HR);
+                        int indexRr = cursor.getColumnIndex(COL_RR);
+                        int indexAct = cursor.getColumnIndex(COL_ACT);
+                        int indexPa = cursor.getColumnIndex(COL_PA);
+                        int[] rr;
+                        // Loop over items
+                        while (cursor.moveToNext()) {
+                            count++;
+                            afterId = cursor.getLong(indexId);
+                            afterDate = cursor.getLong(indexDate);
+                            rr = HxMMonitorDbAdapter.getRr(cursor, indexRr);
+                            out.add(afterDate, cursor.getInt(indexHr), rr,
+                                    rr == null ? 0 : rr.length,
+                                    cursor.getInt(indexAct),
+                                    cursor.getInt(indexPa));
+                        }
+                    }
+                } while (count == EXPORT_PAGE_SIZE);
+            }
+        }
+
+        /**
+         * Writes the HR data for the given session as GPX or TCX. The rows
+         * are read a page at a time. Closing the writer closes the
+         * ParcelFileDescriptor.
+         *
+         * @param session The session.
+         * @param pfd     The ParcelFileDescriptor.
+         * @throws IOException If it could not be written or was cancelled.
+         */
+        private void writeSessionDataToTrackFile(Session session,
+                                                 ParcelFileDescriptor pfd)
+                throws IOException {
+            long startDate = session.getStartDate();
+            int format = mType == EXPORT_TCX ? TrackWriter.FORMAT_TCX :
+                    TrackWriter.FORMAT_GPX;
+            try (TrackWriter out = new TrackWriter(
+                    new ParcelFileDescriptor.AutoCloseOutputStream(pfd)
+                            .getChannel(), format, mTrackInterval)) {
+                out.writeStart(mCreator, startDate, session.getEndDate());
+                long afterDate = Long.MIN_VALUE;
+                long afterId = 0;
+                int count;
+                do {
+                    checkCancelled();
+                    count = 0;
+                    try (Cursor cursor =
+                                 mDbAdapter.fetchHrDatePageForStartDate(
+                                         startDate, afterDate, afterId,
+                                         EXPORT_PAGE_SIZE)) {
+                        int indexId = cursor.getColumnIndex(COL_ID);
+                        int indexDate = cursor.getColumnIndex(COL_DATE);
+                        int indexHr = cursor.getColumnIndex(COL_HR);
+                        // Loop over items
+                        while (cursor.moveToNext()) {
+                            count++;
+                            afterId = cursor.getLong(indexId);
+                            afterDate = cursor.getLong(indexDate);
+                            // Invalid HR values are skipped
+                            out.addPoint(afterDate, cursor.isNull(indexHr) ?
+                                    INVALID_INT : cursor.getInt(indexHr));
+                        }
+                    }
+                } while (count == EXPORT_PAGE_SIZE);
+                out.writeEnd();
+            }
+        }
+    }
+
     /**
      * Sets all the sessions to checked or not.
      *
@@ -1008,13 +1612,22 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                             .getColumnIndexOrThrow(COL_START_DATE);
                     int indexEndDate = cursor
                             .getColumnIndexOrThrow(COL_END_DATE);
+                    int indexSampleCount = cursor
+                            .getColumnIndexOrThrow(COL_SAMPLE_COUNT);
+                    int indexHrMin = cursor.getColumnIndexOrThrow(COL_HR_MIN);
+                    int indexHrMax = cursor.getColumnIndexOrThrow(COL_HR_MAX);
+                    int indexHrSum = cursor.getColumnIndexOrThrow(COL_HR_SUM);
+                    int indexHrCount = cursor
+                            .getColumnIndexOrThrow(COL_HR_COUNT);
                     // int indexTmp = cursor.getColumnIndexOrThrow(COL_TMP);
 
                     // Loop over items
                     cursor.moveToFirst();
                     long startDate;
                     long endDate;
+                    int hrCount;
                     String name;
+                    Session session;
                     while (!cursor.isAfterLast()) {
                         nItems++;
                         startDate = cursor.getLong(indexStartDate);
@@ -1037,7 +1650,16 @@ public class SessionManagerActivity extends AppCompatActivity implements IConsta
                         // name = "Temporary Session ";
                         // }
                         name = sessionNameFromDate(startDate);
-                        addSession(new Session(name, startDate, endDate));
+                        session = new Session(name, startDate, endDate);
+                        session.setSampleCount(cursor.getInt(indexSampleCount));
+                        hrCount = cursor.getInt(indexHrCount);
+                        if (hrCount > 0) {
+                            session.setHrStats(cursor.getInt(indexHrMin),
+                                    cursor.getInt(indexHrMax),
+                                    (double) cursor.getLong(indexHrSum)
+                                            / hrCount);
+                        }
+                        addSession(session);
                         cursor.moveToNext();
                     }
                 }
@@ -0,0 +1,138 @@
+package net.kenevans.android.hxmmonitor.benchmarks;
+
+import net.kenevans.android.hxmmonitor.CsvWriter;
+import net.kenevans.android.hxmmonitor.DataBatch;
+import net.kenevans.android.hxmmonitor.DataCsvReader;
+import net.kenevans.android.hxmmonitor.IConstants;
+import net.kenevans.android.hxmmonitor.RrCodec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.channels.Channels;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing a session as the database and session CSV formats, and parsing
+ * the database CSV format as Restore Database from CSV does. The old
+ * methods write the same output the way it was done before CsvWriter,
+ * with a SimpleDateFormat, String concatenation or String.format, and a
+ * BufferedWriter, for comparison. The largest session is 1M rows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CsvBenchmark implements IConstants {
+    @Param({"3600", "28800", "1000000"})
+    public int rows;
+
+    private SyntheticSession mSession;
+    private byte[] mCsv;
+    private final DataBatch mBatch = new DataBatch(EXPORT_PAGE_SIZE);
+
+    @Setup
+    public void setup() throws IOException {
+        mSession = new SyntheticSession(rows, 1);
+        mCsv = mSession.toDatabaseCsv();
+    }
+
+    @Benchmark
+    public long formatDatabase() throws IOException {
+        SyntheticSession.NullChannel channel =
+                new SyntheticSession.NullChannel();
+        try (CsvWriter out = new CsvWriter(channel)) {
+            mSession.writeDatabaseCsv(out);
+        }
+        return channel.getBytesWritten();
+    }
+
+    @Benchmark
+    public long formatSession() throws IOException {
+        SyntheticSession.NullChannel channel =
+                new SyntheticSession.NullChannel();
+        try (CsvWriter out = new CsvWriter(channel)) {
+            mSession.writeSessionCsv(out);
+        }
+        return channel.getBytesWritten();
+    }
+
+    @Benchmark
+    public long formatDatabaseOld() throws IOException {
+        SyntheticSession.NullChannel channel =
+                new SyntheticSession.NullChannel();
+        String rr;
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                Channels.newOutputStream(channel)))) {
+            for (int i = 0; i < mSession.size; i++) {
+                rr = RrCodec.format(mSession.rr[i]);
+                if (rr.length() == 0) {
+                    rr = " ";
+                }
+                out.write(String.format(Locale.US,
+                        "%d%s%d%s%d%s%s%s%d%s%d%s\n", mSession.dates[i],
+                        SAVE_DATABASE_DELIM, SyntheticSession.START_DATE,
+                        SAVE_DATABASE_DELIM, mSession.hr[i],
+                        SAVE_DATABASE_DELIM, rr, SAVE_DATABASE_DELIM,
+                        mSession.act[i], SAVE_DATABASE_DELIM, mSession.pa[i],
+                        SAVE_DATABASE_DELIM));
+            }
+        }
+        return channel.getBytesWritten();
+    }
+
+    @Benchmark
+    public long formatSessionOld() throws IOException {
+        SyntheticSession.NullChannel channel =
+                new SyntheticSession.NullChannel();
+        try (BufferedWriter out = new BufferedWriter(new OutputStreamWriter(
+                Channels.newOutputStream(channel)))) {
+            for (int i = 0; i < mSession.size; i++) {
+                out.write(sessionSaveFormatter.format(
+                        new Date(mSession.dates[i])) + SAVE_SESSION_DELIM
+                        + Integer.toString(mSession.hr[i])
+                        + SAVE_SESSION_DELIM + RrCodec.format(mSession.rr[i])
+                        + SAVE_SESSION_DELIM
+                        + Integer.toString(mSession.act[i])
+                        + SAVE_SESSION_DELIM
+                        + Integer.toString(mSession.pa[i]) + "\n");
+            }
+        }
+        return channel.getBytesWritten();
+    }
+
+    @Benchmark
+    public long parseDatabase() throws IOException {
+        long sum = 0;
+        boolean more;
+        try (DataCsvReader in = new DataCsvReader(
+                new ByteArrayInputStream(mCsv))) {
+            do {
+                mBatch.clear();
+                more = in.read(mBatch);
+                for (int i = 0; i < mBatch.size(); i++) {
+                    sum += mBatch.getHr(i) + mBatch.getRrCount(i);
+                }
+            } while (more);
+        }
+        return sum;
+    }
+
+}
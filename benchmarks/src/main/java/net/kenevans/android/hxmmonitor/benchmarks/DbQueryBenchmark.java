@@ -0,0 +1,179 @@
+package net.kenevans.android.hxmmonitor.benchmarks;
+
+import net.kenevans.android.hxmmonitor.IConstants;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time for the plot queries on the data table as the table grows, with
+ * and without the indexes on the start date and the date. Uses SQLite
+ * through sqlite-jdbc, with the same table, indexes, and queries as
+ * HxMMonitorDbAdapter, since the Android SQLite is not available on the
+ * JVM. The table has sessions of 8 hours with one row a second.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DbQueryBenchmark implements IConstants {
+    /**
+     * The number of rows in a session.
+     */
+    private static final int SESSION_ROWS = 8 * 3600;
+
+    @Param({"100000", "1000000"})
+    public int rows;
+
+    @Param({"false", "true"})
+    public boolean indexed;
+
+    private File mFile;
+    private Connection mConnection;
+    private PreparedStatement mSessionQuery;
+    private PreparedStatement mDatesQuery;
+    private long mStartDate;
+    private long mStart;
+    private long mEnd;
+
+    @Setup
+    public void setup() throws IOException, SQLException {
+        mFile = File.createTempFile("hxmbench", ".db");
+        mConnection = DriverManager.getConnection("jdbc:sqlite:"
+                + mFile.getPath());
+        try (Statement statement = mConnection.createStatement()) {
+            statement.execute("create table " + DB_DATA_TABLE
+                    + " (_id integer primary key autoincrement, " + COL_DATE
+                    + " integer not null, " + COL_START_DATE
+                    + " integer not null, " + COL_HR + " integer not null, "
+                    + COL_RR + " blob, " + COL_ACT + " integer not null,"
+                    + COL_PA + " integer not null);");
+        }
+        insertRows();
+        if (indexed) {
+            try (Statement statement = mConnection.createStatement()) {
+                statement.execute("CREATE INDEX " + DB_START_DATE_INDEX
+                        + " ON " + DB_DATA_TABLE + " (" + COL_START_DATE
+                        + ", " + COL_DATE + ");");
+                statement.execute("CREATE INDEX " + DB_DATE_INDEX + " ON "
+                        + DB_DATA_TABLE + " (" + COL_DATE + ");");
+            }
+        }
+        try (Statement statement = mConnection.createStatement()) {
+            statement.execute("ANALYZE");
+        }
+        // A session and an hour in the middle of the table
+        int nSessions = (rows + SESSION_ROWS - 1) / SESSION_ROWS;
+        mStartDate = sessionStart(nSessions / 2);
+        mStart = mStartDate + 3600000L;
+        mEnd = mStart + 3600000L;
+        // As fetchAllHrDateDataForStartDate and fetchAllHrDateDataForDates
+        mSessionQuery = mConnection.prepareStatement("SELECT " + COL_DATE
+                + ", " + COL_HR + " FROM " + DB_DATA_TABLE + " WHERE "
+                + COL_START_DATE + "=? ORDER BY " + SORT_ASCENDING);
+        mDatesQuery = mConnection.prepareStatement("SELECT " + COL_DATE
+                + ", " + COL_HR + " FROM " + DB_DATA_TABLE + " WHERE "
+                + COL_DATE + ">=? AND " + COL_DATE + "<=? ORDER BY "
+                + SORT_ASCENDING);
+    }
+
+    /**
+     * Gets the start date of a session, one a day.
+     */
+    private static long sessionStart(int session) {
+        return SyntheticSession.START_DATE + 86400000L * session;
+    }
+
+    /**
+     * Fills the table in one transaction.
+     */
+    private void insertRows() throws SQLException {
+        Random random = new Random(1);
+        byte[] rr = new byte[4];
+        mConnection.setAutoCommit(false);
+        try (PreparedStatement insert = mConnection.prepareStatement(
+                "INSERT INTO " + DB_DATA_TABLE + " (" + COL_DATE + ", "
+                        + COL_START_DATE + ", " + COL_HR + ", " + COL_RR
+                        + ", " + COL_ACT + ", " + COL_PA
+                        + ") VALUES (?, ?, ?, ?, ?, ?)")) {
+            long startDate = 0;
+            for (int i = 0; i < rows; i++) {
+                if (i % SESSION_ROWS == 0) {
+                    startDate = sessionStart(i / SESSION_ROWS);
+                }
+                random.nextBytes(rr);
+                insert.setLong(1, startDate + 1000L * (i % SESSION_ROWS));
+                insert.setLong(2, startDate);
+                insert.setInt(3, 50 + random.nextInt(100));
+                insert.setBytes(4, rr);
+                insert.setInt(5, random.nextInt(256));
+                insert.setInt(6, random.nextInt(256));
+                insert.addBatch();
+                if (i % 10000 == 9999) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+        mConnection.commit();
+        mConnection.setAutoCommit(true);
+    }
+
+    @TearDown
+    public void tearDown() throws SQLException {
+        mConnection.close();
+        if (!mFile.delete()) {
+            mFile.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public long querySession() throws SQLException {
+        mSessionQuery.setLong(1, mStartDate);
+        return sum(mSessionQuery);
+    }
+
+    @Benchmark
+    public long queryDates() throws SQLException {
+        mDatesQuery.setLong(1, mStart);
+        mDatesQuery.setLong(2, mEnd);
+        return sum(mDatesQuery);
+    }
+
+    /**
+     * Runs the query and reads all the rows.
+     */
+    private static long sum(PreparedStatement query) throws SQLException {
+        long sum = 0;
+        try (ResultSet rs = query.executeQuery()) {
+            while (rs.next()) {
+                sum += rs.getLong(1) + rs.getInt(2);
+            }
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,68 @@
+package net.kenevans.android.hxmmonitor.benchmarks;
+
+import net.kenevans.android.hxmmonitor.Decimator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decimating the HR of a session for a plot 1080 pixels wide, showing the
+ * whole session and zoomed in to 10 minutes in the middle, as PlotActivity
+ * does each time the domain axis changes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DecimatorBenchmark {
+    private static final int BUCKETS = 1080;
+
+    @Param({"1", "8"})
+    public int hours;
+
+    private final Decimator mDecimator = new Decimator();
+    private double mLower;
+    private double mUpper;
+    private long mSum;
+    private final Decimator.Sink mSink = (time, value) -> mSum += time;
+
+    @Setup
+    public void setup() {
+        SyntheticSession session = new SyntheticSession(3600 * hours, 1);
+        for (int i = 0; i < session.size; i++) {
+            mDecimator.addOrUpdate(session.dates[i], session.hr[i]);
+        }
+        mLower = session.dates[0];
+        mUpper = session.dates[session.size - 1];
+    }
+
+    @Benchmark
+    public long all() {
+        mSum = 0;
+        mDecimator.decimate(mLower, mUpper, BUCKETS, mSink);
+        return mSum;
+    }
+
+    @Benchmark
+    public long zoomed() {
+        mSum = 0;
+        double middle = (mLower + mUpper) / 2;
+        mDecimator.decimate(middle - 300000, middle + 300000, BUCKETS,
+                mSink);
+        return mSum;
+    }
+
+}
@@ -0,0 +1,54 @@
+package net.kenevans.android.hxmmonitor.benchmarks;
+
+import net.kenevans.android.hxmmonitor.HeartRateDecoder;
+import net.kenevans.android.hxmmonitor.HeartRateSample;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding all the Heart Rate Measurement notifications of a session, as
+ * the service does for each one it receives.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HeartRateDecoderBenchmark {
+    @Param({"1", "8"})
+    public int hours;
+
+    private SyntheticSession mSession;
+    private final HeartRateSample mSample = new HeartRateSample();
+
+    @Setup
+    public void setup() {
+        mSession = new SyntheticSession(3600 * hours, 1);
+    }
+
+    @Benchmark
+    public long decode() {
+        long sum = 0;
+        byte[][] notifications = mSession.notifications;
+        long[] dates = mSession.dates;
+        for (int i = 0; i < notifications.length; i++) {
+            HeartRateDecoder.decode(notifications[i], dates[i], mSample);
+            sum += mSample.getHr() + mSample.getRrCount();
+        }
+        return sum;
+    }
+
+}
@@ -0,0 +1,77 @@
+package net.kenevans.android.hxmmonitor.benchmarks;
+
+import net.kenevans.android.hxmmonitor.Decimator;
+import net.kenevans.android.hxmmonitor.RrTimeline;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reconstructing the times of the beats of a session from the R-R values,
+ * alone and as PlotActivity.addRrValues does when plotting a session, which
+ * also adds each beat to a decimated series.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RrTimelineBenchmark {
+    @Param({"1", "8"})
+    public int hours;
+
+    private SyntheticSession mSession;
+    private final RrTimeline mTimeline = new RrTimeline();
+    private final Decimator mDecimator = new Decimator();
+    private final long[] mTimes = new long[16];
+
+    @Setup
+    public void setup() {
+        mSession = new SyntheticSession(3600 * hours, 1);
+    }
+
+    @Benchmark
+    public long reconstruct() {
+        mTimeline.reset();
+        long sum = 0;
+        int nTimes;
+        for (int i = 0; i < mSession.size; i++) {
+            nTimes = mTimeline.add(mSession.dates[i], mSession.rr[i],
+                    mSession.rrCount[i], mTimes, 0);
+            for (int j = 0; j < nTimes; j++) {
+                sum += mTimes[j];
+            }
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public int addRrValues() {
+        mTimeline.reset();
+        mDecimator.clear();
+        int[] rr;
+        int nTimes;
+        for (int i = 0; i < mSession.size; i++) {
+            rr = mSession.rr[i];
+            nTimes = mTimeline.add(mSession.dates[i], rr,
+                    mSession.rrCount[i], mTimes, 0);
+            for (int j = 0; j < nTimes; j++) {
+                mDecimator.addOrUpdate(mTimes[j], RrTimeline.toMs(rr[j]));
+            }
+        }
+        return mDecimator.size();
+    }
+
+}
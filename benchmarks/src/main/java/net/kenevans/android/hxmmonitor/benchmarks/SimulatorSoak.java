@@ -0,0 +1,273 @@
+package net.kenevans.android.hxmmonitor.benchmarks;
+
+import net.kenevans.android.hxmmonitor.CsvWriter;
+import net.kenevans.android.hxmmonitor.DataBatch;
+import net.kenevans.android.hxmmonitor.HeartRateDecoder;
+import net.kenevans.android.hxmmonitor.HeartRateSample;
+import net.kenevans.android.hxmmonitor.HrvEngine;
+import net.kenevans.android.hxmmonitor.HrvRecorder;
+import net.kenevans.android.hxmmonitor.HxMCustomValues;
+import net.kenevans.android.hxmmonitor.HxMSimulator;
+import net.kenevans.android.hxmmonitor.IConstants;
+import net.kenevans.android.hxmmonitor.RrCodec;
+import net.kenevans.android.hxmmonitor.SessionArchiveWriter;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.UUID;
+
+/**
+ * Soak test of the handling of the notifications, driven by an HxMSimulator
+ * on the JVM, so it can be run faster than real time without a device. Each
+ * notification is handled as HxMBleService.onCharacteristicData does it:
+ * decoded, combined into rows, and passed to an HrvRecorder. The rows are
+ * collected in DataBatches, as DataWriter does, and each batch is written
+ * as database CSV and to a session archive, both of which are discarded.
+ * SQLite and the SampleBus are Android only, so they are not included.<br>
+ * <br>
+ * The options, all optional, are:<br>
+ * --hours n: The simulated length (default 1).<br>
+ * --speed x: The speed relative to real time, 0 for as fast as possible
+ * (default 100).<br>
+ * --interval ms: The interval between measurements (default 1000).<br>
+ * --max-rr n: The most R-R values per measurement, 0 to 9 (default 9).<br>
+ * --hr16: Send the HR as 16 bits.<br>
+ * --ee: Send the energy expended.<br>
+ * --no-custom: Do not send the custom measurement.<br>
+ * --contact-loss n: Contact losses per hour (default 1).<br>
+ * --exercise n: Bouts of exercise per hour (default 1).<br>
+ * --jitter ms: The most a notification is late (default 50).<br>
+ * --seed n: The seed (default 1).
+ */
+public class SimulatorSoak implements IConstants, HxMSimulator.Listener {
+    private final HeartRateSample mHrSample = new HeartRateSample();
+    private final HrvRecorder mHrvRecorder;
+    private final boolean mCustom;
+    private final long mStartDate;
+    private final double mSpeed;
+    private final long mRunStart;
+    private final DataBatch mBatch = new DataBatch(EXPORT_PAGE_SIZE);
+    private final SyntheticSession.NullChannel mCsvChannel =
+            new SyntheticSession.NullChannel();
+    private final CsvWriter mCsv = new CsvWriter(mCsvChannel);
+    private final SyntheticSession.NullChannel mArchiveChannel =
+            new SyntheticSession.NullChannel();
+    private final SessionArchiveWriter mArchive;
+    // As in HxMBleService
+    private long mLastHrDate;
+    private int mLastHr = INVALID_INT;
+    private int[] mLastRr = new int[0];
+    private int mLastRrCount = INVALID_INT;
+    // The counts
+    private long mHrNotifications;
+    private long mCustomNotifications;
+    private long mRows;
+    private long mBeats;
+    private long mHrvPeriods;
+    private long mContactLost;
+    private long mMaxLatency;
+
+    private SimulatorSoak(long startDate, boolean custom, double speed) {
+        mStartDate = startDate;
+        mCustom = custom;
+        mSpeed = speed > 0 ? speed : Double.POSITIVE_INFINITY;
+        mRunStart = System.nanoTime();
+        mLastHrDate = startDate;
+        mArchive = new SessionArchiveWriter(mArchiveChannel, startDate);
+        mHrvRecorder = new HrvRecorder(
+                1000 * Long.parseLong(HRV_DEFAULT_WINDOW),
+                (start, engine) -> mHrvPeriods++);
+    }
+
+    @Override
+    public void onNotification(UUID uuid, byte[] value, long date) {
+        if (UUID_HEART_RATE_MEASUREMENT.equals(uuid)) {
+            mHrNotifications++;
+            HeartRateDecoder.decode(value, date, mHrSample);
+            mLastHr = mHrSample.getHr();
+            mLastHrDate = date;
+            int[] rr = mHrSample.isRrPresent() ? mHrSample.getRr() : null;
+            int rrCount = mHrSample.getRrCount();
+            setLastRr(rr, rrCount);
+            if (mLastHr == 0) {
+                mContactLost++;
+            }
+            if (!mCustom) {
+                addRow(mLastHrDate, mLastHr, rr, rrCount, INVALID_INT,
+                        INVALID_INT);
+            }
+            mBeats += mHrvRecorder.add(date, rr, rrCount);
+            HrvEngine hrv = mHrvRecorder.getLiveEngine();
+            // What is published on the SampleBus
+            hrv.getSdnn();
+            hrv.getRmssd();
+            hrv.getPnn50();
+        } else if (UUID_CUSTOM_MEASUREMENT.equals(uuid)) {
+            mCustomNotifications++;
+            HxMCustomValues values = new HxMCustomValues(value, date);
+            boolean hasRr = mLastRrCount != INVALID_INT;
+            addRow(mLastHrDate, mLastHr, hasRr ? mLastRr : null,
+                    hasRr ? mLastRrCount : 0, values.getActivity(),
+                    values.getPa());
+        }
+        // How far behind the simulated time the handling is
+        long latency = (System.nanoTime() - mRunStart) / 1000000
+                - (long) ((date - mStartDate) / mSpeed);
+        if (latency > mMaxLatency) {
+            mMaxLatency = latency;
+        }
+    }
+
+    /**
+     * Writes the remaining rows and closes the outputs.
+     */
+    private void finish() throws IOException {
+        mHrvRecorder.finish();
+        writeBatch();
+        mCsv.close();
+        mArchive.close();
+    }
+
+    /**
+     * Copies the R-R values into mLastRr, as in HxMBleService.
+     */
+    private void setLastRr(int[] rr, int count) {
+        if (rr == null) {
+            mLastRrCount = INVALID_INT;
+            return;
+        }
+        if (mLastRr.length < count) {
+            mLastRr = new int[count];
+        }
+        System.arraycopy(rr, 0, mLastRr, 0, count);
+        mLastRrCount = count;
+    }
+
+    /**
+     * Adds a row to the batch, writing the batch if it is full.
+     */
+    private void addRow(long date, int hr, int[] rr, int rrCount, int act,
+                        int pa) {
+        mBatch.add(date, mStartDate, hr, rr, rrCount, act, pa);
+        mRows++;
+        if (mBatch.isFull()) {
+            writeBatch();
+        }
+    }
+
+    /**
+     * Writes the rows in the batch and clears it.
+     */
+    private void writeBatch() {
+        try {
+            int count;
+            for (int i = 0; i < mBatch.size(); i++) {
+                count = mBatch.getRrCount(i);
+                mCsv.append(mBatch.getDate(i)).append(SAVE_DATABASE_DELIM)
+                        .append(mBatch.getStartDate(i))
+                        .append(SAVE_DATABASE_DELIM)
+                        .append(mBatch.getHr(i)).append(SAVE_DATABASE_DELIM)
+                        .appendRr(count == INVALID_INT ? null
+                                : RrCodec.encode(mBatch.getRr(i), count))
+                        .append(SAVE_DATABASE_DELIM)
+                        .append(mBatch.getActivity(i))
+                        .append(SAVE_DATABASE_DELIM).append(mBatch.getPa(i))
+                        .append(SAVE_DATABASE_DELIM).append('\n');
+                mArchive.add(mBatch.getDate(i), mBatch.getHr(i),
+                        count == INVALID_INT ? null : mBatch.getRr(i),
+                        count == INVALID_INT ? 0 : count,
+                        mBatch.getActivity(i), mBatch.getPa(i));
+            }
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        mBatch.clear();
+    }
+
+    /**
+     * Runs the soak test.
+     *
+     * @param args The options.
+     * @throws IOException If the output could not be written.
+     */
+    public static void main(String[] args) throws IOException {
+        double hours = 1;
+        double speed = 100;
+        long seed = 1;
+        for (int i = 0; i < args.length - 1; i++) {
+            if ("--seed".equals(args[i])) {
+                seed = Long.parseLong(args[i + 1]);
+            }
+        }
+        HxMSimulator simulator = new HxMSimulator(seed);
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--hours":
+                    hours = Double.parseDouble(args[++i]);
+                    break;
+                case "--speed":
+                    speed = Double.parseDouble(args[++i]);
+                    break;
+                case "--interval":
+                    simulator.setInterval(Long.parseLong(args[++i]));
+                    break;
+                case "--max-rr":
+                    simulator.setMaxRr(Integer.parseInt(args[++i]));
+                    break;
+                case "--hr16":
+                    simulator.setHr16Bit(true);
+                    break;
+                case "--ee":
+                    simulator.setEnergyExpended(true);
+                    break;
+                case "--no-custom":
+                    simulator.setCustom(false);
+                    break;
+                case "--contact-loss":
+                    simulator.setContactLossRate(
+                            Double.parseDouble(args[++i]));
+                    break;
+                case "--exercise":
+                    simulator.setExerciseRate(Double.parseDouble(args[++i]));
+                    break;
+                case "--jitter":
+                    simulator.setJitter(Integer.parseInt(args[++i]));
+                    break;
+                case "--seed":
+                    i++;
+                    break;
+                default:
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(1);
+            }
+        }
+
+        long startDate = SyntheticSession.START_DATE;
+        long duration = (long) (hours * 3600000);
+        SimulatorSoak soak = new SimulatorSoak(startDate,
+                simulator.isCustom(), speed);
+        long nNotifications = simulator.run(startDate, duration, speed,
+                soak);
+        soak.finish();
+        double elapsed = (System.nanoTime() - soak.mRunStart) / 1e9;
+
+        System.out.printf(Locale.US, "Simulated %.2f h in %.2f s (%.0fx)%n",
+                hours, elapsed, duration / 1000. / elapsed);
+        System.out.printf(Locale.US, "Notifications: %d (%.0f/s), %d HR, "
+                        + "%d custom%n", nNotifications,
+                nNotifications / elapsed, soak.mHrNotifications,
+                soak.mCustomNotifications);
+        System.out.printf(Locale.US, "Rows: %d, beats used for HRV: %d, "
+                        + "HRV periods: %d, without contact: %d%n",
+                soak.mRows, soak.mBeats, soak.mHrvPeriods,
+                soak.mContactLost);
+        System.out.printf(Locale.US, "CSV: %d bytes, archive: %d bytes%n",
+                soak.mCsvChannel.getBytesWritten(),
+                soak.mArchiveChannel.getBytesWritten());
+        if (speed > 0) {
+            System.out.printf(Locale.US, "Most behind the simulated time: "
+                    + "%d ms%n", soak.mMaxLatency);
+        }
+    }
+
+}
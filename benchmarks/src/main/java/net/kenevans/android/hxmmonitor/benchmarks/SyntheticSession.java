@@ -0,0 +1,192 @@
+package net.kenevans.android.hxmmonitor.benchmarks;
+
+import net.kenevans.android.hxmmonitor.CsvWriter;
+import net.kenevans.android.hxmmonitor.HeartRateDecoder;
+import net.kenevans.android.hxmmonitor.IConstants;
+import net.kenevans.android.hxmmonitor.RrCodec;
+import net.kenevans.android.hxmmonitor.RrTimeline;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+/**
+ * A session of synthetic data that looks like what the HxM sends: one Heart
+ * Rate Measurement about every second, with the arrival time jittered, an
+ * HR that drifts slowly with some noise, and the R-R values of the beats
+ * since the last measurement. The same seed always gives the same session,
+ * so the benchmarks are comparable between runs.
+ */
+public class SyntheticSession implements IConstants {
+    /**
+     * The start date, 2022-03-01 08:00 UTC.
+     */
+    public static final long START_DATE = 1646121600000L;
+
+    public final int size;
+    public final long[] dates;
+    public final int[] hr;
+    public final int[][] rr;
+    public final int[] rrCount;
+    public final int[] act;
+    public final int[] pa;
+    // The Heart Rate Measurement notifications
+    public final byte[][] notifications;
+    // The RR values as stored in the database
+    public final byte[][] rrBytes;
+
+    /**
+     * Constructor.
+     *
+     * @param rows The number of rows, 3600 for each hour.
+     * @param seed The seed for the random numbers.
+     */
+    public SyntheticSession(int rows, long seed) {
+        Random random = new Random(seed);
+        size = rows;
+        dates = new long[size];
+        hr = new int[size];
+        rr = new int[size][];
+        rrCount = new int[size];
+        act = new int[size];
+        pa = new int[size];
+        notifications = new byte[size][];
+        rrBytes = new byte[size][];
+        int[] beats = new int[8];
+        double beatTime = START_DATE;
+        double rate = 70;
+        long time;
+        int n;
+        for (int i = 0; i < size; i++) {
+            time = START_DATE + 1000L * i;
+            // Random walk between 50 and 180 bpm
+            rate = Math.max(50, Math.min(180,
+                    rate + random.nextGaussian()));
+            n = 0;
+            while (beatTime < time && n < beats.length) {
+                beats[n] = (int) Math.round(1024 * 60 / rate
+                        + 10 * random.nextGaussian());
+                beatTime += beats[n] * 1000. / 1024.;
+                n++;
+            }
+            dates[i] = time + random.nextInt(50);
+            hr[i] = (int) Math.round(rate);
+            rr[i] = new int[n];
+            System.arraycopy(beats, 0, rr[i], 0, n);
+            rrCount[i] = n;
+            act[i] = random.nextInt(256);
+            pa[i] = random.nextInt(256);
+            notifications[i] = encode(hr[i], beats, n);
+            rrBytes[i] = RrCodec.encode(beats, n);
+        }
+    }
+
+    /**
+     * Encodes a Heart Rate Measurement with an 8-bit HR, sensor contact,
+     * and R-R values.
+     */
+    private static byte[] encode(int hr, int[] rr, int count) {
+        byte[] data = new byte[2 + 2 * count];
+        data[0] = (byte) (HeartRateDecoder.FLAG_RR_PRESENT
+                | HeartRateDecoder.FLAG_SENSOR_CONTACT_MASK);
+        data[1] = (byte) hr;
+        for (int i = 0; i < count; i++) {
+            data[2 + 2 * i] = (byte) rr[i];
+            data[3 + 2 * i] = (byte) (rr[i] >> 8);
+        }
+        return data;
+    }
+
+    /**
+     * Writes the rows of the session in the database CSV format, as for
+     * Save Database as CSV.
+     *
+     * @param out The CsvWriter.
+     * @throws IOException If they could not be written.
+     */
+    public void writeDatabaseCsv(CsvWriter out) throws IOException {
+        byte[] bytes;
+        for (int i = 0; i < size; i++) {
+            out.append(dates[i]).append(SAVE_DATABASE_DELIM)
+                    .append(START_DATE).append(SAVE_DATABASE_DELIM)
+                    .append(hr[i]).append(SAVE_DATABASE_DELIM);
+            bytes = rrBytes[i];
+            if (bytes != null && bytes.length < 2) {
+                out.append(' ');
+            } else {
+                out.appendRr(bytes);
+            }
+            out.append(SAVE_DATABASE_DELIM).append(act[i])
+                    .append(SAVE_DATABASE_DELIM).append(pa[i])
+                    .append(SAVE_DATABASE_DELIM).append('\n');
+        }
+    }
+
+    /**
+     * Writes the rows of the session in the session CSV format, with
+     * formatted dates, as for Save Sessions.
+     *
+     * @param out The CsvWriter.
+     * @throws IOException If they could not be written.
+     */
+    public void writeSessionCsv(CsvWriter out) throws IOException {
+        RrTimeline timeline = new RrTimeline();
+        for (int i = 0; i < size; i++) {
+            out.appendDate(dates[i]).append(SAVE_SESSION_DELIM)
+                    .append(hr[i]).append(SAVE_SESSION_DELIM)
+                    .appendRr(rrBytes[i]).append(SAVE_SESSION_DELIM)
+                    .append(act[i]).append(SAVE_SESSION_DELIM)
+                    .append(pa[i]).append(SAVE_SESSION_DELIM)
+                    .appendBeatTimes(timeline, dates[i], rrBytes[i],
+                            START_DATE)
+                    .append('\n');
+        }
+    }
+
+    /**
+     * Gets the session in the database CSV format.
+     *
+     * @return The bytes of the file.
+     * @throws IOException If it could not be written.
+     */
+    public byte[] toDatabaseCsv() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * size);
+        try (CsvWriter out = new CsvWriter(Channels.newChannel(bytes))) {
+            writeDatabaseCsv(out);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A channel that discards what is written to it, so the benchmarks of
+     * writing only measure the formatting.
+     */
+    public static class NullChannel implements WritableByteChannel {
+        private long mBytesWritten;
+
+        public long getBytesWritten() {
+            return mBytesWritten;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int n = src.remaining();
+            src.position(src.limit());
+            mBytesWritten += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
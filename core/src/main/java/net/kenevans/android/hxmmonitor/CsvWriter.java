@@ -0,0 +1,335 @@
+package net.kenevans.android.hxmmonitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Writes CSV text to a channel. The values are appended as bytes directly
+ * into a reusable buffer, which is written to the channel in large blocks,
+ * so nothing is allocated per value except for Strings that are not ASCII.
+ * Dates are formatted as for sessionSaveFormatter, or with another pattern
+ * for the minute, but the SimpleDateFormat is only used when the minute
+ * changes, and the seconds and ms are appended directly. This assumes the
+ * time zone offset is a whole number of minutes, which is true of all
+ * current time zones. Not thread safe.
+ */
+public class CsvWriter implements Closeable, IConstants {
+    /**
+     * The part of the sessionSaveFormatter pattern before the seconds.
+     */
+    private static final String MINUTE_FORMAT = "yyyy-MM-dd HH:mm:";
+
+    private final WritableByteChannel mChannel;
+    private final String mMinutePattern;
+    private final TimeZone mTimeZone;
+    private final ByteBuffer mBuffer;
+    private final byte[] mBytes;
+    private int mPosition;
+    private long mBytesWritten;
+    // Scratch space for the digits of a number, written backwards
+    private final byte[] mDigits = new byte[20];
+    // The cached formatted minute
+    private SimpleDateFormat mMinuteFormatter;
+    private final Date mDate = new Date();
+    private long mCachedMinute = Long.MIN_VALUE;
+    private byte[] mCachedMinuteBytes;
+    // Scratch space for appendBeatTimes
+    private int[] mRr = new int[16];
+    private long[] mTimes = new long[16];
+
+    /**
+     * Constructor using a buffer of EXPORT_BUFFER_SIZE.
+     *
+     * @param channel The channel.
+     */
+    public CsvWriter(WritableByteChannel channel) {
+        this(channel, EXPORT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param channel    The channel.
+     * @param bufferSize The size of the buffer in bytes.
+     */
+    public CsvWriter(WritableByteChannel channel, int bufferSize) {
+        this(channel, bufferSize, MINUTE_FORMAT, null);
+    }
+
+    /**
+     * Constructor with the format for appendDate.
+     *
+     * @param channel       The channel.
+     * @param bufferSize    The size of the buffer in bytes.
+     * @param minutePattern The SimpleDateFormat pattern for the part of the
+     *                      date before the seconds, which are appended as
+     *                      ss.SSS.
+     * @param timeZone      The time zone or null for the default.
+     */
+    public CsvWriter(WritableByteChannel channel, int bufferSize,
+                     String minutePattern, TimeZone timeZone) {
+        mChannel = channel;
+        mMinutePattern = minutePattern;
+        mTimeZone = timeZone;
+        mBytes = new byte[bufferSize];
+        mBuffer = ByteBuffer.wrap(mBytes);
+    }
+
+    /**
+     * Appends a character, which must be ASCII.
+     *
+     * @param c The character.
+     * @return This writer.
+     * @throws IOException If the buffer could not be written.
+     */
+    public CsvWriter append(char c) throws IOException {
+        if (mPosition == mBytes.length) {
+            writeBuffer();
+        }
+        mBytes[mPosition++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Appends a String, encoded as UTF-8.
+     *
+     * @param string The String.
+     * @return This writer.
+     * @throws IOException If the buffer could not be written.
+     */
+    public CsvWriter append(String string) throws IOException {
+        int len = string.length();
+        char c;
+        for (int i = 0; i < len; i++) {
+            c = string.charAt(i);
+            if (c >= 0x80) {
+                return append(string.substring(i)
+                        .getBytes(StandardCharsets.UTF_8));
+            }
+            if (mPosition == mBytes.length) {
+                writeBuffer();
+            }
+            mBytes[mPosition++] = (byte) c;
+        }
+        return this;
+    }
+
+    /**
+     * Appends a long in decimal.
+     *
+     * @param value The value.
+     * @return This writer.
+     * @throws IOException If the buffer could not be written.
+     */
+    public CsvWriter append(long value) throws IOException {
+        if (value == Long.MIN_VALUE) {
+            return append(Long.toString(value));
+        }
+        if (mBytes.length - mPosition < mDigits.length) {
+            writeBuffer();
+        }
+        if (value < 0) {
+            mBytes[mPosition++] = '-';
+            value = -value;
+        }
+        int n = 0;
+        do {
+            mDigits[n++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value != 0);
+        while (n > 0) {
+            mBytes[mPosition++] = mDigits[--n];
+        }
+        return this;
+    }
+
+    /**
+     * Appends a date in the format of sessionSaveFormatter,
+     * yyyy-MM-dd HH:mm:ss.SSS in the default time zone, unless another
+     * format was given to the constructor.
+     *
+     * @param date The date.
+     * @return This writer.
+     * @throws IOException If the buffer could not be written.
+     */
+    public CsvWriter appendDate(long date) throws IOException {
+        long minute = date / 60000;
+        int ms = (int) (date % 60000);
+        if (ms < 0) {
+            ms += 60000;
+            minute--;
+        }
+        if (minute != mCachedMinute) {
+            if (mMinuteFormatter == null) {
+                mMinuteFormatter = new SimpleDateFormat(mMinutePattern,
+                        Locale.US);
+                if (mTimeZone != null) {
+                    mMinuteFormatter.setTimeZone(mTimeZone);
+                }
+            }
+            mDate.setTime(minute * 60000);
+            mCachedMinuteBytes = mMinuteFormatter.format(mDate)
+                    .getBytes(StandardCharsets.UTF_8);
+            mCachedMinute = minute;
+        }
+        append(mCachedMinuteBytes);
+        if (mBytes.length - mPosition < 6) {
+            writeBuffer();
+        }
+        int second = ms / 1000;
+        ms %= 1000;
+        mBytes[mPosition++] = (byte) ('0' + second / 10);
+        mBytes[mPosition++] = (byte) ('0' + second % 10);
+        mBytes[mPosition++] = '.';
+        mBytes[mPosition++] = (byte) ('0' + ms / 100);
+        mBytes[mPosition++] = (byte) ('0' + ms / 10 % 10);
+        mBytes[mPosition++] = (byte) ('0' + ms % 10);
+        return this;
+    }
+
+    /**
+     * Appends packed RR values as from the database, separated by spaces,
+     * as for RrCodec.format. They are decoded directly, without making an
+     * int array.
+     *
+     * @param bytes The packed values or null if invalid, in which case
+     *              INVALID_STRING is appended.
+     * @return This writer.
+     * @throws IOException If the buffer could not be written.
+     * @see RrCodec#decode(byte[])
+     */
+    public CsvWriter appendRr(byte[] bytes) throws IOException {
+        if (bytes == null) {
+            return append(INVALID_STRING);
+        }
+        int count = bytes.length / 2;
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                append(' ');
+            }
+            append((bytes[j] & 0xFF) | ((bytes[j + 1] & 0xFF) << 8));
+            j += 2;
+        }
+        return this;
+    }
+
+    /**
+     * Appends the times of the beats for packed RR values as from the
+     * database, as ms after the given origin, separated by spaces. The
+     * times are reconstructed with the RrTimeline, which should be given
+     * the rows of a session in order, so they are the same as in the plots.
+     *
+     * @param timeline   The RrTimeline for the session.
+     * @param updateTime The date of the row.
+     * @param bytes      The packed values or null if invalid, in which case
+     *                   the timeline restarts and INVALID_STRING is
+     *                   appended.
+     * @param origin     The time the times are after, such as the start
+     *                   date.
+     * @return This writer.
+     * @throws IOException If the buffer could not be written.
+     */
+    public CsvWriter appendBeatTimes(RrTimeline timeline, long updateTime,
+                                     byte[] bytes, long origin)
+            throws IOException {
+        if (bytes == null) {
+            timeline.restart(updateTime);
+            return append(INVALID_STRING);
+        }
+        int count = bytes.length / 2;
+        if (mRr.length < count) {
+            mRr = new int[count];
+            mTimes = new long[count];
+        }
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            mRr[i] = (bytes[j] & 0xFF) | ((bytes[j + 1] & 0xFF) << 8);
+            j += 2;
+        }
+        int n = timeline.add(updateTime, mRr, count, mTimes, 0);
+        for (int i = 0; i < n; i++) {
+            if (i > 0) {
+                append(' ');
+            }
+            append(mTimes[i] - origin);
+        }
+        return this;
+    }
+
+    /**
+     * Gets the number of bytes appended so far.
+     *
+     * @return The number of bytes.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten + mPosition;
+    }
+
+    /**
+     * Writes what is in the buffer to the channel.
+     *
+     * @throws IOException If the buffer could not be written.
+     */
+    public void flush() throws IOException {
+        writeBuffer();
+    }
+
+    /**
+     * Flushes and closes the channel.
+     *
+     * @throws IOException If the buffer could not be written or the channel
+     *                     could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * Appends bytes as they are.
+     *
+     * @param bytes The bytes.
+     * @return This writer.
+     * @throws IOException If the buffer could not be written.
+     */
+    public CsvWriter append(byte[] bytes) throws IOException {
+        int offset = 0;
+        int n;
+        while (offset < bytes.length) {
+            if (mPosition == mBytes.length) {
+                writeBuffer();
+            }
+            n = Math.min(bytes.length - offset, mBytes.length - mPosition);
+            System.arraycopy(bytes, offset, mBytes, mPosition, n);
+            mPosition += n;
+            offset += n;
+        }
+        return this;
+    }
+
+    private void writeBuffer() throws IOException {
+        if (mPosition == 0) {
+            return;
+        }
+        mBuffer.clear();
+        mBuffer.limit(mPosition);
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBytesWritten += mPosition;
+        mPosition = 0;
+    }
+
+}
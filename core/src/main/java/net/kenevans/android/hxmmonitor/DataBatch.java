@@ -0,0 +1,196 @@
+package net.kenevans.android.hxmmonitor;
+
+/**
+ * Reusable fixed-capacity buffer of data rows held in primitive arrays. The
+ * RR values for each row are copied into arrays owned by the batch, so
+ * adding rows does not allocate once the batch has been used.
+ */
+public class DataBatch implements IConstants {
+    /**
+     * Initial capacity of the RR array for each row.
+     */
+    private static final int INITIAL_RR_CAPACITY = 9;
+
+    private final int mCapacity;
+    private final long[] mDate;
+    private final long[] mStartDate;
+    private final int[] mHr;
+    private final int[][] mRr;
+    private final int[] mRrCount;
+    private final int[] mAct;
+    private final int[] mPa;
+    private int mSize;
+    // Results of the last write
+    private int mInserted;
+    private int mErrors;
+    private String mLastError;
+
+    /**
+     * Constructor.
+     *
+     * @param capacity The maximum number of rows.
+     */
+    public DataBatch(int capacity) {
+        mCapacity = capacity;
+        mDate = new long[capacity];
+        mStartDate = new long[capacity];
+        mHr = new int[capacity];
+        mRr = new int[capacity][INITIAL_RR_CAPACITY];
+        mRrCount = new int[capacity];
+        mAct = new int[capacity];
+        mPa = new int[capacity];
+    }
+
+    /**
+     * Adds a row.
+     *
+     * @param date      The date.
+     * @param startDate The start date.
+     * @param hr        The HR.
+     * @param rr        The RR values or null if invalid.
+     * @param rrCount   The number of RR values to use.
+     * @param activity  The activity.
+     * @param pa        The peak acceleration.
+     * @return False if the batch is full and the row was not added.
+     */
+    public boolean add(long date, long startDate, int hr, int[] rr,
+                       int rrCount, int activity, int pa) {
+        if (mSize == mCapacity) {
+            return false;
+        }
+        int i = mSize++;
+        mDate[i] = date;
+        mStartDate[i] = startDate;
+        mHr[i] = hr;
+        if (rr == null) {
+            mRrCount[i] = INVALID_INT;
+        } else {
+            if (mRr[i].length < rrCount) {
+                mRr[i] = new int[rrCount];
+            }
+            System.arraycopy(rr, 0, mRr[i], 0, rrCount);
+            mRrCount[i] = rrCount;
+        }
+        mAct[i] = activity;
+        mPa[i] = pa;
+        return true;
+    }
+
+    /**
+     * Removes all the rows and resets the results.
+     */
+    public void clear() {
+        mSize = 0;
+        setResults(0, 0, null);
+    }
+
+    /**
+     * Sets the results of writing the batch. Used by the database adapter.
+     *
+     * @param inserted  The number of rows inserted.
+     * @param errors    The number of rows that failed.
+     * @param lastError The message from the last error or null.
+     */
+    void setResults(int inserted, int errors, String lastError) {
+        mInserted = inserted;
+        mErrors = errors;
+        mLastError = lastError;
+    }
+
+    /**
+     * Gets the number of rows inserted by the last write of this batch.
+     *
+     * @return The number inserted.
+     */
+    public int getInserted() {
+        return mInserted;
+    }
+
+    /**
+     * Gets the number of rows that failed in the last write of this batch.
+     *
+     * @return The number of errors.
+     */
+    public int getErrors() {
+        return mErrors;
+    }
+
+    /**
+     * Gets the message for the last error in the last write of this batch.
+     *
+     * @return The message or null if there were no errors.
+     */
+    public String getLastError() {
+        return mLastError;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    public boolean isFull() {
+        return mSize == mCapacity;
+    }
+
+    public long getDate(int i) {
+        return mDate[i];
+    }
+
+    public long getStartDate(int i) {
+        return mStartDate[i];
+    }
+
+    public int getHr(int i) {
+        return mHr[i];
+    }
+
+    /**
+     * Gets the RR array for a row. Only the first getRrCount(i) values are
+     * valid, and the array belongs to the batch.
+     *
+     * @param i The row.
+     * @return The RR array.
+     */
+    public int[] getRr(int i) {
+        return mRr[i];
+    }
+
+    /**
+     * Gets the number of RR values for a row.
+     *
+     * @param i The row.
+     * @return The number of values or INVALID_INT if the RR is invalid.
+     */
+    public int getRrCount(int i) {
+        return mRrCount[i];
+    }
+
+    /**
+     * Gets a copy of the RR values for a row.
+     *
+     * @param i The row.
+     * @return The RR values or null if invalid.
+     */
+    public int[] copyRr(int i) {
+        int count = mRrCount[i];
+        if (count == INVALID_INT) {
+            return null;
+        }
+        int[] rr = new int[count];
+        System.arraycopy(mRr[i], 0, rr, 0, count);
+        return rr;
+    }
+
+    public int getActivity(int i) {
+        return mAct[i];
+    }
+
+    public int getPa(int i) {
+        return mPa[i];
+    }
+
+}
@@ -0,0 +1,390 @@
+package net.kenevans.android.hxmmonitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads the rows of a database CSV file, as written by the save database
+ * option, into DataBatches. The lines are date, start date, HR, RR,
+ * activity, and PA, separated by SAVE_DATABASE_DELIM. The bytes are
+ * tokenized and the numbers parsed directly in the read buffer, so nothing
+ * is allocated per line.<br>
+ * <br>
+ * The values are handled as they always have been. Blank lines and lines
+ * starting with # are skipped. A line with fewer than 4 values is counted
+ * as an error and skipped. A date that cannot be parsed is INVALID_DATE,
+ * and an HR, activity, or PA that cannot be parsed or is missing is 0. An
+ * RR that is not space-separated numbers, such as INVALID_STRING, is
+ * invalid. Rows with a start date in the skipped start dates are read but
+ * not added. Not thread safe.
+ */
+public class DataCsvReader implements Closeable, IConstants {
+    /**
+     * The most values used on a line.
+     */
+    private static final int MAX_FIELDS = 6;
+
+    private final InputStream mIn;
+    private byte[] mBuffer;
+    // The start of the unparsed bytes and the end of the valid bytes
+    private int mPosition;
+    private int mLimit;
+    private boolean mEof;
+    // Whether a \n is to be skipped because the last line ended with \r
+    private boolean mSkipLf;
+    private long mBytesRead;
+    private int mLineNumber;
+    private int mErrors;
+    private String mLastError;
+    // Sorted
+    private long[] mSkippedStartDates = new long[0];
+    private int mSkipped;
+    // The bounds of the values on the current line
+    private final int[] mStart = new int[MAX_FIELDS];
+    private final int[] mEnd = new int[MAX_FIELDS];
+    private int[] mRr = new int[16];
+    // Set by parseLong
+    private boolean mParsed;
+
+    /**
+     * Constructor using a buffer of EXPORT_BUFFER_SIZE.
+     *
+     * @param in The InputStream.
+     */
+    public DataCsvReader(InputStream in) {
+        mIn = in;
+        mBuffer = new byte[EXPORT_BUFFER_SIZE];
+    }
+
+    /**
+     * Reads rows into the batch until it is full or the end of the file.
+     *
+     * @param batch The batch, which should have been cleared.
+     * @return False if the end of the file has been reached.
+     * @throws IOException If the file could not be read.
+     */
+    public boolean read(DataBatch batch) throws IOException {
+        int end;
+        while (!batch.isFull()) {
+            end = findLineEnd();
+            if (end < 0) {
+                return false;
+            }
+            mLineNumber++;
+            parseLine(batch, mPosition, end);
+            mPosition = end;
+            // Skip the terminator
+            if (mPosition < mLimit) {
+                if (mBuffer[mPosition] == '\r') {
+                    mSkipLf = true;
+                }
+                mPosition++;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the start dates of the rows that are not to be added, such as
+     * those of the sessions that are already in the database as archives.
+     *
+     * @param startDates The start dates.
+     */
+    public void setSkippedStartDates(long[] startDates) {
+        mSkippedStartDates = startDates.clone();
+        Arrays.sort(mSkippedStartDates);
+    }
+
+    /**
+     * Gets the number of rows that were not added because their start date
+     * is one of the skipped start dates.
+     *
+     * @return The number of rows.
+     */
+    public int getSkipped() {
+        return mSkipped;
+    }
+
+    /**
+     * Gets the number of bytes read from the InputStream.
+     *
+     * @return The number of bytes.
+     */
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /**
+     * Gets the number of lines read.
+     *
+     * @return The number of lines.
+     */
+    public int getLineNumber() {
+        return mLineNumber;
+    }
+
+    /**
+     * Gets the number of lines that were skipped because they were
+     * invalid.
+     *
+     * @return The number of errors.
+     */
+    public int getErrors() {
+        return mErrors;
+    }
+
+    /**
+     * Gets a message for the last line skipped because it was invalid.
+     *
+     * @return The message or null if there were none.
+     */
+    public String getLastError() {
+        return mLastError;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * Finds the end of the next line, reading more of the file if
+     * necessary. A final line without a terminator ends at the end of the
+     * file.
+     *
+     * @return The index of the terminator, or of the end of the bytes for
+     * the final line, or -1 if there are no more lines.
+     * @throws IOException If the file could not be read.
+     */
+    private int findLineEnd() throws IOException {
+        int i = mPosition;
+        byte b;
+        while (true) {
+            while (i < mLimit) {
+                b = mBuffer[i];
+                if (mSkipLf) {
+                    mSkipLf = false;
+                    if (b == '\n') {
+                        mPosition++;
+                        i++;
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    return i;
+                }
+                i++;
+            }
+            if (mEof) {
+                return mPosition < mLimit ? mLimit : -1;
+            }
+            i -= mPosition;
+            fill();
+        }
+    }
+
+    /**
+     * Moves the unparsed bytes to the start of the buffer, growing it if
+     * they fill it, and reads more after them.
+     *
+     * @throws IOException If the file could not be read.
+     */
+    private void fill() throws IOException {
+        int remaining = mLimit - mPosition;
+        if (remaining == mBuffer.length) {
+            byte[] buffer = new byte[2 * mBuffer.length];
+            System.arraycopy(mBuffer, mPosition, buffer, 0, remaining);
+            mBuffer = buffer;
+        } else if (mPosition > 0) {
+            System.arraycopy(mBuffer, mPosition, mBuffer, 0, remaining);
+        }
+        mPosition = 0;
+        mLimit = remaining;
+        int n = mIn.read(mBuffer, mLimit, mBuffer.length - mLimit);
+        if (n < 0) {
+            mEof = true;
+        } else {
+            mLimit += n;
+            mBytesRead += n;
+        }
+    }
+
+    /**
+     * Parses a line and adds it to the batch if it is valid.
+     *
+     * @param batch The batch.
+     * @param start The start of the line.
+     * @param end   The end of the line.
+     */
+    private void parseLine(DataBatch batch, int start, int end) {
+        byte[] buf = mBuffer;
+        // Trim
+        while (start < end && (buf[start] & 0xFF) <= ' ') {
+            start++;
+        }
+        while (end > start && (buf[end - 1] & 0xFF) <= ' ') {
+            end--;
+        }
+        // Skip blank lines and lines starting with #
+        if (start == end || buf[start] == '#') {
+            return;
+        }
+        // Split, ignoring empty values at the end
+        int nFields = 0;
+        int nNonEmpty = 0;
+        int fieldStart = start;
+        for (int i = start; i <= end; i++) {
+            if (i == end || buf[i] == ',') {
+                if (nFields < MAX_FIELDS) {
+                    mStart[nFields] = fieldStart;
+                    mEnd[nFields] = i;
+                }
+                nFields++;
+                if (i > fieldStart) {
+                    nNonEmpty = nFields;
+                }
+                fieldStart = i + 1;
+            }
+        }
+        nFields = Math.min(nNonEmpty, MAX_FIELDS);
+        if (nFields < 4) {
+            mErrors++;
+            mLastError = "Found " + nNonEmpty + " values @ line "
+                    + mLineNumber;
+            return;
+        }
+        long date = parseLong(mStart[0], mEnd[0]);
+        if (!mParsed) {
+            date = INVALID_DATE;
+        }
+        long startDate = parseLong(mStart[1], mEnd[1]);
+        if (!mParsed) {
+            startDate = INVALID_DATE;
+        }
+        int hr = parseInt(mStart[2], mEnd[2]);
+        int rrCount = parseRr(mStart[3], mEnd[3]);
+        int act = nFields >= 5 ? parseInt(mStart[4], mEnd[4]) : 0;
+        int pa = nFields >= 6 ? parseInt(mStart[5], mEnd[5]) : 0;
+        if (mSkippedStartDates.length > 0 && Arrays.binarySearch(
+                mSkippedStartDates, startDate) >= 0) {
+            mSkipped++;
+            return;
+        }
+        batch.add(date, startDate, hr, rrCount < 0 ? null : mRr, rrCount,
+                act, pa);
+    }
+
+    /**
+     * Parses a long as Long.parseLong would, with an optional sign and no
+     * spaces. Sets mParsed to whether it succeeded.
+     *
+     * @param start The start.
+     * @param end   The end.
+     * @return The value or 0 if it could not be parsed.
+     */
+    private long parseLong(int start, int end) {
+        mParsed = false;
+        byte[] buf = mBuffer;
+        if (start == end) {
+            return 0;
+        }
+        boolean negative = buf[start] == '-';
+        if (negative || buf[start] == '+') {
+            start++;
+            if (start == end) {
+                return 0;
+            }
+        }
+        long value = 0;
+        int digit;
+        if (end - start <= 18) {
+            // Cannot overflow
+            for (int i = start; i < end; i++) {
+                digit = buf[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    return 0;
+                }
+                value = 10 * value + digit;
+            }
+            mParsed = true;
+            return negative ? -value : value;
+        }
+        // Accumulate negatively so Long.MIN_VALUE can be parsed
+        for (int i = start; i < end; i++) {
+            digit = buf[i] - '0';
+            if (digit < 0 || digit > 9 || value < Long.MIN_VALUE / 10) {
+                return 0;
+            }
+            value *= 10;
+            if (value < Long.MIN_VALUE + digit) {
+                return 0;
+            }
+            value -= digit;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                return 0;
+            }
+            value = -value;
+        }
+        mParsed = true;
+        return value;
+    }
+
+    /**
+     * Parses an int as Integer.parseInt would.
+     *
+     * @param start The start.
+     * @param end   The end.
+     * @return The value or 0 if it could not be parsed.
+     */
+    private int parseInt(int start, int end) {
+        long value = parseLong(start, end);
+        if (!mParsed || value < Integer.MIN_VALUE
+                || value > Integer.MAX_VALUE) {
+            return 0;
+        }
+        return (int) value;
+    }
+
+    /**
+     * Parses the RR values into mRr as RrCodec.parse would.
+     *
+     * @param start The start.
+     * @param end   The end.
+     * @return The number of values or -1 if they are invalid.
+     */
+    private int parseRr(int start, int end) {
+        byte[] buf = mBuffer;
+        int n = 0;
+        int val = 0;
+        boolean inToken = false;
+        byte b;
+        for (int i = start; i <= end; i++) {
+            b = i < end ? buf[i] : (byte) ' ';
+            if (b == ' ' || (b >= '\t' && b <= '\r')) {
+                if (inToken) {
+                    if (n == mRr.length) {
+                        int[] rr = new int[2 * n];
+                        System.arraycopy(mRr, 0, rr, 0, n);
+                        mRr = rr;
+                    }
+                    mRr[n++] = val;
+                    inToken = false;
+                }
+            } else if (b >= '0' && b <= '9') {
+                if (!inToken) {
+                    inToken = true;
+                    val = 0;
+                }
+                val = 10 * val + (b - '0');
+            } else {
+                return -1;
+            }
+        }
+        return n;
+    }
+
+}
@@ -0,0 +1,235 @@
+package net.kenevans.android.hxmmonitor;
+
+import java.util.Arrays;
+
+/**
+ * Holds the values of a plotted quantity at full resolution in primitive
+ * arrays, sorted by time, and picks the ones to plot for a range. When there
+ * are more than two values per bucket, only the minimum and maximum of each
+ * bucket are used, plus the first invalid value (NaN), so gaps in the data
+ * still show. Not thread safe.
+ */
+public class Decimator {
+    /**
+     * Initial capacity of the arrays.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private long[] mTimes = new long[INITIAL_CAPACITY];
+    private double[] mValues = new double[INITIAL_CAPACITY];
+    private int mSize;
+
+    /**
+     * Receives the values picked by decimate, in increasing order of time.
+     */
+    public interface Sink {
+        void add(long time, double value);
+    }
+
+    /**
+     * Gets the number of values.
+     *
+     * @return The number of values.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public long getTime(int i) {
+        return mTimes[i];
+    }
+
+    public double getValue(int i) {
+        return mValues[i];
+    }
+
+    /**
+     * Removes all the values.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    /**
+     * Adds a value or replaces the value if there is already one at the
+     * given time. Adding in order of time is O(1).
+     *
+     * @param time  The time.
+     * @param value The value.
+     */
+    public void addOrUpdate(long time, double value) {
+        int index = mSize;
+        if (mSize > 0 && time <= mTimes[mSize - 1]) {
+            index = Arrays.binarySearch(mTimes, 0, mSize, time);
+            if (index >= 0) {
+                mValues[index] = value;
+                return;
+            }
+            index = -index - 1;
+        }
+        if (mSize == mTimes.length) {
+            mTimes = Arrays.copyOf(mTimes, 2 * mSize);
+            mValues = Arrays.copyOf(mValues, 2 * mSize);
+        }
+        if (index < mSize) {
+            System.arraycopy(mTimes, index, mTimes, index + 1, mSize - index);
+            System.arraycopy(mValues, index, mValues, index + 1,
+                    mSize - index);
+        }
+        mTimes[index] = time;
+        mValues[index] = value;
+        mSize++;
+    }
+
+    /**
+     * Passes the sink the minimum and maximum values in each of the given
+     * number of buckets between lower and upper. The values just outside
+     * the range are included so the lines go to the edges. If there are few
+     * enough values they are all used.
+     *
+     * @param lower   The start of the range.
+     * @param upper   The end of the range.
+     * @param buckets The number of buckets, typically the width in pixels.
+     * @param sink    The sink.
+     */
+    public void decimate(double lower, double upper, int buckets, Sink sink) {
+        if (mSize == 0 || upper <= lower || buckets <= 0) {
+            return;
+        }
+        // The range of indices to use
+        int start = lowerIndex(lower);
+        if (start > 0) {
+            start--;
+        }
+        int end = upperIndex(upper);
+        if (end < mSize - 1) {
+            end++;
+        }
+        if (end - start + 1 <= 2 * buckets) {
+            for (int i = start; i <= end; i++) {
+                sink.add(mTimes[i], mValues[i]);
+            }
+        } else {
+            decimate(start, end, lower, (upper - lower) / buckets, buckets,
+                    sink);
+        }
+    }
+
+    /**
+     * Does the work of decimating the values from start to end inclusive.
+     * The first and last values are always included.
+     */
+    private void decimate(int start, int end, double lower, double width,
+                          int buckets, Sink sink) {
+        sink.add(mTimes[start], mValues[start]);
+        int bucket = -1;
+        int minIndex = -1;
+        int maxIndex = -1;
+        int nanIndex = -1;
+        int b;
+        double value;
+        for (int i = start + 1; i < end; i++) {
+            b = (int) ((mTimes[i] - lower) / width);
+            if (b < 0) {
+                b = 0;
+            } else if (b >= buckets) {
+                b = buckets - 1;
+            }
+            if (b != bucket) {
+                addBucket(minIndex, maxIndex, nanIndex, sink);
+                bucket = b;
+                minIndex = maxIndex = nanIndex = -1;
+            }
+            value = mValues[i];
+            if (Double.isNaN(value)) {
+                if (nanIndex < 0) {
+                    nanIndex = i;
+                }
+            } else {
+                if (minIndex < 0 || value < mValues[minIndex]) {
+                    minIndex = i;
+                }
+                if (maxIndex < 0 || value > mValues[maxIndex]) {
+                    maxIndex = i;
+                }
+            }
+        }
+        addBucket(minIndex, maxIndex, nanIndex, sink);
+        sink.add(mTimes[end], mValues[end]);
+    }
+
+    /**
+     * Adds the values at up to three indices in increasing order, skipping
+     * any that are negative or repeated.
+     */
+    private void addBucket(int i1, int i2, int i3, Sink sink) {
+        int tmp;
+        if (i1 > i2) {
+            tmp = i1;
+            i1 = i2;
+            i2 = tmp;
+        }
+        if (i2 > i3) {
+            tmp = i2;
+            i2 = i3;
+            i3 = tmp;
+        }
+        if (i1 > i2) {
+            tmp = i1;
+            i1 = i2;
+            i2 = tmp;
+        }
+        if (i1 >= 0) {
+            sink.add(mTimes[i1], mValues[i1]);
+        }
+        if (i2 >= 0 && i2 != i1) {
+            sink.add(mTimes[i2], mValues[i2]);
+        }
+        if (i3 >= 0 && i3 != i2) {
+            sink.add(mTimes[i3], mValues[i3]);
+        }
+    }
+
+    /**
+     * Gets the index of the first time that is &gt;= the given time.
+     *
+     * @param time The time.
+     * @return The index, which is mSize if there is none.
+     */
+    private int lowerIndex(double time) {
+        int lo = 0;
+        int hi = mSize;
+        int mid;
+        while (lo < hi) {
+            mid = (lo + hi) >>> 1;
+            if (mTimes[mid] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Gets the index of the last time that is &lt;= the given time.
+     *
+     * @param time The time.
+     * @return The index, which is -1 if there is none.
+     */
+    private int upperIndex(double time) {
+        int lo = 0;
+        int hi = mSize;
+        int mid;
+        while (lo < hi) {
+            mid = (lo + hi) >>> 1;
+            if (mTimes[mid] <= time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo - 1;
+    }
+
+}
@@ -0,0 +1,81 @@
+package net.kenevans.android.hxmmonitor;
+
+public class GPXUtils {
+    /**
+     * Lines for the beginning of a GPX file with two %s for creator name and
+     * creation time.
+     */
+    public static final String GPX_FILE_START_LINES = ""
+            + "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n"
+            + "<gpx xmlns=\"http://www.topografix.com/GPX/1/1\" " +
+            "creator=\"%s\" version=\"1.1\">\n"
+            + "    <metadata>\n" + "        <time>%s</time>\n"
+            + "    </metadata>\n" + "   <trk>\n" + "        <trkseg>\n";
+
+    /**
+     * Lines for a track point in a GPX file with two %s for time and HR.
+     */
+    public static final String GPX_FILE_TRACK_LINES = ""
+            + "            <trkpt lat=\"0\" lon=\"0\">\n"
+            + "                <ele>0</ele>\n"
+            + "                <time>%s</time>\n"
+            + "                <extensions>\n"
+            + "                    <gpxtpx:TrackPointExtension " +
+            "xmlns:gpxtpx=\"http://www.garmin" +
+            ".com/xmlschemas/TrackPointExtension/v1\" " +
+            "xmlns:gpxdata=\"http://www.cluetrust.com/XML/GPXDATA/1/0\" " +
+            "xmlns:gpxx=\"http://www.garmin.com/xmlschemas/GpxExtensions/v3\"" +
+            " xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\">\n"
+            + "                        <gpxtpx:hr>%s</gpxtpx:hr>\n"
+            + "                        <gpxdata:distance>0" +
+            ".0</gpxdata:distance>\n"
+            + "                    </gpxtpx:TrackPointExtension>\n"
+            + "                </extensions>\n" + "            </trkpt>\n";
+
+    /**
+     * Lines for the end of a GPX file with no %s.
+     */
+    public static final String GPX_FILE_END_LINES = "        </trkseg>\n"
+            + "    </trk>\n" + "</gpx>\n";
+
+    /**
+     * Lines for the beginning of a TCX file with three %s for the start
+     * time as the Id, the start time of the lap, and the total time of the
+     * lap in s.
+     */
+    public static final String TCX_FILE_START_LINES = ""
+            + "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+            + "<TrainingCenterDatabase xmlns=\"http://www.garmin" +
+            ".com/xmlschemas/TrainingCenterDatabase/v2\">\n"
+            + "    <Activities>\n"
+            + "        <Activity Sport=\"Other\">\n"
+            + "            <Id>%s</Id>\n"
+            + "            <Lap StartTime=\"%s\">\n"
+            + "                <TotalTimeSeconds>%s</TotalTimeSeconds>\n"
+            + "                <DistanceMeters>0</DistanceMeters>\n"
+            + "                <Calories>0</Calories>\n"
+            + "                <Intensity>Active</Intensity>\n"
+            + "                <TriggerMethod>Manual</TriggerMethod>\n"
+            + "                <Track>\n";
+
+    /**
+     * Lines for a track point in a TCX file with two %s for time and HR.
+     */
+    public static final String TCX_FILE_TRACK_LINES = ""
+            + "                    <Trackpoint>\n"
+            + "                        <Time>%s</Time>\n"
+            + "                        <HeartRateBpm>\n"
+            + "                            <Value>%s</Value>\n"
+            + "                        </HeartRateBpm>\n"
+            + "                    </Trackpoint>\n";
+
+    /**
+     * Lines for the end of a TCX file with one %s for the creator name.
+     */
+    public static final String TCX_FILE_END_LINES = "                </Track>\n"
+            + "            </Lap>\n"
+            + "            <Notes>Created by %s</Notes>\n"
+            + "        </Activity>\n" + "    </Activities>\n"
+            + "</TrainingCenterDatabase>\n";
+
+}
@@ -0,0 +1,85 @@
+package net.kenevans.android.hxmmonitor;
+
+/**
+ * Decodes the Heart Rate Measurement characteristic (0x2A37) directly from
+ * the raw notification bytes. All multi-byte fields are little-endian, as for
+ * BluetoothGattCharacteristic.getIntValue.
+ */
+public class HeartRateDecoder implements IConstants {
+    /**
+     * Flag bit for a 16-bit heart rate value.
+     */
+    public static final int FLAG_HR_16BIT = 0x01;
+    /**
+     * Flag bits for sensor contact status.
+     */
+    public static final int FLAG_SENSOR_CONTACT_MASK = 0x06;
+    /**
+     * Flag bit for energy expended present.
+     */
+    public static final int FLAG_EE_PRESENT = 0x08;
+    /**
+     * Flag bit for R-R intervals present.
+     */
+    public static final int FLAG_RR_PRESENT = 0x10;
+
+    private HeartRateDecoder() {
+    }
+
+    /**
+     * Decodes the given payload into the given sample, which is reset first.
+     *
+     * @param data   The characteristic value.
+     * @param date   The date the value was received.
+     * @param sample The sample to fill.
+     * @return If the payload was long enough to contain a heart rate.
+     */
+    public static boolean decode(byte[] data, long date,
+                                 HeartRateSample sample) {
+        sample.reset(date);
+        if (data == null || data.length < 2) {
+            return false;
+        }
+        int len = data.length;
+        int flag = data[0] & 0xFF;
+        int offset = 1;
+        if ((flag & FLAG_HR_16BIT) != 0) {
+            if (len < 3) {
+                return false;
+            }
+            sample.setHr(uint16(data, offset));
+            offset += 2;
+        } else {
+            sample.setHr(data[offset] & 0xFF);
+            offset += 1;
+        }
+        // Sensor Contact
+        sample.setSensorContact((flag & FLAG_SENSOR_CONTACT_MASK) >> 1);
+        // Energy Expended
+        if ((flag & FLAG_EE_PRESENT) != 0 && offset + 1 < len) {
+            sample.setEe(uint16(data, offset));
+            offset += 2;
+        }
+        // R-R, there may be more than 1 value
+        if ((flag & FLAG_RR_PRESENT) != 0) {
+            sample.setRrPresent(true);
+            while (offset + 1 < len) {
+                sample.addRr(uint16(data, offset));
+                offset += 2;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Gets an unsigned little-endian 16-bit value.
+     *
+     * @param data   The data.
+     * @param offset The offset of the low byte.
+     * @return The value.
+     */
+    static int uint16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+
+}
@@ -0,0 +1,205 @@
+package net.kenevans.android.hxmmonitor;
+
+/**
+ * Reusable holder for one decoded Heart Rate Measurement. The same instance
+ * is meant to be refilled by {@link HeartRateDecoder} for every
+ * notification, so nothing is allocated per beat. The info text is only
+ * built when it is asked for.
+ */
+public class HeartRateSample implements IConstants {
+    /**
+     * Initial capacity of the R-R array. A 20-byte notification can hold at
+     * most 9 R-R values.
+     */
+    private static final int INITIAL_RR_CAPACITY = 9;
+
+    private long date = INVALID_DATE;
+    private int hr = INVALID_INT;
+    private int sensorContact = INVALID_INT;
+    private int ee = INVALID_INT;
+    private boolean rrPresent;
+    private int[] rr = new int[INITIAL_RR_CAPACITY];
+    private int rrCount;
+
+    /**
+     * Resets the sample to invalid values.
+     *
+     * @param date The date.
+     */
+    public void reset(long date) {
+        this.date = date;
+        hr = INVALID_INT;
+        sensorContact = INVALID_INT;
+        ee = INVALID_INT;
+        rrPresent = false;
+        rrCount = 0;
+    }
+
+    /**
+     * Adds an R-R value, growing the array if necessary.
+     *
+     * @param value The R-R value in units of 1/1024 sec.
+     */
+    void addRr(int value) {
+        if (rrCount == rr.length) {
+            int[] newRr = new int[2 * rr.length];
+            System.arraycopy(rr, 0, newRr, 0, rrCount);
+            rr = newRr;
+        }
+        rr[rrCount++] = value;
+    }
+
+    void setHr(int hr) {
+        this.hr = hr;
+    }
+
+    void setSensorContact(int sensorContact) {
+        this.sensorContact = sensorContact;
+    }
+
+    void setEe(int ee) {
+        this.ee = ee;
+    }
+
+    void setRrPresent(boolean rrPresent) {
+        this.rrPresent = rrPresent;
+    }
+
+    /**
+     * Gets the date.
+     *
+     * @return The date.
+     */
+    public long getDate() {
+        return date;
+    }
+
+    /**
+     * Gets the heart rate.
+     *
+     * @return The heart rate.
+     */
+    public int getHr() {
+        return hr;
+    }
+
+    /**
+     * Gets the sensor contact
+     *
+     * @return The sensor contact.
+     */
+    public int getSensorContact() {
+        return sensorContact;
+    }
+
+    /**
+     * Gets the energy expended.
+     *
+     * @return The energy expended.
+     */
+    public int getEe() {
+        return ee;
+    }
+
+    /**
+     * Gets whether the R-R flag was set in the measurement. The flag may be
+     * set with no values present.
+     *
+     * @return If R-R values are present.
+     */
+    public boolean isRrPresent() {
+        return rrPresent;
+    }
+
+    /**
+     * Gets the R-R values. Only the first getRrCount() are valid. The array
+     * is owned by this sample and is overwritten by the next decode.
+     *
+     * @return The R-R values.
+     */
+    public int[] getRr() {
+        return rr;
+    }
+
+    /**
+     * Gets the number of valid R-R values.
+     *
+     * @return The number of R-R values.
+     */
+    public int getRrCount() {
+        return rrCount;
+    }
+
+    /**
+     * Gets a copy of the valid R-R values.
+     *
+     * @return The R-R values or null if there were none.
+     */
+    public int[] copyRr() {
+        if (!rrPresent) {
+            return null;
+        }
+        if (rrCount == 0) {
+            return RrCodec.EMPTY;
+        }
+        int[] copy = new int[rrCount];
+        System.arraycopy(rr, 0, copy, 0, rrCount);
+        return copy;
+    }
+
+    /**
+     * Gets the R-R values as a space-separated String, or INVALID_STRING if
+     * there were none.
+     *
+     * @return The R-R String.
+     */
+    public String getRrString() {
+        if (!rrPresent) {
+            return INVALID_STRING;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < rrCount; i++) {
+            if (i > 0) {
+                sb.append(" ");
+            }
+            sb.append(rr[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Gets info on the data in the sample. This is built on each call.
+     *
+     * @return The info.
+     */
+    public String getInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("Heart Rate: ").append(hr);
+        switch (sensorContact) {
+            case 0:
+            case 1:
+                sb.append("\nSensor contact not supported");
+                break;
+            case 2:
+                sb.append("\nSensor contact not detected");
+                break;
+            case 3:
+                sb.append("\nSensor contact detected");
+                break;
+        }
+        sb.append("\nEnergy Expended: ");
+        if (ee == INVALID_INT) {
+            sb.append("NA");
+        } else {
+            sb.append(ee);
+        }
+        sb.append("\nR-R: ");
+        if (rrPresent) {
+            sb.append(getRrString());
+        } else {
+            sb.append("NA");
+        }
+        return sb.toString();
+    }
+
+}
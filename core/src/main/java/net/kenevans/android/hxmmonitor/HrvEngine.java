@@ -0,0 +1,267 @@
+package net.kenevans.android.hxmmonitor;
+
+/**
+ * Computes the time-domain heart rate variability statistics (mean NN, SDNN,
+ * RMSSD, and pNN50) of the beats in a sliding time window. The beats are
+ * kept in a circular buffer of times and R-R values, and the statistics are
+ * maintained incrementally as beats are added and removed, so each beat is
+ * O(1) and nothing is allocated once the buffer is big enough for the
+ * window. The R-R values are kept in their original units of 1/1024 s and
+ * the sums are integers, so removing beats is exact and the results do not
+ * drift however long it runs. They are converted to ms with the scale when
+ * the statistics are read.<br>
+ * <br>
+ * A beat whose R-R value is outside HRV_MIN_RR to HRV_MAX_RR or differs
+ * from the previous one by more than HRV_MAX_RR_CHANGE is taken to be an
+ * artifact. It is not used, and the next beat is not compared with the one
+ * before it. A successive difference belongs to the later of its two beats
+ * and leaves the window with it.
+ */
+public class HrvEngine implements IConstants {
+    /**
+     * Value for the difference of a beat that has no valid previous beat.
+     */
+    private static final int NO_DIFF = Integer.MIN_VALUE;
+
+    private long mWindow;
+    private double mScale = RrTimeline.NOMINAL_SCALE;
+    private long[] mTimes;
+    private int[] mRr;
+    private int[] mDiff;
+    // Whether the difference is greater than 50 ms
+    private boolean[] mNn50;
+    // Index in the arrays of the first beat
+    private int mHead;
+    private int mSize;
+    // The R-R value of the last beat added or INVALID_INT after a break
+    private int mLastRr = INVALID_INT;
+    // Sums over the beats in the window
+    private long mSum;
+    private long mSumSq;
+    private int mDiffCount;
+    private long mDiffSumSq;
+    private int mNn50Count;
+    private long mRejected;
+
+    /**
+     * Constructor.
+     *
+     * @param window The length of the window (ms).
+     */
+    public HrvEngine(long window) {
+        mWindow = window;
+        int capacity = (int) (window / HRV_MIN_RR) + 1;
+        mTimes = new long[capacity];
+        mRr = new int[capacity];
+        mDiff = new int[capacity];
+        mNn50 = new boolean[capacity];
+    }
+
+    /**
+     * Sets the length of the window. If it is shorter the oldest beats are
+     * removed when the next one is added.
+     *
+     * @param window The length of the window (ms).
+     */
+    public void setWindow(long window) {
+        mWindow = window;
+    }
+
+    public long getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Sets the ms per R-R unit. It is used to check the R-R values of new
+     * beats and to convert the statistics.
+     *
+     * @param scale The scale.
+     */
+    public void setScale(double scale) {
+        mScale = scale;
+    }
+
+    /**
+     * Removes all the beats.
+     */
+    public void clear() {
+        mHead = 0;
+        mSize = 0;
+        mLastRr = INVALID_INT;
+        mSum = 0;
+        mSumSq = 0;
+        mDiffCount = 0;
+        mDiffSumSq = 0;
+        mNn50Count = 0;
+    }
+
+    /**
+     * Starts a new sequence, as when beats are missing. The next beat is
+     * not compared with the last one.
+     */
+    public void breakSequence() {
+        mLastRr = INVALID_INT;
+    }
+
+    /**
+     * Adds a beat and removes the ones that are no longer in the window.
+     *
+     * @param time The time of the beat.
+     * @param rr   The R-R value in units of 1/1024 s.
+     * @return False if the beat was rejected as an artifact.
+     */
+    public boolean addBeat(long time, int rr) {
+        double ms = rr * mScale;
+        if (ms < HRV_MIN_RR || ms > HRV_MAX_RR || (mLastRr != INVALID_INT
+                && Math.abs(rr - mLastRr) > HRV_MAX_RR_CHANGE * mLastRr)) {
+            mRejected++;
+            mLastRr = INVALID_INT;
+            return false;
+        }
+        removeBefore(time - mWindow + 1);
+        if (mSize == mTimes.length) {
+            grow();
+        }
+        int diff = mLastRr == INVALID_INT ? NO_DIFF : rr - mLastRr;
+        boolean nn50 = diff != NO_DIFF
+                && Math.abs(diff) * mScale > HRV_NN50_THRESHOLD;
+        int i = index(mSize++);
+        mTimes[i] = time;
+        mRr[i] = rr;
+        mDiff[i] = diff;
+        mNn50[i] = nn50;
+        mSum += rr;
+        mSumSq += (long) rr * rr;
+        if (diff != NO_DIFF) {
+            mDiffCount++;
+            mDiffSumSq += (long) diff * diff;
+            if (nn50) {
+                mNn50Count++;
+            }
+        }
+        mLastRr = rr;
+        return true;
+    }
+
+    /**
+     * Removes the beats before the given time.
+     *
+     * @param time The time.
+     */
+    public void removeBefore(long time) {
+        int diff;
+        while (mSize > 0 && mTimes[mHead] < time) {
+            mSum -= mRr[mHead];
+            mSumSq -= (long) mRr[mHead] * mRr[mHead];
+            diff = mDiff[mHead];
+            if (diff != NO_DIFF) {
+                mDiffCount--;
+                mDiffSumSq -= (long) diff * diff;
+                if (mNn50[mHead]) {
+                    mNn50Count--;
+                }
+            }
+            mHead = index(1);
+            mSize--;
+        }
+    }
+
+    /**
+     * Gets the number of beats in the window.
+     *
+     * @return The number of beats.
+     */
+    public int getCount() {
+        return mSize;
+    }
+
+    /**
+     * Gets the number of beats rejected as artifacts since this was
+     * created.
+     *
+     * @return The number rejected.
+     */
+    public long getRejected() {
+        return mRejected;
+    }
+
+    /**
+     * Gets the mean of the R-R values.
+     *
+     * @return The mean (ms) or NaN if there are no beats.
+     */
+    public double getMeanRr() {
+        return mSize == 0 ? Double.NaN : mScale * mSum / mSize;
+    }
+
+    /**
+     * Gets the standard deviation of the R-R values.
+     *
+     * @return The SDNN (ms) or NaN if there are fewer than 2 beats.
+     */
+    public double getSdnn() {
+        if (mSize < 2) {
+            return Double.NaN;
+        }
+        double var = (double) (mSize * mSumSq - mSum * mSum)
+                / ((double) mSize * (mSize - 1));
+        return mScale * Math.sqrt(var);
+    }
+
+    /**
+     * Gets the root mean square of the successive differences.
+     *
+     * @return The RMSSD (ms) or NaN if there are no differences.
+     */
+    public double getRmssd() {
+        if (mDiffCount == 0) {
+            return Double.NaN;
+        }
+        return mScale * Math.sqrt((double) mDiffSumSq / mDiffCount);
+    }
+
+    /**
+     * Gets the percentage of the successive differences that are greater
+     * than 50 ms.
+     *
+     * @return The pNN50 (%) or NaN if there are no differences.
+     */
+    public double getPnn50() {
+        if (mDiffCount == 0) {
+            return Double.NaN;
+        }
+        return 100. * mNn50Count / mDiffCount;
+    }
+
+    private int index(int item) {
+        int i = mHead + item;
+        return i < mTimes.length ? i : i - mTimes.length;
+    }
+
+    /**
+     * Doubles the capacity, unwrapping the beats to start at 0. Only
+     * happens if the beats are closer together than HRV_MIN_RR, as when the
+     * times have been shifted.
+     */
+    private void grow() {
+        int capacity = 2 * mTimes.length;
+        long[] times = new long[capacity];
+        int[] rr = new int[capacity];
+        int[] diffs = new int[capacity];
+        boolean[] nn50 = new boolean[capacity];
+        int j;
+        for (int i = 0; i < mSize; i++) {
+            j = index(i);
+            times[i] = mTimes[j];
+            rr[i] = mRr[j];
+            diffs[i] = mDiff[j];
+            nn50[i] = mNn50[j];
+        }
+        mTimes = times;
+        mRr = rr;
+        mDiff = diffs;
+        mNn50 = nn50;
+        mHead = 0;
+    }
+
+}
@@ -0,0 +1,149 @@
+package net.kenevans.android.hxmmonitor;
+
+/**
+ * Feeds the R-R values from a sequence of Heart Rate Measurements through
+ * HrvEngines. The times of the beats come from an RrTimeline. One engine
+ * holds the beats of the current HRV_PERIOD, and its statistics are passed
+ * to the listener each time a period ends. The other, which is optional,
+ * holds the beats in a sliding window for the live values. Used both for
+ * the live data in the service and for stored sessions, so they give the
+ * same results. The memory used only depends on the window lengths.
+ */
+public class HrvRecorder implements IConstants {
+    /**
+     * Receives the statistics for each period.
+     */
+    public interface Listener {
+        /**
+         * Called when a period ends. The engine must not be kept.
+         *
+         * @param start  The start of the period.
+         * @param engine The engine holding the beats of the period.
+         */
+        void onPeriod(long start, HrvEngine engine);
+    }
+
+    private final RrTimeline mTimeline = new RrTimeline();
+    private final HrvEngine mPeriodEngine = new HrvEngine(HRV_PERIOD);
+    private final HrvEngine mLiveEngine;
+    private final Listener mListener;
+    private long mPeriodStart = INVALID_DATE;
+    private long[] mTimes = new long[16];
+
+    /**
+     * Constructor.
+     *
+     * @param liveWindow The length of the window for the live values (ms)
+     *                   or 0 for none.
+     * @param listener   The listener for the periods or null.
+     */
+    public HrvRecorder(long liveWindow, Listener listener) {
+        mLiveEngine = liveWindow > 0 ? new HrvEngine(liveWindow) : null;
+        mListener = listener;
+    }
+
+    /**
+     * Gets the engine for the live values.
+     *
+     * @return The engine or null if there is none.
+     */
+    public HrvEngine getLiveEngine() {
+        return mLiveEngine;
+    }
+
+    /**
+     * Adds the R-R values from a measurement.
+     *
+     * @param updateTime The time the measurement arrived.
+     * @param rr         The R-R values or null if invalid.
+     * @param count      The number of values to use.
+     * @return The number of beats used.
+     */
+    public int add(long updateTime, int[] rr, int count) {
+        if (rr == null) {
+            mTimeline.add(updateTime, null, 0, mTimes, 0);
+            endPeriods(updateTime);
+            mPeriodEngine.breakSequence();
+            if (mLiveEngine != null) {
+                mLiveEngine.breakSequence();
+            }
+            return 0;
+        }
+        if (mTimes.length < count) {
+            mTimes = new long[count];
+        }
+        long gaps = mTimeline.getGaps();
+        int n = mTimeline.add(updateTime, rr, count, mTimes, 0);
+        if (mTimeline.getGaps() != gaps) {
+            mPeriodEngine.breakSequence();
+            if (mLiveEngine != null) {
+                mLiveEngine.breakSequence();
+            }
+        }
+        double scale = mTimeline.getScale();
+        mPeriodEngine.setScale(scale);
+        if (mLiveEngine != null) {
+            mLiveEngine.setScale(scale);
+        }
+        int nUsed = 0;
+        long time;
+        for (int i = 0; i < n; i++) {
+            time = mTimes[i];
+            endPeriods(time);
+            if (mPeriodEngine.addBeat(time, rr[i])) {
+                nUsed++;
+            }
+            if (mLiveEngine != null) {
+                mLiveEngine.addBeat(time, rr[i]);
+            }
+        }
+        return nUsed;
+    }
+
+    /**
+     * Ends the current period, as at the end of a session. It is passed to
+     * the listener if it has any beats.
+     */
+    public void finish() {
+        if (mPeriodStart == INVALID_DATE) {
+            return;
+        }
+        if (mListener != null && mPeriodEngine.getCount() > 0) {
+            mListener.onPeriod(mPeriodStart, mPeriodEngine);
+        }
+        mPeriodEngine.clear();
+        mPeriodStart = INVALID_DATE;
+    }
+
+    /**
+     * Starts again, forgetting everything.
+     */
+    public void reset() {
+        mTimeline.reset();
+        mPeriodEngine.clear();
+        mPeriodStart = INVALID_DATE;
+        if (mLiveEngine != null) {
+            mLiveEngine.clear();
+        }
+    }
+
+    /**
+     * Ends the periods that end at or before the given time. Periods
+     * without beats are skipped.
+     *
+     * @param time The time.
+     */
+    private void endPeriods(long time) {
+        if (mPeriodStart != INVALID_DATE && time >= mPeriodStart + HRV_PERIOD) {
+            if (mListener != null && mPeriodEngine.getCount() > 0) {
+                mListener.onPeriod(mPeriodStart, mPeriodEngine);
+            }
+            mPeriodStart = INVALID_DATE;
+        }
+        if (mPeriodStart == INVALID_DATE) {
+            mPeriodStart = time - time % HRV_PERIOD;
+            mPeriodEngine.removeBefore(mPeriodStart);
+        }
+    }
+
+}
@@ -1,40 +1,42 @@
 package net.kenevans.android.hxmmonitor;
 
-import android.bluetooth.BluetoothGattCharacteristic;
-
 public class HxMCustomValues implements IConstants {
 	long date = INVALID_DATE;
 	private int activity = INVALID_INT;
 	private int pa = INVALID_INT;
-	private String info;
+	private String info = "";
 
-	public HxMCustomValues(BluetoothGattCharacteristic characteristic, long date) {
+	/**
+	 * Constructor that decodes the value of the custom characteristic.
+	 * 
+	 * @param data
+	 *            The value of the characteristic.
+	 * @param date
+	 *            The date it was received.
+	 */
+	public HxMCustomValues(byte[] data, long date) {
 		this.date = date;
-		if (!characteristic.getUuid().equals(UUID_CUSTOM_MEASUREMENT)) {
+		if (data == null || data.length < 1) {
 			return;
 		}
 		int offset = 0;
-		int flag = characteristic.getIntValue(
-				BluetoothGattCharacteristic.FORMAT_UINT8, offset);
+		int flag = data[offset] & 0xFF;
 		offset += 1;
-		if ((flag & 0x01) != 0) {
-			activity = characteristic.getIntValue(
-					BluetoothGattCharacteristic.FORMAT_UINT16, offset);
+		if ((flag & 0x01) != 0 && offset + 1 < data.length) {
+			activity = HeartRateDecoder.uint16(data, offset);
 			offset += 2;
 			info += "Activity: " + activity;
 		} else {
 			info += "Activity: NA";
 		}
-		if ((flag & 0x02) != 0) {
-			pa = characteristic.getIntValue(
-					BluetoothGattCharacteristic.FORMAT_UINT16, offset);
+		if ((flag & 0x02) != 0 && offset + 1 < data.length) {
+			pa = HeartRateDecoder.uint16(data, offset);
 			offset += 2;
 			info += "\nPeak Acceleration: " + pa;
 		} else {
 			info += "\nPeak Acceleration: NA";
 		}
 		// // DEBUG
-		// final byte[] data = characteristic.getValue();
 		// if (data != null && data.length > 0) {
 		// final StringBuilder stringBuilder = new StringBuilder(data.length);
 		// for (byte byteChar : data) {
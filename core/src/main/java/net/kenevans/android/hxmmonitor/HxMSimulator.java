@@ -0,0 +1,504 @@
+package net.kenevans.android.hxmmonitor;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates a Zephyr HxM by generating the payloads of the notifications it
+ * sends, so the code that handles them can be run without a device. Each
+ * interval there is a Heart Rate Measurement (0x2A37) as in the Bluetooth
+ * specification and, optionally, an HxM custom measurement with the
+ * activity and peak acceleration.<br>
+ * <br>
+ * The HR relaxes towards a target with some noise, and the target rises
+ * during random bouts of exercise. The beats have a respiratory sinus
+ * arrhythmia that gets smaller as the HR rises, random variation, and the
+ * occasional premature beat followed by a compensatory pause, so the HRV
+ * is realistic and there are artifacts to be rejected. The R-R values of
+ * the beats since the last measurement are sent, up to the most that fit
+ * in a payload of MAX_PAYLOAD bytes and the configured maximum. Any left
+ * over are sent in the next one. The reported HR is from the mean of the
+ * last few beats, as the device does. Contact can be lost for a few
+ * seconds at random, when the HR is 0 and there are no R-R values, and the
+ * times the notifications arrive are jittered.<br>
+ * <br>
+ * The same seed always gives the same notifications. Not thread safe.
+ */
+public class HxMSimulator implements IConstants {
+    /**
+     * The most bytes in a notification with the default ATT MTU of 23.
+     */
+    public static final int MAX_PAYLOAD = 20;
+    /**
+     * The most R-R values that fit in a notification.
+     */
+    public static final int MAX_RR = (MAX_PAYLOAD - 2) / 2;
+    /**
+     * Custom measurement flag for the activity.
+     */
+    public static final int CUSTOM_FLAG_ACTIVITY = 0x01;
+    /**
+     * Custom measurement flag for the peak acceleration.
+     */
+    public static final int CUSTOM_FLAG_PA = 0x02;
+    /**
+     * Sensor contact bits for supported and detected.
+     */
+    private static final int CONTACT_SUPPORTED = 0x04;
+    private static final int CONTACT_DETECTED = 0x02;
+    /**
+     * The energy expended is sent in every this many measurements, as the
+     * specification suggests.
+     */
+    private static final int EE_INTERVAL = 10;
+    /**
+     * The most R-R values held waiting to be sent. The oldest are dropped.
+     */
+    private static final int PENDING_CAPACITY = 32;
+    /**
+     * The number of beats used for the reported HR.
+     */
+    private static final int HR_BEATS = 4;
+    /**
+     * The HR at the greatest exercise intensity.
+     */
+    private static final double MAX_HR = 185;
+    /**
+     * The fraction of beats that are premature.
+     */
+    private static final double ECTOPIC_RATE = .002;
+    /**
+     * The fraction of notifications that are held up, as when the
+     * connection misses some connection events.
+     */
+    private static final double DELAY_RATE = .01;
+
+    /**
+     * Receives the notifications.
+     */
+    public interface Listener {
+        /**
+         * Called for each notification.
+         *
+         * @param uuid  The UUID of the characteristic.
+         * @param value The value, which belongs to the listener.
+         * @param date  The time it arrived.
+         */
+        void onNotification(UUID uuid, byte[] value, long date);
+    }
+
+    private final Random mRandom;
+    // The configuration
+    private long mInterval = 1000;
+    private boolean mHr16Bit;
+    private boolean mEnergyExpended;
+    private int mMaxRr = MAX_RR;
+    private boolean mCustom = true;
+    private double mContactLossRate = 1. / 3600;
+    private int mJitter = 50;
+    private double mRestHr = 65;
+    private double mExerciseRate = 1. / 3600;
+    // The state
+    private long mDate;
+    private long mLastDelivered;
+    private int mCount;
+    private double mHr;
+    private double mIntensity;
+    private double mTargetIntensity;
+    private long mBoutEnd;
+    private long mContactEnd;
+    private double mBeatTime;
+    private double mNextRr;
+    private double mCompensation;
+    private double mEe;
+    // The R-R values waiting to be sent, in 1/1024 s
+    private final int[] mPending = new int[PENDING_CAPACITY];
+    private int mPendingStart;
+    private int mPendingCount;
+    // The last beats (ms), for the reported HR
+    private final double[] mRecent = new double[HR_BEATS];
+    private int mRecentCount;
+    private int mRecentNext;
+
+    /**
+     * Constructor.
+     *
+     * @param seed The seed for the random numbers.
+     */
+    public HxMSimulator(long seed) {
+        mRandom = new Random(seed);
+        reset(System.currentTimeMillis());
+    }
+
+    /**
+     * Sets the interval between measurements. The default is 1000 ms, as
+     * for the HxM.
+     *
+     * @param interval The interval (ms).
+     */
+    public void setInterval(long interval) {
+        mInterval = Math.max(1, interval);
+    }
+
+    /**
+     * Sets whether the HR is sent as 16 bits. The default is 8 bits.
+     *
+     * @param hr16Bit Whether to use 16 bits.
+     */
+    public void setHr16Bit(boolean hr16Bit) {
+        mHr16Bit = hr16Bit;
+    }
+
+    /**
+     * Sets whether the energy expended (kJ) is sent, every EE_INTERVAL
+     * measurements. The default is not.
+     *
+     * @param energyExpended Whether to send it.
+     */
+    public void setEnergyExpended(boolean energyExpended) {
+        mEnergyExpended = energyExpended;
+    }
+
+    /**
+     * Sets the most R-R values sent in a measurement. Fewer are sent if
+     * they do not fit.
+     *
+     * @param maxRr The number, from 0 to MAX_RR.
+     */
+    public void setMaxRr(int maxRr) {
+        mMaxRr = Math.max(0, Math.min(MAX_RR, maxRr));
+    }
+
+    /**
+     * Sets whether the custom measurement is sent. The default is to send
+     * it.
+     *
+     * @param custom Whether to send it.
+     */
+    public void setCustom(boolean custom) {
+        mCustom = custom;
+    }
+
+    public boolean isCustom() {
+        return mCustom;
+    }
+
+    /**
+     * Sets how often the contact is lost. The default is once an hour.
+     *
+     * @param perHour The mean number of times per hour.
+     */
+    public void setContactLossRate(double perHour) {
+        mContactLossRate = Math.max(0, perHour) / 3600;
+    }
+
+    /**
+     * Sets the most the time a notification arrives is later than the
+     * time it is due. The default is 50 ms.
+     *
+     * @param jitter The jitter (ms).
+     */
+    public void setJitter(int jitter) {
+        mJitter = Math.max(0, jitter);
+    }
+
+    /**
+     * Sets the resting HR. The default is 65.
+     *
+     * @param restHr The HR (/min).
+     */
+    public void setRestHr(double restHr) {
+        mRestHr = Math.max(30, Math.min(MAX_HR, restHr));
+    }
+
+    /**
+     * Sets how often a bout of exercise of 5 to 20 min starts. The default
+     * is once an hour.
+     *
+     * @param perHour The mean number of times per hour.
+     */
+    public void setExerciseRate(double perHour) {
+        mExerciseRate = Math.max(0, perHour) / 3600;
+    }
+
+    /**
+     * Starts again at rest, with the first measurement one interval after
+     * the given date. The random numbers are not reset.
+     *
+     * @param startDate The start date.
+     */
+    public void reset(long startDate) {
+        mDate = startDate + mInterval;
+        mLastDelivered = startDate;
+        mCount = 0;
+        mHr = mRestHr;
+        mIntensity = 0;
+        mTargetIntensity = 0;
+        mBoutEnd = INVALID_DATE;
+        mContactEnd = INVALID_DATE;
+        mBeatTime = startDate;
+        mCompensation = 0;
+        mNextRr = nextRr();
+        mEe = 0;
+        mPendingStart = 0;
+        mPendingCount = 0;
+        mRecentCount = 0;
+        mRecentNext = 0;
+    }
+
+    /**
+     * Gets the time the next measurement is due.
+     *
+     * @return The date.
+     */
+    public long getNextDate() {
+        return mDate;
+    }
+
+    /**
+     * Generates the notifications for the next interval.
+     *
+     * @param listener The listener to receive them.
+     * @return The number of notifications.
+     */
+    public int step(Listener listener) {
+        long date = mDate;
+        updateModel(date);
+        addBeats(date);
+        // The time it arrives
+        long delivered = date + (mJitter > 0 ? mRandom.nextInt(mJitter + 1)
+                : 0);
+        if (mRandom.nextDouble() < DELAY_RATE) {
+            delivered += mRandom.nextInt((int) Math.min(Integer.MAX_VALUE,
+                    2 * mInterval)) + 1;
+        }
+        delivered = Math.max(delivered, mLastDelivered);
+        listener.onNotification(UUID_HEART_RATE_MEASUREMENT, encodeHr(),
+                delivered);
+        int count = 1;
+        if (mCustom) {
+            listener.onNotification(UUID_CUSTOM_MEASUREMENT, encodeCustom(),
+                    delivered);
+            count++;
+        }
+        mLastDelivered = delivered;
+        mCount++;
+        mDate += mInterval;
+        return count;
+    }
+
+    /**
+     * Generates notifications from the given date, at the given speed
+     * relative to real time, until the duration has passed or the thread
+     * is interrupted. The dates of the notifications are the simulated
+     * times, so they run ahead of the clock if the speed is more than 1.
+     *
+     * @param startDate The start date.
+     * @param duration  The duration (ms), or 0 to run until interrupted.
+     * @param speed     The speed, 1 for real time, or 0 for as fast as
+     *                  possible.
+     * @param listener  The listener to receive them.
+     * @return The number of notifications.
+     */
+    public long run(long startDate, long duration, double speed,
+                    Listener listener) {
+        reset(startDate);
+        long end = duration > 0 ? startDate + duration : Long.MAX_VALUE;
+        long start = System.nanoTime();
+        long count = 0;
+        long wait;
+        while (mDate <= end && !Thread.currentThread().isInterrupted()) {
+            if (speed > 0) {
+                wait = (long) ((mDate - startDate) * 1e6 / speed)
+                        - (System.nanoTime() - start);
+                if (wait > 0) {
+                    try {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            count += step(listener);
+        }
+        return count;
+    }
+
+    /**
+     * Advances the exercise, the HR, the contact, and the energy expended
+     * to the given date.
+     *
+     * @param date The date.
+     */
+    private void updateModel(long date) {
+        double dt = mInterval / 1000.;
+        if (mBoutEnd == INVALID_DATE) {
+            if (mRandom.nextDouble() < mExerciseRate * dt) {
+                mBoutEnd = date + 60000L * (5 + mRandom.nextInt(16));
+                mTargetIntensity = .4 + .6 * mRandom.nextDouble();
+            }
+        } else if (date >= mBoutEnd) {
+            mBoutEnd = INVALID_DATE;
+            mTargetIntensity = 0;
+        }
+        mIntensity += (mTargetIntensity - mIntensity) * Math.min(1, dt / 20);
+        double target = mRestHr + (MAX_HR - mRestHr) * .8 * mIntensity;
+        mHr += (target - mHr) * Math.min(1, dt / 30)
+                + .5 * Math.sqrt(dt) * mRandom.nextGaussian();
+        mHr = Math.max(35, Math.min(200, mHr));
+        if (mContactEnd != INVALID_DATE && date >= mContactEnd) {
+            mContactEnd = INVALID_DATE;
+        }
+        if (mContactEnd == INVALID_DATE
+                && mRandom.nextDouble() < mContactLossRate * dt) {
+            mContactEnd = date + 2000 + mRandom.nextInt(13000);
+            mPendingCount = 0;
+        }
+        mEe = Math.min(0xFFFF, mEe + .006 * Math.max(0, mHr - 40) * dt);
+    }
+
+    /**
+     * Adds the beats up to the given date to the R-R values waiting to be
+     * sent, unless the contact has been lost.
+     *
+     * @param date The date.
+     */
+    private void addBeats(long date) {
+        boolean contact = mContactEnd == INVALID_DATE;
+        while (mBeatTime + mNextRr <= date) {
+            mBeatTime += mNextRr;
+            if (contact) {
+                if (mPendingCount == PENDING_CAPACITY) {
+                    mPendingStart = (mPendingStart + 1) % PENDING_CAPACITY;
+                    mPendingCount--;
+                }
+                mPending[(mPendingStart + mPendingCount) % PENDING_CAPACITY]
+                        = (int) Math.round(mNextRr * 1.024);
+                mPendingCount++;
+                mRecent[mRecentNext] = mNextRr;
+                mRecentNext = (mRecentNext + 1) % HR_BEATS;
+                mRecentCount = Math.min(HR_BEATS, mRecentCount + 1);
+            }
+            mNextRr = nextRr();
+        }
+    }
+
+    /**
+     * Gets the length of the next beat.
+     *
+     * @return The R-R interval (ms).
+     */
+    private double nextRr() {
+        double mean = 60000 / mHr;
+        double rr;
+        if (mCompensation > 0) {
+            rr = mCompensation;
+            mCompensation = 0;
+        } else if (mRandom.nextDouble() < ECTOPIC_RATE) {
+            rr = .65 * mean;
+            mCompensation = 2 * mean - rr;
+        } else {
+            // Respiratory sinus arrhythmia, breathing faster when exercising
+            double rsa = .08 * Math.max(.1, Math.min(1, (150 - mHr) / 85));
+            double breath = mIntensity > .3 ? 2500 : 4500;
+            rr = mean * (1 + rsa * Math.sin(2 * Math.PI * mBeatTime / breath))
+                    + 12 * mRandom.nextGaussian();
+        }
+        return Math.max(250, rr);
+    }
+
+    /**
+     * Gets the HR the device reports.
+     *
+     * @return The HR (/min).
+     */
+    private int getReportedHr() {
+        if (mRecentCount == 0) {
+            return (int) Math.round(mHr);
+        }
+        double sum = 0;
+        for (int i = 0; i < mRecentCount; i++) {
+            sum += mRecent[i];
+        }
+        return (int) Math.round(60000 * mRecentCount / sum);
+    }
+
+    /**
+     * Encodes a Heart Rate Measurement with the R-R values that fit,
+     * removing them from those waiting.
+     *
+     * @return The value.
+     */
+    private byte[] encodeHr() {
+        boolean contact = mContactEnd == INVALID_DATE;
+        boolean ee = mEnergyExpended && mCount % EE_INTERVAL == 0;
+        int flags = CONTACT_SUPPORTED | (contact ? CONTACT_DETECTED : 0);
+        int size = 2;
+        if (mHr16Bit) {
+            flags |= HeartRateDecoder.FLAG_HR_16BIT;
+            size++;
+        }
+        if (ee) {
+            flags |= HeartRateDecoder.FLAG_EE_PRESENT;
+            size += 2;
+        }
+        int nRr = Math.min(Math.min(mPendingCount, mMaxRr),
+                (MAX_PAYLOAD - size) / 2);
+        if (nRr > 0) {
+            flags |= HeartRateDecoder.FLAG_RR_PRESENT;
+        }
+        byte[] data = new byte[size + 2 * nRr];
+        data[0] = (byte) flags;
+        int hr = contact ? getReportedHr() : 0;
+        int offset = 1;
+        if (mHr16Bit) {
+            offset = putUint16(data, offset, hr);
+        } else {
+            data[offset++] = (byte) Math.min(0xFF, hr);
+        }
+        if (ee) {
+            offset = putUint16(data, offset, (int) mEe);
+        }
+        for (int i = 0; i < nRr; i++) {
+            offset = putUint16(data, offset, mPending[mPendingStart]);
+            mPendingStart = (mPendingStart + 1) % PENDING_CAPACITY;
+            mPendingCount--;
+        }
+        return data;
+    }
+
+    /**
+     * Encodes an HxM custom measurement with the activity and peak
+     * acceleration, which follow the exercise intensity.
+     *
+     * @return The value.
+     */
+    private byte[] encodeCustom() {
+        int activity = (int) Math.round(400 * mIntensity
+                + 10 * Math.abs(mRandom.nextGaussian()));
+        int pa = (int) Math.round(1.6 * activity
+                + 15 * Math.abs(mRandom.nextGaussian()));
+        byte[] data = new byte[5];
+        data[0] = (byte) (CUSTOM_FLAG_ACTIVITY | CUSTOM_FLAG_PA);
+        putUint16(data, 1, Math.min(0xFFFF, activity));
+        putUint16(data, 3, Math.min(0xFFFF, pa));
+        return data;
+    }
+
+    /**
+     * Puts an unsigned little-endian 16-bit value.
+     *
+     * @param data   The data.
+     * @param offset The offset of the low byte.
+     * @param value  The value.
+     * @return The offset after it.
+     */
+    private static int putUint16(byte[] data, int offset, int value) {
+        data[offset] = (byte) value;
+        data[offset + 1] = (byte) (value >> 8);
+        return offset + 2;
+    }
+
+}
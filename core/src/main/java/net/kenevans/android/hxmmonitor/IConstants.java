@@ -115,8 +115,14 @@ public interface IConstants {
     String PREF_PLOT_ACT = "plotActPreference";
     String PREF_PLOT_PA = "plotPaPreference";
     String PREF_PLOT_INTERVAL = "plotIntervalPreference";
+    String PREF_PLOT_DECIMATE = "plotDecimatePreference";
+    String PREF_DISPLAY_INTERVAL = "displayIntervalPreference";
+    String PREF_HRV_WINDOW = "hrvWindowPreference";
+    String PREF_TRACK_INTERVAL = "trackIntervalPreference";
+    String PREF_ARCHIVE_AGE = "archiveAgePreference";
     String PREF_MANUALLY_DISCONNECTED = "manuallyDisconnected";
     String PREF_TREE_URI = "tree_uri";
+    String PREF_LAST_BACKUP = "lastBackupDate";
 
     // Session
     int SESSION_IDLE = 0;
@@ -168,19 +174,89 @@ public interface IConstants {
      */
     long CUSTOM_NOTIFY_TIMER_TIMEOUT = 500;
 
+    // Data writer
+    /**
+     * Maximum number of rows waiting to be written to the database.
+     */
+    int DATA_WRITER_CAPACITY = 4096;
+    /**
+     * Number of rows that causes the data writer to commit.
+     */
+    int DATA_WRITER_BATCH_SIZE = 60;
+    /**
+     * Maximum time a row waits before the data writer commits it (ms).
+     */
+    long DATA_WRITER_MAX_DELAY = 10000;
+    /**
+     * Maximum time to wait for the data writer to flush (ms).
+     */
+    long DATA_WRITER_FLUSH_TIMEOUT = 5000;
+
+    // Sample bus
+    /**
+     * Maximum number of pooled records in the sample bus.
+     */
+    int SAMPLE_BUS_POOL_SIZE = 64;
+    /**
+     * Maximum number of records pending for a subscriber that does not
+     * coalesce.
+     */
+    int SAMPLE_BUS_MAX_QUEUE = 256;
+
     // Database
     /**
      * Simple name of the database.
      */
     String DB_NAME = "HxMMonitor.db";
+    /**
+     * Simple name of the temporary file for saving the database.
+     */
+    String DB_BACKUP_TEMP_NAME = "HxMMonitorBackup.db";
     /**
      * Simple name of the data table.
      */
     String DB_DATA_TABLE = "data";
     /**
-     * The database version
+     * Simple name of the sessions table, which holds a summary of each
+     * session in the data table.
      */
-    int DB_VERSION = 1;
+    String DB_SESSIONS_TABLE = "sessions";
+    /**
+     * Simple name of the rollups table, which holds the statistics of the
+     * HR, activity, and peak acceleration for each bucket of time at each
+     * of the ROLLUP_RESOLUTIONS.
+     */
+    String DB_ROLLUPS_TABLE = "rollups";
+    /**
+     * Simple name of the table holding the start dates of the sessions
+     * whose rollups still need to be computed.
+     */
+    String DB_ROLLUP_BACKFILL_TABLE = "rollupbackfill";
+    /**
+     * Simple name of the HRV table, which holds the heart rate variability
+     * statistics for each HRV_PERIOD of each session.
+     */
+    String DB_HRV_TABLE = "hrv";
+    /**
+     * Simple name of the archives table, the catalog of the sessions whose
+     * data has been moved out of the data table into session archives.
+     */
+    String DB_ARCHIVES_TABLE = "archives";
+    /**
+     * Name of the index on the start date and date.
+     */
+    String DB_START_DATE_INDEX = "data_startdate_date";
+    /**
+     * Name of the index on the date.
+     */
+    String DB_DATE_INDEX = "data_date";
+    /**
+     * The database version. Version 2 stores the RR values as a BLOB.
+     * Version 3 adds the indexes. Version 4 adds the sessions table.
+     * Version 5 adds the rollups. Version 6 adds the HRV table. Version 7
+     * adds the archives table.
+     */
+    int DB_VERSION = 7;
     /**
      * Database column for the id. Identifies the row.
      */
@@ -194,15 +270,83 @@ public interface IConstants {
      */
     String COL_START_DATE = "startdate";
     /**
-     * Database column for the end date.
+     * Sessions table column for the end date.
+     */
+    String COL_END_DATE = "enddate";
+    /**
+     * Sessions table column for the number of samples.
      */
-    String COL_END_DATE = "MAX(" + COL_DATE + ")";
+    String COL_SAMPLE_COUNT = "samplecount";
+    /**
+     * Archives table column for the name of the archive file.
+     */
+    String COL_FILE_NAME = "filename";
+    /**
+     * Archives table column for the size of the archive file.
+     */
+    String COL_FILE_SIZE = "filesize";
+    /**
+     * Sessions table column for the minimum HR. Null if there are no valid
+     * HR values.
+     */
+    String COL_HR_MIN = "hrmin";
+    /**
+     * Sessions table column for the maximum HR. Null if there are no valid
+     * HR values.
+     */
+    String COL_HR_MAX = "hrmax";
+    /**
+     * Sessions table column for the sum of the valid HR values.
+     */
+    String COL_HR_SUM = "hrsum";
+    /**
+     * Sessions table column for the number of valid HR values.
+     */
+    String COL_HR_COUNT = "hrcount";
+    /**
+     * Rollups table column for the resolution (ms). The date column is the
+     * start of the bucket.
+     */
+    String COL_RESOLUTION = "resolution";
+    /**
+     * Rollups table columns for the statistics of the valid activity
+     * values.
+     */
+    String COL_ACT_MIN = "actmin";
+    String COL_ACT_MAX = "actmax";
+    String COL_ACT_SUM = "actsum";
+    String COL_ACT_COUNT = "actcount";
+    /**
+     * Rollups table columns for the statistics of the valid peak
+     * acceleration values.
+     */
+    String COL_PA_MIN = "pamin";
+    String COL_PA_MAX = "pamax";
+    String COL_PA_SUM = "pasum";
+    String COL_PA_COUNT = "pacount";
+    /**
+     * Columns for the means computed when fetching rollups. Null if there
+     * are no valid values.
+     */
+    String COL_HR_MEAN = "hrmean";
+    String COL_ACT_MEAN = "actmean";
+    String COL_PA_MEAN = "pamean";
+    /**
+     * HRV table columns for the number of beats and the mean NN, SDNN,
+     * RMSSD (ms), and pNN50 (%). The date column is the start of the
+     * period. The statistics are null if there were too few beats.
+     */
+    String COL_BEAT_COUNT = "beatcount";
+    String COL_MEAN_NN = "meannn";
+    String COL_SDNN = "sdnn";
+    String COL_RMSSD = "rmssd";
+    String COL_PNN50 = "pnn50";
     /**
      * Database column for the heart rate.
      */
     String COL_HR = "hr";
     /**
-     * Database column for the R-R.
+     * Database column for the R-R. Packed little-endian uint16 values.
      */
     String COL_RR = "rr";
     /**
@@ -217,6 +361,7 @@ public interface IConstants {
     //  String COL_TMP = "temporary";
 
     String saveDatabaseTemplate = "HxMMonitor.%s.db";
+    String saveDatabaseDeltaTemplate = "HxMMonitor.%s.delta.db";
     /**
      * Prefix for the file name for saving the database.
      */
@@ -236,6 +381,15 @@ public interface IConstants {
      */
     String RESTORE_FILE_NAME = "restore"
             + SAVE_DATABASE_FILENAME_SUFFIX;
+    /**
+     * Number of rows written in each transaction when restoring the database.
+     */
+    int RESTORE_BATCH_SIZE = 10000;
+    /**
+     * Number of batches in the pipeline between reading and writing when
+     * restoring the database.
+     */
+    int RESTORE_PIPELINE_DEPTH = 3;
     /**
      * Delimiter for saving session files.
      */
@@ -253,6 +407,37 @@ public interface IConstants {
      * SQL sort command for date ascending
      */
     String SORT_DESCENDING = COL_DATE + " DESC";
+    /**
+     * The resolutions of the rollups (ms), finest first.
+     */
+    long[] ROLLUP_RESOLUTIONS = {10000, 60000, 600000};
+
+    // HRV
+    /**
+     * The length of the periods for which the HRV is stored (ms).
+     */
+    long HRV_PERIOD = 60000;
+    /**
+     * The default length of the window for the live HRV (s).
+     */
+    String HRV_DEFAULT_WINDOW = "60";
+    /**
+     * The smallest R-R value used for the HRV (ms).
+     */
+    double HRV_MIN_RR = 300;
+    /**
+     * The largest R-R value used for the HRV (ms).
+     */
+    double HRV_MAX_RR = 2000;
+    /**
+     * The largest fractional change from the previous R-R value for a beat
+     * to be used for the HRV.
+     */
+    double HRV_MAX_RR_CHANGE = .2;
+    /**
+     * The successive difference counted by pNN50 (ms).
+     */
+    double HRV_NN50_THRESHOLD = 50;
 
     /**
      * Default scan period for device scan.
@@ -290,38 +475,6 @@ public interface IConstants {
     int REQ_SETTINGS_CODE = 15;
 
     // Intent codes
-    /**
-     * The intent code for extra data.
-     */
-    String EXTRA_DATA = PACKAGE_NAME + ".extraData";
-    /**
-     * The intent code for UUID.
-     */
-    String EXTRA_UUID = PACKAGE_NAME + ".extraUuid";
-    /**
-     * The intent code for the date.
-     */
-    String EXTRA_DATE = PACKAGE_NAME + ".extraDate";
-    /**
-     * The intent code for the heart rate.
-     */
-    String EXTRA_HR = PACKAGE_NAME + ".extraHr";
-    /**
-     * The intent code for the R-R values.
-     */
-    String EXTRA_RR = PACKAGE_NAME + ".extraRr";
-    /**
-     * The intent code for the activity value.
-     */
-    String EXTRA_ACT = PACKAGE_NAME + ".extraAct";
-    /**
-     * The intent code for the peak acceleration.
-     */
-    String EXTRA_PA = PACKAGE_NAME + ".extraPa";
-    /**
-     * The intent code for the battery level.
-     */
-    String EXTRA_BAT = PACKAGE_NAME + ".extraBattery";
     /**
      * The intent code for a message.
      */
@@ -354,6 +507,11 @@ public interface IConstants {
      */
     String PLOT_SESSION_END_TIME_CODE = PACKAGE_NAME
             + ".PlotSessionEndTimeCode";
+    /**
+     * Intent code for plotting a session archive Uri.
+     */
+    String PLOT_ARCHIVE_URI_CODE = PACKAGE_NAME
+            + ".PlotArchiveUriCode";
     /**
      * Intent code for showing settings.
      */
@@ -376,6 +534,90 @@ public interface IConstants {
      * Maximum item age for real-time plot, in ms.
      */
     int PLOT_MAXIMUM_AGE = 300000;
+    /**
+     * The minimum average time between values in a live plot, used to size
+     * the buffers, in ms. R-R values can come several times a second.
+     */
+    int PLOT_LIVE_MIN_SPACING = 250;
+    /**
+     * The number of rows read from the database at a time when loading the
+     * plot.
+     */
+    int PLOT_PAGE_SIZE = 1000;
+    /**
+     * The minimum number of buckets used when decimating a plot.
+     */
+    int PLOT_MIN_BUCKETS = 100;
+
+    // Export
+    /**
+     * The number of rows read from the database at a time when exporting.
+     */
+    int EXPORT_PAGE_SIZE = 4096;
+    /**
+     * The size of the buffer used when exporting, in bytes.
+     */
+    int EXPORT_BUFFER_SIZE = 65536;
+    /**
+     * The maximum number of sessions exported at the same time.
+     */
+    int EXPORT_MAX_THREADS = 4;
+    /**
+     * The maximum number of buffers held for a session that is exported
+     * ahead of its turn in a combined file.
+     */
+    int EXPORT_MAX_PENDING = 16;
+    /**
+     * How often to log while waiting for the export workers to stop, in ms.
+     */
+    long EXPORT_STOP_TIMEOUT = 2000;
+    /**
+     * The default minimum time between the points in GPX and TCX files (s).
+     */
+    String EXPORT_DEFAULT_TRACK_INTERVAL = "0";
+
+    // Session archive
+    /**
+     * The extension of session archive files.
+     */
+    String ARCHIVE_EXTENSION = ".hxm";
+    /**
+     * The MIME type of session archive files.
+     */
+    String ARCHIVE_MIME_TYPE = "application/octet-stream";
+    /**
+     * The first 4 bytes of a session archive, "HxMA".
+     */
+    int ARCHIVE_MAGIC = 0x414D7848;
+    /**
+     * The version of the session archive format.
+     */
+    int ARCHIVE_VERSION = 1;
+    /**
+     * The number of columns in a session archive.
+     */
+    int ARCHIVE_COLUMNS = 5;
+    /**
+     * The size of the session archive header, which is the magic number,
+     * version, number of columns, start date, end date, number of rows,
+     * number of RR values, CRC32 of the columns, and the offset and length
+     * of each column, in bytes.
+     */
+    int ARCHIVE_HEADER_SIZE = 36 + 8 * ARCHIVE_COLUMNS;
+    /**
+     * The name of the directory in app storage holding the archives of the
+     * sessions moved out of the database.
+     */
+    String ARCHIVE_DIR = "archive";
+    /**
+     * The default age in days after which sessions are moved out of the
+     * database. 0 means never.
+     */
+    String ARCHIVE_DEFAULT_AGE = "0";
+    /**
+     * The number of session archives kept open for reading.
+     */
+    int ARCHIVE_OPEN_MAX = EXPORT_MAX_THREADS + 1;
 
     // Formatters
     /**
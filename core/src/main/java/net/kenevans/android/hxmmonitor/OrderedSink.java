@@ -0,0 +1,189 @@
+package net.kenevans.android.hxmmonitor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Lets a fixed number of parts of a file be written at the same time by
+ * different threads while the file gets them in order. Each part has its
+ * own channel. What is written to the channel of the first unfinished part
+ * goes straight to the output. What is written to a later part is copied
+ * and held until all the parts before it have been closed, and a writer is
+ * made to wait if its part is already holding maxPending blocks, so the
+ * memory used is bounded. The parts should be started in order, so the
+ * first unfinished part always has a writer and there is no deadlock.
+ */
+public class OrderedSink {
+    private final WritableByteChannel mOut;
+    private final int mMaxPending;
+    private final Object mLock = new Object();
+    private final ArrayDeque<ByteBuffer>[] mPending;
+    private final boolean[] mClosed;
+    // The first part that has not been closed
+    private int mHead;
+    private boolean mCancelled;
+    private IOException mError;
+
+    /**
+     * Constructor.
+     *
+     * @param out        The output.
+     * @param nParts     The number of parts.
+     * @param maxPending The maximum number of blocks held for a part.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public OrderedSink(WritableByteChannel out, int nParts, int maxPending) {
+        mOut = out;
+        mMaxPending = maxPending;
+        mPending = new ArrayDeque[nParts];
+        mClosed = new boolean[nParts];
+        for (int i = 0; i < nParts; i++) {
+            mPending[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * Gets the channel for a part. Closing it finishes the part. It must be
+     * closed even if writing it failed, or the later parts are never
+     * written.
+     *
+     * @param index The index of the part.
+     * @return The channel.
+     */
+    public WritableByteChannel getPart(final int index) {
+        return new WritableByteChannel() {
+            private boolean mOpen = true;
+
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                if (!mOpen) {
+                    throw new ClosedChannelException();
+                }
+                return OrderedSink.this.write(index, src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return mOpen;
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (mOpen) {
+                    mOpen = false;
+                    finish(index);
+                }
+            }
+        };
+    }
+
+    /**
+     * Stops the writing. Writers that are waiting, or that write later, get
+     * an exception.
+     */
+    public void cancel() {
+        synchronized (mLock) {
+            mCancelled = true;
+            mLock.notifyAll();
+        }
+    }
+
+    /**
+     * Determines if all the parts have been written.
+     *
+     * @return If they have.
+     */
+    public boolean isComplete() {
+        synchronized (mLock) {
+            return mHead == mClosed.length;
+        }
+    }
+
+    private int write(int index, ByteBuffer src) throws IOException {
+        int n = src.remaining();
+        synchronized (mLock) {
+            while (!mCancelled && mError == null && index != mHead
+                    && mPending[index].size() >= mMaxPending) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            checkState();
+            if (index == mHead) {
+                writeOut(src);
+            } else {
+                ByteBuffer copy = ByteBuffer.allocate(n);
+                copy.put(src);
+                copy.flip();
+                mPending[index].add(copy);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Finishes a part. If it is the first unfinished one, the held blocks
+     * of the following parts are written until one is reached that is not
+     * finished.
+     *
+     * @param index The index of the part.
+     * @throws IOException If writing failed.
+     */
+    private void finish(int index) throws IOException {
+        synchronized (mLock) {
+            mClosed[index] = true;
+            try {
+                while (mHead < mClosed.length && mError == null
+                        && !mCancelled) {
+                    if (mHead != index) {
+                        // Write what the new head is holding
+                        while (!mPending[mHead].isEmpty()) {
+                            writeOut(mPending[mHead].poll());
+                        }
+                    }
+                    if (!mClosed[mHead]) {
+                        break;
+                    }
+                    mHead++;
+                }
+            } finally {
+                mLock.notifyAll();
+            }
+            checkState();
+        }
+    }
+
+    /**
+     * Writes a block to the output. Must be called with mLock held.
+     *
+     * @param src The block.
+     * @throws IOException If writing failed.
+     */
+    private void writeOut(ByteBuffer src) throws IOException {
+        try {
+            while (src.hasRemaining()) {
+                mOut.write(src);
+            }
+        } catch (IOException ex) {
+            mError = ex;
+            throw ex;
+        }
+    }
+
+    private void checkState() throws IOException {
+        if (mError != null) {
+            throw new IOException("Writing an earlier part failed", mError);
+        }
+        if (mCancelled) {
+            throw new InterruptedIOException("Cancelled");
+        }
+    }
+
+}
@@ -0,0 +1,173 @@
+package net.kenevans.android.hxmmonitor;
+
+/**
+ * Converts R-R intervals between the int[] form used in the application, the
+ * packed form stored in the database, and the space-separated text form used
+ * in CSV files and in database version 1.<br>
+ * <br>
+ * The packed form is a little-endian uint16 per value, the same encoding the
+ * values have in the Heart Rate Measurement. A null int[] (or a null BLOB, or
+ * INVALID_STRING) means the R-R values were not present, while an empty one
+ * means the flag was set but there were no values.
+ */
+public class RrCodec implements IConstants {
+    /**
+     * Shared empty value.
+     */
+    public static final int[] EMPTY = new int[0];
+
+    private RrCodec() {
+    }
+
+    /**
+     * Packs the first count values into a little-endian uint16 byte array.
+     *
+     * @param rr    The values, may be null.
+     * @param count The number of values to use.
+     * @return The packed values or null if rr is null.
+     */
+    public static byte[] encode(int[] rr, int count) {
+        if (rr == null) {
+            return null;
+        }
+        byte[] bytes = new byte[2 * count];
+        encode(rr, count, bytes);
+        return bytes;
+    }
+
+    /**
+     * Packs the values into a little-endian uint16 byte array.
+     *
+     * @param rr The values, may be null.
+     * @return The packed values or null if rr is null.
+     */
+    public static byte[] encode(int[] rr) {
+        return rr == null ? null : encode(rr, rr.length);
+    }
+
+    /**
+     * Packs the first count values into the given array, which must have a
+     * length of at least 2 * count.
+     *
+     * @param rr    The values.
+     * @param count The number of values to use.
+     * @param bytes The destination.
+     */
+    public static void encode(int[] rr, int count, byte[] bytes) {
+        int j = 0;
+        int val;
+        for (int i = 0; i < count; i++) {
+            val = rr[i];
+            bytes[j++] = (byte) val;
+            bytes[j++] = (byte) (val >> 8);
+        }
+    }
+
+    /**
+     * Unpacks a little-endian uint16 byte array.
+     *
+     * @param bytes The packed values, may be null.
+     * @return The values or null if bytes is null.
+     */
+    public static int[] decode(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        int count = bytes.length / 2;
+        if (count == 0) {
+            return EMPTY;
+        }
+        int[] rr = new int[count];
+        int j = 0;
+        for (int i = 0; i < count; i++) {
+            rr[i] = (bytes[j] & 0xFF) | ((bytes[j + 1] & 0xFF) << 8);
+            j += 2;
+        }
+        return rr;
+    }
+
+    /**
+     * Parses the space-separated text form.
+     *
+     * @param string The text, may be null.
+     * @return The values or null if the string is null, INVALID_STRING, or
+     * cannot be parsed.
+     */
+    public static int[] parse(String string) {
+        if (string == null) {
+            return null;
+        }
+        int len = string.length();
+        // Count the tokens
+        int count = 0;
+        boolean inToken = false;
+        char c;
+        for (int i = 0; i < len; i++) {
+            c = string.charAt(i);
+            if (Character.isWhitespace(c)) {
+                inToken = false;
+            } else if (!inToken) {
+                inToken = true;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return EMPTY;
+        }
+        int[] rr = new int[count];
+        int n = 0;
+        int val = 0;
+        inToken = false;
+        for (int i = 0; i <= len; i++) {
+            c = i < len ? string.charAt(i) : ' ';
+            if (Character.isWhitespace(c)) {
+                if (inToken) {
+                    rr[n++] = val;
+                    inToken = false;
+                }
+            } else if (c >= '0' && c <= '9') {
+                if (!inToken) {
+                    inToken = true;
+                    val = 0;
+                }
+                val = 10 * val + (c - '0');
+            } else {
+                // INVALID_STRING or something else that is not a number
+                return null;
+            }
+        }
+        return rr;
+    }
+
+    /**
+     * Formats the values in the space-separated text form.
+     *
+     * @param rr The values, may be null.
+     * @return The text or INVALID_STRING if rr is null.
+     */
+    public static String format(int[] rr) {
+        return rr == null ? INVALID_STRING : format(rr, rr.length);
+    }
+
+    /**
+     * Formats the first count values in the space-separated text form.
+     *
+     * @param rr    The values, may be null.
+     * @param count The number of values to use.
+     * @return The text or INVALID_STRING if rr is null.
+     */
+    public static String format(int[] rr, int count) {
+        if (rr == null) {
+            return INVALID_STRING;
+        }
+        StringBuilder sb = new StringBuilder(5 * count);
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(rr[i]);
+        }
+        return sb.toString();
+    }
+
+}
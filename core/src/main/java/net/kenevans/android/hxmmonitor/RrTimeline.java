@@ -0,0 +1,209 @@
+package net.kenevans.android.hxmmonitor;
+
+/**
+ * Reconstructs the times of the beats from the R-R intervals in a sequence
+ * of Heart Rate Measurements and the times they arrived. The beats in a
+ * measurement are placed one after the other following the previous beat,
+ * then shifted so they are after the previous measurement arrived and not
+ * after this one arrived. The ratio between the sum of the R-R values and
+ * the wall clock is estimated from an exponentially weighted linear fit of
+ * the arrival times against the summed R-R values, so the times do not drift
+ * relative to the clock. The work per measurement is O(1) apart from the
+ * values themselves, and nothing is allocated.<br>
+ * <br>
+ * The result only depends on the sequence of inputs, so plotting, exporting,
+ * and analysis all get the same times for the same data.
+ */
+public class RrTimeline implements IConstants {
+    /**
+     * Nominal ms per R-R unit. The units are 1/1024 s.
+     */
+    public static final double NOMINAL_SCALE = 1000. / 1024.;
+    /**
+     * The fractional amount the estimated scale may differ from nominal.
+     */
+    private static final double MAX_SCALE_ERROR = .02;
+    /**
+     * The number of measurements in the fit before its scale is used.
+     */
+    private static final int MIN_FIT_COUNT = 60;
+    /**
+     * The decay per measurement of the weights in the fit, which makes the
+     * fit mostly depend on about the last 300 measurements.
+     */
+    private static final double FIT_DECAY = 1 - 1. / 300;
+    /**
+     * If the beats have to be moved later by more than this to be after the
+     * previous measurement (ms), beats are assumed to be missing and the fit
+     * is restarted.
+     */
+    private static final double GAP_THRESHOLD = 2000;
+
+    // Time of the last beat (ms)
+    private double mBeatTime;
+    // Time the last measurement arrived, INVALID_DATE if not started
+    private long mLastUpdateTime = INVALID_DATE;
+    private double mScale = NOMINAL_SCALE;
+    // The fit of the arrival times against the summed R-R values
+    private long mFitOrigin;
+    private double mFitX;
+    private double mFitWeight;
+    private double mFitMeanX;
+    private double mFitMeanY;
+    private double mFitCxx;
+    private double mFitCxy;
+    private int mFitCount;
+    private long mGaps;
+
+    /**
+     * Converts an R-R value to ms using the nominal scale.
+     *
+     * @param rr The value in units of 1/1024 s.
+     * @return The value in ms.
+     */
+    public static double toMs(int rr) {
+        return rr * NOMINAL_SCALE;
+    }
+
+    /**
+     * Forgets everything, including the estimated scale.
+     */
+    public void reset() {
+        mLastUpdateTime = INVALID_DATE;
+        mScale = NOMINAL_SCALE;
+        mGaps = 0;
+        resetFit(INVALID_DATE);
+    }
+
+    /**
+     * Starts again at the given time, as when the R-R values are invalid.
+     * The next beats will be placed after this time. The estimated scale is
+     * kept.
+     *
+     * @param time The time.
+     */
+    public void restart(long time) {
+        mLastUpdateTime = time;
+        mBeatTime = time - INITIAL_RR_START_TIME;
+        resetFit(time);
+    }
+
+    /**
+     * Adds the R-R values from a measurement and gets the times of the beats.
+     *
+     * @param updateTime The time the measurement arrived.
+     * @param rr         The R-R values or null if invalid, in which case this
+     *                   restarts at the update time.
+     * @param count      The number of values to use.
+     * @param times      Array to receive the times of the beats.
+     * @param offset     The index in times for the first one.
+     * @return The number of times, which is count, or 0 if rr is null.
+     */
+    public int add(long updateTime, int[] rr, int count, long[] times,
+                   int offset) {
+        if (rr == null) {
+            restart(updateTime);
+            return 0;
+        }
+        if (count <= 0) {
+            return 0;
+        }
+        if (mLastUpdateTime == INVALID_DATE) {
+            restart(updateTime);
+        }
+
+        // Place the beats after the last one
+        double scale = mScale;
+        int sum = 0;
+        for (int i = 0; i < count; i++) {
+            sum += rr[i];
+        }
+        double first = mBeatTime + rr[0] * scale;
+        double last = mBeatTime + sum * scale;
+
+        // Make the first be >= the last update time
+        double delta = 0;
+        if (first < mLastUpdateTime) {
+            delta = mLastUpdateTime - first;
+            if (delta > GAP_THRESHOLD) {
+                // Beats were missed, so the sum is no longer comparable
+                mGaps++;
+                resetFit(updateTime);
+            }
+        }
+        // Make all be <= the update time. Overrides the first if necessary.
+        if (last + delta > updateTime) {
+            delta = updateTime - last;
+        }
+        double start = mBeatTime + delta;
+        int partial = 0;
+        for (int i = 0; i < count; i++) {
+            partial += rr[i];
+            times[offset + i] = Math.round(start + partial * scale);
+        }
+        mBeatTime = last + delta;
+        mLastUpdateTime = updateTime;
+
+        fit(updateTime, sum);
+        return count;
+    }
+
+    /**
+     * Gets the current scale.
+     *
+     * @return The ms per R-R unit.
+     */
+    public double getScale() {
+        return mScale;
+    }
+
+    /**
+     * Gets the number of times beats were found to be missing.
+     *
+     * @return The number of gaps.
+     */
+    public long getGaps() {
+        return mGaps;
+    }
+
+    private void resetFit(long origin) {
+        mFitOrigin = origin;
+        mFitX = 0;
+        mFitWeight = 0;
+        mFitMeanX = 0;
+        mFitMeanY = 0;
+        mFitCxx = 0;
+        mFitCxy = 0;
+        mFitCount = 0;
+    }
+
+    /**
+     * Adds a point to the weighted fit of the update times against the
+     * summed R-R values and updates the scale from it.
+     *
+     * @param updateTime The update time.
+     * @param sum        The sum of the R-R values in the measurement.
+     */
+    private void fit(long updateTime, int sum) {
+        if (mFitOrigin == INVALID_DATE) {
+            mFitOrigin = updateTime;
+        }
+        mFitX += sum;
+        double x = mFitX;
+        double y = updateTime - mFitOrigin;
+        mFitWeight = FIT_DECAY * mFitWeight + 1;
+        double dx = x - mFitMeanX;
+        mFitMeanX += dx / mFitWeight;
+        mFitMeanY += (y - mFitMeanY) / mFitWeight;
+        mFitCxx = FIT_DECAY * mFitCxx + dx * (x - mFitMeanX);
+        mFitCxy = FIT_DECAY * mFitCxy + dx * (y - mFitMeanY);
+        if (++mFitCount < MIN_FIT_COUNT || mFitCxx <= 0) {
+            return;
+        }
+        double scale = mFitCxy / mFitCxx;
+        double min = NOMINAL_SCALE * (1 - MAX_SCALE_ERROR);
+        double max = NOMINAL_SCALE * (1 + MAX_SCALE_ERROR);
+        mScale = scale < min ? min : scale > max ? max : scale;
+    }
+
+}
@@ -0,0 +1,215 @@
+package net.kenevans.android.hxmmonitor;
+
+/**
+ * Reusable record for one sample published on the SampleBus. Only the fields
+ * for the type of the record are meaningful. Records are pooled by the bus,
+ * so a subscriber must not keep a reference after its callback returns.
+ */
+public class SampleRecord implements IConstants {
+    /**
+     * Type for a Heart Rate Measurement.
+     */
+    public static final int TYPE_HR = 0;
+    /**
+     * Type for a custom measurement (activity and peak acceleration).
+     */
+    public static final int TYPE_CUSTOM = 1;
+    /**
+     * Type for a battery level.
+     */
+    public static final int TYPE_BATTERY = 2;
+    /**
+     * Type for the heart rate variability of the recent beats.
+     */
+    public static final int TYPE_HRV = 3;
+    /**
+     * The number of types.
+     */
+    public static final int N_TYPES = 4;
+    /**
+     * Initial capacity of the R-R array.
+     */
+    private static final int INITIAL_RR_CAPACITY = 9;
+
+    private int type;
+    private long date = INVALID_DATE;
+    private int hr = INVALID_INT;
+    private int[] rr = new int[INITIAL_RR_CAPACITY];
+    private int rrCount = INVALID_INT;
+    private int activity = INVALID_INT;
+    private int pa = INVALID_INT;
+    private int battery = INVALID_INT;
+    private int beatCount = INVALID_INT;
+    private double sdnn = Double.NaN;
+    private double rmssd = Double.NaN;
+    private double pnn50 = Double.NaN;
+
+    /**
+     * Sets the record to a Heart Rate Measurement.
+     *
+     * @param date    The date.
+     * @param hr      The HR.
+     * @param rr      The R-R values or null if invalid.
+     * @param rrCount The number of R-R values to use.
+     */
+    public void setHr(long date, int hr, int[] rr, int rrCount) {
+        reset(TYPE_HR, date);
+        this.hr = hr;
+        setRr(rr, rr == null ? INVALID_INT : rrCount);
+    }
+
+    /**
+     * Sets the record to a custom measurement.
+     *
+     * @param date     The date.
+     * @param activity The activity.
+     * @param pa       The peak acceleration.
+     */
+    public void setCustom(long date, int activity, int pa) {
+        reset(TYPE_CUSTOM, date);
+        this.activity = activity;
+        this.pa = pa;
+    }
+
+    /**
+     * Sets the record to a battery level.
+     *
+     * @param date    The date.
+     * @param battery The battery level.
+     */
+    public void setBattery(long date, int battery) {
+        reset(TYPE_BATTERY, date);
+        this.battery = battery;
+    }
+
+    /**
+     * Sets the record to the heart rate variability.
+     *
+     * @param date      The date.
+     * @param beatCount The number of beats used.
+     * @param sdnn      The SDNN (ms).
+     * @param rmssd     The RMSSD (ms).
+     * @param pnn50     The pNN50 (%).
+     */
+    public void setHrv(long date, int beatCount, double sdnn, double rmssd,
+                       double pnn50) {
+        reset(TYPE_HRV, date);
+        this.beatCount = beatCount;
+        this.sdnn = sdnn;
+        this.rmssd = rmssd;
+        this.pnn50 = pnn50;
+    }
+
+    /**
+     * Copies the values from another record.
+     *
+     * @param other The other record.
+     */
+    public void copyFrom(SampleRecord other) {
+        type = other.type;
+        date = other.date;
+        hr = other.hr;
+        setRr(other.rr, other.rrCount);
+        activity = other.activity;
+        pa = other.pa;
+        battery = other.battery;
+        beatCount = other.beatCount;
+        sdnn = other.sdnn;
+        rmssd = other.rmssd;
+        pnn50 = other.pnn50;
+    }
+
+    private void reset(int type, long date) {
+        this.type = type;
+        this.date = date;
+        hr = INVALID_INT;
+        rrCount = INVALID_INT;
+        activity = INVALID_INT;
+        pa = INVALID_INT;
+        battery = INVALID_INT;
+        beatCount = INVALID_INT;
+        sdnn = Double.NaN;
+        rmssd = Double.NaN;
+        pnn50 = Double.NaN;
+    }
+
+    private void setRr(int[] values, int count) {
+        rrCount = count;
+        if (count <= 0) {
+            return;
+        }
+        if (rr.length < count) {
+            rr = new int[count];
+        }
+        System.arraycopy(values, 0, rr, 0, count);
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    public long getDate() {
+        return date;
+    }
+
+    public int getHr() {
+        return hr;
+    }
+
+    /**
+     * Gets the R-R values. Only the first getRrCount() are valid, and the
+     * array belongs to the record.
+     *
+     * @return The R-R values or null if invalid.
+     */
+    public int[] getRr() {
+        return rrCount == INVALID_INT ? null : rr;
+    }
+
+    /**
+     * Gets the number of R-R values.
+     *
+     * @return The number of values or INVALID_INT if the R-R is invalid.
+     */
+    public int getRrCount() {
+        return rrCount;
+    }
+
+    /**
+     * Gets the R-R values as a space-separated String.
+     *
+     * @return The R-R String or INVALID_STRING if invalid.
+     */
+    public String getRrString() {
+        return RrCodec.format(getRr(), rrCount);
+    }
+
+    public int getActivity() {
+        return activity;
+    }
+
+    public int getPa() {
+        return pa;
+    }
+
+    public int getBattery() {
+        return battery;
+    }
+
+    public int getBeatCount() {
+        return beatCount;
+    }
+
+    public double getSdnn() {
+        return sdnn;
+    }
+
+    public double getRmssd() {
+        return rmssd;
+    }
+
+    public double getPnn50() {
+        return pnn50;
+    }
+
+}
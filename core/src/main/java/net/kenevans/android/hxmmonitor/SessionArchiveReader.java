@@ -0,0 +1,319 @@
+package net.kenevans.android.hxmmonitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Reads a session archive (.hxm), as written by SessionArchiveWriter. The
+ * file is memory mapped, so opening it only reads the header, and
+ * getColumn returns a slice of the mapping for a column without copying
+ * it. The rows are decoded into DataBatches by read, a batch at a time, in
+ * the same way as DataCsvReader. Not thread safe.
+ */
+public class SessionArchiveReader implements Closeable, IConstants {
+    public static final int COLUMN_DATE = 0;
+    public static final int COLUMN_HR = 1;
+    public static final int COLUMN_RR = 2;
+    public static final int COLUMN_ACT = 3;
+    public static final int COLUMN_PA = 4;
+
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final long mStartDate;
+    private final long mEndDate;
+    private final int mRowCount;
+    private final int mRrCount;
+    private final int mCrc;
+    private final ByteBuffer[] mColumns = new ByteBuffer[ARCHIVE_COLUMNS];
+    // The read positions in the columns
+    private final int[] mPositions = new int[ARCHIVE_COLUMNS];
+    private int mRow;
+    // The previous values
+    private long mLastDate;
+    private long mLastDelta;
+    private int mLastHr;
+    private int mLastRr;
+    private int mLastAct;
+    private int mLastPa;
+    private int[] mRr = new int[16];
+
+    /**
+     * Constructor that maps the file.
+     *
+     * @param channel The channel, which is closed by close.
+     * @throws IOException If it could not be mapped or is not a valid
+     *                     archive.
+     */
+    public SessionArchiveReader(FileChannel channel) throws IOException {
+        this(channel, channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                channel.size()));
+    }
+
+    /**
+     * Constructor for an archive that is already in memory.
+     *
+     * @param buffer The contents of the file.
+     * @throws IOException If it is not a valid archive.
+     */
+    public SessionArchiveReader(ByteBuffer buffer) throws IOException {
+        this(null, buffer);
+    }
+
+    private SessionArchiveReader(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        mChannel = channel;
+        mBuffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int base = mBuffer.position();
+        int size = mBuffer.remaining();
+        if (size < ARCHIVE_HEADER_SIZE
+                || mBuffer.getInt(base) != ARCHIVE_MAGIC) {
+            throw new IOException("Not an HxM session archive");
+        }
+        int version = mBuffer.getShort(base + 4);
+        int nColumns = mBuffer.getShort(base + 6);
+        if (version != ARCHIVE_VERSION || nColumns != ARCHIVE_COLUMNS) {
+            throw new IOException("Unsupported session archive version "
+                    + version);
+        }
+        mStartDate = mBuffer.getLong(base + 8);
+        mEndDate = mBuffer.getLong(base + 16);
+        mRowCount = mBuffer.getInt(base + 24);
+        mRrCount = mBuffer.getInt(base + 28);
+        mCrc = mBuffer.getInt(base + 32);
+        int index = base + 36;
+        int offset, length;
+        for (int i = 0; i < ARCHIVE_COLUMNS; i++) {
+            offset = mBuffer.getInt(index);
+            length = mBuffer.getInt(index + 4);
+            index += 8;
+            if (offset < ARCHIVE_HEADER_SIZE || length < 0
+                    || offset > size - length) {
+                throw new IOException("Session archive is truncated");
+            }
+            ByteBuffer column = mBuffer.duplicate();
+            column.limit(base + offset + length).position(base + offset);
+            mColumns[i] = column.slice().asReadOnlyBuffer();
+        }
+        if (mRowCount < 0 || mRrCount < 0) {
+            throw new IOException("Session archive is corrupt");
+        }
+        rewind();
+    }
+
+    public long getStartDate() {
+        return mStartDate;
+    }
+
+    public long getEndDate() {
+        return mEndDate;
+    }
+
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    /**
+     * Gets the total number of RR values.
+     *
+     * @return The number of values.
+     */
+    public int getRrCount() {
+        return mRrCount;
+    }
+
+    /**
+     * Gets the encoded bytes of a column. The buffer is a read-only view of
+     * the file, so it is only valid until the reader is closed.
+     *
+     * @param column The column, COLUMN_DATE, COLUMN_HR, COLUMN_RR,
+     *               COLUMN_ACT, or COLUMN_PA.
+     * @return The buffer.
+     */
+    public ByteBuffer getColumn(int column) {
+        return mColumns[column].duplicate();
+    }
+
+    /**
+     * Checks the columns against the CRC32 in the header. This reads the
+     * whole file.
+     *
+     * @return Whether they match.
+     */
+    public boolean verify() {
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[EXPORT_BUFFER_SIZE];
+        ByteBuffer buffer;
+        int n;
+        for (int i = 0; i < ARCHIVE_COLUMNS; i++) {
+            buffer = getColumn(i);
+            while (buffer.hasRemaining()) {
+                n = Math.min(bytes.length, buffer.remaining());
+                buffer.get(bytes, 0, n);
+                crc.update(bytes, 0, n);
+            }
+        }
+        return (int) crc.getValue() == mCrc;
+    }
+
+    /**
+     * Goes back to the first row.
+     */
+    public void rewind() {
+        for (int i = 0; i < ARCHIVE_COLUMNS; i++) {
+            mPositions[i] = 0;
+        }
+        mRow = 0;
+        mLastDate = mStartDate;
+        mLastDelta = 0;
+        mLastHr = 0;
+        mLastRr = 0;
+        mLastAct = 0;
+        mLastPa = 0;
+    }
+
+    /**
+     * Gets the index of the next row to be read.
+     *
+     * @return The index.
+     */
+    public int getRow() {
+        return mRow;
+    }
+
+    /**
+     * Positions the reader so the next row read is the given one. Going
+     * forward decodes the rows in between, and going back starts again from
+     * the first row.
+     *
+     * @param row The index of the row, which is limited to the number of
+     *            rows.
+     * @throws IOException If the archive is corrupt.
+     */
+    public void seek(int row) throws IOException {
+        if (row < mRow) {
+            rewind();
+        }
+        row = Math.min(row, mRowCount);
+        try {
+            while (mRow < row) {
+                decodeRow();
+            }
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IOException("Session archive is corrupt at row "
+                    + mRow, ex);
+        }
+    }
+
+    /**
+     * Positions the reader so the next row read is the first one with a
+     * date after the given one. Only the date column is decoded to find it.
+     *
+     * @param date The date.
+     * @throws IOException If the archive is corrupt.
+     */
+    public void seekAfterDate(long date) throws IOException {
+        if (mRow > 0 && mLastDate > date) {
+            rewind();
+        }
+        try {
+            int pos;
+            long delta;
+            while (mRow < mRowCount) {
+                pos = mPositions[COLUMN_DATE];
+                delta = mLastDelta + getVarLong(COLUMN_DATE);
+                mPositions[COLUMN_DATE] = pos;
+                if (mLastDate + delta > date) {
+                    return;
+                }
+                decodeRow();
+            }
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IOException("Session archive is corrupt at row "
+                    + mRow, ex);
+        }
+    }
+
+    /**
+     * Reads rows into the batch until it is full or there are no more. The
+     * start date of each row is the start date of the session.
+     *
+     * @param batch The batch, which should have been cleared.
+     * @return False if the last row has been read.
+     * @throws IOException If the archive is corrupt.
+     */
+    public boolean read(DataBatch batch) throws IOException {
+        try {
+            int rrCount;
+            while (!batch.isFull()) {
+                if (mRow == mRowCount) {
+                    return false;
+                }
+                rrCount = decodeRow();
+                batch.add(mLastDate, mStartDate, mLastHr,
+                        rrCount < 0 ? null : mRr, rrCount, mLastAct,
+                        mLastPa);
+            }
+            return mRow < mRowCount;
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IOException("Session archive is corrupt at row "
+                    + mRow, ex);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (mChannel != null) {
+            mChannel.close();
+        }
+    }
+
+    /**
+     * Decodes the next row into the previous values and mRr.
+     *
+     * @return The number of RR values or -1 if the RR is invalid.
+     */
+    private int decodeRow() {
+        long delta = mLastDelta + getVarLong(COLUMN_DATE);
+        mLastDate += delta;
+        mLastDelta = delta;
+        mLastHr += (int) getVarLong(COLUMN_HR);
+        int rrCount = (int) getVarLong(COLUMN_RR) - 1;
+        if (rrCount > mRr.length) {
+            mRr = new int[Math.max(rrCount, 2 * mRr.length)];
+        }
+        for (int i = 0; i < rrCount; i++) {
+            mLastRr += (int) getVarLong(COLUMN_RR);
+            mRr[i] = mLastRr;
+        }
+        mLastAct += (int) getVarLong(COLUMN_ACT);
+        mLastPa += (int) getVarLong(COLUMN_PA);
+        mRow++;
+        return rrCount;
+    }
+
+    /**
+     * Decodes the next zigzag varint in a column.
+     *
+     * @param column The column.
+     * @return The value.
+     */
+    private long getVarLong(int column) {
+        ByteBuffer buffer = mColumns[column];
+        int pos = mPositions[column];
+        long v = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = buffer.get(pos++);
+            v |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0 && shift < 64);
+        mPositions[column] = pos;
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+}
@@ -0,0 +1,190 @@
+package net.kenevans.android.hxmmonitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a session as a compact binary archive (.hxm). The file is a header
+ * followed by one block per column, and the header gives the offset and
+ * length of each block, so a reader can go straight to a column. All the
+ * numbers in the header are little-endian. The columns are:<br>
+ * <br>
+ * date: The delta of the delta from the previous date, starting from the
+ * start date with a delta of 0.<br>
+ * HR, activity, PA: The delta from the previous value, starting from 0.<br>
+ * RR: For each row the number of values plus one, or 0 if the RR is
+ * invalid, followed by the values as the delta from the previous value in
+ * the column, starting from 0.<br>
+ * <br>
+ * Each value is a zigzag varint, so a sample at a steady rate with a slowly
+ * changing HR takes about 5 bytes. The columns are built in memory and
+ * written with the header when the writer is closed. Not thread safe.
+ */
+public class SessionArchiveWriter implements Closeable, IConstants {
+    private final WritableByteChannel mChannel;
+    private final long mStartDate;
+    private final Column[] mColumns = new Column[ARCHIVE_COLUMNS];
+    private int mRowCount;
+    private int mRrCount;
+    // The previous values
+    private long mLastDate;
+    private long mLastDelta;
+    private int mLastHr;
+    private int mLastRr;
+    private int mLastAct;
+    private int mLastPa;
+
+    /**
+     * Constructor.
+     *
+     * @param channel   The channel.
+     * @param startDate The start date of the session.
+     */
+    public SessionArchiveWriter(WritableByteChannel channel, long startDate) {
+        mChannel = channel;
+        mStartDate = startDate;
+        mLastDate = startDate;
+        for (int i = 0; i < ARCHIVE_COLUMNS; i++) {
+            mColumns[i] = new Column();
+        }
+    }
+
+    /**
+     * Adds a row. The rows should be in order of date.
+     *
+     * @param date     The date.
+     * @param hr       The HR.
+     * @param rr       The RR values or null if invalid.
+     * @param rrCount  The number of RR values to use.
+     * @param activity The activity.
+     * @param pa       The peak acceleration.
+     */
+    public void add(long date, int hr, int[] rr, int rrCount, int activity,
+                    int pa) {
+        long delta = date - mLastDate;
+        mColumns[SessionArchiveReader.COLUMN_DATE].putVarLong(
+                delta - mLastDelta);
+        mLastDate = date;
+        mLastDelta = delta;
+        mColumns[SessionArchiveReader.COLUMN_HR].putVarLong(
+                (long) hr - mLastHr);
+        mLastHr = hr;
+        Column column = mColumns[SessionArchiveReader.COLUMN_RR];
+        if (rr == null) {
+            column.putVarLong(0);
+        } else {
+            column.putVarLong(rrCount + 1);
+            for (int i = 0; i < rrCount; i++) {
+                column.putVarLong((long) rr[i] - mLastRr);
+                mLastRr = rr[i];
+            }
+            mRrCount += rrCount;
+        }
+        mColumns[SessionArchiveReader.COLUMN_ACT].putVarLong(
+                (long) activity - mLastAct);
+        mLastAct = activity;
+        mColumns[SessionArchiveReader.COLUMN_PA].putVarLong(
+                (long) pa - mLastPa);
+        mLastPa = pa;
+        mRowCount++;
+    }
+
+    /**
+     * Gets the number of rows added.
+     *
+     * @return The number of rows.
+     */
+    public int getRowCount() {
+        return mRowCount;
+    }
+
+    /**
+     * Gets the size the file will have.
+     *
+     * @return The size in bytes.
+     */
+    public long getSize() {
+        long size = ARCHIVE_HEADER_SIZE;
+        for (Column column : mColumns) {
+            size += column.mSize;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the header and the columns and closes the channel.
+     *
+     * @throws IOException If they could not be written or the channel could
+     *                     not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(ARCHIVE_HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            CRC32 crc = new CRC32();
+            for (Column column : mColumns) {
+                crc.update(column.mBytes, 0, column.mSize);
+            }
+            header.putInt(ARCHIVE_MAGIC);
+            header.putShort((short) ARCHIVE_VERSION);
+            header.putShort((short) ARCHIVE_COLUMNS);
+            header.putLong(mStartDate);
+            header.putLong(mRowCount == 0 ? mStartDate : mLastDate);
+            header.putInt(mRowCount);
+            header.putInt(mRrCount);
+            header.putInt((int) crc.getValue());
+            int offset = ARCHIVE_HEADER_SIZE;
+            for (Column column : mColumns) {
+                header.putInt(offset);
+                header.putInt(column.mSize);
+                offset += column.mSize;
+            }
+            header.flip();
+            write(header);
+            for (Column column : mColumns) {
+                write(ByteBuffer.wrap(column.mBytes, 0, column.mSize));
+            }
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            mChannel.write(buffer);
+        }
+    }
+
+    /**
+     * A growable array of encoded values.
+     */
+    private static class Column {
+        private byte[] mBytes = new byte[1024];
+        private int mSize;
+
+        /**
+         * Appends a value as a zigzag varint.
+         *
+         * @param value The value.
+         */
+        private void putVarLong(long value) {
+            if (mBytes.length - mSize < 10) {
+                byte[] bytes = new byte[2 * mBytes.length];
+                System.arraycopy(mBytes, 0, bytes, 0, mSize);
+                mBytes = bytes;
+            }
+            long v = (value << 1) ^ (value >> 63);
+            while ((v & ~0x7FL) != 0) {
+                mBytes[mSize++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            mBytes[mSize++] = (byte) v;
+        }
+    }
+
+}
@@ -0,0 +1,191 @@
+package net.kenevans.android.hxmmonitor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Writes HR samples to a channel as a GPX or TCX track. The templates in
+ * GPXUtils are split once into byte fragments, and each point is written
+ * as the fragments with only the time and HR appended between them by a
+ * CsvWriter, which does the buffering and formats the times. The times are
+ * in UTC, yyyy-MM-dd'T'HH:mm:ss.SSS'Z'.<br>
+ * <br>
+ * Samples with an invalid HR are skipped. If there is a minimum interval,
+ * samples closer than that to the last point written are skipped too.
+ * Not thread safe.
+ */
+public class TrackWriter implements Closeable, IConstants {
+    public static final int FORMAT_GPX = 0;
+    public static final int FORMAT_TCX = 1;
+    /**
+     * The part of the time pattern before the seconds.
+     */
+    private static final String MINUTE_FORMAT = "yyyy-MM-dd'T'HH:mm:";
+    /**
+     * The largest HR that is written. TCX only allows a byte.
+     */
+    private static final int MAX_HR = 255;
+
+    private static final byte[][] GPX_POINT =
+            split(GPXUtils.GPX_FILE_TRACK_LINES);
+    private static final byte[][] TCX_POINT =
+            split(GPXUtils.TCX_FILE_TRACK_LINES);
+
+    private final CsvWriter mOut;
+    private final int mFormat;
+    private final long mMinInterval;
+    private final byte[][] mPoint;
+    private String mCreator = "";
+    private long mLastDate = INVALID_DATE;
+    private int mPointCount;
+
+    /**
+     * Constructor using a buffer of EXPORT_BUFFER_SIZE.
+     *
+     * @param channel     The channel.
+     * @param format      FORMAT_GPX or FORMAT_TCX.
+     * @param minInterval The minimum time between points (ms) or 0 to write
+     *                    all of them.
+     */
+    public TrackWriter(WritableByteChannel channel, int format,
+                       long minInterval) {
+        mOut = new CsvWriter(channel, EXPORT_BUFFER_SIZE, MINUTE_FORMAT,
+                TimeZone.getTimeZone("GMT"));
+        mFormat = format;
+        mMinInterval = minInterval;
+        mPoint = format == FORMAT_TCX ? TCX_POINT : GPX_POINT;
+    }
+
+    /**
+     * Writes the beginning of the file.
+     *
+     * @param creator   The name of the creator.
+     * @param startDate The start of the session.
+     * @param endDate   The end of the session or INVALID_DATE if unknown.
+     * @throws IOException If the buffer could not be written.
+     */
+    public void writeStart(String creator, long startDate, long endDate)
+            throws IOException {
+        mCreator = escape(creator);
+        if (mFormat == FORMAT_TCX) {
+            String start = formatTime(startDate);
+            double total = endDate == INVALID_DATE || endDate < startDate ?
+                    0 : .001 * (endDate - startDate);
+            mOut.append(String.format(Locale.US,
+                    GPXUtils.TCX_FILE_START_LINES, start, start,
+                    String.format(Locale.US, "%.3f", total)));
+        } else {
+            mOut.append(String.format(GPXUtils.GPX_FILE_START_LINES, mCreator,
+                    formatTime(System.currentTimeMillis())));
+        }
+    }
+
+    /**
+     * Writes a point unless the HR is invalid or it is too close to the
+     * last one.
+     *
+     * @param date The date.
+     * @param hr   The HR.
+     * @return Whether it was written.
+     * @throws IOException If the buffer could not be written.
+     */
+    public boolean addPoint(long date, int hr) throws IOException {
+        if (hr <= 0 || hr > MAX_HR) {
+            return false;
+        }
+        if (mMinInterval > 0 && mLastDate != INVALID_DATE
+                && date - mLastDate < mMinInterval) {
+            return false;
+        }
+        mLastDate = date;
+        mOut.append(mPoint[0]).appendDate(date).append('Z').append(mPoint[1])
+                .append(hr).append(mPoint[2]);
+        mPointCount++;
+        return true;
+    }
+
+    /**
+     * Writes the end of the file.
+     *
+     * @throws IOException If the buffer could not be written.
+     */
+    public void writeEnd() throws IOException {
+        if (mFormat == FORMAT_TCX) {
+            mOut.append(String.format(GPXUtils.TCX_FILE_END_LINES,
+                    mCreator));
+        } else {
+            mOut.append(GPXUtils.GPX_FILE_END_LINES);
+        }
+    }
+
+    /**
+     * Gets the number of points written.
+     *
+     * @return The number of points.
+     */
+    public int getPointCount() {
+        return mPointCount;
+    }
+
+    /**
+     * Writes what is in the buffer and closes the channel.
+     *
+     * @throws IOException If the buffer could not be written or the channel
+     *                     could not be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        mOut.close();
+    }
+
+    /**
+     * Formats a time the slow way, for the few times outside the points.
+     *
+     * @param date The date.
+     * @return The formatted time.
+     */
+    private static String formatTime(long date) {
+        SimpleDateFormat formatter = new SimpleDateFormat(
+                "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        formatter.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return formatter.format(new Date(date));
+    }
+
+    /**
+     * Splits a track point template at its two %s into three fragments.
+     *
+     * @param template The template.
+     * @return The fragments.
+     */
+    private static byte[][] split(String template) {
+        int first = template.indexOf("%s");
+        int second = template.indexOf("%s", first + 2);
+        return new byte[][]{
+                template.substring(0, first).getBytes(StandardCharsets.UTF_8),
+                template.substring(first + 2, second)
+                        .getBytes(StandardCharsets.UTF_8),
+                template.substring(second + 2)
+                        .getBytes(StandardCharsets.UTF_8)};
+    }
+
+    /**
+     * Escapes the characters that are special in XML.
+     *
+     * @param string The String.
+     * @return The escaped String.
+     */
+    private static String escape(String string) {
+        if (string == null) {
+            return "";
+        }
+        return string.replace("&", "&amp;").replace("<", "&lt;")
+                .replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+}
@@ -0,0 +1,208 @@
+package net.kenevans.android.hxmmonitor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Tests for DataCsvReader, reading what the save database option writes
+ * with CsvWriter.
+ */
+public class DataCsvReaderTest implements IConstants {
+    private static final long ARCHIVED_START = 1500000000000L;
+    private static final long START = 1500100000000L;
+
+    /**
+     * Writes the rows of a session as the save database option does.
+     */
+    private static void writeSession(CsvWriter out, long startDate,
+                                     int nRows) throws IOException {
+        for (int i = 0; i < nRows; i++) {
+            out.append(startDate + 1000L * i).append(SAVE_DATABASE_DELIM)
+                    .append(startDate).append(SAVE_DATABASE_DELIM)
+                    .append(60 + i % 40).append(SAVE_DATABASE_DELIM)
+                    .appendRr(RrCodec.encode(new int[]{800 + i, 810}))
+                    .append(SAVE_DATABASE_DELIM).append(i % 7)
+                    .append(SAVE_DATABASE_DELIM).append(i % 5)
+                    .append(SAVE_DATABASE_DELIM).append('\n');
+        }
+    }
+
+    /**
+     * Reads the file and counts the rows for each start date.
+     */
+    private static Map<Long, Integer> readCounts(DataCsvReader in)
+            throws IOException {
+        Map<Long, Integer> counts = new HashMap<>();
+        DataBatch batch = new DataBatch(64);
+        boolean more = true;
+        while (more) {
+            batch.clear();
+            more = in.read(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                counts.merge(batch.getStartDate(i), 1, Integer::sum);
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Reads all the rows into one batch.
+     */
+    private static DataBatch readAll(byte[] bytes) throws IOException {
+        DataBatch batch = new DataBatch(1000);
+        try (DataCsvReader in = new DataCsvReader(
+                new ByteArrayInputStream(bytes))) {
+            in.read(batch);
+        }
+        return batch;
+    }
+
+    private static byte[] saveDatabase() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (CsvWriter out = new CsvWriter(Channels.newChannel(bytes))) {
+            // The archived sessions first, as in saveDatabaseAsCsv
+            writeSession(out, ARCHIVED_START, 300);
+            writeSession(out, START, 200);
+        }
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void roundTripKeepsSessionRowCounts() throws IOException {
+        try (DataCsvReader in = new DataCsvReader(
+                new ByteArrayInputStream(saveDatabase()))) {
+            Map<Long, Integer> counts = readCounts(in);
+            assertEquals(300, (int) counts.get(ARCHIVED_START));
+            assertEquals(200, (int) counts.get(START));
+            assertEquals(500, in.getLineNumber());
+            assertEquals(0, in.getErrors());
+        }
+    }
+
+    @Test
+    public void roundTripKeepsValues() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (CsvWriter out = new CsvWriter(Channels.newChannel(bytes))) {
+            out.append(START).append(",").append(START).append(",72,")
+                    .appendRr(RrCodec.encode(new int[]{812, 65535, 0}))
+                    .append(",3,4,\n");
+            // An empty RR, written as a space as saveDatabaseAsCsv does
+            out.append(START + 1000).append(",").append(START)
+                    .append(",0, ,0,0,\n");
+            out.append(START + 2000).append(",").append(START).append(",")
+                    .append(INVALID_INT).append(",").appendRr(null)
+                    .append(",").append(INVALID_INT).append(",")
+                    .append(INVALID_INT).append(",\n");
+        }
+        DataBatch batch = readAll(bytes.toByteArray());
+        assertEquals(3, batch.size());
+        assertEquals(START, batch.getDate(0));
+        assertEquals(START, batch.getStartDate(0));
+        assertEquals(72, batch.getHr(0));
+        assertArrayEquals(new int[]{812, 65535, 0}, batch.copyRr(0));
+        assertEquals(3, batch.getActivity(0));
+        assertEquals(4, batch.getPa(0));
+        assertEquals(START + 1000, batch.getDate(1));
+        assertArrayEquals(new int[0], batch.copyRr(1));
+        assertEquals(INVALID_INT, batch.getHr(2));
+        assertNull(batch.copyRr(2));
+        assertEquals(INVALID_INT, batch.getActivity(2));
+        assertEquals(INVALID_INT, batch.getPa(2));
+    }
+
+    @Test
+    public void readsCrLfAndCrLineEndings() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (CsvWriter out = new CsvWriter(Channels.newChannel(bytes))) {
+            // A comment that puts its \r at the end of the first buffer
+            // and its \n at the start of the next
+            StringBuilder sb = new StringBuilder("#");
+            while (sb.length() < EXPORT_BUFFER_SIZE - 1) {
+                sb.append('x');
+            }
+            out.append(sb.toString()).append("\r\n");
+            out.append("1000,1000,60,800,1,2,\r\n");
+            out.append("2000,1000,61,810 820,1,2\r");
+            out.append("\r\n");
+            out.append("3000,1000,62,830,1,2\n");
+            out.append("4000,1000,63,840,1,2");
+        }
+        try (DataCsvReader in = new DataCsvReader(
+                new ByteArrayInputStream(bytes.toByteArray()))) {
+            DataBatch batch = new DataBatch(10);
+            in.read(batch);
+            assertEquals(4, batch.size());
+            for (int i = 0; i < 4; i++) {
+                assertEquals(1000L * (i + 1), batch.getDate(i));
+                assertEquals(60 + i, batch.getHr(i));
+            }
+            assertArrayEquals(new int[]{810, 820}, batch.copyRr(1));
+            // The comment, 4 rows, and the blank line
+            assertEquals(6, in.getLineNumber());
+            assertEquals(0, in.getErrors());
+        }
+    }
+
+    @Test
+    public void invalidValuesAreReadAsBefore() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (CsvWriter out = new CsvWriter(Channels.newChannel(bytes))) {
+            out.append("Mon Jan 01,1000,60,800,1,2\n");
+            out.append("2000,,61,800\n");
+            out.append("99999999999999999999,1000,x,800,y,\n");
+            out.append("4000,1000,63,8a0,1,2\n");
+            out.append("5000,1000,64\n");
+        }
+        try (DataCsvReader in = new DataCsvReader(
+                new ByteArrayInputStream(bytes.toByteArray()))) {
+            DataBatch batch = new DataBatch(10);
+            in.read(batch);
+            assertEquals(4, batch.size());
+            assertEquals(INVALID_DATE, batch.getDate(0));
+            assertEquals(1000, batch.getStartDate(0));
+            assertEquals(INVALID_DATE, batch.getStartDate(1));
+            // Missing activity and PA
+            assertEquals(0, batch.getActivity(1));
+            assertEquals(0, batch.getPa(1));
+            // Too big for a long
+            assertEquals(INVALID_DATE, batch.getDate(2));
+            assertEquals(0, batch.getHr(2));
+            assertEquals(0, batch.getActivity(2));
+            assertNull(batch.copyRr(3));
+            // Too few values
+            assertEquals(1, in.getErrors());
+            assertEquals("Found 3 values @ line 5", in.getLastError());
+        }
+    }
+
+    @Test
+    public void restoreSkipsArchivedSessions() throws IOException {
+        // The archived session is kept in the database by
+        // recreateDataTable, so restoring its rows again would double it
+        Map<Long, Integer> database = new HashMap<>();
+        database.put(ARCHIVED_START, 300);
+        try (DataCsvReader in = new DataCsvReader(
+                new ByteArrayInputStream(saveDatabase()))) {
+            in.setSkippedStartDates(new long[]{ARCHIVED_START});
+            for (Map.Entry<Long, Integer> entry : readCounts(in).entrySet()) {
+                database.merge(entry.getKey(), entry.getValue(),
+                        Integer::sum);
+            }
+            assertEquals(300, in.getSkipped());
+            assertEquals(0, in.getErrors());
+        }
+        assertEquals(300, (int) database.get(ARCHIVED_START));
+        assertEquals(200, (int) database.get(START));
+    }
+
+}
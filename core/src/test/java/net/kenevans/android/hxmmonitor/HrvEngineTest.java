@@ -0,0 +1,95 @@
+package net.kenevans.android.hxmmonitor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for HrvEngine against values computed by hand. A scale of 1 is
+ * used, so the R-R values are in ms.
+ */
+public class HrvEngineTest implements IConstants {
+    private static final double TOLERANCE = 1e-9;
+
+    /**
+     * Adds beats one after the other, each at the time of the previous one
+     * plus its R-R value.
+     */
+    private static long addBeats(HrvEngine engine, long time, int... rr) {
+        for (int value : rr) {
+            time += value;
+            engine.addBeat(time, value);
+        }
+        return time;
+    }
+
+    @Test
+    public void statisticsMatchHandComputedValues() {
+        HrvEngine engine = new HrvEngine(60000);
+        engine.setScale(1);
+        addBeats(engine, 0, 800, 850, 820, 900, 880);
+        assertEquals(5, engine.getCount());
+        // Mean 850, deviations -50 0 -30 50 30
+        assertEquals(850, engine.getMeanRr(), TOLERANCE);
+        // Sum of squares 6800 over 4
+        assertEquals(Math.sqrt(1700), engine.getSdnn(), TOLERANCE);
+        // Differences 50 -30 80 -20, sum of squares 10200 over 4
+        assertEquals(Math.sqrt(2550), engine.getRmssd(), TOLERANCE);
+        // Only 80 is greater than 50
+        assertEquals(25, engine.getPnn50(), TOLERANCE);
+    }
+
+    @Test
+    public void statisticsUseTheScale() {
+        HrvEngine engine = new HrvEngine(60000);
+        addBeats(engine, 0, 1024, 1024, 1024);
+        assertEquals(1000, engine.getMeanRr(), TOLERANCE);
+        assertEquals(0, engine.getSdnn(), TOLERANCE);
+        assertEquals(0, engine.getRmssd(), TOLERANCE);
+    }
+
+    @Test
+    public void artifactIsRejectedAndBreaksTheSequence() {
+        HrvEngine engine = new HrvEngine(60000);
+        engine.setScale(1);
+        addBeats(engine, 0, 800, 850);
+        assertFalse(engine.addBeat(4000, 2500));
+        // Not compared with 850
+        assertTrue(engine.addBeat(4860, 860));
+        engine.addBeat(5730, 870);
+        assertEquals(4, engine.getCount());
+        assertEquals(1, engine.getRejected());
+        // Differences 50 and 10
+        assertEquals(Math.sqrt(1300), engine.getRmssd(), TOLERANCE);
+        assertEquals(0, engine.getPnn50(), TOLERANCE);
+    }
+
+    @Test
+    public void beatsLeaveTheWindowWithTheirDifferences() {
+        HrvEngine engine = new HrvEngine(2000);
+        engine.setScale(1);
+        addBeats(engine, 0, 1000, 1100, 1000, 1060);
+        // The beats at 1000 and 2100 are before 4160 - 2000
+        assertEquals(2, engine.getCount());
+        assertEquals(1030, engine.getMeanRr(), TOLERANCE);
+        assertEquals(Math.sqrt(1800), engine.getSdnn(), TOLERANCE);
+        // Differences -100 and 60
+        assertEquals(Math.sqrt(6800), engine.getRmssd(), TOLERANCE);
+        assertEquals(100, engine.getPnn50(), TOLERANCE);
+    }
+
+    @Test
+    public void statisticsAreNaNWithoutEnoughBeats() {
+        HrvEngine engine = new HrvEngine(60000);
+        assertTrue(Double.isNaN(engine.getMeanRr()));
+        engine.addBeat(1000, 1000);
+        assertTrue(Double.isNaN(engine.getSdnn()));
+        assertTrue(Double.isNaN(engine.getRmssd()));
+        assertTrue(Double.isNaN(engine.getPnn50()));
+        engine.clear();
+        assertEquals(0, engine.getCount());
+    }
+
+}
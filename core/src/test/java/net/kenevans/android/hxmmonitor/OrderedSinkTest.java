@@ -0,0 +1,159 @@
+package net.kenevans.android.hxmmonitor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for OrderedSink.
+ */
+public class OrderedSinkTest {
+    private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+    private final WritableByteChannel mOut = Channels.newChannel(mBytes);
+
+    private static void write(WritableByteChannel part, String string)
+            throws IOException {
+        part.write(ByteBuffer.wrap(string.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private String output() {
+        return new String(mBytes.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void partsAreWrittenInOrder() throws IOException {
+        OrderedSink sink = new OrderedSink(mOut, 3, 4);
+        WritableByteChannel part0 = sink.getPart(0);
+        WritableByteChannel part1 = sink.getPart(1);
+        WritableByteChannel part2 = sink.getPart(2);
+        write(part2, "c");
+        write(part1, "b1");
+        write(part0, "a1");
+        // The first part goes straight out
+        assertEquals("a1", output());
+        write(part1, "b2");
+        part1.close();
+        assertEquals("a1", output());
+        write(part0, "a2");
+        part0.close();
+        assertEquals("a1a2b1b2c", output());
+        assertFalse(sink.isComplete());
+        // Part 2 is now the first, so it goes straight out
+        write(part2, "d");
+        assertEquals("a1a2b1b2cd", output());
+        part2.close();
+        assertTrue(sink.isComplete());
+        assertThrows(ClosedChannelException.class, () -> write(part2, "e"));
+    }
+
+    @Test
+    public void concurrentPartsAreWrittenInOrder() throws Exception {
+        final int nParts = 4;
+        final int nBlocks = 200;
+        final OrderedSink sink = new OrderedSink(mOut, nParts, 3);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread[] threads = new Thread[nParts];
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < nParts; i++) {
+            final int index = i;
+            for (int j = 0; j < nBlocks; j++) {
+                expected.append(index).append('-').append(j).append('\n');
+            }
+            threads[i] = new Thread(() -> {
+                try (WritableByteChannel part = sink.getPart(index)) {
+                    for (int j = 0; j < nBlocks; j++) {
+                        write(part, index + "-" + j + "\n");
+                    }
+                } catch (Throwable ex) {
+                    error.set(ex);
+                }
+            });
+        }
+        // Started in order, as the export does
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join(10000);
+        }
+        assertNull(error.get());
+        assertTrue(sink.isComplete());
+        assertEquals(expected.toString(), output());
+    }
+
+    @Test
+    public void cancelStopsAWaitingWriter() throws Exception {
+        final OrderedSink sink = new OrderedSink(mOut, 2, 1);
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final WritableByteChannel part1 = sink.getPart(1);
+        write(part1, "b1");
+        // Waits, since part 1 is holding as many blocks as it can
+        Thread thread = new Thread(() -> {
+            try {
+                write(part1, "b2");
+            } catch (Throwable ex) {
+                error.set(ex);
+            }
+        });
+        thread.start();
+        thread.join(200);
+        assertTrue(thread.isAlive());
+        sink.cancel();
+        thread.join(10000);
+        assertFalse(thread.isAlive());
+        assertTrue(error.get() instanceof InterruptedIOException);
+        // Later writes fail too
+        assertThrows(InterruptedIOException.class,
+                () -> write(sink.getPart(0), "a"));
+        assertEquals("", output());
+    }
+
+    @Test
+    public void errorIsPassedToTheLaterParts() throws IOException {
+        final IOException failure = new IOException("Disk full");
+        WritableByteChannel out = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                throw failure;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        OrderedSink sink = new OrderedSink(out, 2, 4);
+        WritableByteChannel part0 = sink.getPart(0);
+        WritableByteChannel part1 = sink.getPart(1);
+        write(part1, "b");
+        IOException ex = assertThrows(IOException.class,
+                () -> write(part0, "a"));
+        assertSame(failure, ex);
+        // Closing a part that failed reports it again
+        ex = assertThrows(IOException.class, part0::close);
+        assertSame(failure, ex.getCause());
+        ex = assertThrows(IOException.class, () -> write(part1, "c"));
+        assertSame(failure, ex.getCause());
+        assertFalse(sink.isComplete());
+    }
+
+}
@@ -0,0 +1,122 @@
+package net.kenevans.android.hxmmonitor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests for RrTimeline. An R-R value of 1024 is 1000 ms at the nominal
+ * scale.
+ */
+public class RrTimelineTest implements IConstants {
+    private static final double TOLERANCE = 1e-9;
+
+    private final RrTimeline mTimeline = new RrTimeline();
+    private final long[] mTimes = new long[8];
+
+    /**
+     * Adds a measurement and gets the times of its beats.
+     */
+    private long[] add(long updateTime, int... rr) {
+        int n = mTimeline.add(updateTime, rr, rr.length, mTimes, 0);
+        long[] times = new long[n];
+        System.arraycopy(mTimes, 0, times, 0, n);
+        return times;
+    }
+
+    @Test
+    public void beatsFollowTheMeasurements() {
+        // The first beat is moved back to when it arrived
+        assertArrayEquals(new long[]{10000}, add(10000, 1024));
+        assertArrayEquals(new long[]{11000}, add(11000, 1024));
+        assertArrayEquals(new long[]{11500, 12000}, add(12000, 512, 512));
+        assertEquals(0, mTimeline.getGaps());
+    }
+
+    @Test
+    public void missingBeatsAreAGap() {
+        add(10000, 1024);
+        add(11000, 1024);
+        add(12000, 1024);
+        // The beats between 12000 and 18000 were not sent, so this one is
+        // placed after the last one
+        assertArrayEquals(new long[]{13000}, add(18000, 1024));
+        assertEquals(0, mTimeline.getGaps());
+        // Now the next one would be 5000 ms before 18000, so the beats are
+        // moved up to it
+        assertArrayEquals(new long[]{18000}, add(19000, 1024));
+        assertEquals(1, mTimeline.getGaps());
+        assertArrayEquals(new long[]{19000}, add(20000, 1024));
+        assertEquals(1, mTimeline.getGaps());
+    }
+
+    @Test
+    public void invalidValuesRestartAtTheirTime() {
+        add(10000, 1024);
+        add(11000, 1024);
+        assertEquals(0, mTimeline.add(30000, null, 0, mTimes, 0));
+        assertArrayEquals(new long[]{31000}, add(31000, 1024));
+        // A restart is not a gap
+        assertEquals(0, mTimeline.getGaps());
+    }
+
+    @Test
+    public void emptyMeasurementChangesNothing() {
+        add(10000, 1024);
+        assertArrayEquals(new long[0], add(10500));
+        assertArrayEquals(new long[]{11000}, add(11000, 1024));
+    }
+
+    @Test
+    public void csvBeatTimesMatchTheTimeline() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        RrTimeline timeline = new RrTimeline();
+        try (CsvWriter out = new CsvWriter(Channels.newChannel(bytes))) {
+            out.appendBeatTimes(timeline, 10000,
+                    RrCodec.encode(new int[]{1024}), 9000).append('\n');
+            out.appendBeatTimes(timeline, 11000,
+                    RrCodec.encode(new int[]{512, 512}), 9000).append('\n');
+            out.appendBeatTimes(timeline, 12000, new byte[0], 9000)
+                    .append('\n');
+            out.appendBeatTimes(timeline, 30000, null, 9000).append('\n');
+            out.appendBeatTimes(timeline, 31000,
+                    RrCodec.encode(new int[]{1024}), 9000).append('\n');
+        }
+        assertEquals("1000\n1500 2000\n\n" + INVALID_STRING + "\n22000\n",
+                new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(0, timeline.getGaps());
+    }
+
+    @Test
+    public void scaleFollowsTheClock() {
+        // The clock runs 1% slower than the R-R values
+        long time = 10000;
+        for (int i = 0; i < 200; i++) {
+            add(time, 1024);
+            time += 1010;
+        }
+        assertEquals(1010. / 1024, mTimeline.getScale(), 1e-6);
+        mTimeline.reset();
+        assertEquals(RrTimeline.NOMINAL_SCALE, mTimeline.getScale(),
+                TOLERANCE);
+    }
+
+    @Test
+    public void scaleIsLimited() {
+        // 10% is more than the clock could be off
+        long time = 10000;
+        for (int i = 0; i < 200; i++) {
+            add(time, 1024);
+            time += 1100;
+        }
+        assertEquals(RrTimeline.NOMINAL_SCALE * 1.02, mTimeline.getScale(),
+                TOLERANCE);
+    }
+
+}
@@ -0,0 +1,187 @@
+package net.kenevans.android.hxmmonitor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for reading with SessionArchiveReader what SessionArchiveWriter
+ * wrote.
+ */
+public class SessionArchiveTest implements IConstants {
+    private static final long START = 1500000000000L;
+    private static final int N_ROWS = 1000;
+
+    // The rows that were written
+    private final long[] mDates = new long[N_ROWS];
+    private final int[] mHr = new int[N_ROWS];
+    private final int[][] mRr = new int[N_ROWS][];
+    private final int[] mAct = new int[N_ROWS];
+    private final int[] mPa = new int[N_ROWS];
+    private int mRrCount;
+
+    /**
+     * Writes a session with irregular dates, repeated dates, invalid and
+     * empty RR, and INVALID_INT values.
+     */
+    private byte[] writeSession() throws IOException {
+        Random random = new Random(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        SessionArchiveWriter out = new SessionArchiveWriter(
+                Channels.newChannel(bytes), START);
+        long date = START;
+        for (int i = 0; i < N_ROWS; i++) {
+            if (i % 100 == 50) {
+                // A gap in the session
+                date += 600000;
+            } else if (i % 10 != 3) {
+                date += 900 + random.nextInt(200);
+            }
+            mDates[i] = date;
+            mHr[i] = i % 97 == 0 ? INVALID_INT : 50 + random.nextInt(100);
+            if (i % 31 == 0) {
+                mRr[i] = null;
+            } else {
+                mRr[i] = new int[i % 17 == 0 ? 0 : 1 + random.nextInt(3)];
+                for (int j = 0; j < mRr[i].length; j++) {
+                    mRr[i][j] = i % 53 == 0 ? 65535
+                            : 600 + random.nextInt(600);
+                }
+                mRrCount += mRr[i].length;
+            }
+            mAct[i] = i % 89 == 0 ? INVALID_INT : random.nextInt(1000);
+            mPa[i] = random.nextInt(1000);
+            out.add(mDates[i], mHr[i], mRr[i],
+                    mRr[i] == null ? 0 : mRr[i].length, mAct[i], mPa[i]);
+        }
+        assertEquals(N_ROWS, out.getRowCount());
+        long size = out.getSize();
+        out.close();
+        assertEquals(size, bytes.size());
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Checks the rows in the batch against the ones written, starting with
+     * the given one.
+     */
+    private void checkRows(DataBatch batch, int first) {
+        int row;
+        for (int i = 0; i < batch.size(); i++) {
+            row = first + i;
+            assertEquals(mDates[row], batch.getDate(i));
+            assertEquals(START, batch.getStartDate(i));
+            assertEquals(mHr[row], batch.getHr(i));
+            if (mRr[row] == null) {
+                assertNull(batch.copyRr(i));
+            } else {
+                assertArrayEquals(mRr[row], batch.copyRr(i));
+            }
+            assertEquals(mAct[row], batch.getActivity(i));
+            assertEquals(mPa[row], batch.getPa(i));
+        }
+    }
+
+    @Test
+    public void roundTripKeepsAllRows() throws IOException {
+        SessionArchiveReader in = new SessionArchiveReader(
+                ByteBuffer.wrap(writeSession()));
+        assertEquals(START, in.getStartDate());
+        assertEquals(mDates[N_ROWS - 1], in.getEndDate());
+        assertEquals(N_ROWS, in.getRowCount());
+        assertEquals(mRrCount, in.getRrCount());
+        assertTrue(in.verify());
+        // A batch size that does not divide the rows
+        DataBatch batch = new DataBatch(64);
+        int row = 0;
+        boolean more = true;
+        while (more) {
+            batch.clear();
+            more = in.read(batch);
+            checkRows(batch, row);
+            row += batch.size();
+        }
+        assertEquals(N_ROWS, row);
+        assertEquals(N_ROWS, in.getRow());
+    }
+
+    @Test
+    public void seekGoesToTheRow() throws IOException {
+        SessionArchiveReader in = new SessionArchiveReader(
+                ByteBuffer.wrap(writeSession()));
+        DataBatch batch = new DataBatch(10);
+        in.seek(500);
+        in.read(batch);
+        checkRows(batch, 500);
+        // Back again
+        in.seek(120);
+        batch.clear();
+        in.read(batch);
+        checkRows(batch, 120);
+        in.seek(N_ROWS + 10);
+        assertEquals(N_ROWS, in.getRow());
+        batch.clear();
+        assertFalse(in.read(batch));
+        assertEquals(0, batch.size());
+    }
+
+    @Test
+    public void seekAfterDateGoesToTheNextDate() throws IOException {
+        SessionArchiveReader in = new SessionArchiveReader(
+                ByteBuffer.wrap(writeSession()));
+        DataBatch batch = new DataBatch(1);
+        // Row 3 has the same date as row 2
+        in.seekAfterDate(mDates[2] - 1);
+        assertEquals(2, in.getRow());
+        in.seekAfterDate(mDates[2]);
+        assertEquals(4, in.getRow());
+        in.read(batch);
+        checkRows(batch, 4);
+        // In a gap and back again
+        in.seekAfterDate(mDates[50] - 1000);
+        assertEquals(50, in.getRow());
+        in.seekAfterDate(START - 1);
+        assertEquals(0, in.getRow());
+        in.seekAfterDate(mDates[N_ROWS - 1]);
+        assertEquals(N_ROWS, in.getRow());
+    }
+
+    @Test
+    public void emptySession() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new SessionArchiveWriter(Channels.newChannel(bytes), START).close();
+        SessionArchiveReader in = new SessionArchiveReader(
+                ByteBuffer.wrap(bytes.toByteArray()));
+        assertEquals(START, in.getEndDate());
+        assertEquals(0, in.getRowCount());
+        assertTrue(in.verify());
+        assertFalse(in.read(new DataBatch(10)));
+    }
+
+    @Test
+    public void corruptArchivesAreFound() throws IOException {
+        byte[] bytes = writeSession();
+        bytes[bytes.length - 1] ^= 1;
+        assertFalse(new SessionArchiveReader(ByteBuffer.wrap(bytes))
+                .verify());
+        byte[] truncated = new byte[bytes.length - 10];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+        assertThrows(IOException.class, () ->
+                new SessionArchiveReader(ByteBuffer.wrap(truncated)));
+        bytes[0] ^= 1;
+        assertThrows(IOException.class, () ->
+                new SessionArchiveReader(ByteBuffer.wrap(bytes)));
+    }
+
+}